@@ -10,6 +10,7 @@ import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
 
 import org.topbraid.spin.model.Argument;
 import org.topbraid.spin.model.Ask;
@@ -157,6 +158,14 @@ public class ARQ2SPIN {
 	
 	private Map<String,Resource> var2Resource = new HashMap<String,Resource>();
 	
+	private ConcurrentMap<String,Node> sharedVariables;
+	
+	/**
+	 * If not null then this maps structurally equal ARQ expressions and elements
+	 * to the single SPIN node that has been created for them (hash-consing).
+	 */
+	private Map<Object,RDFNode> sharedNodes;
+	
 
 	/**
 	 * Constructs a new ARQ2SPIN engine for a given Model,
@@ -196,6 +205,23 @@ public class ARQ2SPIN {
 	}
 	
 	
+	/**
+	 * Constructs a new ARQ2SPIN engine for a given Model that shares its variables
+	 * with other ARQ2SPIN engines, for example engines running in parallel to produce
+	 * fragments of the same target Model (see BulkARQ2SPIN).
+	 * Unlike the other constructors, this does not scan the Model for existing variables -
+	 * instead the shared map is expected to be pre-populated (see getVariables(Model)).
+	 * @param model  the Model to operate on
+	 * @param addPrefixes  true to also let the system add missing prefixes
+	 * @param sharedVariables  the shared map from variable names to variable nodes
+	 */
+	public ARQ2SPIN(Model model, boolean addPrefixes, ConcurrentMap<String,Node> sharedVariables) {
+		this.model = model;
+		this.addPrefixes = addPrefixes;
+		this.sharedVariables = sharedVariables;
+	}
+	
+	
 	private void addClearOrDropProperties(UpdateDropClear arqClear, Update spinUpdate) {
 		Target target = arqClear.getTarget();
 		if(target.isAll()) {
@@ -421,6 +447,10 @@ public class ARQ2SPIN {
 	 * @return a SPIN ElementList
 	 */
 	public ElementList createElementList(Element pattern) {
+		RDFNode shared = getShared(pattern);
+		if(shared != null) {
+			return shared.as(ElementList.class);
+		}
 		final List<Resource> members = new LinkedList<Resource>();
 		if(pattern != null) {
 			pattern.visit(new AbstractElementVisitor() {
@@ -429,23 +459,38 @@ public class ARQ2SPIN {
 	
 				@Override
 				public void visit(ElementAssign assign) {
+					RDFNode shared = getShared(assign);
+					if(shared != null) {
+						members.add((Resource)shared);
+						return;
+					}
 					RDFNode expression = createExpression(assign.getExpr());
 					Variable variable = getVariable(assign.getVar().getName()).as(Variable.class);
-					members.add(SPINFactory.createBind(model, variable, expression));
+					members.add(share(assign, SPINFactory.createBind(model, variable, expression)));
 				}
 				
 				@Override
 				public void visit(ElementBind bind) {
+					RDFNode shared = getShared(bind);
+					if(shared != null) {
+						members.add((Resource)shared);
+						return;
+					}
 					RDFNode expression = createExpression(bind.getExpr());
 					Variable variable = getVariable(bind.getVar().getName()).as(Variable.class);
-					members.add(SPINFactory.createBind(model, variable, expression));
+					members.add(share(bind, SPINFactory.createBind(model, variable, expression)));
 				}
 				
 				
 				@Override
 				public void visit(ElementFilter filter) {
+					RDFNode shared = getShared(filter);
+					if(shared != null) {
+						members.add((Resource)shared);
+						return;
+					}
 					RDFNode expression = createExpression(filter.getExpr());
-					members.add(SPINFactory.createFilter(model, expression));
+					members.add(share(filter, SPINFactory.createFilter(model, expression)));
 				}
 	
 				
@@ -562,27 +607,37 @@ public class ARQ2SPIN {
 							if(path.isTriple()) {
 								next = path.asTriple();
 							}
+							else if(getShared(path) != null) {
+								members.add((Resource)getShared(path));
+							}
 							else {
 								Path p = path.getPath();
 								Resource pathResource = createPath(p);
 								Resource subject = (Resource) getNode(path.getSubject());
 								RDFNode object = getNode(path.getObject());
 								org.topbraid.spin.model.TriplePath triplePath = SPINFactory.createTriplePath(model, subject, pathResource, object);
-								members.add(triplePath);
+								members.add(share(path, triplePath));
 							}
 						}
 						if(next instanceof Triple) {
 							Triple triple = (Triple) next;
-							Resource subject = (Resource) getNode(triple.getSubject());
-							Resource predicate = (Resource) getNode(triple.getPredicate());
-							RDFNode object = getNode(triple.getObject());
-							members.add(SPINFactory.createTriplePattern(model, subject, predicate, object));
+							RDFNode shared = getShared(triple);
+							if(shared != null) {
+								members.add((Resource)shared);
+							}
+							else {
+								Resource subject = (Resource) getNode(triple.getSubject());
+								Resource predicate = (Resource) getNode(triple.getPredicate());
+								RDFNode object = getNode(triple.getObject());
+								members.add(share(triple, SPINFactory.createTriplePattern(model, subject, predicate, object)));
+							}
 						}
 					}
 				}
 			});
 		}
-		return model.createList(members.iterator()).as(ElementList.class);
+		ElementList result = model.createList(members.iterator()).as(ElementList.class);
+		return pattern != null ? share(pattern, result) : result;
 	}
 	
 	
@@ -602,7 +657,11 @@ public class ARQ2SPIN {
 				return getVariable(varName);
 			}
 			else {
-				return createFunctionCall(expr);
+				RDFNode shared = getShared(expr);
+				if(shared != null) {
+					return shared;
+				}
+				return share(expr, createFunctionCall(expr));
 			}
 		}
 	}
@@ -635,11 +694,9 @@ public class ARQ2SPIN {
 		if(addPrefixes) {
 			String ns = f.getNameSpace();
 			if(ns != null && model.getNsURIPrefix(ns) == null) {
-				Map<String,String> extras = ExtraPrefixes.getExtraPrefixes();
-				for(String prefix : extras.keySet()) {
-					if(ns.equals(extras.get(prefix))) {
-						model.setNsPrefix(prefix, ns);
-					}
+				String prefix = ExtraPrefixes.getPrefix(ns);
+				if(prefix != null) {
+					model.setNsPrefix(prefix, ns);
 				}
 			}
 		}
@@ -999,12 +1056,57 @@ public class ARQ2SPIN {
 	}
 
 
+	private RDFNode getShared(Object key) {
+		if(sharedNodes != null && key != null) {
+			return sharedNodes.get(key);
+		}
+		else {
+			return null;
+		}
+	}
+
+
 	private Resource getVariable(String name) {
 		Resource old = var2Resource.get(name);
 		if(old != null) {
 			return old;
 		}
-		else if(SPINPreferences.get().isCreateURIVariables()) {
+		else if(sharedVariables != null) {
+			Node node = sharedVariables.get(name);
+			if(node == null) {
+				Resource var = createVariable(name);
+				node = sharedVariables.putIfAbsent(name, var.asNode());
+				if(node == null) {
+					return var;
+				}
+				// Another thread was faster: use its node instead
+				model.removeAll(var, null, null);
+				var2Resource.remove(name);
+			}
+			Resource var = model.getRDFNode(node).asResource();
+			if(node.isURI()) {
+				var.addProperty(RDF.type, SP.Variable);
+			}
+			var.addProperty(SP.varName, model.createTypedLiteral(name));
+			var2Resource.put(name, var);
+			return var;
+		}
+		else {
+			return createVariable(name);
+		}
+	}
+	
+	
+	private <T extends RDFNode> T share(Object key, T node) {
+		if(sharedNodes != null) {
+			sharedNodes.put(key, node);
+		}
+		return node;
+	}
+	
+	
+	private Resource createVariable(String name) {
+		if(SPINPreferences.get().isCreateURIVariables()) {
 			String uri = varNamespace + "_" + name;
 			Resource var = model.createResource(uri, SP.Variable);
 			var.addProperty(SP.varName, model.createTypedLiteral(name));
@@ -1019,6 +1121,24 @@ public class ARQ2SPIN {
 	}
 	
 
+	/**
+	 * Collects the named variables that already exist in a given Model
+	 * and that would be reused by <code>new ARQ2SPIN(model)</code>.
+	 * This can be used to pre-populate the shared variables of the
+	 * ARQ2SPIN(Model, boolean, ConcurrentMap) constructor.
+	 * @param model  the Model to scan
+	 * @return a Map from variable names to variable nodes
+	 */
+	public static Map<String,Node> getVariables(Model model) {
+		ARQ2SPIN a2s = new ARQ2SPIN(model);
+		Map<String,Node> results = new HashMap<String,Node>();
+		for(String name : a2s.var2Resource.keySet()) {
+			results.put(name, a2s.var2Resource.get(name).asNode());
+		}
+		return results;
+	}
+	
+	
 	/**
 	 * Gets the (optional) variable namespace.
 	 * @return the variable namespace
@@ -1057,6 +1177,37 @@ public class ARQ2SPIN {
 	}
 	
 	
+	/**
+	 * Checks whether hash-consing is activated.
+	 * @return true  if structurally equal subtrees are shared
+	 * @see #setHashConsing(boolean)
+	 */
+	public boolean isHashConsing() {
+		return sharedNodes != null;
+	}
+	
+	
+	/**
+	 * Activates or deactivates hash-consing.  If activated, all structurally
+	 * equal expressions, triple patterns, filters, binds and element lists that
+	 * are created by this ARQ2SPIN (across all queries converted by it) will be
+	 * represented by the same SPIN node, which makes the resulting Models smaller.
+	 * Variables are compared by name.  Note that the resulting SPIN structures
+	 * are DAGs, so that editing one query may affect others.
+	 * @param value  true to activate hash-consing
+	 */
+	public void setHashConsing(boolean value) {
+		if(value) {
+			if(sharedNodes == null) {
+				sharedNodes = new HashMap<Object,RDFNode>();
+			}
+		}
+		else {
+			sharedNodes = null;
+		}
+	}
+	
+	
 	/**
 	 * Sets the variable namespace which is used to prevent the
 	 * creation of too many blank nodes.
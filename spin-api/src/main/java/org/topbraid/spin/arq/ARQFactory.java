@@ -16,6 +16,7 @@ import org.topbraid.spin.model.update.Update;
 import org.topbraid.spin.system.ExtraPrefixes;
 import org.topbraid.spin.util.JenaUtil;
 import org.topbraid.spin.util.SPINExpressions;
+import org.topbraid.spin.util.SPINStructuralHash;
 
 import com.hp.hpl.jena.graph.Node;
 import com.hp.hpl.jena.query.Dataset;
@@ -60,7 +61,14 @@ public class ARQFactory {
 	 */
 	private Map<String,UpdateRequest> string2Update = new ConcurrentHashMap<String,UpdateRequest>();
 	
+	/**
+	 * Caches parsable query strings for each structural hash of a SPIN Command.
+	 */
+	private Map<String,String> structure2String = new ConcurrentHashMap<String,String>();
+	
 	private boolean useCaches = true;
+	
+	private boolean useStructuralKeys;
 	
 
 	/**
@@ -98,6 +106,7 @@ public class ARQFactory {
 		node2String.clear();
 		string2Query.clear();
 		string2Update.clear();
+		structure2String.clear();
 	}
 	
 
@@ -111,11 +120,21 @@ public class ARQFactory {
 	public String createCommandString(org.topbraid.spin.model.Command spinCommand) {
 		String result = node2String.get(spinCommand.asNode());
 		if(result == null) {
-			StringPrintContext p = new StringPrintContext();
-			p.setUsePrefixes(false);
-			p.setPrintPrefixes(false);
-			spinCommand.print(p);
-			result = p.getString();
+			String key = null;
+			if(useCaches && useStructuralKeys) {
+				key = SPINStructuralHash.get(spinCommand);
+				result = structure2String.get(key);
+			}
+			if(result == null) {
+				StringPrintContext p = new StringPrintContext();
+				p.setUsePrefixes(false);
+				p.setPrintPrefixes(false);
+				spinCommand.print(p);
+				result = p.getString();
+				if(key != null) {
+					structure2String.put(key, result);
+				}
+			}
 			if(useCaches) {
 				node2String.put(spinCommand.asNode(), result);
 			}
@@ -181,10 +200,10 @@ public class ARQFactory {
 	        queryString.append("PREFIX :   <" + defaultNamespace + ">\n");
 	    }
 	    if(includeExtraPrefixes) {
-	    	Map<String,String> extraPrefixes = ExtraPrefixes.getExtraPrefixes();
-	    	for(String prefix : extraPrefixes.keySet()) {
-	    		String ns = extraPrefixes.get(prefix);
-		    	perhapsAppend(queryString, prefix, ns, model);
+	    	for(String[] declaration : ExtraPrefixes.getDeclarations()) {
+	    		if(model.getNsPrefixURI(declaration[0]) == null) {
+	    			queryString.append(declaration[1]);
+	    		}
 	    	}
 	    }
 	    Iterator<String> prefixes = model.getNsPrefixMap().keySet().iterator();
@@ -388,19 +407,13 @@ public class ARQFactory {
 	public boolean isUsingCaches() {
 		return useCaches;
 	}
+	
+	
+	public boolean isUsingStructuralKeys() {
+		return useStructuralKeys;
+	}
 
 
-	private static void perhapsAppend(StringBuffer queryString, String prefix, String namespace, Model model) {
-		if(model.getNsPrefixURI(prefix) == null && namespace != null) {
-	    	queryString.append("PREFIX ");
-	    	queryString.append(prefix);
-	    	queryString.append(": <");
-	    	queryString.append(namespace);
-	    	queryString.append(">\n");
-		}
-	}
-	
-	
 	/**
 	 * Tells the ARQFactory whether to use caches for the various createXY functions.
 	 * These are on by default.
@@ -409,4 +422,18 @@ public class ARQFactory {
 	public void setUseCaches(boolean value) {
 		this.useCaches = value;
 	}
+	
+	
+	/**
+	 * Specifies whether the query string cache shall also be keyed by the
+	 * structural hash of SPIN commands (see SPINStructuralHash).  If true,
+	 * structurally equal commands (e.g. copies of the same rule in different
+	 * Models or hash-consed structures) share the same query string and thus
+	 * also the same parsed ARQ Query.  This assumes that all Models agree on
+	 * the definitions of the functions and templates that they use.
+	 * @param value  true to use structural keys
+	 */
+	public void setUseStructuralKeys(boolean value) {
+		this.useStructuralKeys = value;
+	}
 }
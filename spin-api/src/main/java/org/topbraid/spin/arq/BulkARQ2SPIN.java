@@ -0,0 +1,336 @@
+package org.topbraid.spin.arq;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import com.hp.hpl.jena.graph.Node;
+import com.hp.hpl.jena.query.Query;
+import com.hp.hpl.jena.query.QueryException;
+import com.hp.hpl.jena.query.QueryFactory;
+import com.hp.hpl.jena.query.QueryParseException;
+import com.hp.hpl.jena.rdf.model.Model;
+import com.hp.hpl.jena.rdf.model.ModelFactory;
+import com.hp.hpl.jena.rdf.model.Resource;
+import com.hp.hpl.jena.shared.ReificationStyle;
+import com.hp.hpl.jena.shared.WrappedIOException;
+import com.hp.hpl.jena.update.UpdateFactory;
+import com.hp.hpl.jena.update.UpdateRequest;
+
+
+/**
+ * Converts large numbers of SPARQL queries and updates into SPIN RDF.
+ *
+ * The textual commands are parsed and converted in parallel worker threads.
+ * Each worker uses its own ARQ2SPIN on a small fragment Model, but all of
+ * them share the same variables (named variables already in the target Model
+ * are collected only once).  The fragments are then added to the target
+ * Model in input order using the Graph's BulkUpdateHandler.
+ * At most a fixed number of commands (see setMaxPending) are read ahead of
+ * the oldest unmerged command, so the memory footprint does not depend on
+ * the size of the input.
+ *
+ * Commands that cannot be read or converted produce a null entry in the
+ * results, and the reason can be queried with getFailures.  This includes
+ * update requests with more than one operation, because each command becomes
+ * a single SPIN command.
+ */
+public class BulkARQ2SPIN {
+
+	private boolean addPrefixes = true;
+
+	private Map<Integer,Exception> failures = Collections.emptyMap();
+
+	private int maxPending;
+
+	private Model model;
+
+	private int threads;
+
+
+	/**
+	 * Creates a new BulkARQ2SPIN using one thread per available processor.
+	 * @param model  the target Model
+	 */
+	public BulkARQ2SPIN(Model model) {
+		this(model, Runtime.getRuntime().availableProcessors());
+	}
+
+
+	/**
+	 * Creates a new BulkARQ2SPIN.
+	 * @param model  the target Model
+	 * @param threads  the number of worker threads
+	 */
+	public BulkARQ2SPIN(Model model, int threads) {
+		this.model = model;
+		this.threads = Math.max(1, threads);
+		this.maxPending = this.threads * 4;
+	}
+
+
+	/**
+	 * Converts a stream of SPARQL query or update strings into SPIN.
+	 * The strings do not need to declare the prefixes of the target Model.
+	 * If the Iterator throws a RuntimeException for a command (for example a
+	 * WrappedIOException) then this is recorded as failure of that command.
+	 * @param commands  the SPARQL strings
+	 * @return the root resources of the new SPIN commands, in the order of
+	 *         the input, with null for commands that could not be converted
+	 */
+	public List<Resource> convert(Iterator<String> commands) {
+
+		ConcurrentMap<String,Node> variables = new ConcurrentHashMap<String,Node>(ARQ2SPIN.getVariables(model));
+		String prefixes = ARQFactory.get().createPrefixDeclarations(model);
+		Map<String,String> nsPrefixMap = model.getNsPrefixMap();
+
+		failures = new LinkedHashMap<Integer,Exception>();
+		List<Resource> results = new ArrayList<Resource>();
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		try {
+			LinkedList<Future<Fragment>> pending = new LinkedList<Future<Fragment>>();
+			while(commands.hasNext()) {
+				String command;
+				try {
+					command = commands.next();
+				}
+				catch(RuntimeException ex) {
+					failures.put(results.size() + pending.size(), ex);
+					command = null;
+				}
+				pending.add(executor.submit(new Worker(command, prefixes, nsPrefixMap, variables)));
+				if(pending.size() >= maxPending) {
+					merge(pending.removeFirst(), results);
+				}
+			}
+			while(!pending.isEmpty()) {
+				merge(pending.removeFirst(), results);
+			}
+			return results;
+		}
+		finally {
+			executor.shutdownNow();
+		}
+	}
+
+
+	/**
+	 * Converts a collection of files, each containing a SPARQL query or update,
+	 * into SPIN.  Files are read while earlier files are being converted.
+	 * @param files  the files to convert
+	 * @return the root resources as in convert(Iterator)
+	 */
+	public List<Resource> convertFiles(final List<File> files) {
+		return convert(new Iterator<String>() {
+
+			private Iterator<File> delegate = files.iterator();
+
+			@Override
+			public boolean hasNext() {
+				return delegate.hasNext();
+			}
+
+			@Override
+			public String next() {
+				File file = delegate.next();
+				try {
+					return readFile(file);
+				}
+				catch(IOException ex) {
+					throw new WrappedIOException(ex);
+				}
+			}
+
+			@Override
+			public void remove() {
+				throw new UnsupportedOperationException();
+			}
+		});
+	}
+
+
+	public boolean getAddPrefixes() {
+		return addPrefixes;
+	}
+
+
+	/**
+	 * Gets the commands of the most recent convert call that could not be
+	 * read or converted.
+	 * @return the exceptions, keyed by the index of the command in the input
+	 */
+	public Map<Integer,Exception> getFailures() {
+		return failures;
+	}
+
+
+	public int getMaxPending() {
+		return maxPending;
+	}
+
+
+	private void merge(Future<Fragment> future, List<Resource> results) {
+		Fragment fragment = null;
+		try {
+			fragment = future.get();
+		}
+		catch(InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException(ex);
+		}
+		catch(ExecutionException ex) {
+			Throwable cause = ex.getCause();
+			if(cause instanceof Exception) {
+				failures.put(results.size(), (Exception)cause);
+			}
+			else {
+				throw new IllegalStateException(cause);
+			}
+		}
+		if(fragment != null) {
+			model.getGraph().getBulkUpdateHandler().add(fragment.model.getGraph());
+			Map<String,String> newPrefixes = fragment.model.getNsPrefixMap();
+			for(String prefix : newPrefixes.keySet()) {
+				if(model.getNsPrefixURI(prefix) == null) {
+					model.setNsPrefix(prefix, newPrefixes.get(prefix));
+				}
+			}
+			results.add(model.getRDFNode(fragment.root).asResource());
+		}
+		else {
+			results.add(null);
+		}
+	}
+
+
+	private static String readFile(File file) throws IOException {
+		InputStream is = new FileInputStream(file);
+		try {
+			Reader reader = new InputStreamReader(is, "UTF-8");
+			StringBuilder sb = new StringBuilder((int)file.length());
+			char[] buffer = new char[8192];
+			int count;
+			while((count = reader.read(buffer)) > 0) {
+				sb.append(buffer, 0, count);
+			}
+			return sb.toString();
+		}
+		finally {
+			is.close();
+		}
+	}
+
+
+	/**
+	 * Specifies whether missing prefixes (e.g. afn) shall be added to the
+	 * target Model, see ARQ2SPIN(Model, boolean).
+	 * @param value  the new value
+	 */
+	public void setAddPrefixes(boolean value) {
+		this.addPrefixes = value;
+	}
+
+
+	/**
+	 * Sets the maximum number of commands that are read and converted ahead
+	 * of the oldest command that has not been added to the target Model yet.
+	 * The default is four times the number of threads.
+	 * @param value  the maximum number of pending commands (at least 1)
+	 */
+	public void setMaxPending(int value) {
+		this.maxPending = Math.max(1, value);
+	}
+
+
+	private static class Fragment {
+
+		Model model;
+
+		Node root;
+
+		Fragment(Model model, Node root) {
+			this.model = model;
+			this.root = root;
+		}
+	}
+
+
+	private class Worker implements Callable<Fragment> {
+
+		private String command;
+
+		private Map<String,String> nsPrefixMap;
+
+		private String prefixes;
+
+		private ConcurrentMap<String,Node> variables;
+
+
+		Worker(String command, String prefixes, Map<String,String> nsPrefixMap, ConcurrentMap<String,Node> variables) {
+			this.command = command;
+			this.nsPrefixMap = nsPrefixMap;
+			this.prefixes = prefixes;
+			this.variables = variables;
+		}
+
+
+		@Override
+		public Fragment call() throws Exception {
+			if(command == null) {
+				return null;
+			}
+			Model fragment = ModelFactory.createDefaultModel(ReificationStyle.Minimal);
+			fragment.setNsPrefixes(nsPrefixMap);
+			ARQ2SPIN a2s = new ARQ2SPIN(fragment, addPrefixes, variables);
+			String str = prefixes + command;
+			Resource root;
+			try {
+				Query query = QueryFactory.create(str, ARQFactory.get().getSyntax());
+				root = a2s.createQuery(query, null);
+			}
+			catch(QueryParseException queryError) {
+				UpdateRequest request = parseUpdate(str, queryError);
+				if(request.getOperations().size() != 1) {
+					throw new QueryException("Only single update operations can be converted, but found " + request.getOperations().size());
+				}
+				root = a2s.createUpdate(request.getOperations().get(0), null);
+			}
+			return new Fragment(fragment, root.asNode());
+		}
+
+
+		// If neither parser accepts the command, reports the error of the parser that got further
+		// (the query error unless the update parser has read past it)
+		private UpdateRequest parseUpdate(String str, QueryParseException queryError) {
+			try {
+				return UpdateFactory.create(str);
+			}
+			catch(QueryParseException updateError) {
+				if(updateError.getLine() > queryError.getLine() ||
+						(updateError.getLine() == queryError.getLine() && updateError.getColumn() > queryError.getColumn())) {
+					throw updateError;
+				}
+				else {
+					throw queryError;
+				}
+			}
+		}
+	}
+}
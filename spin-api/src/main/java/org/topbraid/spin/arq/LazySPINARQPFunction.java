@@ -0,0 +1,65 @@
+package org.topbraid.spin.arq;
+
+import org.topbraid.spin.model.Function;
+
+import com.hp.hpl.jena.sparql.pfunction.PropertyFunction;
+import com.hp.hpl.jena.sparql.pfunction.PropertyFunctionFactory;
+import com.hp.hpl.jena.sparql.pfunction.PropertyFunctionRegistry;
+
+
+/**
+ * A lightweight PropertyFunctionFactory that is registered in place of a
+ * SPINARQPFunction.  The SPINARQPFunction (and thus the parsed body query)
+ * is only created when ARQ first uses the magic property, and then replaces
+ * this stub in the PropertyFunctionRegistry.
+ */
+public class LazySPINARQPFunction implements PropertyFunctionFactory {
+
+	private volatile SPINARQPFunction delegate;
+
+	private Function spinFunction;
+
+
+	public LazySPINARQPFunction(Function spinFunction) {
+		this.spinFunction = spinFunction;
+	}
+
+
+	@Override
+	public PropertyFunction create(String uri) {
+		return getDelegate().create(uri);
+	}
+
+
+	/**
+	 * Gets the compiled SPINARQPFunction, creating it on the first call.
+	 * @return the SPINARQPFunction
+	 */
+	public SPINARQPFunction getDelegate() {
+		SPINARQPFunction result = delegate;
+		if(result == null) {
+			synchronized(this) {
+				result = delegate;
+				if(result == null) {
+					result = new SPINARQPFunction(spinFunction);
+					delegate = result;
+					String uri = spinFunction.getURI();
+					if(PropertyFunctionRegistry.get().get(uri) == this) {
+						PropertyFunctionRegistry.get().put(uri, result);
+					}
+				}
+			}
+		}
+		return result;
+	}
+
+
+	public Function getSPINFunction() {
+		return spinFunction;
+	}
+
+
+	public boolean isCompiled() {
+		return delegate != null;
+	}
+}
@@ -0,0 +1,66 @@
+package org.topbraid.spin.arq;
+
+import org.topbraid.spin.model.Function;
+
+import com.hp.hpl.jena.sparql.function.FunctionRegistry;
+
+
+/**
+ * A lightweight SPINFunctionFactory that is registered in place of a
+ * compiled SPIN function.  The actual FunctionFactory is only created
+ * (via SPINFunctionDrivers) when ARQ first asks for the function, and
+ * then replaces this stub in the FunctionRegistry.
+ */
+public class LazySPINFunctionFactory implements SPINFunctionFactory {
+
+	private volatile SPINFunctionFactory delegate;
+
+	private Function spinFunction;
+
+
+	public LazySPINFunctionFactory(Function spinFunction) {
+		this.spinFunction = spinFunction;
+	}
+
+
+	@Override
+	public com.hp.hpl.jena.sparql.function.Function create(String uri) {
+		return getDelegate().create(uri);
+	}
+
+
+	/**
+	 * Gets the compiled FunctionFactory, creating it on the first call.
+	 * @return the compiled FunctionFactory
+	 */
+	public SPINFunctionFactory getDelegate() {
+		SPINFunctionFactory result = delegate;
+		if(result == null) {
+			synchronized(this) {
+				result = delegate;
+				if(result == null) {
+					result = SPINFunctionDrivers.get().create(spinFunction);
+					if(result == null) {
+						throw new IllegalStateException("No function driver for " + spinFunction.getURI());
+					}
+					delegate = result;
+					String uri = spinFunction.getURI();
+					if(FunctionRegistry.get().get(uri) == this) {
+						FunctionRegistry.get().put(uri, result);
+					}
+				}
+			}
+		}
+		return result;
+	}
+
+
+	public Function getSPINFunction() {
+		return spinFunction;
+	}
+
+
+	public boolean isCompiled() {
+		return delegate != null;
+	}
+}
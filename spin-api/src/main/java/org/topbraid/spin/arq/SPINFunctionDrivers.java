@@ -55,6 +55,17 @@ public class SPINFunctionDrivers implements SPINFunctionDriver {
 	}
 	
 
+	/**
+	 * Checks whether any of the registered drivers is responsible for a given
+	 * function, without creating a FunctionFactory for it.
+	 * @param function  the SPIN Function's resource
+	 * @return true  if create(function) would use a driver
+	 */
+	public boolean hasDriver(Function function) {
+		return getDriver(function) != null;
+	}
+	
+
 	/**
 	 * Registers a new SPINFunctionDriver for a given key predicate.
 	 * For example, SPARQLMotion functions are recognized via sm:body.
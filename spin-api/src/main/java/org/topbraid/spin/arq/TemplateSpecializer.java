@@ -0,0 +1,441 @@
+package org.topbraid.spin.arq;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import com.hp.hpl.jena.graph.Node;
+import com.hp.hpl.jena.graph.Triple;
+import com.hp.hpl.jena.query.Query;
+import com.hp.hpl.jena.rdf.model.RDFNode;
+import com.hp.hpl.jena.sparql.core.TriplePath;
+import com.hp.hpl.jena.sparql.core.Var;
+import com.hp.hpl.jena.sparql.engine.binding.Binding;
+import com.hp.hpl.jena.sparql.engine.binding.BindingMap;
+import com.hp.hpl.jena.sparql.expr.E_BNode;
+import com.hp.hpl.jena.sparql.expr.E_Call;
+import com.hp.hpl.jena.sparql.expr.E_Function;
+import com.hp.hpl.jena.sparql.expr.E_FunctionDynamic;
+import com.hp.hpl.jena.sparql.expr.E_LogicalAnd;
+import com.hp.hpl.jena.sparql.expr.E_LogicalNot;
+import com.hp.hpl.jena.sparql.expr.E_LogicalOr;
+import com.hp.hpl.jena.sparql.expr.E_Now;
+import com.hp.hpl.jena.sparql.expr.E_Random;
+import com.hp.hpl.jena.sparql.expr.Expr;
+import com.hp.hpl.jena.sparql.expr.ExprFunction;
+import com.hp.hpl.jena.sparql.expr.ExprFunctionOp;
+import com.hp.hpl.jena.sparql.expr.NodeValue;
+import com.hp.hpl.jena.sparql.expr.nodevalue.XSDFuncOp;
+import com.hp.hpl.jena.sparql.syntax.Element;
+import com.hp.hpl.jena.sparql.syntax.ElementAssign;
+import com.hp.hpl.jena.sparql.syntax.ElementBind;
+import com.hp.hpl.jena.sparql.syntax.ElementFilter;
+import com.hp.hpl.jena.sparql.syntax.ElementGroup;
+import com.hp.hpl.jena.sparql.syntax.ElementNamedGraph;
+import com.hp.hpl.jena.sparql.syntax.ElementOptional;
+import com.hp.hpl.jena.sparql.syntax.ElementPathBlock;
+import com.hp.hpl.jena.sparql.syntax.ElementTriplesBlock;
+import com.hp.hpl.jena.sparql.syntax.ElementUnion;
+
+
+/**
+ * A singleton that specializes the bodies of SPIN template calls for their
+ * constant arguments.  By default the argument values are only passed into
+ * the QueryExecution as initial bindings, so that ARQ's optimizer (and
+ * SPINRuleOptimizer) cannot see them, and all calls of a template such as
+ * spl:Attribute run with the same unselective plan.
+ *
+ * The specialized query has the argument values substituted into the
+ * triple patterns, GRAPH names and FILTER/BIND expressions, and FILTERs that
+ * become constant are folded (dropped if always true).  Only expressions
+ * built from the SPARQL operators are folded, so that functions that depend
+ * on the data or the time are never frozen into a cached plan.  Callers must
+ * still pass the arguments as initial bindings, because the CONSTRUCT
+ * templates may mention them.
+ *
+ * Queries containing elements that cannot be specialized safely (such as
+ * sub-queries, EXISTS or aggregations) are returned unchanged.  The results
+ * are cached per owner (the rule or template that the query comes from),
+ * query object and argument values, so that template calls with identical
+ * arguments share the same specialized query without having to compare
+ * the queries structurally.
+ *
+ * The specialization is off by default and needs to be switched on with
+ * setEnabled.
+ */
+public class TemplateSpecializer {
+
+	public final static int DEFAULT_MAX_CACHE_SIZE = 10000;
+
+	private static TemplateSpecializer singleton = new TemplateSpecializer();
+
+	private Map<Key,Query> cache = createCache(DEFAULT_MAX_CACHE_SIZE);
+
+	private boolean enabled;
+
+
+	/**
+	 * Gets the singleton instance of this class.
+	 * @return the singleton
+	 */
+	public static TemplateSpecializer get() {
+		return singleton;
+	}
+
+
+	/**
+	 * Changes the singleton to some subclass.
+	 * @param value  the new TemplateSpecializer (not null)
+	 */
+	public static void set(TemplateSpecializer value) {
+		TemplateSpecializer.singleton = value;
+	}
+
+
+	/**
+	 * Drops all cached specializations.
+	 */
+	public void clearCache() {
+		Map<Key,Query> c = cache;
+		synchronized(c) {
+			c.clear();
+		}
+	}
+
+
+	private static Map<Key,Query> createCache(final int maxSize) {
+		return new LinkedHashMap<Key,Query>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Key,Query> eldest) {
+				return size() > maxSize;
+			}
+		};
+	}
+
+
+	private static boolean isFalse(Expr expr) {
+		return expr.isConstant() && !XSDFuncOp.booleanEffectiveValue(expr.getConstant());
+	}
+
+
+	private static boolean isFoldable(Expr expr) {
+		if(expr instanceof ExprFunctionOp || expr instanceof E_Function || expr instanceof E_FunctionDynamic || expr instanceof E_Call ||
+				expr instanceof E_Now || expr instanceof E_Random || expr instanceof E_BNode) {
+			return false;
+		}
+		else if(expr instanceof ExprFunction) {
+			for(Expr arg : ((ExprFunction)expr).getArgs()) {
+				if(!isFoldable(arg)) {
+					return false;
+				}
+			}
+			return true;
+		}
+		else {
+			return expr.isConstant();
+		}
+	}
+
+
+	private static boolean isSafe(Expr expr) {
+		if(expr instanceof ExprFunctionOp) {
+			return false;
+		}
+		else if(expr instanceof ExprFunction) {
+			for(Expr arg : ((ExprFunction)expr).getArgs()) {
+				if(!isSafe(arg)) {
+					return false;
+				}
+			}
+		}
+		return true;
+	}
+
+
+	private static boolean isTrue(Expr expr) {
+		return expr.isConstant() && XSDFuncOp.booleanEffectiveValue(expr.getConstant());
+	}
+
+
+	public boolean isEnabled() {
+		return enabled;
+	}
+
+
+	/**
+	 * Enables or disables the specialization.  If disabled (the default),
+	 * specialize always returns the query unchanged.
+	 * @param value  true to enable
+	 */
+	public void setEnabled(boolean value) {
+		this.enabled = value;
+	}
+
+
+	/**
+	 * Sets the maximum number of specialized queries to keep in the cache.
+	 * The least recently used entries are dropped first.
+	 * @param maxSize  the new maximum size
+	 */
+	public void setMaxCacheSize(int maxSize) {
+		cache = createCache(maxSize);
+	}
+
+
+	/**
+	 * Gets a version of a query that has the given template arguments
+	 * substituted into its WHERE clause, either from the cache or by
+	 * creating a new one.
+	 * @param owner  the object that the query belongs to, such as a
+	 *               CommandWrapper or the body of a template (not null)
+	 * @param query  the query (typically the body of a template)
+	 * @param arguments  the template arguments, keyed by variable name (may be null)
+	 * @return the specialized query or query itself if it cannot be specialized
+	 */
+	public Query specialize(Object owner, Query query, Map<String,RDFNode> arguments) {
+		if(!enabled || arguments == null || arguments.isEmpty() || query.getQueryPattern() == null) {
+			return query;
+		}
+		Map<String,Node> values = new HashMap<String,Node>();
+		for(String varName : arguments.keySet()) {
+			RDFNode value = arguments.get(varName);
+			if(value != null) {
+				values.put(varName, value.asNode());
+			}
+		}
+		Key key = new Key(owner, query, values);
+		Map<Key,Query> c = cache;
+		Query result;
+		synchronized(c) {
+			result = c.get(key);
+		}
+		if(result == null) {
+			result = createSpecialization(query, values);
+			synchronized(c) {
+				c.put(key, result);
+			}
+		}
+		return result;
+	}
+
+
+	/**
+	 * Creates a new specialized query, without using the cache.  Can be
+	 * overloaded by subclasses to perform additional transformations.
+	 * @param query  the query to specialize
+	 * @param values  the argument values (not empty)
+	 * @return the specialized query or query itself
+	 */
+	protected Query createSpecialization(Query query, Map<String,Node> values) {
+		if(!(query.isAskType() || query.isConstructType()) || query.hasGroupBy() || query.hasAggregators() || query.hasHaving()) {
+			return query;
+		}
+		BindingMap binding = new BindingMap();
+		for(String varName : values.keySet()) {
+			binding.add(Var.alloc(varName), values.get(varName));
+		}
+		Element pattern = specialize(query.getQueryPattern(), binding);
+		if(pattern == null) {
+			return query;
+		}
+		Query result = query.cloneQuery();
+		result.setQueryPattern(pattern);
+		return result;
+	}
+
+
+	/**
+	 * Folds the constant parts of an expression, using the SPARQL semantics
+	 * of the logical operators.
+	 * @param expr  the expression to fold
+	 * @return the folded expression, possibly expr itself
+	 */
+	public static Expr fold(Expr expr) {
+		if(expr.isConstant()) {
+			return expr;
+		}
+		else if(expr.getVarsMentioned().isEmpty() && isFoldable(expr)) {
+			try {
+				return expr.eval(new BindingMap(), null);
+			}
+			catch(Exception ex) {
+				// Evaluation errors are left to the query execution
+				return expr;
+			}
+		}
+		else if(expr instanceof E_LogicalAnd) {
+			Expr left = fold(((E_LogicalAnd)expr).getArg1());
+			Expr right = fold(((E_LogicalAnd)expr).getArg2());
+			if(isTrue(left)) {
+				return right;
+			}
+			else if(isTrue(right)) {
+				return left;
+			}
+			else if(isFalse(left) || isFalse(right)) {
+				return NodeValue.FALSE;
+			}
+			return new E_LogicalAnd(left, right);
+		}
+		else if(expr instanceof E_LogicalOr) {
+			Expr left = fold(((E_LogicalOr)expr).getArg1());
+			Expr right = fold(((E_LogicalOr)expr).getArg2());
+			if(isTrue(left) || isTrue(right)) {
+				return NodeValue.TRUE;
+			}
+			else if(isFalse(left)) {
+				return right;
+			}
+			else if(isFalse(right)) {
+				return left;
+			}
+			return new E_LogicalOr(left, right);
+		}
+		else if(expr instanceof E_LogicalNot) {
+			Expr arg = fold(((E_LogicalNot)expr).getArg());
+			if(arg.isConstant()) {
+				return isTrue(arg) ? NodeValue.FALSE : NodeValue.TRUE;
+			}
+			return new E_LogicalNot(arg);
+		}
+		else {
+			return expr;
+		}
+	}
+
+
+	// Returns null if the element cannot be specialized
+	private static Element specialize(Element element, Binding binding) {
+		if(element instanceof ElementGroup) {
+			ElementGroup result = new ElementGroup();
+			for(Element child : ((ElementGroup)element).getElements()) {
+				Element s = specialize(child, binding);
+				if(s == null) {
+					return null;
+				}
+				if(!(s instanceof ElementFilter && isTrue(((ElementFilter)s).getExpr()))) {
+					result.addElement(s);
+				}
+			}
+			return result;
+		}
+		else if(element instanceof ElementPathBlock) {
+			ElementPathBlock result = new ElementPathBlock();
+			for(TriplePath path : ((ElementPathBlock)element).getPattern().getList()) {
+				if(path.isTriple()) {
+					result.addTriplePath(new TriplePath(substitute(path.asTriple(), binding)));
+				}
+				else {
+					result.addTriplePath(new TriplePath(substitute(path.getSubject(), binding), path.getPath(), substitute(path.getObject(), binding)));
+				}
+			}
+			return result;
+		}
+		else if(element instanceof ElementTriplesBlock) {
+			ElementTriplesBlock result = new ElementTriplesBlock();
+			for(Triple triple : ((ElementTriplesBlock)element).getPattern().getList()) {
+				result.addTriple(substitute(triple, binding));
+			}
+			return result;
+		}
+		else if(element instanceof ElementFilter) {
+			Expr expr = ((ElementFilter)element).getExpr();
+			if(!isSafe(expr)) {
+				return null;
+			}
+			return new ElementFilter(fold(expr.copySubstitute(binding)));
+		}
+		else if(element instanceof ElementOptional) {
+			Element optional = specialize(((ElementOptional)element).getOptionalElement(), binding);
+			return optional != null ? new ElementOptional(optional) : null;
+		}
+		else if(element instanceof ElementUnion) {
+			ElementUnion result = new ElementUnion();
+			for(Element member : ((ElementUnion)element).getElements()) {
+				Element s = specialize(member, binding);
+				if(s == null) {
+					return null;
+				}
+				result.addElement(s);
+			}
+			return result;
+		}
+		else if(element instanceof ElementNamedGraph) {
+			ElementNamedGraph namedGraph = (ElementNamedGraph) element;
+			Element inner = specialize(namedGraph.getElement(), binding);
+			return inner != null ? new ElementNamedGraph(substitute(namedGraph.getGraphNameNode(), binding), inner) : null;
+		}
+		else if(element instanceof ElementBind) {
+			ElementBind bind = (ElementBind) element;
+			if(binding.contains(bind.getVar()) || !isSafe(bind.getExpr())) {
+				return null;
+			}
+			return new ElementBind(bind.getVar(), fold(bind.getExpr().copySubstitute(binding)));
+		}
+		else if(element instanceof ElementAssign) {
+			ElementAssign assign = (ElementAssign) element;
+			if(binding.contains(assign.getVar()) || !isSafe(assign.getExpr())) {
+				return null;
+			}
+			return new ElementAssign(assign.getVar(), fold(assign.getExpr().copySubstitute(binding)));
+		}
+		else {
+			return null;
+		}
+	}
+
+
+	private static Triple substitute(Triple triple, Binding binding) {
+		return Triple.create(substitute(triple.getSubject(), binding), substitute(triple.getPredicate(), binding), substitute(triple.getObject(), binding));
+	}
+
+
+	private static Node substitute(Node node, Binding binding) {
+		if(node != null && node.isVariable()) {
+			Node value = binding.get(Var.alloc(node));
+			if(value != null) {
+				return value;
+			}
+		}
+		return node;
+	}
+
+
+	// The query is compared by identity, so that no structural hash code is needed
+	private static class Key {
+
+		private int hashCode;
+
+		private Object owner;
+
+		private Query query;
+
+		private Map<String,Node> values;
+
+
+		Key(Object owner, Query query, Map<String,Node> values) {
+			this.owner = owner;
+			this.query = query;
+			this.values = values;
+			this.hashCode = (owner.hashCode() * 31 + System.identityHashCode(query)) * 31 + values.hashCode();
+		}
+
+
+		@Override
+		public boolean equals(Object obj) {
+			if(!(obj instanceof Key)) {
+				return false;
+			}
+			Key other = (Key) obj;
+			return hashCode == other.hashCode && query == other.query && owner.equals(other.owner) && values.equals(other.values);
+		}
+
+
+		@Override
+		public int hashCode() {
+			return hashCode;
+		}
+	}
+}
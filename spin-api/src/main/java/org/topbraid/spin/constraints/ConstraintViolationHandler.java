@@ -0,0 +1,20 @@
+package org.topbraid.spin.constraints;
+
+
+/**
+ * A callback that receives ConstraintViolations one at a time while
+ * constraint checking is still running.  This allows clients to process
+ * (e.g. write out) violations incrementally instead of collecting all of
+ * them in memory first.
+ * 
+ * @see SPINConstraints#check(com.hp.hpl.jena.rdf.model.Model, ConstraintViolationHandler, int, java.util.List, org.topbraid.base.progress.ProgressMonitor, com.hp.hpl.jena.ontology.OntModelSpec, Object, java.util.Set)
+ */
+public interface ConstraintViolationHandler {
+
+	/**
+	 * Called for each ConstraintViolation as soon as it has been found.
+	 * @param violation  the ConstraintViolation
+	 * @return true to continue checking, false to stop
+	 */
+	boolean handleConstraintViolation(ConstraintViolation violation);
+}
@@ -1,81 +1,119 @@
-/*******************************************************************************
- * Copyright (c) 2009 TopQuadrant, Inc.
- * All rights reserved. 
- *******************************************************************************/
+/*******************************************************************************
+ * Copyright (c) 2009 TopQuadrant, Inc.
+ * All rights reserved. 
+ *******************************************************************************/
 package org.topbraid.spin.constraints;
 
-import java.io.IOException;
-import java.util.ArrayList;
-import java.util.Collection;
-import java.util.Collections;
-import java.util.HashMap;
-import java.util.Iterator;
-import java.util.LinkedList;
-import java.util.List;
-import java.util.Map;
-import java.util.Set;
-
-import org.topbraid.base.progress.ProgressMonitor;
-import org.topbraid.spin.arq.ARQFactory;
-import org.topbraid.spin.model.Argument;
-import org.topbraid.spin.model.Ask;
-import org.topbraid.spin.model.Construct;
-import org.topbraid.spin.model.ElementList;
-import org.topbraid.spin.model.QueryOrTemplateCall;
-import org.topbraid.spin.model.SPINFactory;
-import org.topbraid.spin.model.SPINInstance;
-import org.topbraid.spin.model.Template;
-import org.topbraid.spin.model.TemplateCall;
-import org.topbraid.spin.statistics.SPINStatistics;
-import org.topbraid.spin.system.SPINImports;
-import org.topbraid.spin.system.SPINLabels;
-import org.topbraid.spin.util.CommandWrapper;
-import org.topbraid.spin.util.JenaUtil;
-import org.topbraid.spin.util.PropertyPathsGetter;
-import org.topbraid.spin.util.QueryWrapper;
-import org.topbraid.spin.util.SPINQueryFinder;
-import org.topbraid.spin.util.SPINUtil;
-import org.topbraid.spin.vocabulary.SP;
-import org.topbraid.spin.vocabulary.SPIN;
-
-import com.hp.hpl.jena.graph.Graph;
-import com.hp.hpl.jena.graph.Node;
-import com.hp.hpl.jena.graph.Triple;
-import com.hp.hpl.jena.graph.compose.MultiUnion;
-import com.hp.hpl.jena.ontology.OntModelSpec;
-import com.hp.hpl.jena.query.Query;
-import com.hp.hpl.jena.query.QueryExecution;
-import com.hp.hpl.jena.query.QuerySolutionMap;
-import com.hp.hpl.jena.query.Syntax;
-import com.hp.hpl.jena.rdf.model.Model;
-import com.hp.hpl.jena.rdf.model.ModelFactory;
-import com.hp.hpl.jena.rdf.model.Property;
-import com.hp.hpl.jena.rdf.model.RDFNode;
-import com.hp.hpl.jena.rdf.model.Resource;
-import com.hp.hpl.jena.rdf.model.Statement;
-import com.hp.hpl.jena.rdf.model.StmtIterator;
-import com.hp.hpl.jena.shared.ReificationStyle;
-import com.hp.hpl.jena.sparql.core.Var;
-import com.hp.hpl.jena.sparql.syntax.Element;
-import com.hp.hpl.jena.sparql.syntax.ElementGroup;
-import com.hp.hpl.jena.sparql.syntax.ElementTriplesBlock;
-import com.hp.hpl.jena.sparql.syntax.TemplateGroup;
-import com.hp.hpl.jena.vocabulary.RDF;
-import com.hp.hpl.jena.vocabulary.RDFS;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.topbraid.base.progress.ProgressMonitor;
+import org.topbraid.spin.arq.ARQFactory;
+import org.topbraid.spin.arq.AbstractTemplateVisitor;
+import org.topbraid.spin.arq.TemplateSpecializer;
+import org.topbraid.spin.model.Argument;
+import org.topbraid.spin.model.Ask;
+import org.topbraid.spin.model.Construct;
+import org.topbraid.spin.model.QueryOrTemplateCall;
+import org.topbraid.spin.model.SPINFactory;
+import org.topbraid.spin.model.SPINInstance;
+import org.topbraid.spin.model.Template;
+import org.topbraid.spin.model.TemplateCall;
+import org.topbraid.spin.model.compiled.CompiledAnalyses;
+import org.topbraid.spin.model.compiled.CompiledAnalysis;
+import org.topbraid.spin.model.compiled.CompiledCommand;
+import org.topbraid.spin.model.compiled.CompiledCommands;
+import org.topbraid.spin.model.compiled.CompiledElement;
+import org.topbraid.spin.model.compiled.CompiledExpression;
+import org.topbraid.spin.model.compiled.CompiledVisitor;
+import org.topbraid.spin.statistics.SPINStatistics;
+import org.topbraid.spin.system.SPINModuleRegistry;
+import org.topbraid.spin.system.SPINImports;
+import org.topbraid.spin.system.SPINLabels;
+import org.topbraid.spin.util.CommandWrapper;
+import org.topbraid.spin.util.JenaUtil;
+import org.topbraid.spin.util.QueryResultCache;
+import org.topbraid.spin.util.QueryWrapper;
+import org.topbraid.spin.util.SPINQueryFinder;
+import org.topbraid.spin.util.SPINUtil;
+import org.topbraid.spin.util.TypeIndex;
+import org.topbraid.spin.util.VersionedGraph;
+import org.topbraid.spin.vocabulary.SP;
+import org.topbraid.spin.vocabulary.SPIN;
+
+import com.hp.hpl.jena.graph.Graph;
+import com.hp.hpl.jena.graph.Node;
+import com.hp.hpl.jena.graph.Triple;
+import com.hp.hpl.jena.graph.compose.MultiUnion;
+import com.hp.hpl.jena.ontology.OntModelSpec;
+import com.hp.hpl.jena.query.Query;
+import com.hp.hpl.jena.query.QueryExecution;
+import com.hp.hpl.jena.query.QuerySolutionMap;
+import com.hp.hpl.jena.query.ResultSet;
+import com.hp.hpl.jena.rdf.model.Model;
+import com.hp.hpl.jena.rdf.model.ModelFactory;
+import com.hp.hpl.jena.rdf.model.Property;
+import com.hp.hpl.jena.rdf.model.RDFNode;
+import com.hp.hpl.jena.rdf.model.Resource;
+import com.hp.hpl.jena.rdf.model.Statement;
+import com.hp.hpl.jena.rdf.model.StmtIterator;
+import com.hp.hpl.jena.shared.ReificationStyle;
+import com.hp.hpl.jena.sparql.core.TriplePath;
+import com.hp.hpl.jena.sparql.core.Var;
+import com.hp.hpl.jena.sparql.engine.binding.BindingMap;
+import com.hp.hpl.jena.sparql.expr.Expr;
+import com.hp.hpl.jena.sparql.expr.ExprFunctionOp;
+import com.hp.hpl.jena.sparql.expr.ExprVisitorBase;
+import com.hp.hpl.jena.sparql.expr.ExprWalker;
+import com.hp.hpl.jena.sparql.syntax.Element;
+import com.hp.hpl.jena.sparql.syntax.ElementAssign;
+import com.hp.hpl.jena.sparql.syntax.ElementBind;
+import com.hp.hpl.jena.sparql.syntax.ElementFilter;
+import com.hp.hpl.jena.sparql.syntax.ElementGroup;
+import com.hp.hpl.jena.sparql.syntax.ElementPathBlock;
+import com.hp.hpl.jena.sparql.syntax.ElementSubQuery;
+import com.hp.hpl.jena.sparql.syntax.ElementTriplesBlock;
+import com.hp.hpl.jena.sparql.syntax.ElementUnion;
+import com.hp.hpl.jena.sparql.syntax.ElementVisitorBase;
+import com.hp.hpl.jena.sparql.syntax.ElementWalker;
+import com.hp.hpl.jena.sparql.syntax.PatternVars;
+import com.hp.hpl.jena.sparql.syntax.TemplateGroup;
+import com.hp.hpl.jena.sparql.syntax.TemplateTriple;
+import com.hp.hpl.jena.vocabulary.RDF;
+import com.hp.hpl.jena.vocabulary.RDFS;
 
 
 /**
  * Performs SPIN constraint checking on one or more instances, based
  * on the spin:constraints defined on the types of those instances.
  * 
+ * In all checking modes, the violations of ASK constraints carry the
+ * spin:violationPaths of the ASK's WHERE clause, like check(Resource)
+ * reports them for a single instance.
+ * 
  * @author Holger Knublauch
  */
 public class SPINConstraints {
 	
 	private static List<TemplateCall> NO_FIXES = Collections.emptyList();
 	
+	private static boolean distinctInstances;
+	
+	private static QueryResultCache resultCache;
+	
+	private static TypeIndex typeIndex;
+	
 
-    private static void addConstraintViolations(List<ConstraintViolation> results, SPINInstance instance, Property predicate, boolean matchValue, List<SPINStatistics> stats, Set<Object> validFunctionSources) {
+    private static void addConstraintViolations(ViolationSink results, SPINInstance instance, Property predicate, boolean matchValue, List<SPINStatistics> stats, Set<Object> validFunctionSources) {
 	    List<QueryOrTemplateCall> qots = instance.getQueriesAndTemplateCalls(predicate);
 		for(QueryOrTemplateCall qot : qots) {
 			if(qot.getTemplateCall() != null) {
@@ -86,49 +124,63 @@ public class SPINConstraints {
 			}
 		}
 	}
-
-
-	/**
-	 * Creates an RDF representation (instances of spin:ConstraintViolation) from a
-	 * collection of ConstraintViolation Java objects. 
-	 * @param cvs  the violation objects
-	 * @param result  the Model to add the results to
-	 * @param createSource  true to also create the spin:violationSource
-	 */
-	public static void addConstraintViolationsRDF(List<ConstraintViolation> cvs, Model result, boolean createSource) {
-		for(ConstraintViolation cv : cvs) {
-			Resource r = result.createResource(SPIN.ConstraintViolation);
-			String message = cv.getMessage();
-			if(message != null && message.length() > 0) {
-				r.addProperty(RDFS.label, message);
-			}
-			if(cv.getRoot() != null) {
-				r.addProperty(SPIN.violationRoot, cv.getRoot());
-			}
-			for(SimplePropertyPath path : cv.getPaths()) {
-				if(path instanceof ObjectPropertyPath) {
-					r.addProperty(SPIN.violationPath, path.getPredicate());
-				}
-				else {
-					Resource p = result.createResource(SP.ReversePath);
-					p.addProperty(SP.path, path.getPredicate());
-					r.addProperty(SPIN.violationPath, p);
-				}
-			}
-			if(createSource && cv.getSource() != null) {
-				r.addProperty(SPIN.violationSource, cv.getSource());
-			}
-		}
-	}
+
+
+	/**
+	 * Creates an RDF representation (instances of spin:ConstraintViolation) from a
+	 * collection of ConstraintViolation Java objects. 
+	 * @param cvs  the violation objects
+	 * @param result  the Model to add the results to
+	 * @param createSource  true to also create the spin:violationSource
+	 */
+	public static void addConstraintViolationsRDF(List<ConstraintViolation> cvs, Model result, boolean createSource) {
+		for(ConstraintViolation cv : cvs) {
+			addConstraintViolationRDF(cv, result, createSource);
+		}
+	}
+
+
+	/**
+	 * Creates an RDF representation (an instance of spin:ConstraintViolation) of a
+	 * single ConstraintViolation Java object.
+	 * @param cv  the violation object
+	 * @param result  the Model to add the result to
+	 * @param createSource  true to also create the spin:violationSource
+	 * @return the new spin:ConstraintViolation instance
+	 */
+	public static Resource addConstraintViolationRDF(ConstraintViolation cv, Model result, boolean createSource) {
+		Resource r = result.createResource(SPIN.ConstraintViolation);
+		String message = cv.getMessage();
+		if(message != null && message.length() > 0) {
+			r.addProperty(RDFS.label, message);
+		}
+		if(cv.getRoot() != null) {
+			r.addProperty(SPIN.violationRoot, cv.getRoot());
+		}
+		for(SimplePropertyPath path : cv.getPaths()) {
+			if(path instanceof ObjectPropertyPath) {
+				r.addProperty(SPIN.violationPath, path.getPredicate());
+			}
+			else {
+				Resource p = result.createResource(SP.ReversePath);
+				p.addProperty(SP.path, path.getPredicate());
+				r.addProperty(SPIN.violationPath, p);
+			}
+		}
+		if(createSource && cv.getSource() != null) {
+			r.addProperty(SPIN.violationSource, cv.getSource());
+		}
+		return r;
+	}
 
 	
 	private static void addConstructedProblemReports(
 			Model cm, 
-			List<ConstraintViolation> results, 
+			ViolationSink results, 
 			Model model,
 			Resource atClass,
 			Resource matchRoot,
-			String label,
+			String label,
 			Resource source) {
 		StmtIterator it = cm.listStatements(null, RDF.type, SPIN.ConstraintViolation);
 		while(it.hasNext()) {
@@ -158,11 +210,11 @@ public class SPINConstraints {
 	}
 
 
-    private static void addQueryResults(List<ConstraintViolation> results, QueryOrTemplateCall qot, Resource resource, boolean matchValue, List<SPINStatistics> stats, Set<Object> validFunctionSources) {
+    private static void addQueryResults(ViolationSink results, QueryOrTemplateCall qot, Resource resource, boolean matchValue, List<SPINStatistics> stats, Set<Object> validFunctionSources) {
 		QuerySolutionMap arqBindings = new QuerySolutionMap();
-		
+		
 		String queryString = ARQFactory.get().createCommandString(qot.getQuery());
-		if(resource == null && SPINUtil.containsThis(qot.getQuery(), validFunctionSources)) {
+		if(resource == null && CompiledAnalyses.containsThis(qot.getQuery())) {
 			queryString = SPINUtil.addThisTypeClause(queryString);
 		}
 		else {
@@ -175,7 +227,7 @@ public class SPINConstraints {
 		
 		qexec.setInitialBinding(arqBindings);
 		
-		long startTime = System.currentTimeMillis();
+		long startTime = System.currentTimeMillis();
 		if(arq.isAskType()) {
 			if(qexec.execAsk() != matchValue) {
 				String message;
@@ -187,48 +239,48 @@ public class SPINConstraints {
 					message = comment;
 				}
 				message += "\n(SPIN constraint at " + SPINLabels.get().getLabel(qot.getCls()) + ")";
-				List<SimplePropertyPath> paths = getPropertyPaths(resource, qot.getQuery().getWhere(), null, validFunctionSources);
-				Resource source = getSource(qot);
+				List<SimplePropertyPath> paths = getPropertyPaths(qot.getQuery(), null, validFunctionSources);
+				Resource source = getSource(qot);
 				results.add(createConstraintViolation(paths, NO_FIXES, resource, message, source));
-			}
+			}
 		}
 		else if(arq.isConstructType()) {
 			Model cm = qexec.execConstruct();
 			qexec.close();
 			addConstructedProblemReports(cm, results, model, qot.getCls(), resource, qot.getQuery().getComment(), getSource(qot));
 		}
-		long endTime = System.currentTimeMillis();
-		if(stats != null) {
-			long duration = startTime - endTime;
-			String label = qot.toString();
-			String queryText;
-			if(qot.getTemplateCall() != null) {
-				queryText = SPINLabels.get().getLabel(qot.getTemplateCall().getTemplate().getBody());
-			}
-			else {
-				queryText = SPINLabels.get().getLabel(qot.getQuery());
-			}
-			Node cls = qot.getCls() != null ? qot.getCls().asNode() : null;
-			stats.add(new SPINStatistics(label, queryText, duration, startTime, cls));
-		}
-	}
-
-
-    private static void addTemplateCallResults(List<ConstraintViolation> results, QueryOrTemplateCall qot,
-            Resource resource, boolean matchValue, Set<Object> validFunctionSources) {
+		long endTime = System.currentTimeMillis();
+		if(stats != null) {
+			long duration = startTime - endTime;
+			String label = qot.toString();
+			String queryText;
+			if(qot.getTemplateCall() != null) {
+				queryText = SPINLabels.get().getLabel(qot.getTemplateCall().getTemplate().getBody());
+			}
+			else {
+				queryText = SPINLabels.get().getLabel(qot.getQuery());
+			}
+			Node cls = qot.getCls() != null ? qot.getCls().asNode() : null;
+			stats.add(new SPINStatistics(label, queryText, duration, startTime, cls));
+		}
+	}
+
+
+    private static void addTemplateCallResults(ViolationSink results, QueryOrTemplateCall qot,
+            Resource resource, boolean matchValue, Set<Object> validFunctionSources) {
 	    TemplateCall templateCall = qot.getTemplateCall();
 		Template template = templateCall.getTemplate();
 		if(template != null && template.getBody() instanceof org.topbraid.spin.model.Query) {
 			org.topbraid.spin.model.Query spinQuery = (org.topbraid.spin.model.Query) template.getBody();
 			if(spinQuery instanceof Ask || spinQuery instanceof Construct) {
 				Model model = resource.getModel();
-				Query arq = ARQFactory.get().createQuery(spinQuery);
+				Query arq = TemplateSpecializer.get().specialize(spinQuery, ARQFactory.get().createQuery(spinQuery), templateCall.getArgumentsMapByVarNames());
 				QueryExecution qexec = ARQFactory.get().createQueryExecution(arq, model);
 				setInitialBindings(resource, templateCall, qexec);
 				
 				if(spinQuery instanceof Ask) {
 					if(qexec.execAsk() != matchValue) {
-						List<SimplePropertyPath> paths = getPropertyPaths(resource, spinQuery.getWhere(), templateCall.getArgumentsMapByProperties(), validFunctionSources);
+						List<SimplePropertyPath> paths = getPropertyPaths(spinQuery, templateCall.getArgumentsMapByProperties(), validFunctionSources);
 						String message = SPINLabels.get().getLabel(templateCall);
 						message += "\n(SPIN constraint at " + SPINLabels.get().getLabel(qot.getCls()) + ")";
 						results.add(createConstraintViolation(paths, NO_FIXES, resource, message, templateCall));
@@ -236,56 +288,56 @@ public class SPINConstraints {
 				}
 				else if(spinQuery instanceof Construct) {
 					Model cm = qexec.execConstruct();
-					qexec.close();
+					qexec.close();
 					Resource source = getSource(qot);
-					String label = SPINLabels.get().getLabel(templateCall);
+					String label = SPINLabels.get().getLabel(templateCall);
 					addConstructedProblemReports(cm, results, model, qot.getCls(), resource, label, source);
 				}
 			}
 		}
 	}
-
-	
-	/**
-	 * Checks all spin:constraints for a given Resource.
-	 * @param resource  the instance to run constraint checks on
-	 * @param monitor  an (optional) progress monitor (currently ignored)
-	 * @return a List of ConstraintViolations (empty if all is OK)
-	 */
-	public static List<ConstraintViolation> check(Resource resource, ProgressMonitor monitor) {
-		return check(resource, new LinkedList<SPINStatistics>(), monitor, OntModelSpec.OWL_MEM, null, Collections.emptySet());
-	}
+
+	
+	/**
+	 * Checks all spin:constraints for a given Resource.
+	 * @param resource  the instance to run constraint checks on
+	 * @param monitor  an (optional) progress monitor (currently ignored)
+	 * @return a List of ConstraintViolations (empty if all is OK)
+	 */
+	public static List<ConstraintViolation> check(Resource resource, ProgressMonitor monitor) {
+		return check(resource, new LinkedList<SPINStatistics>(), monitor, OntModelSpec.OWL_MEM, null, Collections.emptySet());
+	}
 	
 	
 	/**
-	 * Checks all spin:constraints for a given Resource.
-	 * 
-	 * NOTE: This will register any functions that are found in the singleton SPINModuleRegistry
+	 * Checks all spin:constraints for a given Resource.
+	 * 
+	 * NOTE: This will register any functions that are found in the singleton SPINModuleRegistry
 	 * 
-	 * @param resource  the instance to run constraint checks on
+	 * @param resource  the instance to run constraint checks on
 	 * @param stats  an (optional) List to add statistics to
 	 * @param monitor  an (optional) progress monitor (currently ignored)
 	 * @return a List of ConstraintViolations (empty if all is OK)
 	 */
 	public static List<ConstraintViolation> check(Resource resource, List<SPINStatistics> stats, ProgressMonitor monitor) {
-	    return check(resource, stats, monitor, OntModelSpec.OWL_MEM, null, Collections.emptySet());
-	}
-	
-    /**
-     * Checks all spin:constraints for a given Resource.
-     * 
-     * NOTE: This will register any functions that are found in the singleton SPINModuleRegistry
-     * 
-     * @param resource  the instance to run constraint checks on
-     * @param stats  an (optional) List to add statistics to
-     * @param monitor  an (optional) progress monitor (currently ignored)
-     * @param nextOntModelSpec the OntModelSpec to use when loading imports
-     * @param source an object to use in the SPINModuleRegistry as the source of any functions that are discovered
-     * @param validFunctionSources 
-     * @return a List of ConstraintViolations (empty if all is OK)
-     */
-    public static List<ConstraintViolation> check(Resource resource, List<SPINStatistics> stats, ProgressMonitor monitor, OntModelSpec nextOntModelSpec, Object source, Set<Object> validFunctionSources) {
-	    List<ConstraintViolation> results = new LinkedList<ConstraintViolation>();
+	    return check(resource, stats, monitor, OntModelSpec.OWL_MEM, null, Collections.emptySet());
+	}
+	
+    /**
+     * Checks all spin:constraints for a given Resource.
+     * 
+     * NOTE: This will register any functions that are found in the singleton SPINModuleRegistry
+     * 
+     * @param resource  the instance to run constraint checks on
+     * @param stats  an (optional) List to add statistics to
+     * @param monitor  an (optional) progress monitor (currently ignored)
+     * @param nextOntModelSpec the OntModelSpec to use when loading imports
+     * @param source an object to use in the SPINModuleRegistry as the source of any functions that are discovered
+     * @param validFunctionSources 
+     * @return a List of ConstraintViolations (empty if all is OK)
+     */
+    public static List<ConstraintViolation> check(Resource resource, List<SPINStatistics> stats, ProgressMonitor monitor, OntModelSpec nextOntModelSpec, Object source, Set<Object> validFunctionSources) {
+	    final List<ConstraintViolation> results = new LinkedList<ConstraintViolation>();
 		
 		// If spin:imports exist, then continue with the union model
 		try {
@@ -299,23 +351,14 @@ public class SPINConstraints {
 		}
 		
 		SPINInstance instance = resource.as(SPINInstance.class);
-		addConstraintViolations(results, instance, SPIN.constraint, false, stats, validFunctionSources);
+		addConstraintViolations(new ViolationSink(new ConstraintViolationHandler() {
+			public boolean handleConstraintViolation(ConstraintViolation violation) {
+				results.add(violation);
+				return true;
+			}
+		}, 0), instance, SPIN.constraint, false, stats, validFunctionSources);
 		return results;
 	}
-	
-
-	/**
-	 * Checks all instances in a given Model against all spin:constraints and
-	 * returns a List of constraint violations. 
-	 * A ProgressMonitor can be provided to enable the user to get intermediate
-	 * status reports and to cancel the operation.
-	 * @param model  the Model to operate on
-	 * @param monitor  an optional ProgressMonitor
-	 * @return a List of ConstraintViolations
-	 */
-	public static List<ConstraintViolation> check(Model model, ProgressMonitor monitor) {
-		return check(model, null, monitor, OntModelSpec.OWL_MEM, null, Collections.emptySet());
-	}
 	
 
 	/**
@@ -323,65 +366,133 @@ public class SPINConstraints {
 	 * returns a List of constraint violations. 
 	 * A ProgressMonitor can be provided to enable the user to get intermediate
 	 * status reports and to cancel the operation.
-	 * @param model  the Model to operate on
+	 * @param model  the Model to operate on
+	 * @param monitor  an optional ProgressMonitor
+	 * @return a List of ConstraintViolations
+	 */
+	public static List<ConstraintViolation> check(Model model, ProgressMonitor monitor) {
+		return check(model, null, monitor, OntModelSpec.OWL_MEM, null, Collections.emptySet());
+	}
+	
+
+	/**
+	 * Checks all instances in a given Model against all spin:constraints and
+	 * returns a List of constraint violations. 
+	 * A ProgressMonitor can be provided to enable the user to get intermediate
+	 * status reports and to cancel the operation.
+	 * @param model  the Model to operate on
 	 * @param stats  an (optional) List to write statistics reports to
 	 * @param monitor  an optional ProgressMonitor
 	 * @return a List of ConstraintViolations
 	 */
-	public static List<ConstraintViolation> check(Model model, List<SPINStatistics> stats, ProgressMonitor monitor) {
-	    return check(model, stats, monitor, OntModelSpec.OWL_MEM, null, Collections.emptySet());
-	}
-	
-    /**
-     * Checks all instances in a given Model against all spin:constraints and
-     * returns a List of constraint violations. 
-     * A ProgressMonitor can be provided to enable the user to get intermediate
-     * status reports and to cancel the operation.
-     * @param model  the Model to operate on
-     * @param stats  an (optional) List to write statistics reports to
-     * @param monitor  an optional ProgressMonitor
-     * @param source the source to use for any new functions that are found
-     * @param validFunctionSources TODO
-     * @return a List of ConstraintViolations
-     */
-    public static List<ConstraintViolation> check(Model model, List<SPINStatistics> stats, ProgressMonitor monitor, OntModelSpec nextOntModelSpec, Object source, Set<Object> validFunctionSources) {
-		List<ConstraintViolation> results = new LinkedList<ConstraintViolation>();
-		run(model, results, stats, monitor, nextOntModelSpec, source, validFunctionSources);
+	public static List<ConstraintViolation> check(Model model, List<SPINStatistics> stats, ProgressMonitor monitor) {
+	    return check(model, stats, monitor, OntModelSpec.OWL_MEM, null, Collections.emptySet());
+	}
+	
+    /**
+     * Checks all instances in a given Model against all spin:constraints and
+     * returns a List of constraint violations. 
+     * A ProgressMonitor can be provided to enable the user to get intermediate
+     * status reports and to cancel the operation.
+     * @param model  the Model to operate on
+     * @param stats  an (optional) List to write statistics reports to
+     * @param monitor  an optional ProgressMonitor
+     * @param source the source to use for any new functions that are found
+     * @param validFunctionSources TODO
+     * @return a List of ConstraintViolations
+     */
+    public static List<ConstraintViolation> check(Model model, List<SPINStatistics> stats, ProgressMonitor monitor, OntModelSpec nextOntModelSpec, Object source, Set<Object> validFunctionSources) {
+		return check(model, 0, stats, monitor, nextOntModelSpec, source, validFunctionSources);
+	}
+	
+	
+	/**
+	 * Checks all instances in a given Model against all spin:constraints and
+	 * returns up to a given number of constraint violations.  Checking stops
+	 * as soon as enough violations have been found: running queries are
+	 * aborted, no further constraints are executed, and ASK constraints are
+	 * executed for each instance separately so that they can stop at the
+	 * first match.  Use 1 for fail-fast checking.
+	 * @param model  the Model to operate on
+	 * @param maxViolations  the maximum number of violations, or 0 for all
+	 * @param stats  an (optional) List to write statistics reports to
+	 * @param monitor  an optional ProgressMonitor
+	 * @param nextOntModelSpec  the OntModelSpec to use when loading imports
+	 * @param source  the source to use for any new functions that are found
+	 * @param validFunctionSources  the valid function sources (see SPINModuleRegistry)
+	 * @return a List of at most maxViolations ConstraintViolations
+	 */
+	public static List<ConstraintViolation> check(Model model, int maxViolations, List<SPINStatistics> stats, ProgressMonitor monitor, OntModelSpec nextOntModelSpec, Object source, Set<Object> validFunctionSources) {
+		final List<ConstraintViolation> results = new LinkedList<ConstraintViolation>();
+		check(model, new ConstraintViolationHandler() {
+			public boolean handleConstraintViolation(ConstraintViolation violation) {
+				results.add(violation);
+				return true;
+			}
+		}, maxViolations, stats, monitor, nextOntModelSpec, source, validFunctionSources);
 		return results;
 	}
 	
 	
-	private synchronized static Query convertAskToConstruct(Query ask, org.topbraid.spin.model.Query spinQuery, String label) {
-		Syntax oldSyntax = Syntax.defaultSyntax; // Work-around to bug in ARQ
+	/**
+	 * Checks all instances in a given Model against all spin:constraints and
+	 * reports each constraint violation to a handler as soon as it has been
+	 * found, so that the violations do not need to be kept in memory.
+	 * Checking stops if the handler returns false or if maxViolations
+	 * violations have been reported.
+	 * @param model  the Model to operate on
+	 * @param handler  the ConstraintViolationHandler to report violations to
+	 * @param maxViolations  the maximum number of violations, or 0 for all
+	 * @param stats  an (optional) List to write statistics reports to
+	 * @param monitor  an optional ProgressMonitor
+	 * @param nextOntModelSpec  the OntModelSpec to use when loading imports
+	 * @param source  the source to use for any new functions that are found
+	 * @param validFunctionSources  the valid function sources (see SPINModuleRegistry)
+	 * @return the number of reported violations
+	 */
+	public static int check(Model model, ConstraintViolationHandler handler, int maxViolations, List<SPINStatistics> stats, ProgressMonitor monitor, OntModelSpec nextOntModelSpec, Object source, Set<Object> validFunctionSources) {
+		ViolationSink results = new ViolationSink(handler, maxViolations);
+		run(model, results, stats, monitor, nextOntModelSpec, source, validFunctionSources);
+		return results.getCount();
+	}
+	
+	
+	/**
+	 * Checks a snapshot of a VersionedGraph against all spin:constraints, so
+	 * that other threads can continue to write into the graph while the
+	 * constraints are checked.  The violations are reported as in
+	 * check(Model, ConstraintViolationHandler, ...), and the violations refer
+	 * to the state of the graph when the check started.
+	 * @param graph  the VersionedGraph with the instance data
+	 * @param schema  an (optional) Model with the classes and constraints that
+	 *                must not be modified during the check
+	 * @param handler  the ConstraintViolationHandler to report violations to
+	 * @param maxViolations  the maximum number of violations, or 0 for all
+	 * @param stats  an (optional) List to write statistics reports to
+	 * @param monitor  an optional ProgressMonitor
+	 * @param validFunctionSources  the valid function sources (see SPINModuleRegistry)
+	 * @return the number of reported violations
+	 */
+	public static int check(VersionedGraph graph, Model schema, ConstraintViolationHandler handler, int maxViolations, List<SPINStatistics> stats, ProgressMonitor monitor, Set<Object> validFunctionSources) {
+		VersionedGraph.Snapshot snapshot = graph.snapshot();
 		try {
-		    Syntax.defaultSyntax = ask.getSyntax();
-			Query construct = com.hp.hpl.jena.query.QueryFactory.create(ask);
-			construct.setQueryConstructType();
-			TemplateGroup templates = new TemplateGroup();
-			Node subject = Node.createAnon();
-			templates.addTriple(Triple.create(subject, RDF.type.asNode(), SPIN.ConstraintViolation.asNode()));
-			Node thisVar = Var.alloc(SPIN.THIS_VAR_NAME);
-			templates.addTriple(Triple.create(subject, SPIN.violationRoot.asNode(), thisVar));
-			if(label == null) {
-				label = spinQuery.getComment();
-			}
-			if(label != null) {
-				templates.addTriple(Triple.create(subject, RDFS.label.asNode(), Node.createLiteral(label)));
+			Graph union = snapshot;
+			if(schema != null) {
+				union = new MultiUnion(new Graph[] { snapshot, schema.getGraph() });
 			}
-			construct.setConstructTemplate(templates);
-			Element where = construct.getQueryPattern();
-			ElementGroup outerGroup = new ElementGroup();
-			ElementTriplesBlock block = new ElementTriplesBlock();
-			block.addTriple(Triple.create(thisVar, RDF.type.asNode(), Var.alloc(SPINUtil.TYPE_CLASS_VAR_NAME)));
-			outerGroup.addElement(block);
-			outerGroup.addElement(where);
-			construct.setQueryPattern(outerGroup);
-			return construct;
+			Model model = ModelFactory.createModelForGraph(union);
+			return check(model, handler, maxViolations, stats, monitor, OntModelSpec.OWL_MEM, null, validFunctionSources);
 		}
 		finally {
-			Syntax.defaultSyntax = oldSyntax;
+			snapshot.close();
 		}
 	}
+	
+	
+	// The CONSTRUCT form is cached per command, label and function sources, see AskToConstruct
+	private static Query convertAskToConstruct(Query ask, org.topbraid.spin.model.Query spinQuery, String label, Set<Object> validFunctionSources) {
+		return CompiledCommands.get(spinQuery).getResult(new AskToConstruct(ask, spinQuery, label, validFunctionSources));
+	}
 
 
 	private static ConstraintViolation createConstraintViolation(Collection<SimplePropertyPath> paths, Collection<TemplateCall> fixes, Resource instance, String message, Resource source) {
@@ -389,6 +500,174 @@ public class SPINConstraints {
 	}
 
 
+	private static void addVars(Triple triple, Set<Var> vars) {
+		for(Node node : new Node[] { triple.getSubject(), triple.getPredicate(), triple.getObject() }) {
+			if(node.isVariable()) {
+				vars.add(Var.alloc(node));
+			}
+		}
+	}
+
+
+	// Collects the variables of all patterns and expressions, including those in EXISTS
+	private static Set<Var> getVarsMentioned(Element element) {
+		final Set<Var> vars = PatternVars.vars(element);
+		final ExprVisitorBase exprVisitor = new ExprVisitorBase() {
+			@Override
+			public void visit(ExprFunctionOp funcOp) {
+				if(funcOp.getElement() != null) {
+					vars.addAll(getVarsMentioned(funcOp.getElement()));
+				}
+			}
+		};
+		ElementWalker.walk(element, new ElementVisitorBase() {
+
+			@Override
+			public void visit(ElementAssign el) {
+				vars.add(el.getVar());
+				add(el.getExpr());
+			}
+
+			@Override
+			public void visit(ElementBind el) {
+				vars.add(el.getVar());
+				add(el.getExpr());
+			}
+
+			@Override
+			public void visit(ElementFilter el) {
+				add(el.getExpr());
+			}
+
+			private void add(Expr expr) {
+				vars.addAll(expr.getVarsMentioned());
+				ExprWalker.walk(exprVisitor, expr);
+			}
+		});
+		return vars;
+	}
+
+
+	/**
+	 * Replaces the leading ?this a ?TYPE_CLASS clause of a constraint with a
+	 * sub-select that produces each instance of the given classes only once.
+	 * Returns null if the query does not have the expected shape, or if
+	 * ?TYPE_CLASS is used elsewhere in the query.
+	 */
+	private static Query createDistinctInstancesQuery(Query arq, List<Resource> classes) {
+		if(!(arq.getQueryPattern() instanceof ElementGroup)) {
+			return null;
+		}
+		List<Element> elements = ((ElementGroup)arq.getQueryPattern()).getElements();
+		if(elements.isEmpty()) {
+			return null;
+		}
+		Node thisVar = Var.alloc(SPIN.THIS_VAR_NAME);
+		Node typeClassVar = Var.alloc(SPINUtil.TYPE_CLASS_VAR_NAME);
+		Triple typeTriple = Triple.create(thisVar, RDF.type.asNode(), typeClassVar);
+		Element rest;
+		Element first = elements.get(0);
+		if(first instanceof ElementTriplesBlock) {
+			List<Triple> triples = ((ElementTriplesBlock)first).getPattern().getList();
+			if(triples.isEmpty() || !typeTriple.equals(triples.get(0))) {
+				return null;
+			}
+			ElementTriplesBlock block = new ElementTriplesBlock();
+			for(Triple triple : triples.subList(1, triples.size())) {
+				block.addTriple(triple);
+			}
+			rest = block;
+		}
+		else if(first instanceof ElementPathBlock) {
+			List<TriplePath> paths = ((ElementPathBlock)first).getPattern().getList();
+			if(paths.isEmpty() || !paths.get(0).isTriple() || !typeTriple.equals(paths.get(0).asTriple())) {
+				return null;
+			}
+			ElementPathBlock block = new ElementPathBlock();
+			for(TriplePath path : paths.subList(1, paths.size())) {
+				block.addTriplePath(path);
+			}
+			rest = block;
+		}
+		else {
+			return null;
+		}
+		
+		ElementGroup remainder = new ElementGroup();
+		remainder.addElement(rest);
+		for(Element element : elements.subList(1, elements.size())) {
+			remainder.addElement(element);
+		}
+		final Set<Var> vars = getVarsMentioned(remainder);
+		arq.getConstructTemplate().visit(new AbstractTemplateVisitor() {
+			@Override
+			public void visit(TemplateTriple triple) {
+				addVars(triple.getTriple(), vars);
+			}
+		});
+		if(vars.contains(typeClassVar)) {
+			return null;
+		}
+		
+		Query instances = new Query();
+		instances.setQuerySelectType();
+		instances.setDistinct(true);
+		instances.addResultVar(thisVar);
+		ElementUnion union = new ElementUnion();
+		for(Resource cls : classes) {
+			ElementTriplesBlock block = new ElementTriplesBlock();
+			block.addTriple(Triple.create(thisVar, RDF.type.asNode(), cls.asNode()));
+			union.addElement(block);
+		}
+		ElementGroup instancesGroup = new ElementGroup();
+		instancesGroup.addElement(union);
+		instances.setQueryPattern(instancesGroup);
+		ElementGroup group = new ElementGroup();
+		group.addElement(new ElementSubQuery(instances));
+		for(Element element : remainder.getElements()) {
+			group.addElement(element);
+		}
+		
+		Query result = arq.cloneQuery();
+		result.setQueryPattern(group);
+		return result;
+	}
+
+
+	// Executes a CONSTRUCT as a streaming SELECT, aborting it after enough spin:ConstraintViolations
+	private static void execConstruct(Query arq, Model model, QuerySolutionMap bindings, Model cm, int maxViolations) {
+		Query select = arq.cloneQuery();
+		select.setQuerySelectType();
+		select.setQueryResultStar(true);
+		com.hp.hpl.jena.sparql.syntax.Template template = arq.getConstructTemplate();
+		Graph graph = cm.getGraph();
+		QueryExecution qexec = ARQFactory.get().createQueryExecution(select, model, bindings);
+		try {
+			int count = 0;
+			ResultSet rs = qexec.execSelect();
+			while(rs.hasNext()) {
+				if(count >= maxViolations) {
+					qexec.abort();
+					return;
+				}
+				List<Triple> triples = new ArrayList<Triple>();
+				template.subst(triples, new HashMap<Node,Node>(), rs.nextBinding());
+				for(Triple triple : triples) {
+					if(triple.isConcrete()) {
+						graph.add(triple);
+						if(RDF.type.asNode().equals(triple.getPredicate()) && SPIN.ConstraintViolation.asNode().equals(triple.getObject())) {
+							count++;
+						}
+					}
+				}
+			}
+		}
+		finally {
+			qexec.close();
+		}
+	}
+
+
 	private static List<TemplateCall> getFixes(Model cm, Model model, Resource vio) {
 		List<TemplateCall> fixes = new ArrayList<TemplateCall>();
 		Iterator<Statement> fit = vio.listProperties(SPIN.fix);
@@ -409,21 +688,19 @@ public class SPINConstraints {
 	}
 
 
-    private static List<SimplePropertyPath> getPropertyPaths(Resource resource, ElementList where, Map<Property,RDFNode> varBindings, Set<Object> validFunctionSources) {
-	    
-	    PropertyPathsGetter getter = new PropertyPathsGetter(where, varBindings, validFunctionSources);
-		getter.run();
-		return new ArrayList<SimplePropertyPath>(getter.getResults()); 
-	}
-	
-	
-	private static Resource getSource(QueryOrTemplateCall qot) {
-		if(qot.getQuery() != null) {
-			return qot.getQuery();
-		}
-		else {
-			return qot.getTemplateCall();
-		}
+    private static List<SimplePropertyPath> getPropertyPaths(org.topbraid.spin.model.Query spinQuery, Map<Property,RDFNode> varBindings, Set<Object> validFunctionSources) {
+	    CompiledCommand compiled = CompiledCommands.get(spinQuery);
+	    return new ArrayList<SimplePropertyPath>(compiled.getResult(new PropertyPathsAnalysis(spinQuery, varBindings, validFunctionSources)));
+	}
+	
+	
+	private static Resource getSource(QueryOrTemplateCall qot) {
+		if(qot.getQuery() != null) {
+			return qot.getQuery();
+		}
+		else {
+			return qot.getTemplateCall();
+		}
 	}
 
 
@@ -468,18 +745,71 @@ public class SPINConstraints {
 			return false; 
 		}
 	}
-	
-	/**
-	 * 
-	 * @param model
-	 * @param results
-	 * @param stats
-	 * @param monitor
-	 * @param nextOntModelSpec
-     * @param source The object to use as the source for any new functions that are discovered
-	 * @param validFunctionSources
+	
+	
+	/**
+	 * Checks whether each constraint is evaluated only once per distinct
+	 * instance, see setDistinctInstances.
+	 * @return true if distinct instance mode is active
 	 */
-    private static void run(Model model, List<ConstraintViolation> results, List<SPINStatistics> stats, ProgressMonitor monitor, OntModelSpec nextOntModelSpec, Object source, Set<Object> validFunctionSources) {
+	public static boolean isDistinctInstances() {
+		return distinctInstances;
+	}
+	
+	
+	/**
+	 * Gets the QueryResultCache that is used to reuse the results of
+	 * constraint queries across checks, if any.
+	 * @return the cache or null
+	 */
+	public static QueryResultCache getResultCache() {
+		return resultCache;
+	}
+	
+	
+	/**
+	 * Gets the TypeIndex that is used to skip classes without instances,
+	 * if any.
+	 * @return the index or null
+	 */
+	public static TypeIndex getTypeIndex() {
+		return typeIndex;
+	}
+	
+	
+	private static boolean hasDirectInstances(Model model, Resource cls) {
+		TypeIndex index = typeIndex;
+		if(index != null) {
+			return index.getInstanceCount(cls.asNode()) > 0;
+		}
+		else {
+			return model.contains(null, RDF.type, cls);
+		}
+	}
+	
+	
+	/**
+	 * Checks whether a given Model has no constraint violations, stopping at
+	 * the first violation.
+	 * @param model  the Model to operate on
+	 * @param monitor  an optional ProgressMonitor
+	 * @return true if no spin:constraint is violated
+	 */
+	public static boolean isValid(Model model, ProgressMonitor monitor) {
+		return check(model, 1, null, monitor, OntModelSpec.OWL_MEM, null, Collections.emptySet()).isEmpty();
+	}
+	
+	/**
+	 * 
+	 * @param model
+	 * @param results  the sink to report violations to
+	 * @param stats
+	 * @param monitor
+	 * @param nextOntModelSpec
+     * @param source The object to use as the source for any new functions that are discovered
+	 * @param validFunctionSources
+	 */
+    private static void run(Model model, ViolationSink results, List<SPINStatistics> stats, ProgressMonitor monitor, OntModelSpec nextOntModelSpec, Object source, Set<Object> validFunctionSources) {
 	    Map<CommandWrapper,Map<String,RDFNode>> templateBindings = new HashMap<CommandWrapper,Map<String,RDFNode>>();
 		
 		// If spin:imports exist then continue with the union model
@@ -493,14 +823,35 @@ public class SPINConstraints {
 		Map<Resource,List<CommandWrapper>> class2Query = SPINQueryFinder.getClass2QueryMap(model, model, SPIN.constraint, true, templateBindings, true, validFunctionSources);
 		for(Resource cls : class2Query.keySet()) {
 			List<CommandWrapper> arqs = class2Query.get(cls);
-			for(CommandWrapper arqWrapper : arqs) {
+			for(CommandWrapper arqWrapper : arqs) {
+				if(results.isFull() || (monitor != null && monitor.isCanceled())) {
+					return;
+				}
+				
+				// Skip constraint if neither the class nor its subclasses have instances
+				TypeIndex index = typeIndex;
+				if(index != null && !arqWrapper.isThisUnbound() && !index.hasInstances(cls)) {
+					continue;
+				}
 				QueryWrapper queryWrapper = (QueryWrapper) arqWrapper;
 				Map<String,RDFNode> initialBindings = templateBindings.get(arqWrapper);
 				Query arq = queryWrapper.getQuery();
 				String label = arqWrapper.getLabel();
 				if(arq.isAskType()) {
-					arq = convertAskToConstruct(arq, queryWrapper.getSPINQuery(), label);
-				}
+					Query construct = convertAskToConstruct(arq, queryWrapper.getSPINQuery(), label, validFunctionSources);
+					if(results.isLimited()) {
+						// Keep the short-circuiting of ASK for each instance
+						arq = TemplateSpecializer.get().specialize(arqWrapper, arq, initialBindings);
+						runAskOnInstances(results, arq, construct.getConstructTemplate(), queryWrapper.getSPINQuery(), label, model, cls, initialBindings, arqWrapper.isThisUnbound(), arqWrapper.getSource(), stats, monitor);
+						continue;
+					}
+					arq = construct;
+				}
+				arq = TemplateSpecializer.get().specialize(arqWrapper, arq, initialBindings);
+				if(distinctInstances && !arqWrapper.isThisUnbound()) {
+					runQueryOnDistinctInstances(results, arq, queryWrapper.getSPINQuery(), label, model, cls, initialBindings, arqWrapper.getSource(), stats, monitor);
+					continue;
+				}
 				runQueryOnClass(results, arq, queryWrapper.getSPINQuery(), label, model, cls, initialBindings, arqWrapper.isThisUnbound(), arqWrapper.getSource(), stats, monitor);
 				if(!arqWrapper.isThisUnbound()) {
 					Set<Resource> subClasses = JenaUtil.getAllSubClasses(cls);
@@ -513,9 +864,77 @@ public class SPINConstraints {
 	}
 	
 	
-	private static void runQueryOnClass(List<ConstraintViolation> results, Query arq, org.topbraid.spin.model.Query spinQuery, String label, Model model, Resource cls, Map<String,RDFNode> initialBindings, boolean thisUnbound, Resource source, List<SPINStatistics> stats, ProgressMonitor monitor) {
-		if(thisUnbound || model.contains(null, RDF.type, cls)) {
-			QueryExecution qexec = ARQFactory.get().createQueryExecution(arq, model);
+	// Runs an ASK constraint for each instance of cls and its subclasses, until enough violations are found.
+	// The violations are created from the template of convertAskToConstruct, like in the CONSTRUCT mode.
+	private static void runAskOnInstances(ViolationSink results, Query arq, com.hp.hpl.jena.sparql.syntax.Template template, org.topbraid.spin.model.Query spinQuery, String label, Model model, Resource cls, Map<String,RDFNode> initialBindings, boolean thisUnbound, Resource source, List<SPINStatistics> stats, ProgressMonitor monitor) {
+		List<Resource> classes = new ArrayList<Resource>();
+		classes.add(cls);
+		if(!thisUnbound) {
+			classes.addAll(JenaUtil.getAllSubClasses(cls));
+		}
+		long startTime = System.currentTimeMillis();
+		for(Resource c : classes) {
+			List<Resource> instances = new ArrayList<Resource>();
+			if(thisUnbound) {
+				instances.add(null);
+			}
+			else {
+				instances.addAll(model.listSubjectsWithProperty(RDF.type, c).toList());
+			}
+			if(!instances.isEmpty() && monitor != null) {
+				monitor.subTask("Checking SPIN constraint on " + SPINLabels.get().getLabel(c));
+			}
+			for(Resource instance : instances) {
+				if(results.isFull()) {
+					break;
+				}
+				QuerySolutionMap arqBindings = new QuerySolutionMap();
+				if(instance != null) {
+					arqBindings.add(SPIN.THIS_VAR_NAME, instance);
+				}
+				if(!thisUnbound) {
+					arqBindings.add(SPINUtil.TYPE_CLASS_VAR_NAME, c);
+				}
+				if(initialBindings != null) {
+					for(String varName : initialBindings.keySet()) {
+						arqBindings.add(varName, initialBindings.get(varName));
+					}
+				}
+				QueryExecution qexec = ARQFactory.get().createQueryExecution(arq, model, arqBindings);
+				boolean violated;
+				try {
+					violated = qexec.execAsk();
+				}
+				finally {
+					qexec.close();
+				}
+				if(violated) {
+					BindingMap binding = new BindingMap();
+					if(instance != null) {
+						binding.add(Var.alloc(SPIN.THIS_VAR_NAME), instance.asNode());
+					}
+					List<Triple> triples = new ArrayList<Triple>();
+					template.subst(triples, new HashMap<Node,Node>(), binding);
+					Model cm = ModelFactory.createDefaultModel(ReificationStyle.Minimal);
+					for(Triple triple : triples) {
+						if(triple.isConcrete()) {
+							cm.getGraph().add(triple);
+						}
+					}
+					addConstructedProblemReports(cm, results, model, c, instance, label, source);
+				}
+			}
+		}
+		if(stats != null) {
+			long duration = System.currentTimeMillis() - startTime;
+			String queryText = SPINLabels.get().getLabel(spinQuery);
+			stats.add(new SPINStatistics(label != null ? label : queryText, queryText, duration, startTime, cls.asNode()));
+		}
+	}
+	
+	
+	private static void runQueryOnClass(ViolationSink results, Query arq, org.topbraid.spin.model.Query spinQuery, String label, Model model, Resource cls, Map<String,RDFNode> initialBindings, boolean thisUnbound, Resource source, List<SPINStatistics> stats, ProgressMonitor monitor) {
+		if(thisUnbound || hasDirectInstances(model, cls)) {
 			QuerySolutionMap arqBindings = new QuerySolutionMap();
 			if(!thisUnbound) {
 				arqBindings.add(SPINUtil.TYPE_CLASS_VAR_NAME, cls);
@@ -526,28 +945,71 @@ public class SPINConstraints {
 					arqBindings.add(varName, value);
 				}
 			}
-			qexec.setInitialBinding(arqBindings);
 			
 			if(monitor != null) {
 				monitor.subTask("Checking SPIN constraint on " + SPINLabels.get().getLabel(cls));
 			}
-			
+			
 			long startTime = System.currentTimeMillis();
 			Model cm = ModelFactory.createDefaultModel(ReificationStyle.Minimal);
-			qexec.execConstruct(cm);
-			qexec.close();
-			long endTime = System.currentTimeMillis();
-			if(stats != null) {
-				long duration = endTime - startTime;
-				String queryText = SPINLabels.get().getLabel(spinQuery);
-				if(label == null) {
-					label = queryText;
-				}
-				stats.add(new SPINStatistics(label, queryText, duration, startTime, cls.asNode()));
-			}
+			if(results.isLimited()) {
+				execConstruct(arq, model, arqBindings, cm, results.getRemaining());
+			}
+			else {
+				QueryResultCache cache = resultCache;
+				String cacheKey = cache != null ? cache.getKey(arq, arqBindings) : null;
+				List<Triple> cached = cacheKey != null ? cache.get(cacheKey) : null;
+				if(cached != null) {
+					cm.getGraph().getBulkUpdateHandler().add(cached);
+				}
+				else {
+					QueryExecution qexec = ARQFactory.get().createQueryExecution(arq, model);
+					qexec.setInitialBinding(arqBindings);
+					qexec.execConstruct(cm);
+					qexec.close();
+					if(cacheKey != null) {
+						cache.put(cacheKey, cm.getGraph());
+					}
+				}
+			}
+			long endTime = System.currentTimeMillis();
+			if(stats != null) {
+				long duration = endTime - startTime;
+				String queryText = SPINLabels.get().getLabel(spinQuery);
+				if(label == null) {
+					label = queryText;
+				}
+				stats.add(new SPINStatistics(label, queryText, duration, startTime, cls.asNode()));
+			}
 			addConstructedProblemReports(cm, results, model, cls, null, label, source);
 		}
 	}
+	
+	
+	// Runs a constraint over the distinct instances of cls and its subclasses, with a single query
+	private static void runQueryOnDistinctInstances(ViolationSink results, Query arq, org.topbraid.spin.model.Query spinQuery, String label, Model model, Resource cls, Map<String,RDFNode> initialBindings, Resource source, List<SPINStatistics> stats, ProgressMonitor monitor) {
+		List<Resource> classes = new ArrayList<Resource>();
+		if(hasDirectInstances(model, cls)) {
+			classes.add(cls);
+		}
+		for(Resource subClass : JenaUtil.getAllSubClasses(cls)) {
+			if(hasDirectInstances(model, subClass)) {
+				classes.add(subClass);
+			}
+		}
+		Query distinct = classes.size() > 1 ? createDistinctInstancesQuery(arq, classes) : null;
+		if(distinct != null) {
+			// Unbound ?TYPE_CLASS, as the sub-select already restricts the classes
+			runQueryOnClass(results, distinct, spinQuery, label, model, cls, initialBindings, true, source, stats, monitor);
+		}
+		else {
+			for(Resource c : classes) {
+				if(!results.isFull()) {
+					runQueryOnClass(results, arq, spinQuery, label, model, c, initialBindings, false, source, stats, monitor);
+				}
+			}
+		}
+	}
 
 
 	private static void setInitialBindings(Resource resource, TemplateCall templateCall,
@@ -560,5 +1022,366 @@ public class SPINConstraints {
 			arqBindings.add(arg.getVarName(), value);
 		}
 		qexec.setInitialBinding(arqBindings);
-	}
+	}
+	
+	
+	/**
+	 * Activates a mode in which each class-level constraint is evaluated only
+	 * once for each distinct instance of the class and its subclasses.
+	 * By default, the constraint is executed separately for each class
+	 * (binding ?TYPE_CLASS), so that instances that have several types from
+	 * the same class hierarchy are checked multiple times and produce
+	 * duplicate ConstraintViolations.  In distinct mode the violations are
+	 * reported at the class that declares the constraint.
+	 * @param value  true to activate the distinct instance mode
+	 */
+	public static void setDistinctInstances(boolean value) {
+		distinctInstances = value;
+	}
+	
+	
+	/**
+	 * Installs a QueryResultCache so that the results of class-level
+	 * constraint queries are replayed instead of executed again if none of
+	 * the predicates and classes that the query reads have changed since a
+	 * previous check.  Checks that are limited to a maximum number of
+	 * violations always execute the queries.
+	 * @param value  the new cache or null to always execute the queries
+	 */
+	public static void setResultCache(QueryResultCache value) {
+		resultCache = value;
+	}
+	
+	
+	/**
+	 * Installs a TypeIndex that is used instead of probing the Model to
+	 * find out whether a class has instances, and to skip the constraints
+	 * of classes whose whole subclass tree has no instances.  The index
+	 * must observe all graphs of the checked Models (including imports)
+	 * that contain rdf:type triples.
+	 * @param value  the new index or null to probe the Model
+	 */
+	public static void setTypeIndex(TypeIndex value) {
+		typeIndex = value;
+	}
+
+
+	/**
+	 * Converts an ASK constraint into a CONSTRUCT that produces a
+	 * spin:ConstraintViolation for each instance of ?this where the ASK
+	 * is true, with the same spin:violationPaths as check(Resource) reports
+	 * for the ASK.  The result is cached per command, label and function
+	 * sources.
+	 */
+	private static class AskToConstruct extends CompiledAnalysis<Query> {
+		
+		private Query ask;
+		
+		private String label;
+		
+		private org.topbraid.spin.model.Query spinQuery;
+		
+		private Set<Object> validFunctionSources;
+		
+		
+		AskToConstruct(Query ask, org.topbraid.spin.model.Query spinQuery, String label, Set<Object> validFunctionSources) {
+			this.ask = ask;
+			this.label = label;
+			this.spinQuery = spinQuery;
+			this.validFunctionSources = validFunctionSources;
+		}
+
+
+		@Override
+		protected Query compute(CompiledCommand command) {
+			// Clones using the syntax of the ASK query, without touching Syntax.defaultSyntax
+			Query construct = ask.cloneQuery();
+			construct.setQueryConstructType();
+			TemplateGroup templates = new TemplateGroup();
+			Node subject = Node.createAnon();
+			templates.addTriple(Triple.create(subject, RDF.type.asNode(), SPIN.ConstraintViolation.asNode()));
+			Node thisVar = Var.alloc(SPIN.THIS_VAR_NAME);
+			templates.addTriple(Triple.create(subject, SPIN.violationRoot.asNode(), thisVar));
+			String l = label;
+			if(l == null) {
+				l = spinQuery.getComment();
+			}
+			if(l != null) {
+				templates.addTriple(Triple.create(subject, RDFS.label.asNode(), Node.createLiteral(l)));
+			}
+			for(SimplePropertyPath path : command.getResult(new PropertyPathsAnalysis(spinQuery, null, validFunctionSources))) {
+				Node predicate = path.getPredicate().asNode();
+				if(path instanceof ObjectPropertyPath) {
+					templates.addTriple(Triple.create(subject, SPIN.violationPath.asNode(), predicate));
+				}
+				else {
+					Node reverse = Node.createAnon();
+					templates.addTriple(Triple.create(subject, SPIN.violationPath.asNode(), reverse));
+					templates.addTriple(Triple.create(reverse, RDF.type.asNode(), SP.ReversePath.asNode()));
+					templates.addTriple(Triple.create(reverse, SP.path.asNode(), predicate));
+				}
+			}
+			construct.setConstructTemplate(templates);
+			Element where = construct.getQueryPattern();
+			ElementGroup outerGroup = new ElementGroup();
+			ElementTriplesBlock block = new ElementTriplesBlock();
+			block.addTriple(Triple.create(thisVar, RDF.type.asNode(), Var.alloc(SPINUtil.TYPE_CLASS_VAR_NAME)));
+			outerGroup.addElement(block);
+			outerGroup.addElement(where);
+			construct.setQueryPattern(outerGroup);
+			return construct;
+		}
+
+
+		@Override
+		public boolean equals(Object obj) {
+			if(obj instanceof AskToConstruct) {
+				AskToConstruct other = (AskToConstruct) obj;
+				return (label == null ? other.label == null : label.equals(other.label)) &&
+					(validFunctionSources == null ? other.validFunctionSources == null : validFunctionSources.equals(other.validFunctionSources));
+			}
+			return false;
+		}
+
+
+		@Override
+		public int hashCode() {
+			return (label == null ? 0 : label.hashCode()) * 31 +
+				(validFunctionSources == null ? 0 : validFunctionSources.hashCode());
+		}
+	}
+
+
+	/**
+	 * Collects the SimplePropertyPaths of a constraint's WHERE clause like
+	 * PropertyPathsGetter, but walking the compiled command (where ?this is
+	 * recognized by name).  The result is cached per command, bindings and
+	 * function sources.
+	 */
+	private static class PropertyPathsAnalysis extends CompiledAnalysis<Set<SimplePropertyPath>> {
+		
+		private org.topbraid.spin.model.Query spinQuery;
+		
+		private Set<Object> validFunctionSources;
+		
+		private Map<Property,RDFNode> varBindings;
+		
+		
+		PropertyPathsAnalysis(org.topbraid.spin.model.Query spinQuery, Map<Property,RDFNode> varBindings, Set<Object> validFunctionSources) {
+			this.spinQuery = spinQuery;
+			this.validFunctionSources = validFunctionSources;
+			this.varBindings = varBindings;
+		}
+
+
+		@Override
+		protected Set<SimplePropertyPath> compute(CompiledCommand command) {
+			CompiledElement where = command.getWhere();
+			if(where == null) {
+				return Collections.emptySet();
+			}
+			Map<Node,Node> bindings = null;
+			if(varBindings != null) {
+				bindings = new HashMap<Node,Node>();
+				for(Property property : varBindings.keySet()) {
+					bindings.put(property.asNode(), varBindings.get(property).asNode());
+				}
+			}
+			PropertyPathsVisitor visitor = new PropertyPathsVisitor(spinQuery.getModel(), bindings, validFunctionSources);
+			where.walk(visitor);
+			return Collections.unmodifiableSet(visitor.results);
+		}
+
+
+		@Override
+		public boolean equals(Object obj) {
+			if(obj instanceof PropertyPathsAnalysis) {
+				PropertyPathsAnalysis other = (PropertyPathsAnalysis) obj;
+				return equals(varBindings, other.varBindings) && equals(validFunctionSources, other.validFunctionSources);
+			}
+			return false;
+		}
+
+
+		private static boolean equals(Object a, Object b) {
+			return a == null ? b == null : a.equals(b);
+		}
+
+
+		@Override
+		public int hashCode() {
+			return (varBindings == null ? 0 : varBindings.hashCode()) * 31 +
+				(validFunctionSources == null ? 0 : validFunctionSources.hashCode());
+		}
+	}
+
+
+	/**
+	 * Forwards violations to a ConstraintViolationHandler and keeps track of
+	 * whether the handler has asked to stop or the maximum number of violations
+	 * has been reached.
+	 */
+	private static class ViolationSink {
+		
+		private int count;
+		
+		private ConstraintViolationHandler handler;
+		
+		private int maxViolations;
+		
+		private boolean stopped;
+		
+		
+		ViolationSink(ConstraintViolationHandler handler, int maxViolations) {
+			this.handler = handler;
+			this.maxViolations = maxViolations;
+		}
+		
+		
+		void add(ConstraintViolation violation) {
+			if(!isFull()) {
+				count++;
+				if(!handler.handleConstraintViolation(violation)) {
+					stopped = true;
+				}
+			}
+		}
+		
+		
+		int getCount() {
+			return count;
+		}
+		
+		
+		int getRemaining() {
+			return maxViolations - count;
+		}
+		
+		
+		boolean isFull() {
+			return stopped || (maxViolations > 0 && count >= maxViolations);
+		}
+		
+		
+		boolean isLimited() {
+			return maxViolations > 0;
+		}
+	}
+
+
+	/**
+	 * Collects the paths from ?this in the triple patterns, walking into the
+	 * WHERE clauses of the SPIN functions that are called, where the arguments
+	 * of the call are bound.
+	 */
+	private static class PropertyPathsVisitor implements CompiledVisitor {
+		
+		private final static Node THIS_VAR = Node.createVariable(SPIN.THIS_VAR_NAME);
+		
+		// The bindings of the function that is currently walked, from argument property to value
+		private Map<Node,Node> bindings;
+		
+		private Resource localThis;
+		
+		private Set<CompiledExpression> reachedFunctionCalls = new HashSet<CompiledExpression>();
+		
+		private Set<SimplePropertyPath> results = new HashSet<SimplePropertyPath>();
+		
+		private Model targetModel;
+		
+		private Set<Object> validFunctionSources;
+		
+		
+		PropertyPathsVisitor(Model targetModel, Map<Node,Node> bindings, Set<Object> validFunctionSources) {
+			this.bindings = bindings;
+			this.localThis = (Resource) SPIN._this.inModel(targetModel);
+			this.targetModel = targetModel;
+			this.validFunctionSources = validFunctionSources;
+		}
+		
+		
+		@Override
+		public void visit(CompiledElement element) {
+			if(element.getKind() == CompiledElement.Kind.TRIPLE_PATTERN) {
+				if(THIS_VAR.equals(element.getTerm(0))) {
+					Property predicate = getPredicate(element.getTerm(1));
+					if(predicate != null) {
+						results.add(new ObjectPropertyPath(localThis, predicate));
+					}
+				}
+				if(THIS_VAR.equals(element.getTerm(2))) {
+					Property predicate = getPredicate(element.getTerm(1));
+					if(predicate != null) {
+						results.add(new SubjectPropertyPath(localThis, predicate));
+					}
+				}
+			}
+		}
+		
+		
+		@Override
+		public void visit(CompiledExpression expression) {
+			Node function = expression.getNode();
+			if(expression.getKind() == CompiledExpression.Kind.FUNCTION_CALL && function != null && function.isURI() && reachedFunctionCalls.add(expression)) {
+				Resource f = SPINModuleRegistry.get().getFunction(function.getURI(), null, validFunctionSources);
+				if(f != null) {
+					Statement bodyS = f.getProperty(SPIN.body);
+					org.topbraid.spin.model.Query body = bodyS != null && bodyS.getObject().isResource() ? SPINFactory.asQuery(bodyS.getResource()) : null;
+					if(body != null) {
+						CompiledElement where = CompiledCommands.get(body).getWhere();
+						if(where != null) {
+							Map<Node,Node> oldBindings = bindings;
+							bindings = getArgumentBindings(expression, oldBindings);
+							where.walk(this);
+							bindings = oldBindings;
+						}
+					}
+				}
+			}
+		}
+		
+		
+		// Maps the argument properties of a function call to their values, replacing variables
+		// with their values from the enclosing bindings like SPINUtil.applyBindings
+		private static Map<Node,Node> getArgumentBindings(CompiledExpression functionCall, Map<Node,Node> oldBindings) {
+			Map<String,Node> varNamesBindings = new HashMap<String,Node>();
+			if(oldBindings != null) {
+				for(Node property : oldBindings.keySet()) {
+					varNamesBindings.put(property.getLocalName(), oldBindings.get(property));
+				}
+			}
+			Map<Node,Node> results = new HashMap<Node,Node>();
+			for(int i = 0; i < functionCall.getArgCount(); i++) {
+				CompiledExpression arg = functionCall.getArg(i);
+				Node property = functionCall.getArgProperty(i);
+				if(arg != null && property != null) {
+					Node value = arg.getNode();
+					if(arg.isVariable() && varNamesBindings.containsKey(value.getName())) {
+						value = varNamesBindings.get(value.getName());
+					}
+					if(arg.getKind() == CompiledExpression.Kind.NODE) {
+						results.put(property, value);
+					}
+				}
+			}
+			return results;
+		}
+		
+		
+		private Property getPredicate(Node predicate) {
+			if(predicate == null) {
+				return null;
+			}
+			else if(predicate.isURI()) {
+				return targetModel.getProperty(predicate.getURI());
+			}
+			else if(predicate.isVariable() && bindings != null) {
+				Node b = bindings.get(Node.createURI(SP.NS + predicate.getName()));
+				if(b != null && b.isURI()) {
+					return targetModel.getProperty(b.getURI());
+				}
+			}
+			return null;
+		}
+	}
 }
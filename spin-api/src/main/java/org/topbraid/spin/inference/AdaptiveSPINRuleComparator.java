@@ -0,0 +1,398 @@
+package org.topbraid.spin.inference;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+
+import org.topbraid.spin.arq.AbstractTemplateVisitor;
+import org.topbraid.spin.util.CommandWrapper;
+import org.topbraid.spin.util.JenaUtil;
+import org.topbraid.spin.util.QueryWrapper;
+import org.topbraid.spin.util.SPINUtil;
+
+import com.hp.hpl.jena.graph.Node;
+import com.hp.hpl.jena.graph.Triple;
+import com.hp.hpl.jena.query.Query;
+import com.hp.hpl.jena.rdf.model.Model;
+import com.hp.hpl.jena.rdf.model.Resource;
+import com.hp.hpl.jena.sparql.core.TriplePath;
+import com.hp.hpl.jena.sparql.syntax.ElementPathBlock;
+import com.hp.hpl.jena.sparql.syntax.ElementTriplesBlock;
+import com.hp.hpl.jena.sparql.syntax.ElementVisitorBase;
+import com.hp.hpl.jena.sparql.syntax.ElementWalker;
+import com.hp.hpl.jena.sparql.syntax.TemplateTriple;
+import com.hp.hpl.jena.vocabulary.RDF;
+
+
+/**
+ * A SPINRuleComparator that learns from the execution of the rules.
+ * SPINInferences reports the duration and the number of new triples of
+ * each rule execution, and uses the resulting profiles to reorder the rules
+ * before each iteration.
+ *
+ * The spin:nextRuleProperty order of the DefaultSPINRuleComparator is
+ * always respected.  Among the rules of the same rule property, rules that
+ * produce triples read by other rules (based on the predicates and classes
+ * in the CONSTRUCT templates and WHERE clauses) are scheduled first, so
+ * that their consumers see the new triples in the same iteration.  Among
+ * the remaining candidates, rules with the lowest cost per new triple come
+ * first.  Rules without a profile have no cost so that they get measured
+ * early.  The dependencies of UPDATE rules are unknown, so they are only
+ * ordered by cost.
+ *
+ * The profiles can be saved to a file and loaded in later runs.
+ */
+public class AdaptiveSPINRuleComparator extends DefaultSPINRuleComparator {
+
+	// Weight of the latest measurement in the moving averages
+	private final static double ALPHA = 0.5;
+
+	private final static String ANY = "*";
+
+	private final static int MAGIC = 0x5350524F; // "SPRO"
+
+	private final static String TYPE = RDF.type.getURI();
+
+	private final static int VERSION = 1;
+
+	private Map<CommandWrapper,Dependencies> dependencies = new WeakHashMap<CommandWrapper,Dependencies>();
+
+	private Map<String,Profile> profiles = new HashMap<String,Profile>();
+
+	private Map<CommandWrapper,Integer> ranks = new HashMap<CommandWrapper,Integer>();
+
+
+	public AdaptiveSPINRuleComparator(Model model) {
+		super(model);
+	}
+
+
+	private static void addPredicate(Set<String> keys, Triple triple, Resource cls) {
+		Node predicate = triple.getPredicate();
+		if(!predicate.isURI()) {
+			keys.add(ANY);
+		}
+		else if(TYPE.equals(predicate.getURI())) {
+			Node object = triple.getObject();
+			if(object.isURI()) {
+				keys.add(TYPE + " " + object.getURI());
+			}
+			else if(cls != null && object.isVariable() && SPINUtil.TYPE_CLASS_VAR_NAME.equals(object.getName())) {
+				// The rule is executed for the class and its subclasses
+				keys.add(TYPE + " " + cls.getURI());
+				for(Resource subClass : JenaUtil.getAllSubClasses(cls)) {
+					if(subClass.isURIResource()) {
+						keys.add(TYPE + " " + subClass.getURI());
+					}
+				}
+			}
+			else {
+				keys.add(TYPE);
+			}
+		}
+		else {
+			keys.add(predicate.getURI());
+		}
+	}
+
+
+	@Override
+	public int compare(CommandWrapper w1, CommandWrapper w2) {
+		int compare = comparePredicates(w1, w2);
+		if(compare != 0) {
+			return compare;
+		}
+		Integer r1 = ranks.get(w1);
+		Integer r2 = ranks.get(w2);
+		if(r1 != null && r2 != null) {
+			return r1.compareTo(r2);
+		}
+		else if(r1 != null) {
+			return -1;
+		}
+		else if(r2 != null) {
+			return 1;
+		}
+		compare = Double.compare(getScore(w1), getScore(w2));
+		if(compare != 0) {
+			return compare;
+		}
+		return w1.getText().compareTo(w2.getText());
+	}
+
+
+	private Dependencies getDependencies(CommandWrapper rule) {
+		Dependencies result = dependencies.get(rule);
+		if(result == null) {
+			result = new Dependencies();
+			if(rule instanceof QueryWrapper) {
+				Query query = ((QueryWrapper)rule).getQuery();
+				Resource subject = rule.getStatement().getSubject();
+				final Resource cls = subject.isURIResource() && !rule.isThisUnbound() ? subject : null;
+				final Set<String> reads = result.reads;
+				ElementWalker.walk(query.getQueryPattern(), new ElementVisitorBase() {
+
+					@Override
+					public void visit(ElementPathBlock el) {
+						for(TriplePath path : el.getPattern().getList()) {
+							if(path.isTriple()) {
+								addPredicate(reads, path.asTriple(), cls);
+							}
+							else {
+								reads.add(ANY);
+							}
+						}
+					}
+
+					@Override
+					public void visit(ElementTriplesBlock el) {
+						for(Triple triple : el.getPattern().getList()) {
+							addPredicate(reads, triple, cls);
+						}
+					}
+				});
+				if(query.isConstructType()) {
+					final Set<String> writes = result.writes;
+					query.getConstructTemplate().visit(new AbstractTemplateVisitor() {
+						@Override
+						public void visit(TemplateTriple triple) {
+							addPredicate(writes, triple.getTriple(), null);
+						}
+					});
+				}
+			}
+			dependencies.put(rule, result);
+		}
+		return result;
+	}
+
+
+	private static String getKey(CommandWrapper rule) {
+		return rule.getStatement().getSubject() + "\n" + rule.getText();
+	}
+
+
+	/**
+	 * Gets the number of rules that have a profile.
+	 * @return the number of profiles
+	 */
+	public synchronized int getProfileCount() {
+		return profiles.size();
+	}
+
+
+	// The average cost per new triple, 0 for unknown rules
+	private synchronized double getScore(CommandWrapper rule) {
+		Profile profile = profiles.get(getKey(rule));
+		return profile != null ? profile.cost / (1 + profile.triples) : 0;
+	}
+
+
+	/**
+	 * Loads the profiles from a file written by save, replacing the profiles
+	 * of the same rules.  Files with an unknown format are ignored.
+	 * @param file  the file to load
+	 * @throws IOException  if the file could not be read
+	 */
+	public synchronized void load(File file) throws IOException {
+		DataInputStream dis = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+		try {
+			if(dis.readInt() != MAGIC || dis.readInt() != VERSION) {
+				return;
+			}
+			int count = dis.readInt();
+			for(int i = 0; i < count; i++) {
+				byte[] bytes = new byte[dis.readInt()];
+				dis.readFully(bytes);
+				Profile profile = new Profile();
+				profile.executions = dis.readInt();
+				profile.cost = dis.readDouble();
+				profile.triples = dis.readDouble();
+				profiles.put(new String(bytes, "UTF-8"), profile);
+			}
+		}
+		finally {
+			dis.close();
+		}
+	}
+
+
+	private static boolean matches(String write, String read) {
+		if(ANY.equals(write) || ANY.equals(read) || write.equals(read)) {
+			return true;
+		}
+		else {
+			// An unknown type matches all types
+			return (TYPE.equals(write) && read.startsWith(TYPE + " ")) ||
+				(TYPE.equals(read) && write.startsWith(TYPE + " "));
+		}
+	}
+
+
+	private static boolean produces(Dependencies producer, Dependencies consumer) {
+		for(String write : producer.writes) {
+			for(String read : consumer.reads) {
+				if(matches(write, read)) {
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+
+
+	/**
+	 * Computes the execution order of a list of rules from the current
+	 * profiles.  This needs to be called before the list is sorted with
+	 * this comparator, and again whenever new profiles have been recorded.
+	 * @param rules  the rules to order
+	 */
+	public synchronized void prepare(List<CommandWrapper> rules) {
+		ranks.clear();
+		List<CommandWrapper> sorted = new ArrayList<CommandWrapper>(rules);
+		Collections.sort(sorted, new Comparator<CommandWrapper>() {
+			public int compare(CommandWrapper w1, CommandWrapper w2) {
+				int compare = comparePredicates(w1, w2);
+				if(compare != 0) {
+					return compare;
+				}
+				return w1.getText().compareTo(w2.getText());
+			}
+		});
+		int start = 0;
+		while(start < sorted.size()) {
+			int end = start + 1;
+			while(end < sorted.size() && comparePredicates(sorted.get(start), sorted.get(end)) == 0) {
+				end++;
+			}
+			schedule(sorted.subList(start, end));
+			start = end;
+		}
+	}
+
+
+	/**
+	 * Records the execution of a rule (for all its classes).
+	 * @param rule  the rule that was executed
+	 * @param duration  the duration in nanoseconds
+	 * @param newTriples  the number of new triples
+	 */
+	public synchronized void record(CommandWrapper rule, long duration, long newTriples) {
+		String key = getKey(rule);
+		Profile profile = profiles.get(key);
+		if(profile == null) {
+			profile = new Profile();
+			profiles.put(key, profile);
+		}
+		if(profile.executions == 0) {
+			profile.cost = duration;
+			profile.triples = newTriples;
+		}
+		else {
+			profile.cost = ALPHA * duration + (1 - ALPHA) * profile.cost;
+			profile.triples = ALPHA * newTriples + (1 - ALPHA) * profile.triples;
+		}
+		profile.executions++;
+	}
+
+
+	/**
+	 * Saves the profiles to a file so that they can be loaded in a later run.
+	 * @param file  the file to write
+	 * @throws IOException  if the file could not be written
+	 */
+	public synchronized void save(File file) throws IOException {
+		DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+		try {
+			dos.writeInt(MAGIC);
+			dos.writeInt(VERSION);
+			dos.writeInt(profiles.size());
+			for(String key : profiles.keySet()) {
+				Profile profile = profiles.get(key);
+				byte[] bytes = key.getBytes("UTF-8");
+				dos.writeInt(bytes.length);
+				dos.write(bytes);
+				dos.writeInt(profile.executions);
+				dos.writeDouble(profile.cost);
+				dos.writeDouble(profile.triples);
+			}
+		}
+		finally {
+			dos.close();
+		}
+	}
+
+
+	// Assigns the ranks to rules that may run in any order
+	private void schedule(List<CommandWrapper> group) {
+		Map<CommandWrapper,Set<CommandWrapper>> producers = new HashMap<CommandWrapper,Set<CommandWrapper>>();
+		for(CommandWrapper consumer : group) {
+			Set<CommandWrapper> set = new HashSet<CommandWrapper>();
+			for(CommandWrapper producer : group) {
+				if(producer != consumer && produces(getDependencies(producer), getDependencies(consumer))) {
+					set.add(producer);
+				}
+			}
+			producers.put(consumer, set);
+		}
+
+		// Greedily pick the rule with the fewest unscheduled producers, then the cheapest
+		List<CommandWrapper> remaining = new LinkedList<CommandWrapper>(group);
+		while(!remaining.isEmpty()) {
+			CommandWrapper best = null;
+			int bestCount = 0;
+			double bestScore = 0;
+			for(CommandWrapper rule : remaining) {
+				int count = 0;
+				for(CommandWrapper producer : producers.get(rule)) {
+					if(!ranks.containsKey(producer)) {
+						count++;
+					}
+				}
+				double score = getScore(rule);
+				if(best == null || count < bestCount || (count == bestCount && score < bestScore)) {
+					best = rule;
+					bestCount = count;
+					bestScore = score;
+				}
+			}
+			ranks.put(best, ranks.size());
+			remaining.remove(best);
+		}
+	}
+
+
+	private static class Dependencies {
+
+		Set<String> reads = new HashSet<String>();
+
+		Set<String> writes = new HashSet<String>();
+	}
+
+
+	private static class Profile {
+
+		// The average duration in nanoseconds
+		double cost;
+
+		int executions;
+
+		// The average number of new triples
+		double triples;
+	}
+}
@@ -0,0 +1,36 @@
+package org.topbraid.spin.inference;
+
+import com.hp.hpl.jena.query.QueryExecException;
+
+
+/**
+ * Thrown from within query execution if a rule or an inference run has
+ * exceeded its InferenceBudget.
+ */
+public class BudgetExceededException extends QueryExecException {
+
+	private static final long serialVersionUID = 6472906537405219861L;
+
+	private boolean run;
+
+
+	/**
+	 * Creates a new BudgetExceededException.
+	 * @param message  a description of the budget that was exceeded
+	 * @param run  true if the budget of the whole run was exceeded
+	 */
+	public BudgetExceededException(String message, boolean run) {
+		super(message);
+		this.run = run;
+	}
+
+
+	/**
+	 * Checks whether the budget of the whole run (as opposed to the budget
+	 * of a single rule) has been exceeded.
+	 * @return true  if no further rules shall be executed
+	 */
+	public boolean isRunBudget() {
+		return run;
+	}
+}
@@ -0,0 +1,321 @@
+package org.topbraid.spin.inference;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+
+import com.hp.hpl.jena.graph.Factory;
+import com.hp.hpl.jena.graph.BulkUpdateHandler;
+import com.hp.hpl.jena.graph.Graph;
+import com.hp.hpl.jena.graph.Node;
+import com.hp.hpl.jena.graph.Triple;
+import com.hp.hpl.jena.graph.TripleMatch;
+import com.hp.hpl.jena.graph.impl.SimpleBulkUpdateHandler;
+import com.hp.hpl.jena.graph.impl.WrappedGraph;
+import com.hp.hpl.jena.rdf.model.Model;
+import com.hp.hpl.jena.rdf.model.ModelFactory;
+import com.hp.hpl.jena.sparql.core.BasicPattern;
+import com.hp.hpl.jena.sparql.engine.ExecutionContext;
+import com.hp.hpl.jena.sparql.engine.QueryIterator;
+import com.hp.hpl.jena.sparql.engine.binding.Binding;
+import com.hp.hpl.jena.sparql.engine.iterator.QueryIter1;
+import com.hp.hpl.jena.sparql.engine.main.StageGenerator;
+import com.hp.hpl.jena.util.IteratorCollection;
+import com.hp.hpl.jena.util.iterator.ExtendedIterator;
+import com.hp.hpl.jena.util.iterator.Filter;
+
+
+/**
+ * Counts the resources consumed by a rule execution (or a whole run) and
+ * throws a BudgetExceededException as soon as its InferenceBudget (or the
+ * budget of its parent) is exceeded.  The counting happens cooperatively
+ * from within query execution: a StageGenerator wraps each basic graph
+ * pattern so that each solution and each matched triple is counted, and the
+ * triples are counted while they are added to the CONSTRUCT Model or to the
+ * graphs of an UPDATE.
+ *
+ * ARQ's own means of cancellation cannot be used for this: QueryExecution
+ * has no timeouts in ARQ 2.8, and abort() only sets a flag that the running
+ * iterators of a query do not check, so an expensive basic graph pattern
+ * or a large CONSTRUCT template would still run to the end.  Counting in
+ * the iterators also covers UPDATE rules, which have no QueryExecution.
+ */
+class BudgetTracker {
+
+	// Check the clock only every so many matched triples
+	private final static int TIME_CHECK_INTERVAL = 256;
+
+	private InferenceBudget budget;
+
+	private long bytes;
+
+	private BudgetTracker parent;
+
+	private long solutions;
+
+	private long startTime = System.currentTimeMillis();
+
+	private int ticks;
+
+	private long triples;
+
+
+	/**
+	 * Creates a new BudgetTracker.
+	 * @param budget  the InferenceBudget (may be null for no limits)
+	 * @param parent  the (optional) tracker of the enclosing run
+	 */
+	BudgetTracker(InferenceBudget budget, BudgetTracker parent) {
+		this.budget = budget;
+		this.parent = parent;
+	}
+
+
+	void addSolution() {
+		solutions++;
+		if(budget != null && budget.getMaxSolutions() > 0 && solutions > budget.getMaxSolutions()) {
+			exceeded("solutions", budget.getMaxSolutions());
+		}
+		if(parent != null) {
+			parent.addSolution();
+		}
+	}
+
+
+	void addTriple(Triple triple) {
+		triples++;
+		bytes += estimateSize(triple.getSubject()) + estimateSize(triple.getPredicate()) + estimateSize(triple.getObject());
+		if(budget != null) {
+			if(budget.getMaxTriples() > 0 && triples > budget.getMaxTriples()) {
+				exceeded("triples", budget.getMaxTriples());
+			}
+			if(budget.getMaxBytes() > 0 && bytes > budget.getMaxBytes()) {
+				exceeded("bytes", budget.getMaxBytes());
+			}
+		}
+		if(parent != null) {
+			parent.addTriple(triple);
+		}
+	}
+
+
+	/**
+	 * Checks whether the time budget has been exceeded.
+	 */
+	void checkTime() {
+		if(budget != null && budget.getMaxTime() > 0 && System.currentTimeMillis() - startTime > budget.getMaxTime()) {
+			exceeded("time (ms)", budget.getMaxTime());
+		}
+		if(parent != null) {
+			parent.checkTime();
+		}
+	}
+
+
+	/**
+	 * Creates a Model that counts the triples added to it, to be used as
+	 * the target of QueryExecution.execConstruct.
+	 * @return a new Model
+	 */
+	Model createModel() {
+		return ModelFactory.createModelForGraph(guard(Factory.createGraphMem()));
+	}
+
+
+	/**
+	 * Creates a StageGenerator that counts the solutions and matched
+	 * triples of each basic graph pattern before delegating to another
+	 * StageGenerator.
+	 * @param base  the StageGenerator to delegate to
+	 * @return a new StageGenerator
+	 */
+	StageGenerator createStageGenerator(final StageGenerator base) {
+		return new StageGenerator() {
+			public QueryIterator execute(BasicPattern pattern, QueryIterator input, ExecutionContext execCxt) {
+				ExecutionContext cxt = new ExecutionContext(execCxt, guard(execCxt.getActiveGraph()));
+				return new QueryIterBudget(base.execute(pattern, input, cxt), cxt);
+			}
+		};
+	}
+
+
+	// A rough estimate of the memory needed for a Node
+	private static long estimateSize(Node node) {
+		if(node.isURI()) {
+			return 40 + 2 * node.getURI().length();
+		}
+		else if(node.isLiteral()) {
+			return 80 + 2 * node.getLiteralLexicalForm().length();
+		}
+		else {
+			return 40;
+		}
+	}
+
+
+	private void exceeded(String resource, long max) {
+		throw new BudgetExceededException("Exceeded " + (parent == null ? "run" : "rule") + " budget for " + resource + ": " + max, parent == null);
+	}
+
+
+	/**
+	 * Wraps a Graph so that all matched and added triples are counted.
+	 * @param graph  the Graph to wrap
+	 * @return the wrapped Graph
+	 */
+	Graph guard(Graph graph) {
+		return new BudgetGraph(graph);
+	}
+
+
+	void tick() {
+		if(++ticks % TIME_CHECK_INTERVAL == 0) {
+			checkTime();
+		}
+	}
+
+
+	private class BudgetGraph extends WrappedGraph {
+
+		private BulkUpdateHandler handler;
+
+
+		BudgetGraph(Graph base) {
+			super(base);
+		}
+
+
+		Graph getWrapped() {
+			return base;
+		}
+
+
+		@Override
+		public void add(Triple t) {
+			addTriple(t);
+			super.add(t);
+		}
+
+
+		@Override
+		public ExtendedIterator<Triple> find(Node s, Node p, Node o) {
+			return guard(super.find(s, p, o));
+		}
+
+
+		@Override
+		public ExtendedIterator<Triple> find(TripleMatch m) {
+			return guard(super.find(m));
+		}
+
+
+		@Override
+		public BulkUpdateHandler getBulkUpdateHandler() {
+			if(handler == null) {
+				handler = new BudgetBulkUpdateHandler(this);
+			}
+			return handler;
+		}
+
+
+		private ExtendedIterator<Triple> guard(ExtendedIterator<Triple> it) {
+			tick();
+			return it.filterKeep(new Filter<Triple>() {
+				@Override
+				public boolean accept(Triple t) {
+					tick();
+					return true;
+				}
+			});
+		}
+
+
+		@Override
+		public void performAdd(Triple t) {
+			addTriple(t);
+			super.performAdd(t);
+		}
+	}
+
+
+	/**
+	 * Counts the added triples and then passes bulk updates on to the
+	 * BulkUpdateHandler of the wrapped Graph, so that it can handle them
+	 * in one go (e.g. ControlledUpdateGraph).
+	 */
+	private class BudgetBulkUpdateHandler extends SimpleBulkUpdateHandler {
+
+		private BudgetGraph graph;
+
+
+		BudgetBulkUpdateHandler(BudgetGraph graph) {
+			super(graph);
+			this.graph = graph;
+		}
+
+
+		@Override
+		public void add(Triple[] triples) {
+			add(Arrays.asList(triples));
+		}
+
+
+		@Override
+		public void add(List<Triple> triples) {
+			for(Triple triple : triples) {
+				addTriple(triple);
+			}
+			graph.getWrapped().getBulkUpdateHandler().add(triples);
+		}
+
+
+		@Override
+		public void add(Iterator<Triple> it) {
+			add(IteratorCollection.iteratorToList(it));
+		}
+
+
+		@Override
+		public void delete(Triple[] triples) {
+			delete(Arrays.asList(triples));
+		}
+
+
+		@Override
+		public void delete(List<Triple> triples) {
+			graph.getWrapped().getBulkUpdateHandler().delete(triples);
+		}
+
+
+		@Override
+		public void delete(Iterator<Triple> it) {
+			delete(IteratorCollection.iteratorToList(it));
+		}
+	}
+
+
+	private class QueryIterBudget extends QueryIter1 {
+
+		QueryIterBudget(QueryIterator input, ExecutionContext execCxt) {
+			super(input, execCxt);
+		}
+
+
+		@Override
+		protected void closeSubIterator() {
+		}
+
+
+		@Override
+		protected boolean hasNextBinding() {
+			return getInput().hasNext();
+		}
+
+
+		@Override
+		protected Binding moveToNextBinding() {
+			addSolution();
+			return getInput().nextBinding();
+		}
+	}
+}
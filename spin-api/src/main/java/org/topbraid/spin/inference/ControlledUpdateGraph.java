@@ -1,6 +1,9 @@
 package org.topbraid.spin.inference;
 
+import java.util.Arrays;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Set;
 
 import com.hp.hpl.jena.graph.BulkUpdateHandler;
@@ -16,10 +19,13 @@ import com.hp.hpl.jena.graph.TripleMatch;
 import com.hp.hpl.jena.graph.impl.GraphWithPerform;
 import com.hp.hpl.jena.graph.impl.SimpleBulkUpdateHandler;
 import com.hp.hpl.jena.graph.query.QueryHandler;
+import com.hp.hpl.jena.mem.GraphMemBase;
 import com.hp.hpl.jena.shared.AddDeniedException;
 import com.hp.hpl.jena.shared.DeleteDeniedException;
 import com.hp.hpl.jena.shared.PrefixMapping;
 import com.hp.hpl.jena.util.iterator.ExtendedIterator;
+import com.hp.hpl.jena.util.IteratorCollection;
+import com.hp.hpl.jena.vocabulary.RDF;
 
 
 /**
@@ -27,28 +33,52 @@ import com.hp.hpl.jena.util.iterator.ExtendedIterator;
  * support UPDATE rules.
  * The Graph wraps another delegate Graph, and delegates most of
  * its operations to that.
- * However, it records which of the triples have actually been
+ * However, it records whether any triple has actually been
  * added or deleted - the usual Graph policy is to perform those
  * operations regardless of whether a triple was already there.
  * This makes it possible to determine whether further iterations
- * are needed, and which new rdf:type triples have been added. 
+ * are needed, and (if requested) which new rdf:type triples have
+ * been added.
+ * 
+ * To keep the overhead low for updates with many triples, the
+ * Graph stops checking the delegate as soon as it knows that it
+ * has been changed, and only records the rdf:type triples.  For
+ * in-memory delegates, bulk updates compare the size of the
+ * delegate before and after the update instead of checking each
+ * triple, and the triples are passed to the BulkUpdateHandler of
+ * the delegate in one go.
+ * 
+ * The size comparison is only used if the delegate is a GraphMemBase
+ * itself.  Union graphs such as MultiUnion (which is also the graph of
+ * an OntModel) add new triples to their base graph only, even if
+ * another sub-graph already contains them, so the size of neither
+ * graph tells whether the union has changed.  Such delegates (which
+ * are common during inferencing) are checked triple by triple with
+ * contains, until the first change has been found.
  * 
  * @author Holger Knublauch
  */
 class ControlledUpdateGraph implements GraphWithPerform {
 	
 	private BulkUpdateHandler buh;
+	
+	private boolean changed;
 
 	private Graph delegate;
 	
-	private Set<Triple> addedTriples = new HashSet<Triple>();
+	private Set<Triple> addedTypeTriples = new HashSet<Triple>();
 	
-	private Set<Triple> deletedTriples = new HashSet<Triple>();
+	// True if the size of the delegate can be used to detect changes
+	private boolean sizeStamp;
 	
+	private boolean trackTypes;
 	
-	ControlledUpdateGraph(Graph delegate) {
+	
+	ControlledUpdateGraph(Graph delegate, boolean trackTypes) {
 		this.delegate = delegate;
-		this.buh = new SimpleBulkUpdateHandler(this);
+		this.trackTypes = trackTypes;
+		this.sizeStamp = delegate instanceof GraphMemBase;
+		this.buh = new ControlledBulkUpdateHandler(this);
 	}
 
 	
@@ -155,28 +185,130 @@ class ControlledUpdateGraph implements GraphWithPerform {
 
 	@Override
 	public void performAdd(Triple t) {
-		if(!delegate.contains(t)) {
-			addedTriples.add(t);
-		}
+		checkAdd(t, false);
 		delegate.add(t);
 	}
 
 
 	@Override
 	public void performDelete(Triple t) {
-		if(delegate.contains(t)) {
-			deletedTriples.add(t);
-		}
+		checkDelete(t, false);
 		delegate.delete(t);
 	}
 	
 	
-	public Iterable<Triple> getAddedTriples() {
-		return addedTriples;
+	private void addAll(List<Triple> triples) {
+		boolean stamp = sizeStamp && !changed;
+		for(Triple t : triples) {
+			checkAdd(t, stamp);
+		}
+		int before = stamp ? delegate.size() : 0;
+		delegate.getBulkUpdateHandler().add(triples);
+		if(stamp && delegate.size() != before) {
+			changed = true;
+		}
+	}
+	
+	
+	// Checks whether t is new, unless this is already known to be changed or stamp is true
+	private void checkAdd(Triple t, boolean stamp) {
+		if(trackTypes && RDF.type.asNode().equals(t.getPredicate()) && !t.getObject().isLiteral()) {
+			if(!delegate.contains(t)) {
+				changed = true;
+				addedTypeTriples.add(t);
+			}
+		}
+		else if(!changed && !stamp && !delegate.contains(t)) {
+			changed = true;
+		}
+	}
+	
+	
+	private void checkDelete(Triple t, boolean stamp) {
+		if(!changed && !stamp && delegate.contains(t)) {
+			changed = true;
+		}
+	}
+	
+	
+	private void deleteAll(List<Triple> triples) {
+		boolean stamp = sizeStamp && !changed;
+		if(!stamp) {
+			for(Triple t : triples) {
+				checkDelete(t, false);
+			}
+		}
+		int before = stamp ? delegate.size() : 0;
+		delegate.getBulkUpdateHandler().delete(triples);
+		if(stamp && delegate.size() != before) {
+			changed = true;
+		}
+	}
+	
+	
+	/**
+	 * Gets the rdf:type triples that have been added.  This is only recorded
+	 * if the Graph has been created with trackTypes = true.
+	 * @return the new rdf:type triples
+	 */
+	public Iterable<Triple> getAddedTypeTriples() {
+		return addedTypeTriples;
 	}
 	
 	
 	public boolean isChanged() {
-		return !addedTriples.isEmpty() || !deletedTriples.isEmpty(); 
+		return changed; 
+	}
+	
+	
+	/**
+	 * Passes bulk updates (as used by ARQ's INSERT and DELETE) to the
+	 * BulkUpdateHandler of the delegate, which also notifies the listeners.
+	 */
+	private static class ControlledBulkUpdateHandler extends SimpleBulkUpdateHandler {
+		
+		private ControlledUpdateGraph cug;
+		
+		
+		ControlledBulkUpdateHandler(ControlledUpdateGraph cug) {
+			super(cug);
+			this.cug = cug;
+		}
+
+
+		@Override
+		public void add(Triple[] triples) {
+			add(Arrays.asList(triples));
+		}
+
+
+		@Override
+		public void add(List<Triple> triples) {
+			cug.addAll(triples);
+		}
+
+
+		@Override
+		public void add(Iterator<Triple> it) {
+			cug.addAll(IteratorCollection.iteratorToList(it));
+		}
+
+
+		@Override
+		public void delete(Triple[] triples) {
+			delete(Arrays.asList(triples));
+		}
+
+
+		@Override
+		public void delete(List<Triple> triples) {
+			cug.deleteAll(triples);
+		}
+
+
+		@Override
+		public void delete(Iterator<Triple> it) {
+			cug.deleteAll(IteratorCollection.iteratorToList(it));
+		}
 	}
 }
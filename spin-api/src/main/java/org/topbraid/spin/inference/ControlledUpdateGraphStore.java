@@ -19,6 +19,8 @@ import com.hp.hpl.jena.update.GraphStore;
 /**
  * A GraphStore that wraps a given Dataset, so that each updateable
  * graph is wrapped with a ControlledUpdateGraph instead of the default.
+ * Note that the cheaper change detection of ControlledUpdateGraph
+ * only applies to in-memory graphs, not to union graphs.
  * 
  * @author Holger Knublauch
  */
@@ -28,11 +30,19 @@ class ControlledUpdateGraphStore implements GraphStore {
 	
 	private Dataset dataset;
 	
+	private BudgetTracker tracker;
 	
-	ControlledUpdateGraphStore(Dataset dataset, Iterable<Graph> controlledGraphs) {
+	
+	/**
+	 * Creates a new ControlledUpdateGraphStore.
+	 * @param dataset  the Dataset to wrap
+	 * @param controlledGraphs  the Graphs that shall be controlled
+	 * @param trackTypes  true to record the new rdf:type triples
+	 */
+	ControlledUpdateGraphStore(Dataset dataset, Iterable<Graph> controlledGraphs, boolean trackTypes) {
 		this.dataset = dataset;
 		for(Graph graph : controlledGraphs) {
-			ControlledUpdateGraph cug = new ControlledUpdateGraph(graph);
+			ControlledUpdateGraph cug = new ControlledUpdateGraph(graph, trackTypes);
 			cugs.put(graph, cug);
 		}
 	}
@@ -40,11 +50,12 @@ class ControlledUpdateGraphStore implements GraphStore {
 	
 	private Graph getControlledUpdateGraph(Graph graph) {
 		Graph cug = cugs.get(graph);
-		if(cug != null) {
-			return cug;
+		Graph result = cug != null ? cug : graph;
+		if(tracker != null) {
+			return tracker.guard(result);
 		}
 		else {
-			return graph;
+			return result;
 		}
 	}
 	
@@ -99,6 +110,16 @@ class ControlledUpdateGraphStore implements GraphStore {
 	}
 
 
+	/**
+	 * Installs a BudgetTracker that counts the triples that are matched
+	 * and inserted by the update.
+	 * @param tracker  the BudgetTracker or null
+	 */
+	void setBudgetTracker(BudgetTracker tracker) {
+		this.tracker = tracker;
+	}
+
+
 	@Override
 	public Iterator<Node> listGraphNodes() {
 		List<Node> results = new LinkedList<Node>();
@@ -0,0 +1,51 @@
+package org.topbraid.spin.inference;
+
+import java.util.Map;
+
+import com.hp.hpl.jena.rdf.model.Model;
+import com.hp.hpl.jena.shared.JenaException;
+
+
+/**
+ * Thrown by SPINDatasetInferences if the inferences of one or more named
+ * graphs have failed.  The results of the other named graphs are still
+ * available (and have already been written back if requested).
+ */
+public class DatasetInferencesException extends JenaException {
+
+	private static final long serialVersionUID = -3820559427362095183L;
+
+	private Map<String,Throwable> failures;
+
+	private Map<String,Model> results;
+
+
+	/**
+	 * Creates a new DatasetInferencesException.
+	 * @param failures  the exceptions of the failed named graphs (not empty)
+	 * @param results  the inferred triples of the successful named graphs
+	 */
+	public DatasetInferencesException(Map<String,Throwable> failures, Map<String,Model> results) {
+		super("Inferences failed for " + failures.size() + " named graph(s): " + failures.keySet(), failures.values().iterator().next());
+		this.failures = failures;
+		this.results = results;
+	}
+
+
+	/**
+	 * Gets the exceptions of the failed named graphs.
+	 * @return a Map from the names of the named graphs to their exceptions
+	 */
+	public Map<String,Throwable> getFailures() {
+		return failures;
+	}
+
+
+	/**
+	 * Gets the inferred triples of the named graphs that did not fail.
+	 * @return a Map from the names of the named graphs to the inferred triples
+	 */
+	public Map<String,Model> getResults() {
+		return results;
+	}
+}
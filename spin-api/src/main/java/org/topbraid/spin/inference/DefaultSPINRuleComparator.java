@@ -51,6 +51,23 @@ public class DefaultSPINRuleComparator implements SPINRuleComparator {
 	
 
 	public int compare(CommandWrapper w1, CommandWrapper w2) {
+		int compare = comparePredicates(w1, w2);
+		if(compare != 0) {
+			return compare;
+		}
+		return w1.getText().compareTo(w2.getText());
+	}
+	
+	
+	/**
+	 * Compares two rules only by the position of their rule properties in
+	 * the spin:nextRuleProperty order.
+	 * @param w1  the first rule
+	 * @param w2  the second rule
+	 * @return a negative value if w1 must run first, a positive value if w2
+	 *         must run first, or 0 if the order is unconstrained
+	 */
+	protected int comparePredicates(CommandWrapper w1, CommandWrapper w2) {
 		if(properties.size() > 1) {
 			Property p1 = w1.getStatement().getPredicate();
 			Property p2 = w2.getStatement().getPredicate();
@@ -63,7 +80,6 @@ public class DefaultSPINRuleComparator implements SPINRuleComparator {
 				}
 			}
 		}
-		
-		return w1.getText().compareTo(w2.getText());
+		return 0;
 	}
 }
@@ -0,0 +1,54 @@
+package org.topbraid.spin.inference;
+
+
+/**
+ * Limits the resources that a single rule execution or a whole inference
+ * run may consume.  A value of 0 means that the corresponding resource is
+ * not limited.  See SPINInferences.setBudgets.
+ */
+public class InferenceBudget {
+
+	private long maxBytes;
+
+	private long maxSolutions;
+
+	private long maxTime;
+
+	private long maxTriples;
+
+
+	/**
+	 * Creates a new InferenceBudget.
+	 * @param maxTime  the maximum wall time in milliseconds
+	 * @param maxSolutions  the maximum number of solutions of the WHERE clauses
+	 *                      (counted for each basic graph pattern)
+	 * @param maxTriples  the maximum number of constructed or inserted triples
+	 * @param maxBytes  the maximum estimated size of the constructed triples
+	 */
+	public InferenceBudget(long maxTime, long maxSolutions, long maxTriples, long maxBytes) {
+		this.maxTime = maxTime;
+		this.maxSolutions = maxSolutions;
+		this.maxTriples = maxTriples;
+		this.maxBytes = maxBytes;
+	}
+
+
+	public long getMaxBytes() {
+		return maxBytes;
+	}
+
+
+	public long getMaxSolutions() {
+		return maxSolutions;
+	}
+
+
+	public long getMaxTime() {
+		return maxTime;
+	}
+
+
+	public long getMaxTriples() {
+		return maxTriples;
+	}
+}
@@ -0,0 +1,347 @@
+package org.topbraid.spin.inference;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+import org.topbraid.spin.util.AbstractGraphListener;
+import org.topbraid.spin.util.GraphSnapshots;
+
+import com.hp.hpl.jena.graph.Graph;
+import com.hp.hpl.jena.graph.GraphListener;
+import com.hp.hpl.jena.graph.Node;
+import com.hp.hpl.jena.graph.Triple;
+import com.hp.hpl.jena.util.iterator.ExtendedIterator;
+
+
+/**
+ * Persists the progress of a long-running SPINInferences.run into a local
+ * file, so that a run that has been interrupted (e.g. because the JVM died)
+ * can be resumed from the last checkpoint, and so that the inferences of a
+ * finished run can be used to warm-start later runs over the same data.
+ *
+ * The file is append-only: after a header with the fingerprint of the base
+ * data, each checkpoint appends a record with the number of completed
+ * iterations, the Nodes that have not been written before and the triples
+ * that have been inferred since the previous checkpoint (the delta), using
+ * the binary Node encoding of GraphSnapshots and index triples into the
+ * (growing) node table.  Each record carries its length and a checksum, so
+ * that a record that has only been partially written is ignored (and
+ * truncated) when the file is opened again.
+ *
+ * Only additions to the inferred triples are recorded.  A checkpoint is only
+ * used if its fingerprint matches the base data; otherwise it is discarded.
+ */
+public class InferenceCheckpoint {
+
+	public final static long DEFAULT_INTERVAL = 60000;
+
+	private final static int MAGIC = 0x5350434B; // "SPCK"
+
+	private final static int VERSION = 1;
+
+	private final static byte CHECKPOINT = 1;
+
+	private final static byte COMPLETE = 2;
+
+	private boolean complete;
+
+	private File file;
+
+	private Graph graph;
+
+	private Map<Node,Integer> indices = new HashMap<Node,Integer>();
+
+	private long interval = DEFAULT_INTERVAL;
+
+	private int iteration;
+
+	private long lastTime = System.currentTimeMillis();
+
+	private GraphListener listener;
+
+	private List<Triple> pending = new ArrayList<Triple>();
+
+	private RandomAccessFile raf;
+
+	private List<Triple> recovered = new ArrayList<Triple>();
+
+
+	/**
+	 * Opens a checkpoint file, recovering the inferences of a previous
+	 * (interrupted or finished) run if the file exists and has been created
+	 * for the same base data.  Otherwise a new file is started.
+	 * @param file  the checkpoint file
+	 * @param fingerprint  the fingerprint of the base data (see getFingerprint)
+	 * @throws IOException  if the file could not be read or created
+	 */
+	public InferenceCheckpoint(File file, String fingerprint) throws IOException {
+		this.file = file;
+		this.raf = new RandomAccessFile(file, "rw");
+		boolean valid = false;
+		if(raf.length() > 0) {
+			try {
+				valid = raf.readInt() == MAGIC && raf.readInt() == VERSION && fingerprint.equals(raf.readUTF());
+			}
+			catch(IOException ex) {
+				// Invalid header: start a new file
+			}
+		}
+		if(valid) {
+			recover();
+		}
+		else {
+			raf.setLength(0);
+			raf.writeInt(MAGIC);
+			raf.writeInt(VERSION);
+			raf.writeUTF(fingerprint);
+			raf.getFD().sync();
+		}
+	}
+
+
+	/**
+	 * Loads the recovered triples (if any) into the Graph that will hold the
+	 * inferred triples and then starts recording all triples that are added
+	 * to that Graph.
+	 * @param newTriples  the Graph of the inferred triples
+	 * @return the recovered triples
+	 */
+	public List<Triple> attach(Graph newTriples) {
+		if(graph != null) {
+			throw new IllegalStateException("Checkpoint is already attached to a graph");
+		}
+		List<Triple> result = recovered;
+		for(Triple triple : result) {
+			newTriples.add(triple);
+		}
+		recovered = new ArrayList<Triple>();
+		listener = new AbstractGraphListener() {
+
+			public void notifyAddTriple(Graph g, Triple t) {
+				pending.add(t);
+			}
+
+			public void notifyDeleteTriple(Graph g, Triple t) {
+			}
+
+			@Override
+			protected void notifyRemoveAll(Graph source, Triple pattern) {
+			}
+		};
+		newTriples.getEventManager().register(listener);
+		graph = newTriples;
+		return result;
+	}
+
+
+	/**
+	 * Writes a checkpoint if the checkpoint interval has passed since the
+	 * previous checkpoint and if there is anything new to record.
+	 * @param completedIterations  the number of iterations that have been
+	 *                             completed so far
+	 * @throws IOException  if writing failed
+	 */
+	public void checkpoint(int completedIterations) throws IOException {
+		if(System.currentTimeMillis() - lastTime >= interval &&
+				(!pending.isEmpty() || completedIterations != iteration)) {
+			write(CHECKPOINT, completedIterations);
+		}
+	}
+
+
+	/**
+	 * Stops recording and closes the file.  Recording is stopped even if
+	 * closing the file fails.
+	 * @throws IOException  if the file could not be closed
+	 */
+	public void close() throws IOException {
+		if(graph != null) {
+			graph.getEventManager().unregister(listener);
+			graph = null;
+		}
+		raf.close();
+	}
+
+
+	/**
+	 * Writes a final checkpoint that marks the run as complete.
+	 * @param iterations  the total number of iterations
+	 * @throws IOException  if writing failed
+	 */
+	public void complete(int iterations) throws IOException {
+		write(COMPLETE, iterations);
+	}
+
+
+	/**
+	 * Gets the File of this checkpoint.
+	 * @return the File
+	 */
+	public File getFile() {
+		return file;
+	}
+
+
+	/**
+	 * Computes a simple fingerprint of a Graph from its size and the hash codes
+	 * of its triples, independent of the order of the triples.  Note that
+	 * blank nodes get new ids each time a file is parsed, so for data with
+	 * blank nodes a hash of the source document (see GraphSnapshots.hash)
+	 * should be used instead.
+	 * @param graph  the Graph to get the fingerprint of
+	 * @return the fingerprint
+	 */
+	public static String getFingerprint(Graph graph) {
+		long sum = 0;
+		int size = 0;
+		ExtendedIterator<Triple> it = graph.find(Node.ANY, Node.ANY, Node.ANY);
+		while(it.hasNext()) {
+			sum += it.next().hashCode();
+			size++;
+		}
+		return size + "-" + Long.toHexString(sum);
+	}
+
+
+	/**
+	 * Gets the number of completed iterations of the last checkpoint.
+	 * @return the number of iterations
+	 */
+	public int getIteration() {
+		return iteration;
+	}
+
+
+	/**
+	 * Checks whether the last checkpoint has marked the run as complete,
+	 * i.e. whether the recovered triples are a full materialization.
+	 * @return true  if complete
+	 */
+	public boolean isComplete() {
+		return complete;
+	}
+
+
+	// Reads all complete records and truncates a partially written record
+	private void recover() throws IOException {
+		List<Node> nodes = new ArrayList<Node>();
+		long length = raf.length();
+		long position = raf.getFilePointer();
+		while(position + 4 <= length) {
+			int size = raf.readInt();
+			if(size < 0 || position + 4 + size + 8 > length) {
+				break;
+			}
+			byte[] bytes = new byte[size];
+			raf.readFully(bytes);
+			CRC32 crc = new CRC32();
+			crc.update(bytes);
+			if(crc.getValue() != raf.readLong()) {
+				break;
+			}
+			ByteBuffer buffer = ByteBuffer.wrap(bytes);
+			byte type = buffer.get();
+			iteration = buffer.getInt();
+			complete = type == COMPLETE;
+			int nodeCount = buffer.getInt();
+			for(int i = 0; i < nodeCount; i++) {
+				Node node = GraphSnapshots.readNode(buffer, file);
+				indices.put(node, nodes.size());
+				nodes.add(node);
+			}
+			int tripleCount = buffer.getInt();
+			for(int i = 0; i < tripleCount; i++) {
+				Node subject = nodes.get(buffer.getInt());
+				Node predicate = nodes.get(buffer.getInt());
+				Node object = nodes.get(buffer.getInt());
+				recovered.add(Triple.create(subject, predicate, object));
+			}
+			position = raf.getFilePointer();
+		}
+		raf.setLength(position);
+		raf.seek(position);
+	}
+
+
+	/**
+	 * Sets the minimum time between two checkpoints.
+	 * @param millis  the interval in milliseconds (0 to checkpoint whenever possible)
+	 */
+	public void setInterval(long millis) {
+		this.interval = millis;
+	}
+
+
+	private void write(byte type, int completedIterations) throws IOException {
+
+		// Index the new nodes locally, so that a failed write leaves no trace
+		Map<Node,Integer> newIndices = new HashMap<Node,Integer>();
+		List<Node> newNodes = new ArrayList<Node>();
+		int[] ids = new int[pending.size() * 3];
+		int i = 0;
+		for(Triple triple : pending) {
+			ids[i++] = index(triple.getSubject(), newIndices, newNodes);
+			ids[i++] = index(triple.getPredicate(), newIndices, newNodes);
+			ids[i++] = index(triple.getObject(), newIndices, newNodes);
+		}
+
+		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		DataOutputStream dos = new DataOutputStream(bos);
+		dos.writeByte(type);
+		dos.writeInt(completedIterations);
+		dos.writeInt(newNodes.size());
+		for(Node node : newNodes) {
+			GraphSnapshots.writeNode(dos, node);
+		}
+		dos.writeInt(pending.size());
+		for(int id : ids) {
+			dos.writeInt(id);
+		}
+		dos.flush();
+		byte[] bytes = bos.toByteArray();
+		CRC32 crc = new CRC32();
+		crc.update(bytes);
+
+		long position = raf.getFilePointer();
+		try {
+			raf.writeInt(bytes.length);
+			raf.write(bytes);
+			raf.writeLong(crc.getValue());
+			raf.getFD().sync();
+		}
+		catch(IOException ex) {
+			raf.setLength(position);
+			raf.seek(position);
+			throw ex;
+		}
+
+		indices.putAll(newIndices);
+		pending.clear();
+		iteration = completedIterations;
+		complete = type == COMPLETE;
+		lastTime = System.currentTimeMillis();
+	}
+
+
+	private int index(Node node, Map<Node,Integer> newIndices, List<Node> newNodes) {
+		Integer index = indices.get(node);
+		if(index == null) {
+			index = newIndices.get(node);
+			if(index == null) {
+				index = indices.size() + newNodes.size();
+				newIndices.put(node, index);
+				newNodes.add(node);
+			}
+		}
+		return index;
+	}
+}
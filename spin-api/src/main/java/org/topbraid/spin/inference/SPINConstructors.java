@@ -300,20 +300,18 @@ public class SPINConstructors {
 					}
 				}
 				else if(commandWrapper instanceof UpdateWrapper) {
-					Update update = ((UpdateWrapper)commandWrapper).getUpdate();
+					UpdateWrapper updateWrapper = (UpdateWrapper) commandWrapper;
+					Update update = updateWrapper.getUpdate();
 					Dataset dataset = ARQFactory.get().getDataset(queryModel);
-					Collection<Graph> updateGraphs = UpdateUtil.getUpdatedGraphs(update, dataset, initialBindings);
-					ControlledUpdateGraphStore cugs = new ControlledUpdateGraphStore(dataset, updateGraphs);
+					Collection<Graph> updateGraphs = UpdateUtil.getUpdatedGraphs(updateWrapper, dataset, initialBindings);
+					ControlledUpdateGraphStore cugs = new ControlledUpdateGraphStore(dataset, updateGraphs, true);
 					UpdateProcessor up = UpdateExecutionFactory.create(update, cugs, bindings);
 					up.execute();
 					for(ControlledUpdateGraph cug : cugs.getControlledUpdateGraphs()) {
-						for(Triple triple : cug.getAddedTriples()) {
-							Statement rs = queryModel.asStatement(triple);
-							if(RDF.type.equals(rs.getPredicate())) {
-								Resource subject = rs.getSubject();
-								if(!newResources.contains(subject)) {
-									newResources.add(subject);
-								}
+						for(Triple triple : cug.getAddedTypeTriples()) {
+							Resource subject = (Resource) queryModel.asRDFNode(triple.getSubject());
+							if(!newResources.contains(subject)) {
+								newResources.add(subject);
 							}
 						}
 					}
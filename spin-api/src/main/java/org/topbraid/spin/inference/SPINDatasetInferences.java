@@ -0,0 +1,246 @@
+package org.topbraid.spin.inference;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.ListIterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.topbraid.base.progress.ProgressMonitor;
+import org.topbraid.spin.statistics.SPINStatistics;
+import org.topbraid.spin.util.CommandWrapper;
+import org.topbraid.spin.util.QueryWrapper;
+import org.topbraid.spin.util.SPINQueryFinder;
+import org.topbraid.spin.util.UpdateWrapper;
+import org.topbraid.spin.vocabulary.SPIN;
+
+import com.hp.hpl.jena.graph.Graph;
+import com.hp.hpl.jena.graph.compose.MultiUnion;
+import com.hp.hpl.jena.query.DataSource;
+import com.hp.hpl.jena.query.Dataset;
+import com.hp.hpl.jena.rdf.model.Model;
+import com.hp.hpl.jena.rdf.model.ModelFactory;
+import com.hp.hpl.jena.rdf.model.Property;
+import com.hp.hpl.jena.rdf.model.RDFNode;
+import com.hp.hpl.jena.rdf.model.Resource;
+import com.hp.hpl.jena.shared.ReificationStyle;
+import com.hp.hpl.jena.update.Update;
+import com.hp.hpl.jena.update.UpdateFactory;
+
+
+/**
+ * Runs SPIN inferences separately on each named graph of a Dataset, where
+ * all named graphs share the same schema (with the rules).  Each named graph
+ * is a partition that is queried as the union of the schema, the named graph
+ * itself and its inferred triples, and the partitions are processed in
+ * parallel by a pool of worker threads.
+ *
+ * The rules are collected only once per thread and then shared by all
+ * partitions that the thread processes, so that getClass2QueryMap does not
+ * need to be repeated for each named graph.  Neither the CommandWrappers nor
+ * the ARQ Query and Update objects (which are cached by ARQFactory and
+ * lazily modified during execution) nor the schema Model are safe to share
+ * between threads, so each thread works on its own copy of the schema triples
+ * and of the rules.  Apart from rules that are inferred at run time, the
+ * schema must therefore not change while this object is in use, and it must
+ * not be modified during a run.
+ */
+public class SPINDatasetInferences {
+
+	private Property rulePredicate;
+
+	private ThreadLocal<Rules> rules = new ThreadLocal<Rules>() {
+		@Override
+		protected Rules initialValue() {
+			return new Rules();
+		}
+	};
+
+	private Model schema;
+
+	private Set<Object> validFunctionSources;
+
+
+	/**
+	 * Creates a new SPINDatasetInferences, collecting the rules and
+	 * constructors from a given schema for the calling thread.
+	 * @param schema  the schema Model including the rules (and imports)
+	 * @param rulePredicate  the rule predicate (spin:rule or a sub-property thereof)
+	 * @param validFunctionSources  the valid function sources (see SPINModuleRegistry)
+	 */
+	public SPINDatasetInferences(Model schema, Property rulePredicate, Set<Object> validFunctionSources) {
+		this.schema = schema;
+		this.rulePredicate = rulePredicate;
+		this.validFunctionSources = validFunctionSources;
+		rules.get();
+	}
+
+
+	/**
+	 * Runs the rules on a single partition.  This method may be called by
+	 * multiple threads at the same time.
+	 * @param data  the data of the partition (without the schema)
+	 * @param statistics  an optional (synchronized) List to add statistics to
+	 * @param monitor  an optional ProgressMonitor (only used for cancelation)
+	 * @return a new Model with the inferred triples
+	 */
+	public Model run(Model data, List<SPINStatistics> statistics, ProgressMonitor monitor) {
+		Rules r = rules.get();
+		Model inferred = ModelFactory.createDefaultModel(ReificationStyle.Minimal);
+		MultiUnion union = new MultiUnion(new Graph[] { data.getGraph(), inferred.getGraph(), r.schema.getGraph() });
+		Model queryModel = ModelFactory.createModelForGraph(union);
+
+		// Each partition may add inferred rules to its copy of the maps
+		Map<Resource,List<CommandWrapper>> queries = new HashMap<Resource,List<CommandWrapper>>();
+		for(Resource cls : r.class2Query.keySet()) {
+			queries.put(cls, new ArrayList<CommandWrapper>(r.class2Query.get(cls)));
+		}
+		Map<CommandWrapper,Map<String,RDFNode>> bindings = new HashMap<CommandWrapper,Map<String,RDFNode>>(r.templateBindings);
+
+		SPINInferences.run(queryModel, inferred, queries, r.class2Constructor, bindings, null, statistics, false, r.rulePredicate, r.comparator, monitor, validFunctionSources);
+		return inferred;
+	}
+
+
+	/**
+	 * Runs the rules on all named graphs of a Dataset, using a given number of
+	 * worker threads.  If the Dataset is a DataSource and an inferences suffix
+	 * is provided, then the inferred triples of each named graph are written
+	 * back into the named graph with the name of the graph plus the suffix,
+	 * replacing any previous content.  Named graphs that end with the suffix
+	 * are not treated as partitions.  The default graph is ignored.
+	 * If the inferences of some named graphs fail, then the results of the
+	 * other named graphs are still written back, and a
+	 * DatasetInferencesException with all failures is thrown at the end.
+	 * @param dataset  the Dataset to run the inferences on
+	 * @param threads  the number of worker threads
+	 * @param inferencesSuffix  the suffix of the inference graphs or null
+	 * @param statistics  an optional List to add statistics to
+	 * @param monitor  an optional ProgressMonitor (only used for cancelation)
+	 * @return a Map from the names of the named graphs to the inferred triples
+	 * @throws DatasetInferencesException  if any named graph has failed
+	 */
+	public Map<String,Model> run(final Dataset dataset, int threads, String inferencesSuffix, List<SPINStatistics> statistics, final ProgressMonitor monitor) {
+		if(threads < 1) {
+			throw new IllegalArgumentException("At least one thread is needed");
+		}
+		final List<SPINStatistics> stats = statistics != null ? Collections.synchronizedList(statistics) : null;
+		Map<String,Future<Model>> futures = new LinkedHashMap<String,Future<Model>>();
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		try {
+			for(Iterator<String> names = dataset.listNames(); names.hasNext(); ) {
+				String name = names.next();
+				if(inferencesSuffix == null || !name.endsWith(inferencesSuffix)) {
+					final Model data = dataset.getNamedModel(name);
+					futures.put(name, executor.submit(new Callable<Model>() {
+						public Model call() throws Exception {
+							if(monitor != null && monitor.isCanceled()) {
+								return null;
+							}
+							return run(data, stats, monitor);
+						}
+					}));
+				}
+			}
+
+			Map<String,Model> results = new LinkedHashMap<String,Model>();
+			Map<String,Throwable> failures = new LinkedHashMap<String,Throwable>();
+			for(String name : futures.keySet()) {
+				try {
+					Model inferred = futures.get(name).get();
+					if(inferred != null) {
+						results.put(name, inferred);
+					}
+				}
+				catch(InterruptedException ex) {
+					Thread.currentThread().interrupt();
+					return results;
+				}
+				catch(ExecutionException ex) {
+					failures.put(name, ex.getCause());
+				}
+			}
+
+			if(inferencesSuffix != null && dataset instanceof DataSource) {
+				for(String name : results.keySet()) {
+					((DataSource)dataset).replaceNamedModel(name + inferencesSuffix, results.get(name));
+				}
+			}
+			if(!failures.isEmpty()) {
+				throw new DatasetInferencesException(failures, results);
+			}
+			return results;
+		}
+		finally {
+			executor.shutdownNow();
+		}
+	}
+
+
+	/**
+	 * The rules of one thread, collected from a private copy of the schema.
+	 * The ARQ Query and Update objects are cloned because ARQFactory returns
+	 * the same cached objects for all threads.
+	 */
+	private class Rules {
+
+		Map<Resource,List<CommandWrapper>> class2Constructor;
+
+		Map<Resource,List<CommandWrapper>> class2Query;
+
+		SPINRuleComparator comparator;
+
+		Property rulePredicate;
+
+		Model schema;
+
+		Map<CommandWrapper,Map<String,RDFNode>> templateBindings = new HashMap<CommandWrapper,Map<String,RDFNode>>();
+
+
+		Rules() {
+			schema = ModelFactory.createDefaultModel(ReificationStyle.Minimal);
+			schema.setNsPrefixes(SPINDatasetInferences.this.schema);
+			schema.add(SPINDatasetInferences.this.schema);
+			rulePredicate = schema.getProperty(SPINDatasetInferences.this.rulePredicate.getURI());
+			Map<CommandWrapper,Map<String,RDFNode>> bindings = new HashMap<CommandWrapper,Map<String,RDFNode>>();
+			Map<CommandWrapper,CommandWrapper> copies = new HashMap<CommandWrapper,CommandWrapper>();
+			class2Query = copy(SPINQueryFinder.getClass2QueryMap(schema, schema, rulePredicate, true, bindings, false, validFunctionSources), copies);
+			class2Constructor = copy(SPINQueryFinder.getClass2QueryMap(schema, schema, SPIN.constructor, true, bindings, false, validFunctionSources), copies);
+			for(CommandWrapper wrapper : bindings.keySet()) {
+				templateBindings.put(copies.get(wrapper), bindings.get(wrapper));
+			}
+			comparator = new DefaultSPINRuleComparator(schema);
+		}
+
+
+		private Map<Resource,List<CommandWrapper>> copy(Map<Resource,List<CommandWrapper>> map, Map<CommandWrapper,CommandWrapper> copies) {
+			for(List<CommandWrapper> list : map.values()) {
+				for(ListIterator<CommandWrapper> it = list.listIterator(); it.hasNext(); ) {
+					CommandWrapper wrapper = it.next();
+					CommandWrapper copy;
+					if(wrapper instanceof QueryWrapper) {
+						QueryWrapper queryWrapper = (QueryWrapper) wrapper;
+						copy = new QueryWrapper(queryWrapper.getQuery().cloneQuery(), wrapper.getSource(), wrapper.getText(), queryWrapper.getSPINQuery(), wrapper.getLabel(), wrapper.getStatement(), wrapper.isThisUnbound());
+					}
+					else {
+						UpdateWrapper updateWrapper = (UpdateWrapper) wrapper;
+						Update update = UpdateFactory.create(updateWrapper.getUpdate().toString()).getOperations().get(0);
+						copy = new UpdateWrapper(update, wrapper.getSource(), wrapper.getText(), updateWrapper.getSPINUpdate(), wrapper.getLabel(), wrapper.getStatement(), wrapper.isThisUnbound());
+					}
+					it.set(copy);
+					copies.put(wrapper, copy);
+				}
+			}
+			return map;
+		}
+	}
+}
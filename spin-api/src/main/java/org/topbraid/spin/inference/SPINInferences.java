@@ -4,39 +4,51 @@
  *******************************************************************************/
 package org.topbraid.spin.inference;
 
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
 import org.topbraid.base.progress.ProgressMonitor;
 import org.topbraid.spin.arq.ARQFactory;
+import org.topbraid.spin.arq.TemplateSpecializer;
 import org.topbraid.spin.statistics.SPINStatistics;
 import org.topbraid.spin.system.SPINLabels;
 import org.topbraid.spin.util.CommandWrapper;
 import org.topbraid.spin.util.JenaUtil;
+import org.topbraid.spin.util.QueryResultCache;
 import org.topbraid.spin.util.QueryWrapper;
 import org.topbraid.spin.util.SPINQueryFinder;
 import org.topbraid.spin.util.SPINUtil;
+import org.topbraid.spin.util.TypeIndex;
 import org.topbraid.spin.util.UpdateUtil;
 import org.topbraid.spin.util.UpdateWrapper;
+import org.topbraid.spin.util.VersionedGraph;
 import org.topbraid.spin.vocabulary.SPIN;
 
 import com.hp.hpl.jena.graph.Graph;
 import com.hp.hpl.jena.graph.Triple;
+import com.hp.hpl.jena.graph.compose.MultiUnion;
 import com.hp.hpl.jena.query.Dataset;
 import com.hp.hpl.jena.query.Query;
 import com.hp.hpl.jena.query.QueryExecution;
 import com.hp.hpl.jena.query.QuerySolutionMap;
 import com.hp.hpl.jena.rdf.model.Model;
+import com.hp.hpl.jena.rdf.model.ModelFactory;
 import com.hp.hpl.jena.rdf.model.Property;
 import com.hp.hpl.jena.rdf.model.RDFNode;
 import com.hp.hpl.jena.rdf.model.Resource;
 import com.hp.hpl.jena.rdf.model.Statement;
 import com.hp.hpl.jena.rdf.model.StmtIterator;
+import com.hp.hpl.jena.shared.ReificationStyle;
+import com.hp.hpl.jena.shared.WrappedIOException;
+import com.hp.hpl.jena.sparql.engine.main.StageBuilder;
+import com.hp.hpl.jena.sparql.util.Context;
 import com.hp.hpl.jena.update.UpdateExecutionFactory;
 import com.hp.hpl.jena.update.UpdateProcessor;
 import com.hp.hpl.jena.vocabulary.OWL;
@@ -51,6 +63,75 @@ import com.hp.hpl.jena.vocabulary.RDFS;
  */
 public class SPINInferences { 
 	
+	private static SPINRuleOptimizer optimizer;
+	
+	private static QueryResultCache resultCache;
+	
+	private static InferenceBudget ruleBudget;
+	
+	private static InferenceBudget runBudget;
+	
+	private static TypeIndex typeIndex;
+	
+	
+	/**
+	 * Gets the InferenceBudget of each rule execution, if any.
+	 * @return the rule budget or null
+	 */
+	public static InferenceBudget getRuleBudget() {
+		return ruleBudget;
+	}
+	
+	
+	/**
+	 * Gets the InferenceBudget of each inference run, if any.
+	 * @return the run budget or null
+	 */
+	public static InferenceBudget getRunBudget() {
+		return runBudget;
+	}
+	
+	
+	/**
+	 * Gets the SPINRuleOptimizer that is used to reorder the WHERE clauses
+	 * of CONSTRUCT rules, if any.
+	 * @return the optimizer or null
+	 */
+	public static SPINRuleOptimizer getOptimizer() {
+		return optimizer;
+	}
+	
+	
+	/**
+	 * Gets the QueryResultCache that is used to reuse the results of
+	 * CONSTRUCT rules across runs, if any.
+	 * @return the cache or null
+	 */
+	public static QueryResultCache getResultCache() {
+		return resultCache;
+	}
+	
+	
+	/**
+	 * Gets the TypeIndex that is used to skip classes without instances,
+	 * if any.
+	 * @return the index or null
+	 */
+	public static TypeIndex getTypeIndex() {
+		return typeIndex;
+	}
+	
+	
+	private static boolean hasDirectInstances(Model queryModel, Resource cls) {
+		TypeIndex index = typeIndex;
+		if(index != null) {
+			return index.getInstanceCount(cls.asNode()) > 0;
+		}
+		else {
+			return queryModel.contains(null, RDF.type, cls);
+		}
+	}
+	
 	
 	private static boolean isRootClass(Resource cls) {
 		return RDFS.Resource.equals(cls) || OWL.Thing.equals(cls);
@@ -230,6 +311,65 @@ public class SPINInferences {
             SPINRuleComparator comparator,
             ProgressMonitor monitor,
             Set<Object> validFunctionSources) {
+		return run(queryModel, newTriples, class2Query, class2Constructor, templateBindings, explanations, statistics, singlePass, rulePredicate, comparator, monitor, validFunctionSources, null);
+	}
+	
+	
+	/**
+	 * Same as the other run method, but persists the progress into an
+	 * InferenceCheckpoint.  The triples recovered from the checkpoint are
+	 * added to newTriples first, and if the checkpoint belongs to a run that
+	 * has been interrupted then the iterations continue from where it stopped.
+	 * The checkpoint remains attached to newTriples and must be closed by the
+	 * caller.  If a checkpoint cannot be written then the run stops with a
+	 * WrappedIOException; the triples inferred so far remain in newTriples
+	 * and the file still ends with the last checkpoint that was written.
+	 * @param queryModel  the Model to query
+	 * @param newTriples  the Model to add the new triples to 
+	 * @param class2Query  the map of queries to run (see SPINQueryFinder)
+	 * @param class2Constructor  the map of constructors to run
+	 * @param templateBindings  initial template bindings (see SPINQueryFinder)
+	 * @param explanations  an optional object to write explanations to
+	 * @param statistics  optional list to add statistics about which queries were slow
+	 * @param singlePass  true to just do a single pass (don't iterate)
+	 * @param rulePredicate  the predicate used (e.g. spin:rule)
+	 * @param comparator  optional comparator to determine the order of rule execution
+	 * @param monitor  an optional ProgressMonitor
+	 * @param validFunctionSources  the valid function sources (see SPINModuleRegistry)
+	 * @param checkpoint  an optional InferenceCheckpoint
+	 * @return the number of iterations, including resumed iterations
+	 * @throws WrappedIOException  if a checkpoint could not be written
+	 * @throws BudgetExceededException  if the run budget has been exceeded
+	 */
+	public static int run(
+			Model queryModel,
+			Model newTriples,
+			Map<Resource, List<CommandWrapper>> class2Query,
+			Map<Resource, List<CommandWrapper>> class2Constructor,
+			Map<CommandWrapper, Map<String, RDFNode>> templateBindings,
+			SPINExplanations explanations,
+			List<SPINStatistics> statistics,
+			boolean singlePass,
+			Property rulePredicate,
+			SPINRuleComparator comparator,
+			ProgressMonitor monitor,
+			Set<Object> validFunctionSources,
+			InferenceCheckpoint checkpoint) {
+		
+		// Restore the triples (and inferred rules) of a previous run
+		int iteration = 1;
+		if(checkpoint != null) {
+			List<Triple> recovered = checkpoint.attach(newTriples.getGraph());
+			if(!checkpoint.isComplete()) {
+				iteration = checkpoint.getIteration() + 1;
+			}
+			for(Triple triple : recovered) {
+				if(SPIN.rule.asNode().equals(triple.getPredicate())) {
+					SPINQueryFinder.add(class2Query, queryModel.asStatement(triple), queryModel, true, templateBindings, false, validFunctionSources);
+				}
+			}
+		}
+		
 		// Get sorted list of Rules and remember where they came from
 		List<CommandWrapper> rulesList = new ArrayList<CommandWrapper>();
 		Map<CommandWrapper,Resource> rule2Class = new HashMap<CommandWrapper,Resource>();
@@ -240,6 +380,10 @@ public class SPINInferences {
 				rule2Class.put(queryWrapper, cls);
 			}
 		}
+		AdaptiveSPINRuleComparator adaptive = comparator instanceof AdaptiveSPINRuleComparator ? (AdaptiveSPINRuleComparator)comparator : null;
+		if(adaptive != null) {
+			adaptive.prepare(rulesList);
+		}
 		if(comparator != null) {
 			Collections.sort(rulesList, comparator);
 		}
@@ -249,8 +393,13 @@ public class SPINInferences {
 			rulePredicate = queryModel.getProperty(rulePredicate.getURI());
 		}
 		
+		// Track the budgets of the run and its rules, if any
+		BudgetTracker runTracker = null;
+		if(ruleBudget != null || runBudget != null) {
+			runTracker = new BudgetTracker(runBudget, null);
+		}
+		
 		// Iterate
-		int iteration = 1;
 		boolean changed;
 		do {
 			Set<Statement> newRules = new HashSet<Statement>();
@@ -267,6 +416,12 @@ public class SPINInferences {
 				}
 				
 				Resource cls = rule2Class.get(arqWrapper);
+				
+				// Skip rule if neither the class nor its subclasses have instances
+				TypeIndex index = typeIndex;
+				if(index != null && !arqWrapper.isThisUnbound() && !isRootClass(cls) && !index.hasInstances(cls)) {
+					continue;
+				}
 					
 				if(monitor != null) {
 					
@@ -292,13 +447,29 @@ public class SPINInferences {
 				String explanationText = sb.toString();
 				Map<String,RDFNode> initialBindings = templateBindings.get(arqWrapper);
 				boolean thisUnbound = arqWrapper.isThisUnbound();
-				changed |= runCommandOnClass(arqWrapper, arqWrapper.getLabel(), queryModel, newTriples, cls, true, class2Constructor, templateBindings, initialBindings, statistics, explanations, explanationText, newRules, thisUnbound, monitor);
-				if(!isRootClass(cls) && !thisUnbound) {
-					Set<Resource> subClasses = JenaUtil.getAllSubClasses(cls);
-					for(Resource subClass : subClasses) {
-						changed |= runCommandOnClass(arqWrapper, arqWrapper.getLabel(), queryModel, newTriples, subClass, true, class2Constructor, templateBindings, initialBindings, statistics, explanations, explanationText, newRules, thisUnbound, monitor);
+				long ruleStartTime = System.nanoTime();
+				long sizeBefore = adaptive != null ? newTriples.size() : 0;
+				try {
+					changed |= runCommandOnClass(arqWrapper, arqWrapper.getLabel(), queryModel, newTriples, cls, true, class2Constructor, templateBindings, initialBindings, statistics, explanations, explanationText, newRules, thisUnbound, monitor, runTracker);
+					if(!isRootClass(cls) && !thisUnbound) {
+						Set<Resource> subClasses = JenaUtil.getAllSubClasses(cls);
+						for(Resource subClass : subClasses) {
+							changed |= runCommandOnClass(arqWrapper, arqWrapper.getLabel(), queryModel, newTriples, subClass, true, class2Constructor, templateBindings, initialBindings, statistics, explanations, explanationText, newRules, thisUnbound, monitor, runTracker);
+						}
+					}
+					if(runTracker != null) {
+						runTracker.checkTime();
+					}
+					if(adaptive != null) {
+						adaptive.record(arqWrapper, System.nanoTime() - ruleStartTime, newTriples.size() - sizeBefore);
 					}
+				}
+				catch(BudgetExceededException ex) {
+					// The run budget is exhausted: stop after the last checkpoint
+					checkpoint(checkpoint, iteration - 1, false);
+					throw ex;
 				}
+				checkpoint(checkpoint, iteration - 1, false);
 			}
 			iteration++;
 			
@@ -307,11 +478,36 @@ public class SPINInferences {
 					SPINQueryFinder.add(class2Query, queryModel.asStatement(s.asTriple()), queryModel, true, templateBindings, false, validFunctionSources);
 				}
 			}
+			if(adaptive != null) {
+				// Reorder the rules based on the measurements of this iteration
+				adaptive.prepare(rulesList);
+				Collections.sort(rulesList, comparator);
+			}
+			checkpoint(checkpoint, iteration - 1, false);
 		}
 		while(!singlePass && changed);
 		
+		checkpoint(checkpoint, iteration - 1, true);
+		
 		return iteration - 1;
 	}
+	
+	
+	private static void checkpoint(InferenceCheckpoint checkpoint, int completedIterations, boolean complete) {
+		if(checkpoint != null) {
+			try {
+				if(complete) {
+					checkpoint.complete(completedIterations);
+				}
+				else {
+					checkpoint.checkpoint(completedIterations);
+				}
+			}
+			catch(IOException ex) {
+				throw new WrappedIOException(ex);
+			}
+		}
+	}
 
 	
 	private static boolean runCommandOnClass(
@@ -329,11 +525,13 @@ public class SPINInferences {
 			String explanationText, 
 			Set<Statement> newRules, 
 			boolean thisUnbound, 
-			ProgressMonitor monitor) {
+			ProgressMonitor monitor,
+			BudgetTracker runTracker) {
 		
 		// Check if query is needed at all
-		if(thisUnbound || isRootClass(cls) || queryModel.contains(null, RDF.type, cls)) {
-			boolean changed = false;
+		if(thisUnbound || isRootClass(cls) || hasDirectInstances(queryModel, cls)) {
+			boolean changed = false;
+			BudgetTracker tracker = runTracker != null ? new BudgetTracker(ruleBudget, runTracker) : null;
 			QuerySolutionMap bindings = new QuerySolutionMap();
 			if(!isRootClass(cls) && !thisUnbound) {
 				bindings.add(SPINUtil.TYPE_CLASS_VAR_NAME, cls);
@@ -346,52 +544,101 @@ public class SPINInferences {
 			}
 			long startTime = System.currentTimeMillis();
 			final Map<Resource,Resource> newInstances = new HashMap<Resource,Resource>();
-			if(commandWrapper instanceof QueryWrapper) {
-				Query arq = ((QueryWrapper)commandWrapper).getQuery();
-				QueryExecution qexec = ARQFactory.get().createQueryExecution(arq, queryModel);
-				qexec.setInitialBinding(bindings);
-				Model cm = qexec.execConstruct();
-				StmtIterator cit = cm.listStatements();
-				while(cit.hasNext()) {
-					Statement s = cit.nextStatement();
-					if(!checkContains || !queryModel.contains(s)) {
-						changed = true;
-						newTriples.add(s);
-						if(explanations != null) {
-							Resource source = commandWrapper.getStatement().getSubject();
-							explanations.put(s.asTriple(), explanationText, source.asNode());
+			try {
+				if(commandWrapper instanceof QueryWrapper) {
+					Query arq = TemplateSpecializer.get().specialize(commandWrapper, ((QueryWrapper)commandWrapper).getQuery(), initialBindings);
+					SPINRuleOptimizer o = optimizer;
+					if(o != null) {
+						Set<String> boundVarNames = new HashSet<String>();
+						for(Iterator<String> vars = bindings.varNames(); vars.hasNext(); ) {
+							boundVarNames.add(vars.next());
 						}
-						
-						// New rdf:type triple -> run constructors later
-						if(RDF.type.equals(s.getPredicate()) && s.getObject().isResource()) {
-							Resource subject = (Resource)s.getSubject().inModel(queryModel);
-							newInstances.put(subject, s.getResource());
+						arq = o.optimize(arq, queryModel.getGraph(), boundVarNames);
+					}
+					QueryResultCache cache = resultCache;
+					String cacheKey = cache != null ? cache.getKey(arq, bindings) : null;
+					List<Triple> cached = cacheKey != null ? cache.get(cacheKey) : null;
+					Model cm;
+					if(cached != null) {
+						cm = ModelFactory.createDefaultModel();
+						cm.getGraph().getBulkUpdateHandler().add(cached);
+					}
+					else {
+						QueryExecution qexec = ARQFactory.get().createQueryExecution(arq, queryModel);
+						qexec.setInitialBinding(bindings);
+						if(tracker != null) {
+							Context context = qexec.getContext();
+							StageBuilder.setGenerator(context, tracker.createStageGenerator(StageBuilder.getGenerator(context)));
+							cm = qexec.execConstruct(tracker.createModel());
+						}
+						else {
+							cm = qexec.execConstruct();
 						}
-						
-						if(SPIN.rule.equals(s.getPredicate())) {
-							newRules.add(s);
+						if(cacheKey != null) {
+							cache.put(cacheKey, cm.getGraph());
 						}
 					}
+					StmtIterator cit = cm.listStatements();
+					while(cit.hasNext()) {
+						Statement s = cit.nextStatement();
+						if(!checkContains || !queryModel.contains(s)) {
+							changed = true;
+							newTriples.add(s);
+							if(explanations != null) {
+								Resource source = commandWrapper.getStatement().getSubject();
+								explanations.put(s.asTriple(), explanationText, source.asNode());
+							}
+							
+							// New rdf:type triple -> run constructors later
+							if(RDF.type.equals(s.getPredicate()) && s.getObject().isResource()) {
+								Resource subject = (Resource)s.getSubject().inModel(queryModel);
+								newInstances.put(subject, s.getResource());
+							}
+							
+							if(SPIN.rule.equals(s.getPredicate())) {
+								newRules.add(s);
+							}
+						}
+					}
 				}
-			}
-			else {
-				UpdateWrapper updateWrapper = (UpdateWrapper) commandWrapper;
-				Map<String,RDFNode> templateBindings = initialTemplateBindings.get(commandWrapper);
-				Dataset dataset = ARQFactory.get().getDataset(queryModel);
-				Iterable<Graph> updateGraphs = UpdateUtil.getUpdatedGraphs(updateWrapper.getUpdate(), dataset, templateBindings);
-				ControlledUpdateGraphStore cugs = new ControlledUpdateGraphStore(dataset, updateGraphs);
-				UpdateProcessor up = UpdateExecutionFactory.create(updateWrapper.getUpdate(), cugs, bindings);
-				up.execute();
-				for(ControlledUpdateGraph cug : cugs.getControlledUpdateGraphs()) {
-					changed |= cug.isChanged();
-					for(Triple triple : cug.getAddedTriples()) {
-						if(RDF.type.asNode().equals(triple.getPredicate()) && !triple.getObject().isLiteral()) {
-							Resource subject = (Resource) queryModel.asRDFNode(triple.getSubject());
-							newInstances.put(subject, (Resource)queryModel.asRDFNode(triple.getObject()));
+				else {
+					UpdateWrapper updateWrapper = (UpdateWrapper) commandWrapper;
+					Map<String,RDFNode> templateBindings = initialTemplateBindings.get(commandWrapper);
+					Dataset dataset = ARQFactory.get().getDataset(queryModel);
+					Iterable<Graph> updateGraphs = UpdateUtil.getUpdatedGraphs(updateWrapper, dataset, templateBindings);
+					
+					// The new rdf:type triples are only needed to run constructors
+					boolean trackTypes = class2Constructor != null && !class2Constructor.isEmpty();
+					ControlledUpdateGraphStore cugs = new ControlledUpdateGraphStore(dataset, updateGraphs, trackTypes);
+					cugs.setBudgetTracker(tracker);
+					UpdateProcessor up = UpdateExecutionFactory.create(updateWrapper.getUpdate(), cugs, bindings);
+					try {
+						up.execute();
+					}
+					finally {
+						for(ControlledUpdateGraph cug : cugs.getControlledUpdateGraphs()) {
+							changed |= cug.isChanged();
+							for(Triple triple : cug.getAddedTypeTriples()) {
+								Resource subject = (Resource) queryModel.asRDFNode(triple.getSubject());
+								newInstances.put(subject, (Resource)queryModel.asRDFNode(triple.getObject()));
+							}
 						}
 					}
 				}
 			}
+			catch(BudgetExceededException ex) {
+				// Abort this rule and report the budget hit through the statistics
+				if(statistics != null) {
+					long endTime = System.currentTimeMillis();
+					String queryText = SPINLabels.get().getLabel(commandWrapper.getSPINCommand());
+					String label = ex.getMessage() + ": " + (queryLabel != null ? queryLabel : queryText);
+					statistics.add(new SPINStatistics(label, queryText, endTime - startTime, startTime, cls.asNode()));
+				}
+				if(ex.isRunBudget()) {
+					throw ex;
+				}
+				return changed;
+			}
 			
 			if(statistics != null) {
 				long endTime = System.currentTimeMillis();
@@ -425,6 +672,48 @@ public class SPINInferences {
 	}
 
 	
+	/**
+	 * Runs all rules on a snapshot of a VersionedGraph, so that other threads
+	 * can continue to write into the graph while the inferences are running.
+	 * The inferred triples are collected separately and finally reconciled
+	 * into the head of the graph, see VersionedGraph.reconcile.
+	 * Changes made by the writers during the run are not considered by the
+	 * rules; use VersionedGraph.isCurrent or run again if needed.
+	 * @param graph  the VersionedGraph with the instance data
+	 * @param schema  an (optional) Model with the classes and rules that must
+	 *                not be modified during the run
+	 * @param rulePredicate  the rule predicate (spin:rule or a sub-property thereof)
+	 * @param explanations  an optional object to write explanations to
+	 * @param statistics  optional list to add statistics about which queries were slow
+	 * @param monitor  an optional ProgressMonitor
+	 * @param validFunctionSources  the valid function sources (see SPINModuleRegistry)
+	 * @return the number of inferred triples that were new in the head
+	 */
+	public static int runOnSnapshot(
+			VersionedGraph graph,
+			Model schema,
+			Property rulePredicate,
+			SPINExplanations explanations,
+			List<SPINStatistics> statistics,
+			ProgressMonitor monitor,
+			Set<Object> validFunctionSources) {
+		VersionedGraph.Snapshot snapshot = graph.snapshot();
+		try {
+			Model inferred = ModelFactory.createDefaultModel(ReificationStyle.Minimal);
+			MultiUnion union = new MultiUnion(new Graph[] { inferred.getGraph(), snapshot });
+			if(schema != null) {
+				union.addGraph(schema.getGraph());
+			}
+			Model queryModel = ModelFactory.createModelForGraph(union);
+			run(queryModel, rulePredicate, inferred, explanations, statistics, false, monitor, validFunctionSources);
+			return graph.reconcile(snapshot, inferred.getGraph());
+		}
+		finally {
+			snapshot.close();
+		}
+	}
+	
+	
 	/**
 	 * Runs a given Jena Query on a given instance and adds the inferred triples
 	 * to a given Model.
@@ -459,4 +748,61 @@ public class SPINInferences {
 		}
 		return changed;
 	}
+	
+	
+	/**
+	 * Installs the budgets that limit the resources consumed by each rule
+	 * execution (for one class) and by each run.  The budgets are enforced
+	 * from within query execution, so that a rule is aborted as soon as it
+	 * exceeds its budget.  When the run budget has been exceeded, the run
+	 * stops with a BudgetExceededException (whose isRunBudget is true),
+	 * so that callers can tell an aborted run from a finished one; the
+	 * triples inferred until then remain in the newTriples Model.  Each
+	 * budget hit is reported as a SPINStatistics with a label starting
+	 * with "Exceeded".  The solutions are only counted for CONSTRUCT rules.
+	 * @param ruleBudget  the budget of each rule execution or null
+	 * @param runBudget  the budget of each run or null
+	 */
+	public static void setBudgets(InferenceBudget ruleBudget, InferenceBudget runBudget) {
+		SPINInferences.ruleBudget = ruleBudget;
+		SPINInferences.runBudget = runBudget;
+	}
+	
+	
+	/**
+	 * Installs a QueryResultCache so that the results of CONSTRUCT rules
+	 * are replayed instead of executed again if none of the predicates and
+	 * classes that the rule reads have changed since a previous execution.
+	 * The cache must observe all graphs of the query Model that may change
+	 * between the runs (including the graph of the inferred triples).
+	 * UPDATE rules are always executed.
+	 * @param value  the new cache or null to always execute rules
+	 */
+	public static void setResultCache(QueryResultCache value) {
+		resultCache = value;
+	}
+	
+	
+	/**
+	 * Installs a TypeIndex that is used instead of probing the query Model
+	 * to find out whether a class has instances, and to skip the rules of
+	 * classes whose whole subclass tree has no instances.  The index must
+	 * observe all graphs of the query Model that contain rdf:type triples,
+	 * including the graph of the inferred triples.
+	 * @param value  the new index or null to probe the query Model
+	 */
+	public static void setTypeIndex(TypeIndex value) {
+		typeIndex = value;
+	}
+	
+	
+	/**
+	 * Installs a SPINRuleOptimizer that shall be used to reorder the
+	 * WHERE clauses of CONSTRUCT rules based on the statistics of the
+	 * query Graph.  By default no optimizer is installed.
+	 * @param value  the new optimizer or null to execute rules as written
+	 */
+	public static void setOptimizer(SPINRuleOptimizer value) {
+		optimizer = value;
+	}
 }
@@ -0,0 +1,1006 @@
+package org.topbraid.spin.inference;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+import org.topbraid.base.progress.ProgressMonitor;
+import org.topbraid.spin.arq.ARQFactory;
+import org.topbraid.spin.statistics.SPINStatistics;
+import org.topbraid.spin.system.SPINLabels;
+import org.topbraid.spin.util.AbstractGraphListener;
+import org.topbraid.spin.util.CommandWrapper;
+import org.topbraid.spin.util.JenaUtil;
+import org.topbraid.spin.util.QueryWrapper;
+import org.topbraid.spin.util.SPINQueryFinder;
+import org.topbraid.spin.util.SPINUtil;
+import org.topbraid.spin.vocabulary.SPIN;
+
+import com.hp.hpl.jena.graph.Graph;
+import com.hp.hpl.jena.graph.Node;
+import com.hp.hpl.jena.graph.Triple;
+import com.hp.hpl.jena.query.ARQ;
+import com.hp.hpl.jena.query.Dataset;
+import com.hp.hpl.jena.query.Query;
+import com.hp.hpl.jena.rdf.model.Model;
+import com.hp.hpl.jena.rdf.model.Property;
+import com.hp.hpl.jena.rdf.model.RDFNode;
+import com.hp.hpl.jena.rdf.model.Resource;
+import com.hp.hpl.jena.sparql.core.DatasetGraph;
+import com.hp.hpl.jena.sparql.core.DatasetGraphFactory;
+import com.hp.hpl.jena.sparql.core.TriplePath;
+import com.hp.hpl.jena.sparql.core.Var;
+import com.hp.hpl.jena.sparql.engine.ExecutionContext;
+import com.hp.hpl.jena.sparql.engine.binding.Binding;
+import com.hp.hpl.jena.sparql.engine.binding.BindingMap;
+import com.hp.hpl.jena.sparql.engine.main.QC;
+import com.hp.hpl.jena.sparql.expr.Expr;
+import com.hp.hpl.jena.sparql.expr.ExprFunction;
+import com.hp.hpl.jena.sparql.expr.ExprFunctionOp;
+import com.hp.hpl.jena.sparql.function.FunctionEnv;
+import com.hp.hpl.jena.sparql.graph.NodeTransform;
+import com.hp.hpl.jena.sparql.syntax.Element;
+import com.hp.hpl.jena.sparql.syntax.ElementFilter;
+import com.hp.hpl.jena.sparql.syntax.ElementGroup;
+import com.hp.hpl.jena.sparql.syntax.ElementPathBlock;
+import com.hp.hpl.jena.sparql.syntax.ElementTriplesBlock;
+import com.hp.hpl.jena.sparql.util.FmtUtils;
+import com.hp.hpl.jena.vocabulary.OWL;
+import com.hp.hpl.jena.vocabulary.RDF;
+import com.hp.hpl.jena.vocabulary.RDFS;
+
+
+/**
+ * An alternative inference engine for SPIN rules that compiles all rules
+ * into a shared match network (in the style of Rete) and then propagates
+ * triples through it incrementally, instead of re-running every rule as a
+ * CONSTRUCT query in each iteration.
+ *
+ * Only CONSTRUCT rules whose WHERE clause consists of basic graph patterns
+ * and FILTERs (without EXISTS or NOT EXISTS) are compiled into the network.
+ * All other rules (UPDATE rules, OPTIONAL, UNION, sub-queries, property
+ * paths, property functions such as list:member or magic properties, rules
+ * with spin:rulePropertyMaxIterationCount etc) fall back to the query-based
+ * execution of SPINInferences, which is interleaved with the network until
+ * no more triples are inferred.
+ *
+ * The network consists of alpha nodes that test single triple patterns
+ * (shared by all rules that contain a pattern of the same shape) and
+ * join nodes that join the partial matches (tokens) of their parent with
+ * the triples of an alpha node.  Rules are normalized by renaming their
+ * variables in the order of appearance, so that rules starting with the
+ * same patterns and FILTERs share the same chain of join nodes.  Each join
+ * node keeps hash indexed memories of both sides, so that each new triple
+ * only needs to be joined with the matching entries.
+ *
+ * Limitations: the subclasses of the rule classes are computed when the
+ * network is built, the network keeps all matched triples in memory, and
+ * new spin:rule triples that are inferred during the run are ignored.
+ * As with SPINInferences, newTriples should be a sub-model of the
+ * queryModel if rules outside of the network shall see the inferences.
+ */
+public class SPINRuleNetwork {
+
+	private final static Node TYPE = RDF.type.asNode();
+
+	private static Var[] canonicalVars = new Var[0];
+
+	private Map<String,AlphaNode> alphaNodes = new HashMap<String,AlphaNode>();
+
+	private Map<Node,List<AlphaNode>> alphaIndex = new HashMap<Node,List<AlphaNode>>();
+
+	private LinkedList<Derivation> agenda = new LinkedList<Derivation>();
+
+	private FunctionEnv env;
+
+	private Map<String,JoinNode> joinNodes = new HashMap<String,JoinNode>();
+
+	private int ruleCount;
+
+	// Alpha nodes with a variable predicate
+	private List<AlphaNode> wildcardAlphaNodes = new ArrayList<AlphaNode>();
+
+
+	/**
+	 * Creates a new, empty network to infer triples from a given Model.
+	 * @param queryModel  the Model to evaluate FILTERs against
+	 */
+	public SPINRuleNetwork(Model queryModel) {
+		Graph graph = queryModel.getGraph();
+		Dataset dataset = ARQFactory.get().getDataset(queryModel);
+		DatasetGraph dsg = dataset != null ? dataset.asDatasetGraph() : DatasetGraphFactory.createOneGraph(graph);
+		env = new ExecutionContext(ARQ.getContext(), graph, dsg, QC.getFactory(ARQ.getContext()));
+	}
+
+
+	// Property functions such as list:member cannot be matched by alpha nodes
+	private static boolean addTriple(List<Triple> triples, Triple triple, Binding initial) {
+		Triple substituted = substitute(triple, initial);
+		if(SPINUtil.isPropertyFunction(substituted.getPredicate())) {
+			return false;
+		}
+		triples.add(substituted);
+		return true;
+	}
+
+
+	/**
+	 * Attempts to compile a rule into this network.
+	 * @param wrapper  the rule
+	 * @param cls  the class that the rule is attached to
+	 * @param initialBindings  the template bindings of the rule or null
+	 * @param explanationText  the text for explanations
+	 * @return true if the rule has been added, false if it is not supported
+	 */
+	public boolean add(CommandWrapper wrapper, Resource cls, Map<String,RDFNode> initialBindings, String explanationText) {
+
+		if(!(wrapper instanceof QueryWrapper)) {
+			return false;
+		}
+		Query arq = ((QueryWrapper)wrapper).getQuery();
+		if(!arq.isConstructType() || arq.hasLimit() || arq.hasOffset() || arq.hasOrderBy() || arq.hasDatasetDescription() ||
+				!(arq.getQueryPattern() instanceof ElementGroup)) {
+			return false;
+		}
+
+		BindingMap initial = new BindingMap();
+		if(initialBindings != null) {
+			for(String varName : initialBindings.keySet()) {
+				initial.add(Var.alloc(varName), initialBindings.get(varName).asNode());
+			}
+		}
+
+		// Collect the triple patterns and FILTERs
+		List<Triple> triples = new ArrayList<Triple>();
+		List<Expr> filters = new ArrayList<Expr>();
+		for(Element element : ((ElementGroup)arq.getQueryPattern()).getElements()) {
+			if(element instanceof ElementPathBlock) {
+				for(TriplePath path : ((ElementPathBlock)element).getPattern().getList()) {
+					if(!path.isTriple() || !addTriple(triples, path.asTriple(), initial)) {
+						return false;
+					}
+				}
+			}
+			else if(element instanceof ElementTriplesBlock) {
+				for(Triple triple : ((ElementTriplesBlock)element).getPattern().getList()) {
+					if(!addTriple(triples, triple, initial)) {
+						return false;
+					}
+				}
+			}
+			else if(element instanceof ElementFilter) {
+				Expr expr = ((ElementFilter)element).getExpr();
+				if(!isSimple(expr)) {
+					return false;
+				}
+				filters.add(expr.copySubstitute(initial));
+			}
+			else {
+				return false;
+			}
+		}
+		if(triples.isEmpty()) {
+			return false;
+		}
+		triples = order(triples);
+
+		// Assign canonical variable indices in order of appearance
+		final Map<Var,Integer> indices = new HashMap<Var,Integer>();
+		List<Var> vars = new ArrayList<Var>();
+		int[] sizes = new int[triples.size()];
+		for(int i = 0; i < triples.size(); i++) {
+			for(Node node : nodes(triples.get(i))) {
+				if(node.isVariable() && !indices.containsKey(Var.alloc(node))) {
+					indices.put(Var.alloc(node), vars.size());
+					vars.add(Var.alloc(node));
+				}
+			}
+			sizes[i] = vars.size();
+		}
+		NodeTransform renaming = new NodeTransform() {
+			@Override
+			public Node convert(Node node) {
+				if(node.isVariable()) {
+					Integer index = indices.get(Var.alloc(node));
+					return index != null ? getCanonicalVar(index) : Var.alloc("u_" + node.getName());
+				}
+				return node;
+			}
+		};
+
+		// Collect the tests and the number of variables they need
+		List<Test> tests = new ArrayList<Test>();
+		for(Expr filter : filters) {
+			tests.add(new FilterTest(filter.applyNodeTransform(renaming), getRequiredSize(filter.getVarsMentioned(), indices)));
+		}
+		Integer typeClassIndex = indices.get(Var.alloc(SPINUtil.TYPE_CLASS_VAR_NAME));
+		if(typeClassIndex != null && !wrapper.isThisUnbound() && !isRootClass(cls)) {
+			Set<Node> classes = new HashSet<Node>();
+			classes.add(cls.asNode());
+			for(Resource subClass : JenaUtil.getAllSubClasses(cls)) {
+				classes.add(subClass.asNode());
+			}
+			tests.add(new MembershipTest(typeClassIndex, classes));
+		}
+
+		// Build or reuse the chain of join nodes
+		JoinNode parent = null;
+		for(int i = 0; i < triples.size(); i++) {
+			boolean last = i == triples.size() - 1;
+			Triple canonical = rename(triples.get(i), renaming);
+			List<Test> nodeTests = new ArrayList<Test>();
+			for(Test test : new ArrayList<Test>(tests)) {
+				if(last || test.requiredSize <= sizes[i]) {
+					nodeTests.add(test);
+					tests.remove(test);
+				}
+			}
+			StringBuilder key = new StringBuilder();
+			if(parent != null) {
+				key.append(parent.key);
+				key.append('\n');
+			}
+			key.append(FmtUtils.stringForTriple(canonical, null));
+			Set<String> testKeys = new TreeSet<String>();
+			for(Test test : nodeTests) {
+				testKeys.add(test.key);
+			}
+			for(String testKey : testKeys) {
+				key.append(" && ");
+				key.append(testKey);
+			}
+			JoinNode node = joinNodes.get(key.toString());
+			if(node == null) {
+				node = new JoinNode(key.toString(), parent, canonical, sizes[i], nodeTests);
+				joinNodes.put(node.key, node);
+				if(parent != null) {
+					parent.children.add(node);
+				}
+				getAlphaNode(canonical).successors.add(node);
+			}
+			parent = node;
+		}
+		parent.terminals.add(new Terminal(wrapper, arq, initial, vars, explanationText));
+		ruleCount++;
+		return true;
+	}
+
+
+	private AlphaNode getAlphaNode(Triple canonical) {
+		Node[] pattern = nodes(canonical);
+		Map<Node,String> local = new HashMap<Node,String>();
+		StringBuilder key = new StringBuilder();
+		for(Node node : pattern) {
+			if(node.isVariable()) {
+				String marker = local.get(node);
+				if(marker == null) {
+					marker = "?" + local.size();
+					local.put(node, marker);
+				}
+				key.append(marker);
+			}
+			else {
+				key.append(FmtUtils.stringForNode(node));
+			}
+			key.append(' ');
+		}
+		AlphaNode alpha = alphaNodes.get(key.toString());
+		if(alpha == null) {
+			alpha = new AlphaNode(pattern);
+			alphaNodes.put(key.toString(), alpha);
+			Node predicate = canonical.getPredicate();
+			if(predicate.isVariable()) {
+				wildcardAlphaNodes.add(alpha);
+			}
+			else {
+				List<AlphaNode> list = alphaIndex.get(predicate);
+				if(list == null) {
+					list = new ArrayList<AlphaNode>();
+					alphaIndex.put(predicate, list);
+				}
+				list.add(alpha);
+			}
+		}
+		return alpha;
+	}
+
+
+	/**
+	 * Gets the number of (shared) alpha nodes, i.e. distinct triple patterns.
+	 * @return the number of alpha nodes
+	 */
+	public int getAlphaNodeCount() {
+		return alphaNodes.size();
+	}
+
+
+	private static synchronized Var getCanonicalVar(int index) {
+		if(index >= canonicalVars.length) {
+			Var[] vars = new Var[index + 8];
+			System.arraycopy(canonicalVars, 0, vars, 0, canonicalVars.length);
+			for(int i = canonicalVars.length; i < vars.length; i++) {
+				vars[i] = Var.alloc("v" + i);
+			}
+			canonicalVars = vars;
+		}
+		return canonicalVars[index];
+	}
+
+
+	/**
+	 * Gets the number of (shared) join nodes.
+	 * @return the number of join nodes
+	 */
+	public int getJoinNodeCount() {
+		return joinNodes.size();
+	}
+
+
+	// The number of canonical variables needed to evaluate an expression, or MAX_VALUE if unbound variables are used
+	private static int getRequiredSize(Set<Var> mentioned, Map<Var,Integer> indices) {
+		int result = 0;
+		for(Var var : mentioned) {
+			Integer index = indices.get(var);
+			if(index == null) {
+				return Integer.MAX_VALUE;
+			}
+			result = Math.max(result, index + 1);
+		}
+		return result;
+	}
+
+
+	/**
+	 * Gets the number of rules that have been compiled into this network.
+	 * @return the number of rules
+	 */
+	public int getRuleCount() {
+		return ruleCount;
+	}
+
+
+	/**
+	 * Checks whether there are derivations waiting to be processed.
+	 * @return true if the agenda is not empty
+	 */
+	public boolean hasPending() {
+		return !agenda.isEmpty();
+	}
+
+
+	/**
+	 * Propagates a triple through the network.  New derivations are put
+	 * on the agenda (see poll()).
+	 * @param triple  the new triple
+	 */
+	public void insert(Triple triple) {
+		List<AlphaNode> list = alphaIndex.get(triple.getPredicate());
+		if(list != null) {
+			for(AlphaNode alpha : list) {
+				alpha.activate(triple);
+			}
+		}
+		for(AlphaNode alpha : wildcardAlphaNodes) {
+			alpha.activate(triple);
+		}
+	}
+
+
+	private static boolean isRootClass(Resource cls) {
+		return RDFS.Resource.equals(cls) || OWL.Thing.equals(cls);
+	}
+
+
+	// Checks whether an expression can be evaluated without access to the graph patterns
+	private static boolean isSimple(Expr expr) {
+		if(expr instanceof ExprFunctionOp) {
+			return false;
+		}
+		else if(expr instanceof ExprFunction) {
+			for(Expr arg : ((ExprFunction)expr).getArgs()) {
+				if(!isSimple(arg)) {
+					return false;
+				}
+			}
+		}
+		return true;
+	}
+
+
+	private static Node[] nodes(Triple triple) {
+		return new Node[] { triple.getSubject(), triple.getPredicate(), triple.getObject() };
+	}
+
+
+	// Keeps the written order, but prefers patterns that are connected to the previous ones
+	private static List<Triple> order(List<Triple> triples) {
+		List<Triple> remaining = new LinkedList<Triple>(triples);
+		List<Triple> results = new ArrayList<Triple>(triples.size());
+		Set<Node> bound = new HashSet<Node>();
+		while(!remaining.isEmpty()) {
+			Triple next = remaining.get(0);
+			if(!bound.isEmpty()) {
+				for(Triple candidate : remaining) {
+					if(bound.contains(candidate.getSubject()) || bound.contains(candidate.getPredicate()) || bound.contains(candidate.getObject())) {
+						next = candidate;
+						break;
+					}
+				}
+			}
+			remaining.remove(next);
+			results.add(next);
+			for(Node node : nodes(next)) {
+				if(node.isVariable()) {
+					bound.add(node);
+				}
+			}
+		}
+		return results;
+	}
+
+
+	/**
+	 * Gets the next derivation from the agenda.
+	 * @return the next Derivation or null
+	 */
+	public Derivation poll() {
+		return agenda.poll();
+	}
+
+
+	private static Triple rename(Triple triple, NodeTransform renaming) {
+		return Triple.create(renaming.convert(triple.getSubject()), renaming.convert(triple.getPredicate()), renaming.convert(triple.getObject()));
+	}
+
+
+	/**
+	 * See the other run method for help - this is building the rule maps
+	 * using SPINQueryFinder.
+	 * @param queryModel  the Model to query
+	 * @param rulePredicate  the rule predicate (spin:rule or a sub-property thereof)
+	 * @param newTriples  the Model to add the new triples to
+	 * @param explanations  an optional object to write explanations to
+	 * @param statistics  optional list to add statistics to
+	 * @param monitor  an optional ProgressMonitor
+	 * @param validFunctionSources  the valid function sources (see SPINModuleRegistry)
+	 * @return the number of iterations
+	 */
+	public static int run(
+			Model queryModel,
+			Property rulePredicate,
+			Model newTriples,
+			SPINExplanations explanations,
+			List<SPINStatistics> statistics,
+			ProgressMonitor monitor,
+			Set<Object> validFunctionSources) {
+		Map<CommandWrapper, Map<String,RDFNode>> initialTemplateBindings = new HashMap<CommandWrapper, Map<String,RDFNode>>();
+		Map<Resource,List<CommandWrapper>> cls2Query = SPINQueryFinder.getClass2QueryMap(queryModel, queryModel, rulePredicate, true, initialTemplateBindings, false, validFunctionSources);
+		Map<Resource,List<CommandWrapper>> cls2Constructor = SPINQueryFinder.getClass2QueryMap(queryModel, queryModel, SPIN.constructor, true, initialTemplateBindings, false, validFunctionSources);
+		SPINRuleComparator comparator = new DefaultSPINRuleComparator(queryModel);
+		return run(queryModel, newTriples, cls2Query, cls2Constructor, initialTemplateBindings, explanations, statistics, rulePredicate, comparator, monitor, validFunctionSources);
+	}
+
+
+	/**
+	 * Infers all triples of a provided collection of SPIN rules until a fix
+	 * point is reached.  This produces the same triples as the iterative
+	 * mode of SPINInferences.run, but rules in the supported subset are
+	 * evaluated incrementally by a shared SPINRuleNetwork.
+	 * @param queryModel  the Model to query
+	 * @param newTriples  the Model to add the new triples to
+	 * @param class2Query  the map of queries to run (see SPINQueryFinder)
+	 * @param class2Constructor  the map of constructors to run
+	 * @param templateBindings  initial template bindings (see SPINQueryFinder)
+	 * @param explanations  an optional object to write explanations to
+	 * @param statistics  optional list to add statistics to
+	 * @param rulePredicate  the predicate used (e.g. spin:rule)
+	 * @param comparator  optional comparator to determine the order of rule execution
+	 * @param monitor  an optional ProgressMonitor
+	 * @param validFunctionSources  the valid function sources (see SPINModuleRegistry)
+	 * @return the number of iterations of the fall back rules (at least 1)
+	 */
+	public static int run(
+			Model queryModel,
+			Model newTriples,
+			Map<Resource, List<CommandWrapper>> class2Query,
+			Map<Resource, List<CommandWrapper>> class2Constructor,
+			Map<CommandWrapper, Map<String, RDFNode>> templateBindings,
+			SPINExplanations explanations,
+			List<SPINStatistics> statistics,
+			Property rulePredicate,
+			SPINRuleComparator comparator,
+			ProgressMonitor monitor,
+			Set<Object> validFunctionSources) {
+
+		long startTime = System.currentTimeMillis();
+
+		// Get sorted list of Rules and remember where they came from
+		List<CommandWrapper> rulesList = new ArrayList<CommandWrapper>();
+		Map<CommandWrapper,Resource> rule2Class = new HashMap<CommandWrapper,Resource>();
+		for(Resource cls : class2Query.keySet()) {
+			for(CommandWrapper wrapper : class2Query.get(cls)) {
+				rulesList.add(wrapper);
+				rule2Class.put(wrapper, cls);
+			}
+		}
+		if(comparator != null) {
+			Collections.sort(rulesList, comparator);
+		}
+
+		// Make sure the rulePredicate has a Model attached to it
+		if(rulePredicate.getModel() == null) {
+			rulePredicate = queryModel.getProperty(rulePredicate.getURI());
+		}
+
+		// Compile the network, collect the other rules
+		SPINRuleNetwork network = new SPINRuleNetwork(queryModel);
+		List<CommandWrapper> fallbacks = new ArrayList<CommandWrapper>();
+		for(CommandWrapper wrapper : rulesList) {
+			Resource cls = rule2Class.get(wrapper);
+			StringBuffer sb = new StringBuffer();
+			sb.append("Inferred by ");
+			sb.append(SPINLabels.get().getLabel(rulePredicate));
+			sb.append(" at class ");
+			sb.append(SPINLabels.get().getLabel(cls));
+			sb.append(":\n\n" + wrapper.getText());
+			Property predicate = wrapper.getStatement().getPredicate();
+			if(JenaUtil.getIntegerProperty(predicate, SPIN.rulePropertyMaxIterationCount) != null ||
+					!network.add(wrapper, cls, templateBindings.get(wrapper), sb.toString())) {
+				fallbacks.add(wrapper);
+			}
+		}
+
+		// Record triples that are added by constructors and fall back rules
+		final List<Triple> external = new ArrayList<Triple>();
+		final boolean[] internal = new boolean[1];
+		AbstractGraphListener listener = new AbstractGraphListener() {
+
+			@Override
+			public void notifyAddTriple(Graph g, Triple t) {
+				if(!internal[0]) {
+					external.add(t);
+				}
+			}
+
+			@Override
+			public void notifyDeleteTriple(Graph g, Triple t) {
+			}
+
+			@Override
+			protected void notifyRemoveAll(Graph source, Triple pattern) {
+			}
+		};
+
+		if(network.getRuleCount() > 0) {
+			for(Triple triple : queryModel.getGraph().find(Node.ANY, Node.ANY, Node.ANY).toList()) {
+				network.insert(triple);
+			}
+		}
+
+		Graph newGraph = newTriples.getGraph();
+		Graph queryGraph = queryModel.getGraph();
+		newGraph.getEventManager().register(listener);
+		int iteration = 1;
+		try {
+			boolean changed;
+			do {
+				changed = false;
+
+				// Drain the agenda of the network
+				while(network.hasPending() || !external.isEmpty()) {
+					if(monitor != null) {
+						if(monitor.isCanceled()) {
+							return iteration;
+						}
+						monitor.subTask("TopSPIN rule network iteration " + iteration);
+					}
+					Map<Resource,Resource> newInstances = new HashMap<Resource,Resource>();
+					for(Derivation derivation = network.poll(); derivation != null; derivation = network.poll()) {
+						Triple triple = derivation.getTriple();
+						if(!queryGraph.contains(triple) && !newGraph.contains(triple)) {
+							internal[0] = true;
+							try {
+								newGraph.add(triple);
+							}
+							finally {
+								internal[0] = false;
+							}
+							if(explanations != null) {
+								Resource source = derivation.getRule().getStatement().getSubject();
+								explanations.put(triple, derivation.getExplanationText(), source.asNode());
+							}
+							if(TYPE.equals(triple.getPredicate()) && !triple.getObject().isLiteral()) {
+								Resource subject = (Resource)queryModel.asRDFNode(triple.getSubject());
+								newInstances.put(subject, (Resource)queryModel.asRDFNode(triple.getObject()));
+							}
+							network.insert(triple);
+						}
+					}
+					if(!newInstances.isEmpty()) {
+						List<Resource> newRs = new ArrayList<Resource>(newInstances.keySet());
+						SPINConstructors.construct(queryModel, newRs, newTriples, new HashSet<Resource>(), class2Constructor,
+								templateBindings, statistics, explanations, monitor);
+					}
+					if(!external.isEmpty()) {
+						List<Triple> added = new ArrayList<Triple>(external);
+						external.clear();
+						for(Triple triple : added) {
+							network.insert(triple);
+						}
+					}
+				}
+
+				// Run the other rules, respecting their max iteration counts
+				Map<Resource,List<CommandWrapper>> fallbackMap = new HashMap<Resource,List<CommandWrapper>>();
+				for(CommandWrapper wrapper : fallbacks) {
+					Integer maxIterationCount = JenaUtil.getIntegerProperty(wrapper.getStatement().getPredicate(), SPIN.rulePropertyMaxIterationCount);
+					if(maxIterationCount == null || iteration <= maxIterationCount) {
+						Resource cls = rule2Class.get(wrapper);
+						List<CommandWrapper> list = fallbackMap.get(cls);
+						if(list == null) {
+							list = new ArrayList<CommandWrapper>();
+							fallbackMap.put(cls, list);
+						}
+						list.add(wrapper);
+					}
+				}
+				if(!fallbackMap.isEmpty()) {
+					SPINInferences.run(queryModel, newTriples, fallbackMap, class2Constructor, templateBindings, explanations, statistics, true, rulePredicate, comparator, monitor, validFunctionSources);
+					changed = !external.isEmpty();
+				}
+				iteration++;
+			}
+			while(changed);
+		}
+		finally {
+			newGraph.getEventManager().unregister(listener);
+		}
+
+		if(statistics != null) {
+			long duration = System.currentTimeMillis() - startTime;
+			String label = "Rule network (" + network.getRuleCount() + " rules, " + network.getJoinNodeCount() + " join nodes)";
+			statistics.add(new SPINStatistics(label, label, duration, startTime, rulePredicate.asNode()));
+		}
+
+		return iteration - 1;
+	}
+
+
+	private static Triple substitute(Triple triple, Binding binding) {
+		return Triple.create(substitute(triple.getSubject(), binding), substitute(triple.getPredicate(), binding), substitute(triple.getObject(), binding));
+	}
+
+
+	private static Node substitute(Node node, Binding binding) {
+		if(node.isVariable()) {
+			Node value = binding.get(Var.alloc(node));
+			if(value != null) {
+				return value;
+			}
+		}
+		return node;
+	}
+
+
+	/**
+	 * A triple that has been constructed by a rule of the network.
+	 */
+	public static class Derivation {
+
+		private Terminal terminal;
+
+		private Triple triple;
+
+
+		Derivation(Triple triple, Terminal terminal) {
+			this.terminal = terminal;
+			this.triple = triple;
+		}
+
+
+		public String getExplanationText() {
+			return terminal.explanationText;
+		}
+
+
+		public CommandWrapper getRule() {
+			return terminal.wrapper;
+		}
+
+
+		public Triple getTriple() {
+			return triple;
+		}
+	}
+
+
+	// Tests single triples against a pattern, sharing the results with all successors
+	private static class AlphaNode {
+
+		// The constants of the pattern or null for variables
+		private Node[] constants = new Node[3];
+
+		// For each position, the first position with the same variable or -1
+		private int[] same = new int[] { -1, -1, -1 };
+
+		private List<JoinNode> successors = new ArrayList<JoinNode>();
+
+
+		AlphaNode(Node[] pattern) {
+			for(int i = 0; i < 3; i++) {
+				if(pattern[i].isVariable()) {
+					for(int j = 0; j < i; j++) {
+						if(pattern[i].equals(pattern[j])) {
+							same[i] = j;
+							break;
+						}
+					}
+				}
+				else {
+					constants[i] = pattern[i];
+				}
+			}
+		}
+
+
+		void activate(Triple triple) {
+			Node[] nodes = nodes(triple);
+			for(int i = 0; i < 3; i++) {
+				if(constants[i] != null && !constants[i].equals(nodes[i])) {
+					return;
+				}
+				if(same[i] >= 0 && !nodes[same[i]].equals(nodes[i])) {
+					return;
+				}
+			}
+			for(JoinNode successor : successors) {
+				successor.rightActivate(triple, nodes);
+			}
+		}
+	}
+
+
+	private static abstract class Test {
+
+		String key;
+
+		int requiredSize;
+
+
+		Test(String key, int requiredSize) {
+			this.key = key;
+			this.requiredSize = requiredSize;
+		}
+
+
+		abstract boolean test(Node[] token, FunctionEnv env);
+	}
+
+
+	private static class FilterTest extends Test {
+
+		private Expr expr;
+
+
+		FilterTest(Expr expr, int requiredSize) {
+			super(expr.toString(), requiredSize);
+			this.expr = expr;
+		}
+
+
+		@Override
+		boolean test(Node[] token, FunctionEnv env) {
+			BindingMap binding = new BindingMap();
+			for(int i = 0; i < token.length; i++) {
+				binding.add(getCanonicalVar(i), token[i]);
+			}
+			return expr.isSatisfied(binding, env);
+		}
+	}
+
+
+	// Checks whether the value of ?TYPE_CLASS is the rule's class or one of its subclasses
+	private static class MembershipTest extends Test {
+
+		private int index;
+
+		private Set<Node> values;
+
+
+		MembershipTest(int index, Set<Node> values) {
+			super(getKey(index, values), index + 1);
+			this.index = index;
+			this.values = values;
+		}
+
+
+		private static String getKey(int index, Collection<Node> values) {
+			Set<String> strings = new TreeSet<String>();
+			for(Node value : values) {
+				strings.add(FmtUtils.stringForNode(value));
+			}
+			return "?v" + index + " IN " + strings;
+		}
+
+
+		@Override
+		boolean test(Node[] token, FunctionEnv env) {
+			return values.contains(token[index]);
+		}
+	}
+
+
+	// Joins the tokens of the parent node with the triples of an alpha node
+	private class JoinNode {
+
+		private List<JoinNode> children = new ArrayList<JoinNode>();
+
+		// The positions of the triple that are bound by the parent and their variable indices
+		private int[] joinPositions;
+
+		private int[] joinVars;
+
+		private String key;
+
+		private Map<List<Node>,List<Node[]>> leftMemory = new HashMap<List<Node>,List<Node[]>>();
+
+		private JoinNode parent;
+
+		// The variable index for each position of the triple or -1 for constants
+		private int[] positionVars = new int[3];
+
+		private Map<List<Node>,List<Node[]>> rightMemory = new HashMap<List<Node>,List<Node[]>>();
+
+		private int size;
+
+		private List<Terminal> terminals = new ArrayList<Terminal>();
+
+		private List<Test> tests;
+
+
+		JoinNode(String key, JoinNode parent, Triple canonical, int size, List<Test> tests) {
+			this.key = key;
+			this.parent = parent;
+			this.size = size;
+			this.tests = tests;
+			int parentSize = parent != null ? parent.size : 0;
+			List<Integer> positions = new ArrayList<Integer>();
+			Node[] nodes = nodes(canonical);
+			for(int i = 0; i < 3; i++) {
+				int index = nodes[i].isVariable() ? Integer.parseInt(nodes[i].getName().substring(1)) : -1;
+				positionVars[i] = index;
+				if(index >= 0 && index < parentSize) {
+					positions.add(i);
+				}
+			}
+			joinPositions = new int[positions.size()];
+			joinVars = new int[positions.size()];
+			for(int i = 0; i < joinPositions.length; i++) {
+				joinPositions[i] = positions.get(i);
+				joinVars[i] = positionVars[positions.get(i)];
+			}
+		}
+
+
+		private void emit(Node[] token, Node[] nodes) {
+			Node[] result = new Node[size];
+			if(token != null) {
+				System.arraycopy(token, 0, result, 0, token.length);
+			}
+			for(int i = 0; i < 3; i++) {
+				if(positionVars[i] >= 0) {
+					Node old = result[positionVars[i]];
+					if(old != null && !old.equals(nodes[i])) {
+						return;
+					}
+					result[positionVars[i]] = nodes[i];
+				}
+			}
+			for(Test test : tests) {
+				if(!test.test(result, env)) {
+					return;
+				}
+			}
+			for(JoinNode child : children) {
+				child.leftActivate(result);
+			}
+			for(Terminal terminal : terminals) {
+				terminal.fire(result);
+			}
+		}
+
+
+		void leftActivate(Node[] token) {
+			Node[] values = new Node[joinVars.length];
+			for(int i = 0; i < values.length; i++) {
+				values[i] = token[joinVars[i]];
+			}
+			List<Node> joinKey = Arrays.asList(values);
+			put(leftMemory, joinKey, token);
+			List<Node[]> matches = rightMemory.get(joinKey);
+			if(matches != null) {
+				for(Node[] nodes : matches) {
+					emit(token, nodes);
+				}
+			}
+		}
+
+
+		private void put(Map<List<Node>,List<Node[]>> memory, List<Node> joinKey, Node[] entry) {
+			List<Node[]> list = memory.get(joinKey);
+			if(list == null) {
+				list = new ArrayList<Node[]>(2);
+				memory.put(joinKey, list);
+			}
+			list.add(entry);
+		}
+
+
+		void rightActivate(Triple triple, Node[] nodes) {
+			if(parent == null) {
+				emit(null, nodes);
+			}
+			else {
+				Node[] values = new Node[joinPositions.length];
+				for(int i = 0; i < values.length; i++) {
+					values[i] = nodes[joinPositions[i]];
+				}
+				List<Node> joinKey = Arrays.asList(values);
+				put(rightMemory, joinKey, nodes);
+				List<Node[]> matches = leftMemory.get(joinKey);
+				if(matches != null) {
+					for(Node[] token : matches) {
+						emit(token, nodes);
+					}
+				}
+			}
+		}
+	}
+
+
+	// Instantiates the CONSTRUCT template of a rule for each complete match
+	private class Terminal {
+
+		private String explanationText;
+
+		private Binding initial;
+
+		private Query query;
+
+		private Var[] vars;
+
+		private CommandWrapper wrapper;
+
+
+		Terminal(CommandWrapper wrapper, Query query, Binding initial, List<Var> vars, String explanationText) {
+			this.explanationText = explanationText;
+			this.initial = initial;
+			this.query = query;
+			this.vars = vars.toArray(new Var[vars.size()]);
+			this.wrapper = wrapper;
+		}
+
+
+		void fire(Node[] token) {
+			BindingMap binding = new BindingMap(initial);
+			for(int i = 0; i < token.length; i++) {
+				binding.add(vars[i], token[i]);
+			}
+			List<Triple> triples = new ArrayList<Triple>();
+			query.getConstructTemplate().subst(triples, new HashMap<Node,Node>(), binding);
+			for(Triple triple : triples) {
+				if(triple.isConcrete() && !triple.getSubject().isLiteral() && triple.getPredicate().isURI()) {
+					agenda.add(new Derivation(triple, this));
+				}
+			}
+		}
+	}
+}
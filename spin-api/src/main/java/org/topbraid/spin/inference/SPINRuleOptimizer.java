@@ -0,0 +1,343 @@
+package org.topbraid.spin.inference;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+
+import org.topbraid.spin.util.SPINUtil;
+
+import com.hp.hpl.jena.graph.Graph;
+import com.hp.hpl.jena.graph.GraphStatisticsHandler;
+import com.hp.hpl.jena.graph.Node;
+import com.hp.hpl.jena.graph.Triple;
+import com.hp.hpl.jena.query.Query;
+import com.hp.hpl.jena.sparql.core.TriplePath;
+import com.hp.hpl.jena.sparql.syntax.Element;
+import com.hp.hpl.jena.sparql.syntax.ElementAssign;
+import com.hp.hpl.jena.sparql.syntax.ElementBind;
+import com.hp.hpl.jena.sparql.syntax.ElementFilter;
+import com.hp.hpl.jena.sparql.syntax.ElementGroup;
+import com.hp.hpl.jena.sparql.syntax.ElementNamedGraph;
+import com.hp.hpl.jena.sparql.syntax.ElementOptional;
+import com.hp.hpl.jena.sparql.syntax.ElementPathBlock;
+import com.hp.hpl.jena.sparql.syntax.ElementTriplesBlock;
+import com.hp.hpl.jena.sparql.syntax.ElementUnion;
+
+
+/**
+ * Reorders the basic graph patterns in the WHERE clause of SPIN rules
+ * based on the cardinalities reported by the GraphStatisticsHandler of
+ * the query Graph, so that the most selective patterns are evaluated first.
+ * This matters because SPINThreadFunctionRegistry installs a StageGenerator
+ * that evaluates triple patterns in source order.
+ *
+ * Within each group, consecutive triple blocks (only interrupted by
+ * FILTERs) are merged and reordered greedily: the next pattern is the
+ * cheapest one that shares a variable with the already bound variables,
+ * where variables bound by initial bindings (such as ?TYPE_CLASS) count
+ * as bound.  FILTERs of the group are placed after the merged block, which
+ * does not change their semantics because they apply to the whole group;
+ * the actual placement of the filters inside the BGP is left to ARQ's
+ * filter placement optimization.  OPTIONAL, UNION and GRAPH blocks are
+ * optimized recursively, but triples are never moved across them.
+ * Likewise, triple patterns that call property functions (such as
+ * list:member or SPIN magic properties) stay in place and act as barriers,
+ * because they usually need the variables of the preceding patterns to be
+ * bound and have no meaningful statistics.
+ *
+ * The optimized queries are cached per rule (i.e. ARQ Query) and re-planned
+ * if one of the statistics that the plan was based on has changed by more
+ * than the drift factor.  If the Graph does not provide statistics then the
+ * queries are left unchanged.
+ */
+public class SPINRuleOptimizer {
+
+	public final static double DEFAULT_DRIFT = 2.0;
+
+	// Estimated fraction of matches left if a subject, predicate or object is bound
+	private final static double BOUND_SELECTIVITY = 0.01;
+
+	// Penalty for complex property paths
+	private final static double PATH_FACTOR = 10;
+
+	// Used if the Graph cannot estimate a pattern
+	private final static long UNKNOWN = 1000000;
+
+	private double drift = DEFAULT_DRIFT;
+
+	private Map<Query,Plan> plans = Collections.synchronizedMap(new WeakHashMap<Query,Plan>());
+
+
+	public double getDrift() {
+		return drift;
+	}
+
+
+	/**
+	 * Gets an optimized version of a given rule, either from the cache or by
+	 * creating a new plan.
+	 * @param query  the (CONSTRUCT) query to optimize
+	 * @param graph  the Graph that the query will be executed on
+	 * @param boundVarNames  the names of the variables that have initial bindings
+	 * @return the optimized query or query itself if no statistics are available
+	 */
+	public Query optimize(Query query, Graph graph, Set<String> boundVarNames) {
+		GraphStatisticsHandler handler = graph.getStatisticsHandler();
+		if(handler == null || query.getQueryPattern() == null) {
+			return query;
+		}
+		Plan plan = plans.get(query);
+		if(plan == null || !plan.boundVarNames.equals(boundVarNames) || plan.hasDrifted(handler)) {
+			plan = new Plan(query, handler, boundVarNames);
+			plans.put(query, plan);
+		}
+		return plan.optimized;
+	}
+
+
+	/**
+	 * Drops all cached plans.
+	 */
+	public void reset() {
+		plans.clear();
+	}
+
+
+	/**
+	 * Sets the factor by which a statistic may change before a rule is re-planned.
+	 * @param drift  the drift factor (greater than 1)
+	 */
+	public void setDrift(double drift) {
+		if(drift <= 1) {
+			throw new IllegalArgumentException("Drift must be greater than 1");
+		}
+		this.drift = drift;
+	}
+
+
+	private static long getStatistic(GraphStatisticsHandler handler, Triple key) {
+		try {
+			return handler.getStatistic(key.getSubject(), key.getPredicate(), key.getObject());
+		}
+		catch(RuntimeException ex) {
+			// E.g. MultiUnions with sub-graphs that have no statistics
+			return -1;
+		}
+	}
+
+
+	private static Node toKeyNode(Node node) {
+		return node == null || node.isVariable() || node.isBlank() ? Node.ANY : node;
+	}
+
+
+	private class Plan {
+
+		private Set<String> boundVarNames;
+
+		private GraphStatisticsHandler handler;
+
+		private Query optimized;
+
+		// The statistics that the plan is based on
+		private Map<Triple,Long> statistics = new HashMap<Triple,Long>();
+
+
+		Plan(Query query, GraphStatisticsHandler handler, Set<String> boundVarNames) {
+			this.boundVarNames = new HashSet<String>(boundVarNames);
+			this.handler = handler;
+			this.optimized = query.cloneQuery();
+			Set<String> bound = new HashSet<String>(boundVarNames);
+			optimized.setQueryPattern(optimize(optimized.getQueryPattern(), bound));
+			this.handler = null; // Don't keep the Graph alive
+		}
+
+
+		private double estimate(TriplePath path, Set<String> bound) {
+			Node predicate = path.isTriple() ? path.getPredicate() : null;
+			Triple key = Triple.create(toKeyNode(path.getSubject()), toKeyNode(predicate), toKeyNode(path.getObject()));
+			long count = getStatistic(key);
+			if(count < 0 && !Node.ANY.equals(key.getPredicate())) {
+				// Fall back to the predicate only
+				count = getStatistic(Triple.create(Node.ANY, key.getPredicate(), Node.ANY));
+			}
+			double cost = count < 0 ? UNKNOWN : count;
+			for(Node node : new Node[] { path.getSubject(), predicate, path.getObject() }) {
+				if(node != null && node.isVariable() && bound.contains(node.getName())) {
+					cost *= BOUND_SELECTIVITY;
+				}
+			}
+			if(!path.isTriple()) {
+				cost *= PATH_FACTOR;
+			}
+			return cost;
+		}
+
+
+		private long getStatistic(Triple key) {
+			Long value = statistics.get(key);
+			if(value == null) {
+				value = SPINRuleOptimizer.getStatistic(handler, key);
+				statistics.put(key, value);
+			}
+			return value;
+		}
+
+
+		boolean hasDrifted(GraphStatisticsHandler current) {
+			for(Triple key : statistics.keySet()) {
+				double old = statistics.get(key) + 1;
+				double now = SPINRuleOptimizer.getStatistic(current, key) + 1;
+				if(old <= 0 || now <= 0) {
+					if(old != now) {
+						return true;
+					}
+				}
+				else if(now > old * drift || old > now * drift) {
+					return true;
+				}
+			}
+			return false;
+		}
+
+
+		private Element optimize(Element element, Set<String> bound) {
+			if(element instanceof ElementGroup) {
+				return optimizeGroup((ElementGroup)element, bound);
+			}
+			else if(element instanceof ElementOptional) {
+				Set<String> inner = new HashSet<String>(bound);
+				return new ElementOptional(optimize(((ElementOptional)element).getOptionalElement(), inner));
+			}
+			else if(element instanceof ElementUnion) {
+				ElementUnion union = new ElementUnion();
+				for(Element member : ((ElementUnion)element).getElements()) {
+					union.addElement(optimize(member, new HashSet<String>(bound)));
+				}
+				return union;
+			}
+			else if(element instanceof ElementNamedGraph) {
+				ElementNamedGraph namedGraph = (ElementNamedGraph) element;
+				Node graphNameNode = namedGraph.getGraphNameNode();
+				if(graphNameNode.isVariable()) {
+					bound.add(graphNameNode.getName());
+				}
+				return new ElementNamedGraph(graphNameNode, optimize(namedGraph.getElement(), bound));
+			}
+			else {
+				return element;
+			}
+		}
+
+
+		private ElementGroup optimizeGroup(ElementGroup group, Set<String> bound) {
+			ElementGroup result = new ElementGroup();
+			List<TriplePath> triples = new ArrayList<TriplePath>();
+			List<Element> filters = new ArrayList<Element>();
+			for(Element element : group.getElements()) {
+				if(element instanceof ElementPathBlock) {
+					triples.addAll(((ElementPathBlock)element).getPattern().getList());
+				}
+				else if(element instanceof ElementTriplesBlock) {
+					for(Triple triple : ((ElementTriplesBlock)element).getPattern().getList()) {
+						triples.add(new TriplePath(triple));
+					}
+				}
+				else if(element instanceof ElementFilter) {
+					filters.add(element);
+				}
+				else {
+					flush(result, triples, filters, bound);
+					result.addElement(optimize(element, bound));
+					if(element instanceof ElementBind) {
+						bound.add(((ElementBind)element).getVar().getName());
+					}
+					else if(element instanceof ElementAssign) {
+						bound.add(((ElementAssign)element).getVar().getName());
+					}
+				}
+			}
+			flush(result, triples, filters, bound);
+			return result;
+		}
+
+
+		private void flush(ElementGroup result, List<TriplePath> triples, List<Element> filters, Set<String> bound) {
+			if(!triples.isEmpty()) {
+				ElementPathBlock block = new ElementPathBlock();
+				List<TriplePath> segment = new ArrayList<TriplePath>();
+				for(TriplePath path : triples) {
+					if(path.isTriple() && SPINUtil.isPropertyFunction(path.getPredicate())) {
+						reorder(block, segment, bound);
+						block.addTriplePath(path);
+						addVars(path, bound);
+					}
+					else {
+						segment.add(path);
+					}
+				}
+				reorder(block, segment, bound);
+				result.addElement(block);
+				triples.clear();
+			}
+			for(Element filter : filters) {
+				result.addElement(filter);
+			}
+			filters.clear();
+		}
+
+
+		// Appends the given triples to the block, cheapest connected pattern first
+		private void reorder(ElementPathBlock block, List<TriplePath> triples, Set<String> bound) {
+			List<TriplePath> remaining = new ArrayList<TriplePath>(triples);
+			triples.clear();
+			while(!remaining.isEmpty()) {
+				TriplePath best = null;
+				double bestCost = 0;
+				boolean bestConnected = false;
+				for(TriplePath candidate : remaining) {
+					boolean connected = bound.isEmpty() || isConnected(candidate, bound);
+					double cost = estimate(candidate, bound);
+					if(best == null || (connected && !bestConnected) || (connected == bestConnected && cost < bestCost)) {
+						best = candidate;
+						bestCost = cost;
+						bestConnected = connected;
+					}
+				}
+				remaining.remove(best);
+				block.addTriplePath(best);
+				addVars(best, bound);
+			}
+		}
+
+
+		private void addVars(TriplePath path, Set<String> bound) {
+			for(Node node : new Node[] { path.getSubject(), path.getPredicate(), path.getObject() }) {
+				if(node != null && node.isVariable()) {
+					bound.add(node.getName());
+				}
+			}
+		}
+
+
+		// True if the subject or object is a constant or if any variable is already bound
+		private boolean isConnected(TriplePath path, Set<String> bound) {
+			for(Node node : new Node[] { path.getSubject(), path.getPredicate(), path.getObject() }) {
+				if(node != null && node.isVariable()) {
+					if(bound.contains(node.getName())) {
+						return true;
+					}
+				}
+				else if(node != null && node != path.getPredicate()) {
+					return true;
+				}
+			}
+			return false;
+		}
+	}
+}
@@ -0,0 +1,98 @@
+package org.topbraid.spin.model.compiled;
+
+import org.topbraid.spin.model.Command;
+import org.topbraid.spin.vocabulary.SPIN;
+
+import com.hp.hpl.jena.graph.Node;
+
+
+/**
+ * Common analyses of SPIN commands whose results are cached with the
+ * CompiledCommands, so that each command only needs to be analyzed once
+ * per Graph.  Like all CompiledCommands, the results are dropped when
+ * SPIN triples change through the Graph of the command, but changes made
+ * directly to sub-graphs require a call to CompiledCommands.invalidate.
+ */
+public class CompiledAnalyses {
+
+	private final static Node THIS_VAR = Node.createVariable(SPIN.THIS_VAR_NAME);
+
+
+	/**
+	 * Checks whether a given command mentions the variable ?this in its
+	 * templates or WHERE clause.  Like SPINUtil.containsThis, this does not
+	 * look into sub queries, the elements of EXISTS or the bodies of SPIN
+	 * functions, but it walks the compiled command, caches the result and
+	 * also recognizes ?this if it is not represented by spin:_this.
+	 * @param command  the command to test
+	 * @return true  if the command mentions ?this
+	 */
+	public static boolean containsThis(Command command) {
+		return CompiledCommands.get(command).getResult(ContainsThis.DEFAULT);
+	}
+
+
+	/**
+	 * Checks whether a given command mentions the variable ?this in its
+	 * templates or WHERE clause, including the elements of EXISTS and
+	 * NOT EXISTS (but not sub queries or the bodies of SPIN functions).
+	 * This can be used to check whether the results depend on the
+	 * binding of ?this.
+	 * @param command  the command to test
+	 * @return true  if the command mentions ?this
+	 */
+	public static boolean containsThisWithExists(Command command) {
+		return CompiledCommands.get(command).getResult(ContainsThis.WITH_EXISTS);
+	}
+
+
+	private static class ContainsThis extends CompiledAnalysis<Boolean> {
+
+		final static ContainsThis DEFAULT = new ContainsThis(false);
+
+		final static ContainsThis WITH_EXISTS = new ContainsThis(true);
+
+		private boolean withExists;
+
+
+		private ContainsThis(boolean withExists) {
+			this.withExists = withExists;
+		}
+
+
+		@Override
+		protected Boolean compute(CompiledCommand command) {
+			final boolean[] result = new boolean[1];
+			command.walk(new CompiledVisitor() {
+
+				@Override
+				public void visit(CompiledElement element) {
+					if(element.getKind() == CompiledElement.Kind.TRIPLE_PATTERN) {
+						for(int i = 0; i < 3; i++) {
+							if(THIS_VAR.equals(element.getTerm(i))) {
+								result[0] = true;
+							}
+						}
+					}
+					else if(element.getKind() == CompiledElement.Kind.TRIPLE_PATH) {
+						if(THIS_VAR.equals(element.getTerm(0)) || THIS_VAR.equals(element.getTerm(2))) {
+							result[0] = true;
+						}
+					}
+				}
+
+
+				@Override
+				public void visit(CompiledExpression expression) {
+					if(expression.isVariable() && THIS_VAR.equals(expression.getNode())) {
+						result[0] = true;
+					}
+					else if(withExists && expression.getElements() != null) {
+						expression.getElements().walk(this);
+					}
+				}
+			});
+			return result[0];
+		}
+	}
+}
@@ -0,0 +1,20 @@
+package org.topbraid.spin.model.compiled;
+
+
+/**
+ * An analysis of a CompiledCommand whose result is cached by the command.
+ * Since CompiledCommands are immutable, each analysis only needs to run
+ * once per command.  The analysis object itself is used as cache key, so
+ * analyses with parameters must implement equals and hashCode.
+ */
+public abstract class CompiledAnalysis<T> {
+
+	/**
+	 * Computes the result for a given command.  The result should not
+	 * be modified by callers, so implementations should return unmodifiable
+	 * collections.
+	 * @param command  the command to analyze
+	 * @return the result
+	 */
+	protected abstract T compute(CompiledCommand command);
+}
@@ -0,0 +1,128 @@
+package org.topbraid.spin.model.compiled;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import com.hp.hpl.jena.graph.Node;
+
+
+/**
+ * An immutable compiled form of a SPIN Command (Query or Update).
+ * Instances are created by CompiledCommands and can be shared across
+ * threads.  In addition to the WHERE clause, the templates (the CONSTRUCT
+ * templates, INSERT patterns or INSERT DATA triples) and the delete
+ * templates (DELETE patterns or DELETE DATA triples) are compiled.
+ *
+ * The results of CompiledAnalyses are cached by each instance.
+ */
+public final class CompiledCommand {
+
+	private final static Object NULL = new Object();
+
+	private final CompiledElement[] deleteTemplates;
+
+	private final Node node;
+
+	private final ConcurrentMap<CompiledAnalysis<?>,Object> results = new ConcurrentHashMap<CompiledAnalysis<?>,Object>();
+
+	private final CompiledElement[] templates;
+
+	private final Node type;
+
+	private final CompiledElement where;
+
+
+	CompiledCommand(Node node, Node type, CompiledElement where, CompiledElement[] templates, CompiledElement[] deleteTemplates) {
+		this.deleteTemplates = deleteTemplates;
+		this.node = node;
+		this.templates = templates;
+		this.type = type;
+		this.where = where;
+	}
+
+
+	public CompiledElement getDeleteTemplate(int index) {
+		return deleteTemplates[index];
+	}
+
+
+	public int getDeleteTemplateCount() {
+		return deleteTemplates.length;
+	}
+
+
+	/**
+	 * Gets the Node of the command that this has been compiled from.
+	 * @return the command Node
+	 */
+	public Node getNode() {
+		return node;
+	}
+
+
+	/**
+	 * Gets the (possibly cached) result of a given analysis.
+	 * @param analysis  the analysis
+	 * @return the result
+	 */
+	@SuppressWarnings("unchecked")
+	public <T> T getResult(CompiledAnalysis<T> analysis) {
+		Object result = results.get(analysis);
+		if(result == null) {
+			result = analysis.compute(this);
+			if(result == null) {
+				result = NULL;
+			}
+			Object old = results.putIfAbsent(analysis, result);
+			if(old != null) {
+				result = old;
+			}
+		}
+		return result == NULL ? null : (T) result;
+	}
+
+
+	public CompiledElement getTemplate(int index) {
+		return templates[index];
+	}
+
+
+	public int getTemplateCount() {
+		return templates.length;
+	}
+
+
+	/**
+	 * Gets the rdf:type of the command, e.g. sp:Construct.
+	 * @return the type or null
+	 */
+	public Node getType() {
+		return type;
+	}
+
+
+	/**
+	 * Gets the WHERE clause.
+	 * @return the ELEMENT_LIST or null
+	 */
+	public CompiledElement getWhere() {
+		return where;
+	}
+
+
+	/**
+	 * Walks the templates, delete templates and WHERE clause of this command.
+	 * @param visitor  the visitor
+	 */
+	public void walk(CompiledVisitor visitor) {
+		for(CompiledElement template : templates) {
+			template.walk(visitor);
+		}
+		for(CompiledElement template : deleteTemplates) {
+			template.walk(visitor);
+		}
+		if(where != null) {
+			where.walk(visitor);
+		}
+	}
+}
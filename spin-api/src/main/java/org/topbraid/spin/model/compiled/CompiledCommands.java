@@ -0,0 +1,375 @@
+package org.topbraid.spin.model.compiled;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.topbraid.spin.model.Aggregation;
+import org.topbraid.spin.model.Bind;
+import org.topbraid.spin.model.Element;
+import org.topbraid.spin.model.ElementGroup;
+import org.topbraid.spin.model.ElementList;
+import org.topbraid.spin.model.Filter;
+import org.topbraid.spin.model.FunctionCall;
+import org.topbraid.spin.model.Minus;
+import org.topbraid.spin.model.NamedGraph;
+import org.topbraid.spin.model.NotExists;
+import org.topbraid.spin.model.Optional;
+import org.topbraid.spin.model.SPINFactory;
+import org.topbraid.spin.model.Service;
+import org.topbraid.spin.model.SubQuery;
+import org.topbraid.spin.model.TriplePath;
+import org.topbraid.spin.model.TriplePattern;
+import org.topbraid.spin.model.Union;
+import org.topbraid.spin.model.Variable;
+import org.topbraid.spin.util.AbstractGraphListener;
+import org.topbraid.spin.vocabulary.SP;
+
+import com.hp.hpl.jena.graph.Graph;
+import com.hp.hpl.jena.graph.Node;
+import com.hp.hpl.jena.graph.Triple;
+import com.hp.hpl.jena.rdf.model.Property;
+import com.hp.hpl.jena.rdf.model.RDFList;
+import com.hp.hpl.jena.rdf.model.RDFNode;
+import com.hp.hpl.jena.rdf.model.Resource;
+import com.hp.hpl.jena.util.iterator.ExtendedIterator;
+import com.hp.hpl.jena.vocabulary.RDF;
+
+
+/**
+ * Compiles SPIN Commands into CompiledCommands and caches them by command
+ * Node, separately for each Graph.
+ *
+ * The conversion walks the enhanced-node model once, so that subsequent
+ * traversals and analyses only need to iterate over arrays.  Each cache
+ * registers a GraphListener with its Graph, and drops all entries as soon
+ * as a triple that may belong to a SPIN tree (SP properties, RDF list
+ * triples and rdf:types of blank nodes) is added or deleted through that
+ * Graph.  Changes made directly to sub-graphs (e.g. of a MultiUnion) are
+ * not noticed and require an explicit call to invalidate.
+ */
+public class CompiledCommands {
+
+	private final static Map<Graph,Map<Node,CompiledCommand>> caches = new WeakHashMap<Graph,Map<Node,CompiledCommand>>();
+
+
+	/**
+	 * Drops all cached commands of all Graphs.
+	 */
+	public static void clear() {
+		synchronized(caches) {
+			for(Map<Node,CompiledCommand> cache : caches.values()) {
+				cache.clear();
+			}
+		}
+	}
+
+
+	/**
+	 * Compiles a given command, bypassing the cache.
+	 * @param command  the Query or Update to compile
+	 * @return a new CompiledCommand
+	 */
+	public static CompiledCommand compile(Resource command) {
+		Resource typeR = command.getPropertyResourceValue(RDF.type);
+		Node type = typeR != null ? typeR.asNode() : null;
+		CompiledElement where = compileList(command.getPropertyResourceValue(SP.where));
+		List<CompiledElement> templates = new ArrayList<CompiledElement>();
+		List<CompiledElement> deleteTemplates = new ArrayList<CompiledElement>();
+		addTemplates(command.getPropertyResourceValue(SP.templates), templates);
+		addTemplates(command.getPropertyResourceValue(SP.insertPattern), templates);
+		addTemplates(command.getPropertyResourceValue(SP.deletePattern), deleteTemplates);
+		if(SP.DeleteData.equals(typeR)) {
+			addTemplates(command.getPropertyResourceValue(SP.data), deleteTemplates);
+		}
+		else {
+			addTemplates(command.getPropertyResourceValue(SP.data), templates);
+		}
+		return new CompiledCommand(command.asNode(), type, where,
+				templates.toArray(CompiledElement.NO_CHILDREN),
+				deleteTemplates.toArray(CompiledElement.NO_CHILDREN));
+	}
+
+
+	/**
+	 * Gets the CompiledCommand for a given command, compiling it if needed.
+	 * @param command  the Query or Update
+	 * @return the CompiledCommand
+	 */
+	public static CompiledCommand get(Resource command) {
+		Map<Node,CompiledCommand> cache = getCache(command.getModel().getGraph());
+		Node node = command.asNode();
+		CompiledCommand result = cache.get(node);
+		if(result == null) {
+			result = compile(command);
+			cache.put(node, result);
+		}
+		return result;
+	}
+
+
+	/**
+	 * Drops all cached commands from a given Graph.
+	 * @param graph  the Graph
+	 */
+	public static void invalidate(Graph graph) {
+		synchronized(caches) {
+			Map<Node,CompiledCommand> cache = caches.get(graph);
+			if(cache != null) {
+				cache.clear();
+			}
+		}
+	}
+
+
+	private static void addTemplates(Resource list, List<CompiledElement> results) {
+		CompiledElement compiled = compileList(list);
+		if(compiled != null) {
+			for(int i = 0; i < compiled.getChildCount(); i++) {
+				results.add(compiled.getChild(i));
+			}
+		}
+	}
+
+
+	private static CompiledElement compileElement(Element element) {
+		if(element instanceof TriplePattern) {
+			TriplePattern triple = (TriplePattern) element;
+			return createElement(CompiledElement.Kind.TRIPLE_PATTERN, element, new Node[] {
+					toNode(triple.getSubject()),
+					toNode(triple.getPredicate()),
+					toNode(triple.getObject())
+				});
+		}
+		else if(element instanceof TriplePath) {
+			TriplePath path = (TriplePath) element;
+			return createElement(CompiledElement.Kind.TRIPLE_PATH, element, new Node[] {
+					toNode(path.getSubject()),
+					toNode(path.getPropertyResourceValue(SP.path)),
+					toNode(path.getObject())
+				});
+		}
+		else if(element instanceof Filter) {
+			CompiledExpression expression = compileExpression(((Filter)element).getExpression());
+			return new CompiledElement(CompiledElement.Kind.FILTER, element.asNode(), CompiledElement.NO_TERMS, expression, CompiledElement.NO_CHILDREN, null);
+		}
+		else if(element instanceof Bind) {
+			Bind bind = (Bind) element;
+			CompiledExpression expression = compileExpression(bind.getExpression());
+			Node[] terms = new Node[] { toNode(bind.getVariable()) };
+			return new CompiledElement(CompiledElement.Kind.BIND, element.asNode(), terms, expression, CompiledElement.NO_CHILDREN, null);
+		}
+		else if(element instanceof Optional) {
+			return createElement(CompiledElement.Kind.OPTIONAL, element, CompiledElement.NO_TERMS);
+		}
+		else if(element instanceof NamedGraph) {
+			Node[] terms = new Node[] { toNode(((NamedGraph)element).getNameNode()) };
+			return createElement(CompiledElement.Kind.NAMED_GRAPH, element, terms);
+		}
+		else if(element instanceof Minus) {
+			return createElement(CompiledElement.Kind.MINUS, element, CompiledElement.NO_TERMS);
+		}
+		else if(element instanceof NotExists) {
+			return createElement(CompiledElement.Kind.NOT_EXISTS, element, CompiledElement.NO_TERMS);
+		}
+		else if(element instanceof Service) {
+			Node[] terms = new Node[] { toNode(element.getPropertyResourceValue(SP.serviceURI)) };
+			return createElement(CompiledElement.Kind.SERVICE, element, terms);
+		}
+		else if(element instanceof SubQuery) {
+			org.topbraid.spin.model.Query query = ((SubQuery)element).getQuery();
+			CompiledCommand subQuery = query != null ? compile(query) : null;
+			return new CompiledElement(CompiledElement.Kind.SUB_QUERY, element.asNode(), CompiledElement.NO_TERMS, null, CompiledElement.NO_CHILDREN, subQuery);
+		}
+		else if(element instanceof Union) {
+			return createElement(CompiledElement.Kind.UNION, element, CompiledElement.NO_TERMS);
+		}
+		else if(element instanceof ElementList) {
+			return createElement(CompiledElement.Kind.ELEMENT_LIST, element, CompiledElement.NO_TERMS);
+		}
+		else {
+			return null;
+		}
+	}
+
+
+	private static CompiledExpression compileExpression(RDFNode node) {
+		if(node == null) {
+			return null;
+		}
+		RDFNode expr = SPINFactory.asExpression(node);
+		if(expr instanceof Variable) {
+			return new CompiledExpression(toNode(expr));
+		}
+		else if(expr instanceof FunctionCall) {
+			FunctionCall functionCall = (FunctionCall) expr;
+			Resource function = functionCall.getFunction();
+			List<RDFNode> args = functionCall.getArguments();
+			Map<Property,RDFNode> argsMap = functionCall.getArgumentsMap();
+			CompiledExpression[] compiledArgs = new CompiledExpression[args.size()];
+			Node[] argProperties = new Node[compiledArgs.length];
+			for(int i = 0; i < compiledArgs.length; i++) {
+				compiledArgs[i] = compileExpression(args.get(i));
+				argProperties[i] = removeArgProperty(argsMap, args.get(i));
+			}
+			CompiledElement elements = compileList(functionCall.getPropertyResourceValue(SP.elements));
+			return new CompiledExpression(CompiledExpression.Kind.FUNCTION_CALL, function != null ? function.asNode() : null, compiledArgs, argProperties, elements, false);
+		}
+		else if(expr instanceof Aggregation) {
+			Aggregation aggregation = (Aggregation) expr;
+			Resource aggType = aggregation.getPropertyResourceValue(RDF.type);
+			Resource expression = aggregation.getExpression();
+			CompiledExpression[] args = expression != null ?
+					new CompiledExpression[] { compileExpression(expression) } :
+					CompiledExpression.NO_ARGS;
+			Node[] argProperties = expression != null ? new Node[] { SP.expression.asNode() } : CompiledElement.NO_TERMS;
+			return new CompiledExpression(CompiledExpression.Kind.AGGREGATION, aggType != null ? aggType.asNode() : null, args, argProperties, null, aggregation.isDistinct());
+		}
+		else {
+			return new CompiledExpression(expr.asNode());
+		}
+	}
+
+
+	private static CompiledElement compileList(Resource list) {
+		if(list == null) {
+			return null;
+		}
+		List<CompiledElement> children = new ArrayList<CompiledElement>();
+		ExtendedIterator<RDFNode> it = list.as(RDFList.class).iterator();
+		while(it.hasNext()) {
+			RDFNode member = it.next();
+			if(member.isResource()) {
+				Element element = SPINFactory.asElement((Resource)member);
+				if(element != null) {
+					CompiledElement child = compileElement(element);
+					if(child != null) {
+						children.add(child);
+					}
+				}
+			}
+		}
+		return new CompiledElement(CompiledElement.Kind.ELEMENT_LIST, list.asNode(), CompiledElement.NO_TERMS, null, children.toArray(CompiledElement.NO_CHILDREN), null);
+	}
+
+
+	private static CompiledElement createElement(CompiledElement.Kind kind, Element element, Node[] terms) {
+		CompiledElement[] children = CompiledElement.NO_CHILDREN;
+		if(element instanceof ElementGroup) {
+			List<Element> elements = ((ElementGroup)element).getElements();
+			List<CompiledElement> compiled = new ArrayList<CompiledElement>(elements.size());
+			for(Element child : elements) {
+				if(child != null) {
+					CompiledElement c = compileElement(child);
+					if(c != null) {
+						compiled.add(c);
+					}
+				}
+			}
+			children = compiled.toArray(CompiledElement.NO_CHILDREN);
+		}
+		return new CompiledElement(kind, element.asNode(), terms, null, children, null);
+	}
+
+
+	private static Map<Node,CompiledCommand> getCache(Graph graph) {
+		synchronized(caches) {
+			Map<Node,CompiledCommand> cache = caches.get(graph);
+			if(cache == null) {
+				cache = new ConcurrentHashMap<Node,CompiledCommand>();
+				caches.put(graph, cache);
+				graph.getEventManager().register(new Invalidator(cache));
+			}
+			return cache;
+		}
+	}
+
+
+	// Finds (and removes) the property of an argument of getArguments in the getArgumentsMap.
+	// If several arguments have the same value then it does not matter which of them gets which property.
+	private static Node removeArgProperty(Map<Property,RDFNode> argsMap, RDFNode arg) {
+		for(Property property : argsMap.keySet()) {
+			if(argsMap.get(property).asNode().equals(arg.asNode())) {
+				argsMap.remove(property);
+				return property.asNode();
+			}
+		}
+		return null;
+	}
+
+
+	private static Node toNode(RDFNode node) {
+		if(node == null) {
+			return null;
+		}
+		Variable variable = node instanceof Variable ? (Variable) node : SPINFactory.asVariable(node);
+		if(variable != null) {
+			return Node.createVariable(variable.getName());
+		}
+		else {
+			return node.asNode();
+		}
+	}
+
+
+	private static class Invalidator extends AbstractGraphListener {
+
+		private final static Node FIRST = RDF.first.asNode();
+
+		private final static Node REST = RDF.rest.asNode();
+
+		private final static Node TYPE = RDF.type.asNode();
+
+		private Map<Node,CompiledCommand> cache;
+
+
+		Invalidator(Map<Node,CompiledCommand> cache) {
+			this.cache = cache;
+		}
+
+
+		@Override
+		public void notifyAddGraph(Graph g, Graph added) {
+			cache.clear();
+		}
+
+
+		@Override
+		public void notifyAddTriple(Graph g, Triple t) {
+			check(t);
+		}
+
+
+		@Override
+		public void notifyDeleteGraph(Graph g, Graph removed) {
+			cache.clear();
+		}
+
+
+		@Override
+		public void notifyDeleteTriple(Graph g, Triple t) {
+			check(t);
+		}
+
+
+		@Override
+		protected void notifyRemoveAll(Graph source, Triple pattern) {
+			cache.clear();
+		}
+
+
+		private void check(Triple t) {
+			if(!cache.isEmpty()) {
+				Node predicate = t.getPredicate();
+				if(FIRST.equals(predicate) || REST.equals(predicate) ||
+						(predicate.isURI() && predicate.getURI().startsWith(SP.NS)) ||
+						(TYPE.equals(predicate) && (t.getSubject().isBlank() ||
+								(t.getObject().isURI() && t.getObject().getURI().startsWith(SP.NS))))) {
+					cache.clear();
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,126 @@
+package org.topbraid.spin.model.compiled;
+
+import com.hp.hpl.jena.graph.Node;
+
+
+/**
+ * An immutable compiled form of an org.topbraid.spin.model.Element.
+ *
+ * The meaning of the terms depends on the kind of element:
+ * <ul>
+ *   <li>TRIPLE_PATTERN: subject, predicate, object</li>
+ *   <li>TRIPLE_PATH: subject, path, object</li>
+ *   <li>NAMED_GRAPH: the graph name</li>
+ *   <li>SERVICE: the service URI</li>
+ *   <li>BIND: the variable</li>
+ * </ul>
+ * Variables are represented as variable Nodes (Node.createVariable).
+ * The children are the nested elements of element groups such as
+ * ELEMENT_LIST, OPTIONAL, UNION, MINUS, NOT_EXISTS, NAMED_GRAPH and SERVICE.
+ */
+public final class CompiledElement {
+
+	public static enum Kind {
+		BIND, ELEMENT_LIST, FILTER, MINUS, NAMED_GRAPH, NOT_EXISTS, OPTIONAL,
+		SERVICE, SUB_QUERY, TRIPLE_PATH, TRIPLE_PATTERN, UNION
+	}
+
+	final static CompiledElement[] NO_CHILDREN = new CompiledElement[0];
+
+	final static Node[] NO_TERMS = new Node[0];
+
+	private final CompiledElement[] children;
+
+	private final CompiledExpression expression;
+
+	private final Kind kind;
+
+	private final Node node;
+
+	private final CompiledCommand subQuery;
+
+	private final Node[] terms;
+
+
+	CompiledElement(Kind kind, Node node, Node[] terms, CompiledExpression expression, CompiledElement[] children, CompiledCommand subQuery) {
+		this.children = children;
+		this.expression = expression;
+		this.kind = kind;
+		this.node = node;
+		this.subQuery = subQuery;
+		this.terms = terms;
+	}
+
+
+	public CompiledElement getChild(int index) {
+		return children[index];
+	}
+
+
+	public int getChildCount() {
+		return children.length;
+	}
+
+
+	/**
+	 * Gets the expression of a FILTER or BIND.
+	 * @return the expression or null
+	 */
+	public CompiledExpression getExpression() {
+		return expression;
+	}
+
+
+	public Kind getKind() {
+		return kind;
+	}
+
+
+	/**
+	 * Gets the Node that this has been compiled from.
+	 * @return the source Node
+	 */
+	public Node getNode() {
+		return node;
+	}
+
+
+	/**
+	 * Gets the compiled query of a SUB_QUERY.
+	 * @return the sub query or null
+	 */
+	public CompiledCommand getSubQuery() {
+		return subQuery;
+	}
+
+
+	/**
+	 * Gets a term, e.g. the predicate (index 1) of a TRIPLE_PATTERN.
+	 * @param index  the index of the term
+	 * @return the term or null if the source was incomplete
+	 */
+	public Node getTerm(int index) {
+		return terms[index];
+	}
+
+
+	public int getTermCount() {
+		return terms.length;
+	}
+
+
+	/**
+	 * Walks this and all nested elements and expressions with a given visitor.
+	 * Like ElementWalker, this does not descend into sub queries.
+	 * @param visitor  the visitor
+	 */
+	public void walk(CompiledVisitor visitor) {
+		visitor.visit(this);
+		if(expression != null) {
+			expression.walk(visitor);
+		}
+		for(CompiledElement child : children) {
+			child.walk(visitor);
+		}
+	}
+}
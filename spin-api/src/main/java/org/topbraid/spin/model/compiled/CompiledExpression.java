@@ -0,0 +1,118 @@
+package org.topbraid.spin.model.compiled;
+
+import com.hp.hpl.jena.graph.Node;
+
+
+/**
+ * An immutable compiled form of a SPIN expression.
+ *
+ * NODE expressions are constants or (if the Node is a variable Node)
+ * variables.  For FUNCTION_CALLs the Node is the function and for
+ * AGGREGATIONs it is the aggregation type, with the arguments in the
+ * order of FunctionCall.getArguments() and the properties that they
+ * have been stated with (e.g. sp:arg1).  Function calls that have
+ * nested sp:elements (such as EXISTS and NOT EXISTS) also carry the
+ * compiled elements.
+ */
+public final class CompiledExpression {
+
+	public static enum Kind {
+		AGGREGATION, FUNCTION_CALL, NODE
+	}
+
+	final static CompiledExpression[] NO_ARGS = new CompiledExpression[0];
+
+	private final Node[] argProperties;
+
+	private final CompiledExpression[] args;
+
+	private final boolean distinct;
+
+	private final CompiledElement elements;
+
+	private final Kind kind;
+
+	private final Node node;
+
+
+	CompiledExpression(Node node) {
+		this(Kind.NODE, node, NO_ARGS, CompiledElement.NO_TERMS, null, false);
+	}
+
+
+	CompiledExpression(Kind kind, Node node, CompiledExpression[] args, Node[] argProperties, CompiledElement elements, boolean distinct) {
+		this.argProperties = argProperties;
+		this.args = args;
+		this.distinct = distinct;
+		this.elements = elements;
+		this.kind = kind;
+		this.node = node;
+	}
+
+
+	public CompiledExpression getArg(int index) {
+		return args[index];
+	}
+
+
+	/**
+	 * Gets the property of an argument, e.g. sp:arg1 or sp:expression.
+	 * @param index  the index of the argument
+	 * @return the property
+	 */
+	public Node getArgProperty(int index) {
+		return argProperties[index];
+	}
+
+
+	public int getArgCount() {
+		return args.length;
+	}
+
+
+	/**
+	 * Gets the nested element list, e.g. of EXISTS.
+	 * @return the ELEMENT_LIST or null
+	 */
+	public CompiledElement getElements() {
+		return elements;
+	}
+
+
+	public Kind getKind() {
+		return kind;
+	}
+
+
+	/**
+	 * Gets the constant, variable, function or aggregation type.
+	 * @return the Node (may be null for incomplete function calls)
+	 */
+	public Node getNode() {
+		return node;
+	}
+
+
+	public boolean isDistinct() {
+		return distinct;
+	}
+
+
+	public boolean isVariable() {
+		return kind == Kind.NODE && node.isVariable();
+	}
+
+
+	/**
+	 * Walks this and all nested expressions with a given visitor.
+	 * Like ExpressionWalker, this does not descend into the elements
+	 * of EXISTS and NOT EXISTS, which are available via getElements.
+	 * @param visitor  the visitor
+	 */
+	public void walk(CompiledVisitor visitor) {
+		visitor.visit(this);
+		for(CompiledExpression arg : args) {
+			arg.walk(visitor);
+		}
+	}
+}
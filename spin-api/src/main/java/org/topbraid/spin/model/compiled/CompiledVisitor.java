@@ -0,0 +1,14 @@
+package org.topbraid.spin.model.compiled;
+
+
+/**
+ * A visitor that is called by the walk methods of the compiled model,
+ * in depth-first order.
+ */
+public interface CompiledVisitor {
+
+	void visit(CompiledElement element);
+
+
+	void visit(CompiledExpression expression);
+}
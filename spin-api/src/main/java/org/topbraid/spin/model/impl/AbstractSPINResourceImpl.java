@@ -87,13 +87,7 @@ public abstract class AbstractSPINResourceImpl extends org.topbraid.spin.model.S
 	private String getPrefix(String namespace, PrintContext context) {
 		String prefix = getModel().getNsURIPrefix(namespace);
 		if(prefix == null && context.getUseExtraPrefixes()) {
-			Map<String,String> extras = ExtraPrefixes.getExtraPrefixes();
-			for(String extraPrefix : extras.keySet()) {
-				String ns = extras.get(extraPrefix);
-				if(namespace.equals(ns)) {
-					return extraPrefix;
-				}
-			}
+			return ExtraPrefixes.getPrefix(namespace);
 		}
 		return prefix;
 	}
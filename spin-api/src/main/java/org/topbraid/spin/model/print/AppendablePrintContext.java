@@ -0,0 +1,110 @@
+package org.topbraid.spin.model.print;
+
+import java.io.Flushable;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+import com.hp.hpl.jena.rdf.model.RDFNode;
+import com.hp.hpl.jena.shared.WrappedIOException;
+
+
+/**
+ * A PrintContext that streams its output into an Appendable such as a Writer,
+ * instead of collecting the whole text in memory.
+ * 
+ * The output is collected in a (reused) StringBuilder that is written to the
+ * Appendable whenever it exceeds a given size, and when flush() is called.
+ * Clients must call flush() after printing.  Clones share the same buffer.
+ * IOExceptions of the Appendable are reported as WrappedIOExceptions.
+ */
+public class AppendablePrintContext extends StringPrintContext {
+	
+	public final static int DEFAULT_FLUSH_SIZE = 8192;
+	
+	private int flushSize;
+	
+	private Appendable out;
+	
+	
+	public AppendablePrintContext(Appendable out) {
+		this(out, new HashMap<String,RDFNode>());
+	}
+	
+	
+	public AppendablePrintContext(Appendable out, Map<String,RDFNode> initialBindings) {
+		this(out, new StringBuilder(DEFAULT_FLUSH_SIZE), initialBindings, DEFAULT_FLUSH_SIZE);
+	}
+	
+	
+	/**
+	 * Creates a new AppendablePrintContext.
+	 * @param out  the Appendable to write to
+	 * @param buffer  the buffer to collect output in before it is written to out
+	 * @param initialBindings  the initial bindings for variables
+	 * @param flushSize  the buffer size at which the buffer is written to out
+	 */
+	public AppendablePrintContext(Appendable out, StringBuilder buffer, Map<String,RDFNode> initialBindings, int flushSize) {
+		super(buffer, initialBindings);
+		this.flushSize = flushSize;
+		this.out = out;
+	}
+	
+	
+	@Override
+	public PrintContext clone() {
+		AppendablePrintContext cl = new AppendablePrintContext(out, getStringBuilder(), getInitialBindings(), flushSize);
+		cl.setIndentation(getIndentation());
+		cl.setIndentationString(indentationString);
+		cl.setNested(isNested());
+		cl.setUseExtraPrefixes(getUseExtraPrefixes());
+		cl.setUsePrefixes(getUsePrefixes());
+		return cl;
+	}
+	
+	
+	/**
+	 * Writes the buffered output into the Appendable and flushes the Appendable
+	 * if it is Flushable.
+	 */
+	public void flush() {
+		writeBuffer();
+		if(out instanceof Flushable) {
+			try {
+				((Flushable)out).flush();
+			}
+			catch(IOException ex) {
+				throw new WrappedIOException(ex);
+			}
+		}
+	}
+	
+	
+	public Appendable getAppendable() {
+		return out;
+	}
+
+
+	@Override
+	public void print(String str) {
+		StringBuilder sb = getStringBuilder();
+		sb.append(str);
+		if(sb.length() >= flushSize) {
+			writeBuffer();
+		}
+	}
+
+
+	private void writeBuffer() {
+		StringBuilder sb = getStringBuilder();
+		if(sb.length() > 0) {
+			try {
+				out.append(sb);
+			}
+			catch(IOException ex) {
+				throw new WrappedIOException(ex);
+			}
+			sb.setLength(0);
+		}
+	}
+}
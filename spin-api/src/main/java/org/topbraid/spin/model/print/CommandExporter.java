@@ -0,0 +1,111 @@
+package org.topbraid.spin.model.print;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.topbraid.spin.model.Command;
+import org.topbraid.spin.model.SPINFactory;
+import org.topbraid.spin.vocabulary.SP;
+
+import com.hp.hpl.jena.rdf.model.Model;
+import com.hp.hpl.jena.rdf.model.Resource;
+import com.hp.hpl.jena.rdf.model.ResIterator;
+import com.hp.hpl.jena.vocabulary.RDF;
+
+
+/**
+ * Renders many SPIN commands into SPARQL text in a single pass, using
+ * one AppendablePrintContext (and thus one buffer) for all of them.
+ * This is meant for bulk exports, e.g. to write all queries and updates
+ * stored in a Model into a file.
+ */
+public class CommandExporter {
+	
+	private final static Resource[] COMMAND_TYPES = {
+		SP.Ask, SP.Construct, SP.Describe, SP.Select,
+		SP.Clear, SP.Create, SP.DeleteData, SP.DeleteWhere, SP.Drop, SP.InsertData, SP.Load, SP.Modify
+	};
+	
+	private boolean usePrefixes = true;
+	
+	
+	/**
+	 * Writes a collection of commands into an Appendable.  Each command
+	 * is followed by an empty line, and commands that are URI resources
+	 * are preceded with a comment line holding their URI.
+	 * @param commands  the commands to export
+	 * @param out  the Appendable to write to
+	 * @return the number of exported commands
+	 */
+	public int export(Iterable<? extends Command> commands, Appendable out) {
+		AppendablePrintContext p = new AppendablePrintContext(out);
+		p.setUsePrefixes(usePrefixes);
+		int count = 0;
+		for(Command command : commands) {
+			p.setIndentation(0);
+			p.setNested(false);
+			if(command.isURIResource()) {
+				p.print("# <");
+				p.print(command.getURI());
+				p.print(">");
+				p.println();
+			}
+			command.print(p);
+			p.println();
+			p.println();
+			count++;
+		}
+		p.flush();
+		return count;
+	}
+	
+	
+	/**
+	 * Writes all top-level SPIN queries and updates from a given Model
+	 * into an Appendable.  Sub-queries are only printed as part of their
+	 * enclosing commands.
+	 * @param model  the Model containing the SPIN RDF
+	 * @param out  the Appendable to write to
+	 * @return the number of exported commands
+	 */
+	public int exportAll(Model model, Appendable out) {
+		return export(getCommands(model), out);
+	}
+	
+	
+	/**
+	 * Gets all top-level SPIN queries and updates in a given Model.
+	 * @param model  the Model to get the commands of
+	 * @return the commands
+	 */
+	public static List<Command> getCommands(Model model) {
+		List<Command> results = new ArrayList<Command>();
+		for(Resource type : COMMAND_TYPES) {
+			ResIterator it = model.listSubjectsWithProperty(RDF.type, type);
+			while(it.hasNext()) {
+				Resource resource = it.next();
+				if(!model.contains(null, SP.query, resource)) {
+					Command command = SPINFactory.asCommand(resource);
+					if(command != null) {
+						results.add(command);
+					}
+				}
+			}
+		}
+		return results;
+	}
+	
+	
+	public boolean getUsePrefixes() {
+		return usePrefixes;
+	}
+	
+	
+	/**
+	 * Specifies whether URIs shall be abbreviated using the prefixes of the Model.
+	 * @param value  false to always print full URIs
+	 */
+	public void setUsePrefixes(boolean value) {
+		this.usePrefixes = value;
+	}
+}
@@ -80,6 +80,11 @@ public class StringPrintContext implements PrintContext {
 	}
 	
 	
+	protected Map<String,RDFNode> getInitialBindings() {
+		return initialBindings;
+	}
+	
+	
 	@Override
 	public RDFNode getInitialBinding(String varName) {
 		return initialBindings.get(varName);
@@ -169,15 +174,13 @@ public class StringPrintContext implements PrintContext {
 				return;
 			}
 			else if(getUseExtraPrefixes()) {
-				Map<String,String> extras = ExtraPrefixes.getExtraPrefixes();
-				for(String prefix : extras.keySet()) {
-					String ns = extras.get(prefix);
-					if(resource.getURI().startsWith(ns)) {
-						print(prefix);
-						print(":");
-						print(resource.getURI().substring(ns.length()));
-						return;
-					}
+				String uri = resource.getURI();
+				String ns = ExtraPrefixes.getNamespace(uri);
+				if(ns != null) {
+					print(ExtraPrefixes.getPrefix(ns));
+					print(":");
+					print(uri.substring(ns.length()));
+					return;
 				}
 			}
 		}
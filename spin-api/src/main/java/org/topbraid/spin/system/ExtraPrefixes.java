@@ -4,8 +4,11 @@
  *******************************************************************************/
 package org.topbraid.spin.system;
 
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 import com.hp.hpl.jena.rdf.model.Resource;
 
@@ -20,13 +23,32 @@ public class ExtraPrefixes {
 
 	private static Map<String,String> map = new HashMap<String,String>();
 	
+	/**
+	 * The reverse index of map, from namespaces to prefixes.
+	 */
+	private static Map<String,String> ns2Prefix = new ConcurrentHashMap<String,String>();
+	
+	/**
+	 * Namespaces that do not end with one of the SEPARATORS and therefore
+	 * need to be compared against each URI.
+	 */
+	private static volatile List<String> irregularNamespaces = new ArrayList<String>();
+	
+	/**
+	 * The pre-rendered SPARQL declarations of all extra prefixes, as pairs
+	 * of prefix and declaration.
+	 */
+	private static volatile List<String[]> declarations = new ArrayList<String[]>();
+	
+	private final static String SEPARATORS = "#/:.";
+	
 	static {
-		map.put("afn", "http://jena.hpl.hp.com/ARQ/function#");
-		map.put("fn", "http://www.w3.org/2005/xpath-functions#");
-		map.put("jfn", "java:com.hp.hpl.jena.sparql.function.library.");
-		map.put("pf", "http://jena.hpl.hp.com/ARQ/property#");
-		map.put("smf", "http://topbraid.org/sparqlmotionfunctions#");
-		map.put("tops", "http://www.topbraid.org/tops#");
+		add("afn", "http://jena.hpl.hp.com/ARQ/function#");
+		add("fn", "http://www.w3.org/2005/xpath-functions#");
+		add("jfn", "java:com.hp.hpl.jena.sparql.function.library.");
+		add("pf", "http://jena.hpl.hp.com/ARQ/property#");
+		add("smf", "http://topbraid.org/sparqlmotionfunctions#");
+		add("tops", "http://www.topbraid.org/tops#");
 	}
 	
 	
@@ -38,9 +60,20 @@ public class ExtraPrefixes {
 	 * @param prefix  the prefix to add
 	 * @param namespace  the namespace to add
 	 */
-	public static void add(String prefix, String namespace) {
+	public static synchronized void add(String prefix, String namespace) {
 		if(!map.containsKey(prefix)) {
 			map.put(prefix, namespace);
+			List<String[]> newDeclarations = new ArrayList<String[]>(declarations);
+			newDeclarations.add(new String[] { prefix, "PREFIX " + prefix + ": <" + namespace + ">\n" });
+			declarations = newDeclarations;
+			if(!ns2Prefix.containsKey(namespace)) {
+				ns2Prefix.put(namespace, prefix);
+				if(namespace.length() == 0 || SEPARATORS.indexOf(namespace.charAt(namespace.length() - 1)) < 0) {
+					List<String> newList = new ArrayList<String>(irregularNamespaces);
+					newList.add(namespace);
+					irregularNamespaces = newList;
+				}
+			}
 		}
 	}
 
@@ -67,4 +100,51 @@ public class ExtraPrefixes {
 	public static Map<String,String> getExtraPrefixes() {
 		return map;
 	}
+	
+	
+	/**
+	 * Gets the SPARQL PREFIX declarations of all extra prefixes.
+	 * Each entry is a pair of the prefix and its declaration line.
+	 * The result must be treated as read-only.
+	 * @return the declarations
+	 */
+	public static List<String[]> getDeclarations() {
+		return declarations;
+	}
+	
+	
+	/**
+	 * Gets the namespace of the longest extra prefix that a given URI starts with.
+	 * Unlike walking getExtraPrefixes(), this only needs a few hash lookups
+	 * for each URI, at the positions of the typical namespace separators.
+	 * @param uri  the URI to get the namespace of
+	 * @return the namespace or null if no extra prefix matches
+	 */
+	public static String getNamespace(String uri) {
+		String result = null;
+		for(int i = uri.length() - 1; i >= 0 && result == null; i--) {
+			if(SEPARATORS.indexOf(uri.charAt(i)) >= 0) {
+				String ns = uri.substring(0, i + 1);
+				if(ns2Prefix.containsKey(ns)) {
+					result = ns;
+				}
+			}
+		}
+		for(String ns : irregularNamespaces) {
+			if(uri.startsWith(ns) && (result == null || ns.length() > result.length())) {
+				result = ns;
+			}
+		}
+		return result;
+	}
+	
+	
+	/**
+	 * Gets the extra prefix for a given namespace.
+	 * @param namespace  the namespace
+	 * @return the prefix or null
+	 */
+	public static String getPrefix(String namespace) {
+		return ns2Prefix.get(namespace);
+	}
 }
@@ -0,0 +1,252 @@
+package org.topbraid.spin.system;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.Set;
+
+import org.topbraid.spin.util.GraphSnapshots;
+import org.topbraid.spin.util.ImportsExpander;
+import org.topbraid.spin.util.JenaUtil;
+import org.topbraid.spin.vocabulary.SPIN;
+
+import com.hp.hpl.jena.graph.Graph;
+import com.hp.hpl.jena.graph.Node;
+import com.hp.hpl.jena.graph.Triple;
+import com.hp.hpl.jena.graph.compose.MultiUnion;
+import com.hp.hpl.jena.ontology.OntModelSpec;
+import com.hp.hpl.jena.rdf.model.Model;
+import com.hp.hpl.jena.shared.WrappedIOException;
+import com.hp.hpl.jena.util.FileManager;
+import com.hp.hpl.jena.util.FileUtils;
+import com.hp.hpl.jena.util.iterator.ExtendedIterator;
+import com.hp.hpl.jena.vocabulary.OWL;
+
+
+/**
+ * A local, content-addressed cache of imported graphs.
+ * Each imported graph is stored as a binary snapshot (see GraphSnapshots)
+ * in a local directory, keyed by its URI, together with the hash of the
+ * document it was parsed from.  Later requests load the snapshot through
+ * a memory-mapped buffer instead of fetching and parsing the document again.
+ *
+ * Whether a snapshot is revalidated against its source is determined by an
+ * ImportsCachePolicy.  If revalidation fails (e.g. because there is no network
+ * access) then the existing snapshot is used.
+ *
+ * An ImportsCache can be installed into SPINImports using
+ * <code>SPINImports.get().setCache(cache)</code>.  It also implements
+ * ImportsExpander so that Datasets can use it to resolve imports.
+ */
+public class ImportsCache implements ImportsExpander {
+
+	private final static String SUFFIX = ".snapshot";
+
+	private File directory;
+
+	private ImportsCachePolicy policy;
+
+
+	/**
+	 * Creates a new ImportsCache operating on a given directory.
+	 * The directory will be created if it doesn't exist yet.
+	 * @param directory  the directory to store the snapshots in
+	 * @param policy  the revalidation policy (not null)
+	 */
+	public ImportsCache(File directory, ImportsCachePolicy policy) {
+		this.directory = directory;
+		this.policy = policy;
+		directory.mkdirs();
+	}
+
+
+	/**
+	 * Deletes all snapshots from the cache directory.
+	 */
+	public void clear() {
+		File[] files = directory.listFiles();
+		if(files != null) {
+			for(File file : files) {
+				if(file.getName().endsWith(SUFFIX)) {
+					file.delete();
+				}
+			}
+		}
+	}
+
+
+	/**
+	 * Creates a union of a given base Graph and the transitive closure of
+	 * its owl:imports and spin:imports, as loaded through this cache.
+	 * @throws WrappedIOException  if one of the imports could not be loaded
+	 */
+	@Override
+	public Graph expandImports(String baseURI, Graph baseGraph) {
+		MultiUnion union = new MultiUnion();
+		union.addGraph(baseGraph);
+		union.setBaseGraph(baseGraph);
+		Set<String> reached = new HashSet<String>();
+		if(baseURI != null) {
+			reached.add(baseURI);
+		}
+		LinkedList<Graph> queue = new LinkedList<Graph>();
+		queue.add(baseGraph);
+		while(!queue.isEmpty()) {
+			Graph graph = queue.removeFirst();
+			for(String uri : getImports(graph)) {
+				if(reached.add(uri)) {
+					try {
+						Graph imported = getGraph(uri, OntModelSpec.OWL_MEM);
+						union.addGraph(imported);
+						queue.add(imported);
+					}
+					catch(IOException ex) {
+						throw new WrappedIOException(ex);
+					}
+				}
+			}
+		}
+		return union;
+	}
+
+
+	// Returns null if the snapshot is corrupt, so that it is replaced from the source
+	private static String getContentHash(File file) {
+		try {
+			return GraphSnapshots.getContentHash(file);
+		}
+		catch(IOException ex) {
+			return null;
+		}
+	}
+
+
+	private File getFile(String uri) {
+		try {
+			String key = GraphSnapshots.hash(uri.getBytes("UTF-8"));
+			return new File(directory, key + SUFFIX);
+		}
+		catch(IOException ex) {
+			throw new IllegalStateException(ex);
+		}
+	}
+
+
+	/**
+	 * Gets the Graph for a given URI, either from an existing snapshot or by
+	 * loading it from its source (and then creating a new snapshot).
+	 * @param uri  the URI of the Graph to get
+	 * @param spec  the OntModelSpec whose FileManager is used to resolve the URI
+	 * @return the Graph
+	 * @throws IOException  if neither a snapshot nor the source were available
+	 */
+	public Graph getGraph(String uri, OntModelSpec spec) throws IOException {
+		File file = getFile(uri);
+		if(file.exists() && !policy.isRevalidationNeeded(uri, file.lastModified())) {
+			Graph graph = readSnapshot(file);
+			if(graph != null) {
+				return graph;
+			}
+		}
+
+		byte[] content;
+		try {
+			content = load(uri, spec);
+		}
+		catch(Exception ex) {
+			// Offline: continue to work with the last known snapshot
+			Graph graph = file.exists() ? readSnapshot(file) : null;
+			if(graph != null) {
+				return graph;
+			}
+			else if(ex instanceof IOException) {
+				throw (IOException)ex;
+			}
+			else {
+				throw new IOException("Failed to load " + uri, ex);
+			}
+		}
+
+		String hash = GraphSnapshots.hash(content);
+		if(file.exists() && hash.equals(getContentHash(file))) {
+			Graph graph = readSnapshot(file);
+			if(graph != null) {
+				file.setLastModified(System.currentTimeMillis());
+				return graph;
+			}
+		}
+
+		Model model = JenaUtil.createDefaultModel();
+		model.read(new ByteArrayInputStream(content), uri, FileUtils.guessLang(uri));
+		try {
+			GraphSnapshots.write(model.getGraph(), hash, file);
+		}
+		catch(IOException ex) {
+			// The snapshot is only an optimization: if it cannot be written
+			// (e.g. because the old one cannot be replaced on Windows) the
+			// freshly parsed Graph is still valid and will be re-fetched next time
+		}
+		return model.getGraph();
+	}
+
+
+	private static Set<String> getImports(Graph graph) {
+		Set<String> results = new HashSet<String>();
+		for(Node predicate : new Node[] { OWL.imports.asNode(), SPIN.imports.asNode() }) {
+			ExtendedIterator<Triple> it = graph.find(Node.ANY, predicate, Node.ANY);
+			while(it.hasNext()) {
+				Node object = it.next().getObject();
+				if(object.isURI()) {
+					results.add(object.getURI());
+				}
+			}
+		}
+		return results;
+	}
+
+
+	public ImportsCachePolicy getPolicy() {
+		return policy;
+	}
+
+
+	private static byte[] load(String uri, OntModelSpec spec) throws IOException {
+		FileManager fileManager = spec.getDocumentManager().getFileManager();
+		InputStream is = fileManager.open(uri);
+		if(is == null) {
+			throw new IOException("Could not open " + uri);
+		}
+		try {
+			ByteArrayOutputStream bos = new ByteArrayOutputStream();
+			byte[] buffer = new byte[8192];
+			int read;
+			while((read = is.read(buffer)) > 0) {
+				bos.write(buffer, 0, read);
+			}
+			return bos.toByteArray();
+		}
+		finally {
+			is.close();
+		}
+	}
+
+
+	// Returns null if the snapshot is corrupt, so that the caller loads the source instead
+	private static Graph readSnapshot(File file) {
+		try {
+			return GraphSnapshots.read(file);
+		}
+		catch(IOException ex) {
+			return null;
+		}
+	}
+
+
+	public void setPolicy(ImportsCachePolicy value) {
+		this.policy = value;
+	}
+}
@@ -0,0 +1,59 @@
+package org.topbraid.spin.system;
+
+
+/**
+ * Determines whether a cached snapshot of an imported graph (see ImportsCache)
+ * shall be revalidated against its source document before it is used.
+ * Revalidation means that the source is fetched again and its content hash is
+ * compared with the hash stored in the snapshot.
+ * 
+ * The default implementation is based on the age of the snapshot.
+ * Applications can subclass this to implement different policies, for example
+ * to revalidate only certain URIs.
+ */
+public class ImportsCachePolicy {
+	
+	/**
+	 * A policy that never revalidates, i.e. works fully offline once a
+	 * snapshot exists.
+	 */
+	public final static ImportsCachePolicy NEVER = new ImportsCachePolicy(-1);
+	
+	/**
+	 * A policy that revalidates each snapshot whenever it is requested.
+	 */
+	public final static ImportsCachePolicy ALWAYS = new ImportsCachePolicy(0);
+	
+	private long maxAge;
+	
+	
+	/**
+	 * Creates a new policy that revalidates snapshots that are older than
+	 * a given number of milliseconds.
+	 * @param maxAge  the maximum age in ms, 0 to always revalidate or -1 to never revalidate
+	 */
+	public ImportsCachePolicy(long maxAge) {
+		this.maxAge = maxAge;
+	}
+	
+	
+	public long getMaxAge() {
+		return maxAge;
+	}
+	
+	
+	/**
+	 * Checks whether the snapshot of a given URI needs to be revalidated.
+	 * @param uri  the URI of the imported graph
+	 * @param snapshotTime  the time when the snapshot was last written or validated
+	 * @return true to revalidate
+	 */
+	public boolean isRevalidationNeeded(String uri, long snapshotTime) {
+		if(maxAge < 0) {
+			return false;
+		}
+		else {
+			return System.currentTimeMillis() - snapshotTime >= maxAge;
+		}
+	}
+}
@@ -0,0 +1,362 @@
+package org.topbraid.spin.system;
+
+import java.util.AbstractCollection;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+
+/**
+ * An immutable hash map (a hash array mapped trie), where put and remove
+ * return a new map that shares all unchanged parts with the old one.
+ * Each update therefore only copies the O(log n) nodes on the path to the
+ * key, which allows SPINModuleRegistry to publish a new version of its
+ * maps without copying them.  Keys must not be null.
+ */
+final class PersistentMap<K,V> {
+
+	private final static int BITS = 5;
+
+	private final static int MASK = (1 << BITS) - 1;
+
+	@SuppressWarnings("rawtypes")
+	private final static PersistentMap EMPTY = new PersistentMap<Object,Object>(null, 0);
+
+	private final Trie root;
+
+	private final int size;
+
+
+	private PersistentMap(Trie root, int size) {
+		this.root = root;
+		this.size = size;
+	}
+
+
+	/**
+	 * Gets the empty map.
+	 * @return the empty map
+	 */
+	@SuppressWarnings("unchecked")
+	static <K,V> PersistentMap<K,V> empty() {
+		return EMPTY;
+	}
+
+
+	boolean containsKey(Object key) {
+		return get(key) != null;
+	}
+
+
+	@SuppressWarnings("unchecked")
+	V get(Object key) {
+		int hash = key.hashCode();
+		Object node = root;
+		int shift = 0;
+		while(node instanceof Trie) {
+			Trie trie = (Trie) node;
+			int bit = 1 << ((hash >>> shift) & MASK);
+			if((trie.bitmap & bit) == 0) {
+				return null;
+			}
+			node = trie.slots[trie.index(bit)];
+			shift += BITS;
+		}
+		if(node instanceof Entry) {
+			Entry entry = (Entry) node;
+			return entry.hash == hash && key.equals(entry.key) ? (V) entry.value : null;
+		}
+		else if(node instanceof Collision) {
+			for(Entry entry : ((Collision) node).entries) {
+				if(key.equals(entry.key)) {
+					return (V) entry.value;
+				}
+			}
+		}
+		return null;
+	}
+
+
+	boolean isEmpty() {
+		return size == 0;
+	}
+
+
+	/**
+	 * Gets a map that has a given value for a given key.
+	 * @param key  the key (not null)
+	 * @param value  the value (not null)
+	 * @return the new map, or this if the key already has the value
+	 */
+	PersistentMap<K,V> put(K key, V value) {
+		Entry entry = new Entry(key, value);
+		boolean[] added = new boolean[1];
+		Trie newRoot = (Trie) put(root != null ? root : new Trie(0, new Object[0]), 0, entry, added);
+		if(newRoot == root) {
+			return this;
+		}
+		return new PersistentMap<K,V>(newRoot, added[0] ? size + 1 : size);
+	}
+
+
+	private static Object put(Object node, int shift, Entry entry, boolean[] added) {
+		if(node instanceof Trie) {
+			Trie trie = (Trie) node;
+			int bit = 1 << ((entry.hash >>> shift) & MASK);
+			int index = trie.index(bit);
+			if((trie.bitmap & bit) == 0) {
+				added[0] = true;
+				Object[] slots = new Object[trie.slots.length + 1];
+				System.arraycopy(trie.slots, 0, slots, 0, index);
+				slots[index] = entry;
+				System.arraycopy(trie.slots, index, slots, index + 1, trie.slots.length - index);
+				return new Trie(trie.bitmap | bit, slots);
+			}
+			Object child = trie.slots[index];
+			Object newChild = put(child, shift + BITS, entry, added);
+			if(newChild == child) {
+				return trie;
+			}
+			Object[] slots = trie.slots.clone();
+			slots[index] = newChild;
+			return new Trie(trie.bitmap, slots);
+		}
+		else if(node instanceof Entry) {
+			Entry old = (Entry) node;
+			if(old.hash == entry.hash && old.key.equals(entry.key)) {
+				return old.value == entry.value ? old : entry;
+			}
+			added[0] = true;
+			if(old.hash == entry.hash) {
+				return new Collision(new Entry[] { old, entry });
+			}
+			// Different hashes always differ within the 32 bits of the hash
+			Trie trie = new Trie(1 << ((old.hash >>> shift) & MASK), new Object[] { old });
+			return put(trie, shift, entry, added);
+		}
+		else {
+			Collision collision = (Collision) node;
+			if(collision.entries[0].hash != entry.hash) {
+				Trie trie = new Trie(1 << ((collision.entries[0].hash >>> shift) & MASK), new Object[] { collision });
+				return put(trie, shift, entry, added);
+			}
+			for(int i = 0; i < collision.entries.length; i++) {
+				if(collision.entries[i].key.equals(entry.key)) {
+					if(collision.entries[i].value == entry.value) {
+						return collision;
+					}
+					Entry[] entries = collision.entries.clone();
+					entries[i] = entry;
+					return new Collision(entries);
+				}
+			}
+			added[0] = true;
+			Entry[] entries = new Entry[collision.entries.length + 1];
+			System.arraycopy(collision.entries, 0, entries, 0, collision.entries.length);
+			entries[collision.entries.length] = entry;
+			return new Collision(entries);
+		}
+	}
+
+
+	/**
+	 * Gets a map that does not have a given key.
+	 * @param key  the key to remove
+	 * @return the new map, or this if the key was not present
+	 */
+	PersistentMap<K,V> remove(Object key) {
+		if(root == null) {
+			return this;
+		}
+		Object newRoot = remove(root, 0, key.hashCode(), key);
+		if(newRoot == root) {
+			return this;
+		}
+		return new PersistentMap<K,V>((Trie) newRoot, size - 1);
+	}
+
+
+	// Returns the new node (null if it has become empty)
+	private static Object remove(Object node, int shift, int hash, Object key) {
+		if(node instanceof Trie) {
+			Trie trie = (Trie) node;
+			int bit = 1 << ((hash >>> shift) & MASK);
+			if((trie.bitmap & bit) == 0) {
+				return trie;
+			}
+			int index = trie.index(bit);
+			Object child = trie.slots[index];
+			Object newChild = remove(child, shift + BITS, hash, key);
+			if(newChild == child) {
+				return trie;
+			}
+			if(newChild != null) {
+				Object[] slots = trie.slots.clone();
+				slots[index] = newChild;
+				return new Trie(trie.bitmap, slots);
+			}
+			else if(trie.slots.length == 1 && shift > 0) {
+				return null;
+			}
+			Object[] slots = new Object[trie.slots.length - 1];
+			System.arraycopy(trie.slots, 0, slots, 0, index);
+			System.arraycopy(trie.slots, index + 1, slots, index, slots.length - index);
+			return new Trie(trie.bitmap & ~bit, slots);
+		}
+		else if(node instanceof Entry) {
+			Entry entry = (Entry) node;
+			return entry.hash == hash && entry.key.equals(key) ? null : entry;
+		}
+		else {
+			Collision collision = (Collision) node;
+			for(int i = 0; i < collision.entries.length; i++) {
+				if(collision.entries[i].key.equals(key)) {
+					if(collision.entries.length == 2) {
+						return collision.entries[1 - i];
+					}
+					Entry[] entries = new Entry[collision.entries.length - 1];
+					System.arraycopy(collision.entries, 0, entries, 0, i);
+					System.arraycopy(collision.entries, i + 1, entries, i, entries.length - i);
+					return new Collision(entries);
+				}
+			}
+			return collision;
+		}
+	}
+
+
+	int size() {
+		return size;
+	}
+
+
+	/**
+	 * Gets a read-only view of the values of this map.
+	 * @return the values
+	 */
+	Collection<V> values() {
+		return new AbstractCollection<V>() {
+
+			@Override
+			public Iterator<V> iterator() {
+				return new ValueIterator<V>(root);
+			}
+
+
+			@Override
+			public int size() {
+				return size;
+			}
+		};
+	}
+
+
+	private static class Collision {
+
+		final Entry[] entries;
+
+
+		Collision(Entry[] entries) {
+			this.entries = entries;
+		}
+	}
+
+
+	private static class Entry {
+
+		final int hash;
+
+		final Object key;
+
+		final Object value;
+
+
+		Entry(Object key, Object value) {
+			this.hash = key.hashCode();
+			this.key = key;
+			this.value = value;
+		}
+	}
+
+
+	private static class Trie {
+
+		final int bitmap;
+
+		final Object[] slots;
+
+
+		Trie(int bitmap, Object[] slots) {
+			this.bitmap = bitmap;
+			this.slots = slots;
+		}
+
+
+		int index(int bit) {
+			return Integer.bitCount(bitmap & (bit - 1));
+		}
+	}
+
+
+	/**
+	 * Walks the trie depth-first, keeping the nodes to visit on a stack.
+	 */
+	private static class ValueIterator<V> implements Iterator<V> {
+
+		private Entry next;
+
+		private List<Object> stack = new ArrayList<Object>();
+
+
+		ValueIterator(Trie root) {
+			if(root != null) {
+				stack.add(root);
+			}
+			advance();
+		}
+
+
+		private void advance() {
+			next = null;
+			while(next == null && !stack.isEmpty()) {
+				Object node = stack.remove(stack.size() - 1);
+				if(node instanceof Entry) {
+					next = (Entry) node;
+				}
+				else if(node instanceof Trie) {
+					for(Object slot : ((Trie) node).slots) {
+						stack.add(slot);
+					}
+				}
+				else {
+					for(Entry entry : ((Collision) node).entries) {
+						stack.add(entry);
+					}
+				}
+			}
+		}
+
+
+		public boolean hasNext() {
+			return next != null;
+		}
+
+
+		@SuppressWarnings("unchecked")
+		public V next() {
+			if(next == null) {
+				throw new NoSuchElementException();
+			}
+			V value = (V) next.value;
+			advance();
+			return value;
+		}
+
+
+		public void remove() {
+			throw new UnsupportedOperationException();
+		}
+	}
+}
@@ -5,9 +5,16 @@
 package org.topbraid.spin.system;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
+import org.topbraid.spin.util.AbstractGraphListener;
+import org.topbraid.spin.util.FlatUnionGraph;
 import org.topbraid.spin.util.JenaUtil;
 import org.topbraid.spin.vocabulary.SP;
 import org.topbraid.spin.vocabulary.SPIN;
@@ -37,6 +44,14 @@ import com.hp.hpl.jena.vocabulary.RDF;
  */
 public class SPINImports {
 	
+	private ImportsCache cache;
+	
+	public final static int DEFAULT_MAX_FLAT_INDEXES = 16;
+	
+	private Map<List<Graph>,FlatIndex> flatIndexes = createFlatIndexes(DEFAULT_MAX_FLAT_INDEXES);
+	
+	private boolean readOnlyImports;
+	
 	private Set<String> registeredURIs = new HashSet<String>();
 
 	public static SPINImports singleton = new SPINImports();
@@ -52,6 +67,25 @@ public class SPINImports {
 	
 	
 	/**
+	 * Gets the (optional) local snapshot cache used to load imports.
+	 * @return the ImportsCache or null
+	 */
+	public ImportsCache getCache() {
+		return cache;
+	}
+	
+	
+	/**
+	 * Checks whether the imported graphs are treated as read-only, so that
+	 * getImportsModel can return a FlatUnionGraph.
+	 * @return true  if imports are read-only
+	 */
+	public boolean isReadOnlyImports() {
+		return readOnlyImports;
+	}
+	
+	
+	/**
 	 * Attempts to load a graph with a given URI.
 	 * 
 	 * Uses the default Jena OntModelSpec to load imports.
@@ -72,6 +106,9 @@ public class SPINImports {
 	 * 
 	 * FIXME: The document manager in the given OntModelSpec is used to cache the results, so it may be a source of memory leaks!
 	 * 
+	 * If an ImportsCache has been installed, then graphs that are not known to the
+	 * document manager are loaded through that cache instead of being parsed.
+	 * 
 	 * @param uri   the base URI of the graph to load
 	 * @param nextOntModelSpec The OntModelSpec to use when loading the imports
 	 * @return  the Graph or null to ignore this
@@ -82,8 +119,14 @@ public class SPINImports {
         // Remove use of singleton OntDocumentManager in favour of the more extensible (and non-Singleton!!) OntModelSpec method
         Model model = nextOntModelSpec.getDocumentManager().getModel(uri);
 		if(model == null) {
-			Model baseModel = JenaUtil.createDefaultModel();
-			baseModel.read(uri);
+			Model baseModel;
+			if(cache != null) {
+				baseModel = ModelFactory.createModelForGraph(cache.getGraph(uri, nextOntModelSpec));
+			}
+			else {
+				baseModel = JenaUtil.createDefaultModel();
+				baseModel.read(uri);
+			}
 			model = ModelFactory.createOntologyModel(nextOntModelSpec, baseModel);
 			nextOntModelSpec.getDocumentManager().addModel(uri, model);
 		}
@@ -128,15 +171,13 @@ public class SPINImports {
 		else {
 			Graph baseGraph = model.getGraph();
 			
-			MultiUnion union = new MultiUnion();
-			union.addGraph(baseGraph);
-			union.setBaseGraph(baseGraph);
+			List<Graph> graphs = new ArrayList<Graph>();
 			
 			boolean needsRegistration = false;
 			for(String uri : uris) {
 				Graph graph = getImportedGraph(uri, nextOntModelSpec);
 				if(graph != null) {
-					union.addGraph(graph);
+					graphs.add(graph);
 					if(!registeredURIs.contains(uri)) {
 						registeredURIs.add(uri);
 						needsRegistration = true;
@@ -145,9 +186,22 @@ public class SPINImports {
 			}
 			
 			// Ensure that SP, SPIN and SPL are present
-			ensureImported(union, SP.BASE_URI, SP.getModel());
-			ensureImported(union, SPL.BASE_URI, SPL.getModel());
-			ensureImported(union, SPIN.BASE_URI, SPIN.getModel());
+			ensureImported(baseGraph, graphs, SP.BASE_URI, SP.getModel());
+			ensureImported(baseGraph, graphs, SPL.BASE_URI, SPL.getModel());
+			ensureImported(baseGraph, graphs, SPIN.BASE_URI, SPIN.getModel());
+			
+			MultiUnion union;
+			if(readOnlyImports) {
+				union = new FlatUnionGraph(baseGraph, graphs, getFlatIndex(graphs));
+			}
+			else {
+				union = new MultiUnion();
+				union.addGraph(baseGraph);
+				union.setBaseGraph(baseGraph);
+				for(Graph graph : graphs) {
+					union.addGraph(graph);
+				}
+			}
 			
 			Model unionModel = ModelFactory.createModelForGraph(union);
 			if(needsRegistration) {
@@ -158,10 +212,98 @@ public class SPINImports {
 	}
 	
 	
-	private void ensureImported(MultiUnion union, String baseURI, Model model) {
-		if(!union.contains(Triple.create(Node.createURI(baseURI), RDF.type.asNode(), OWL.Ontology.asNode()))) {
-			union.addGraph(model.getGraph());
+	private void ensureImported(Graph baseGraph, List<Graph> graphs, String baseURI, Model model) {
+		Triple triple = Triple.create(Node.createURI(baseURI), RDF.type.asNode(), OWL.Ontology.asNode());
+		if(baseGraph.contains(triple)) {
+			return;
+		}
+		for(Graph graph : graphs) {
+			if(graph.contains(triple)) {
+				return;
+			}
+		}
+		graphs.add(model.getGraph());
+	}
+	
+	
+	@SuppressWarnings("serial")
+	private static Map<List<Graph>,FlatIndex> createFlatIndexes(final int maxEntries) {
+		return new LinkedHashMap<List<Graph>,FlatIndex>(16, 0.75f, true) {
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<List<Graph>,FlatIndex> eldest) {
+				if(size() > maxEntries) {
+					eldest.getValue().close();
+					return true;
+				}
+				else {
+					return false;
+				}
+			}
+		};
+	}
+	
+	
+	private synchronized Graph getFlatIndex(List<Graph> graphs) {
+		FlatIndex index = flatIndexes.get(graphs);
+		if(index == null) {
+			index = new FlatIndex(new ArrayList<Graph>(graphs));
+			flatIndexes.put(index.graphs, index);
+		}
+		return index.index;
+	}
+	
+	
+	private synchronized void invalidate(FlatIndex index) {
+		if(flatIndexes.get(index.graphs) == index) {
+			flatIndexes.remove(index.graphs);
 		}
+		index.close();
+	}
+	
+
+	/**
+	 * Installs a local snapshot cache that shall be used to load imports.
+	 * @param value  the new ImportsCache or null to always fetch and parse
+	 */
+	public void setCache(ImportsCache value) {
+		this.cache = value;
+	}
+	
+
+	/**
+	 * Specifies whether the imported graphs can be treated as read-only.
+	 * If true, getImportsModel will return a FlatUnionGraph with a merged
+	 * index of all imports instead of a plain MultiUnion.  The merged indices
+	 * of the most recently used sets of imported graphs are reused (see
+	 * setMaxFlatIndexes).  An index is dropped as soon as one of its graphs
+	 * changes, but models that have already been returned keep using the
+	 * old index.
+	 * @param value  true to treat imports as read-only
+	 */
+	public synchronized void setReadOnlyImports(boolean value) {
+		this.readOnlyImports = value;
+		if(!value) {
+			clearFlatIndexes();
+		}
+	}
+	
+	
+	private void clearFlatIndexes() {
+		for(FlatIndex index : flatIndexes.values()) {
+			index.close();
+		}
+		flatIndexes.clear();
+	}
+	
+
+	/**
+	 * Sets the maximum number of merged indices that are kept for
+	 * read-only imports.  The default is DEFAULT_MAX_FLAT_INDEXES.
+	 * @param value  the maximum number of indices
+	 */
+	public synchronized void setMaxFlatIndexes(int value) {
+		clearFlatIndexes();
+		flatIndexes = createFlatIndexes(value);
 	}
 	
 
@@ -172,4 +314,48 @@ public class SPINImports {
 	public static void set(SPINImports value) {
 		SPINImports.singleton = value;
 	}
+	
+	
+	/**
+	 * A merged index of a list of Graphs that drops itself from the cache
+	 * when one of the Graphs changes.
+	 */
+	private class FlatIndex extends AbstractGraphListener {
+		
+		List<Graph> graphs;
+		
+		Graph index;
+		
+		
+		FlatIndex(List<Graph> graphs) {
+			this.graphs = graphs;
+			this.index = FlatUnionGraph.createIndex(graphs);
+			for(Graph graph : graphs) {
+				graph.getEventManager().register(this);
+			}
+		}
+		
+		
+		void close() {
+			for(Graph graph : graphs) {
+				graph.getEventManager().unregister(this);
+			}
+		}
+
+
+		public void notifyAddTriple(Graph g, Triple t) {
+			invalidate(this);
+		}
+
+
+		public void notifyDeleteTriple(Graph g, Triple t) {
+			invalidate(this);
+		}
+
+
+		@Override
+		protected void notifyRemoveAll(Graph source, Triple pattern) {
+			invalidate(this);
+		}
+	}
 }
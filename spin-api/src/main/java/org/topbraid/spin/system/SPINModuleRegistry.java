@@ -7,12 +7,13 @@ package org.topbraid.spin.system;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
-import java.util.HashMap;
 import java.util.HashSet;
-import java.util.Map;
+import java.util.List;
 import java.util.Set;
 
 import org.topbraid.spin.arq.EvalFunction;
+import org.topbraid.spin.arq.LazySPINARQPFunction;
+import org.topbraid.spin.arq.LazySPINFunctionFactory;
 import org.topbraid.spin.arq.SPINARQPFunction;
 import org.topbraid.spin.arq.SPINFunctionDrivers;
 import org.topbraid.spin.arq.SPINFunctionFactory;
@@ -38,26 +39,60 @@ import com.hp.hpl.jena.vocabulary.RDF;
  * walking all .spin. files in the Eclipse workspace.  Other
  * implementations may need to register their modules "manually".
  * 
+ * The registered modules are held in an immutable Modules object that
+ * is replaced as a whole whenever something changes (copy-on-write).
+ * Lookups only read the current Modules and therefore never block, even
+ * while another thread is loading a library.  registerAll and reloadAll
+ * publish all functions and templates of a library in a single step, so
+ * that readers either see all or none of them.  The maps of the Modules
+ * are persistent (see PersistentMap), so a new version shares everything
+ * but the changed entries with the old one, and a single registration
+ * only costs O(log n) in the size of the registry.
+ * 
  * @author Holger Knublauch
  */
 public class SPINModuleRegistry {
 	
 	/**
-	 * Remembers all function definitions (in their original Model) so that they
-	 * can be retrieved later.
+	 * The currently published functions and templates.
 	 */
-	private Map<String, Function> functions = new HashMap<String, Function>();
+	private volatile Modules modules = new Modules();
 	
 	/**
-	 * Remembers the source objects (e.g. files) that a Function has been loaded from.
+	 * The Modules that are being built by the current batch (only accessed
+	 * by the thread that holds the writeLock), or null.
 	 */
-	private Map<Function, Set<Object>> sources = new HashMap<Function, Set<Object>>();
+	private Modules pending;
+	
+	/**
+	 * The functions that need to be installed into the ARQ registries
+	 * when the current batch is published.
+	 */
+	private List<Function> pendingARQFunctions;
+	
+	/**
+	 * The functions and magic properties from the registry index that get
+	 * lazy stubs in the ARQ registries when the current batch is published.
+	 */
+	private List<Function> pendingLazyARQFunctions;
+	
+	private List<Function> pendingLazyARQPFunctions;
 	
 	/**
-	 * Remembers all template definitions (in their original Model) so that they
-	 * can be retrieved later.
+	 * The functions that need to be removed from the ARQ FunctionRegistry
+	 * and PropertyFunctionRegistry when the current batch is published.
 	 */
-	private Map<String, Template> templates = new HashMap<String, Template>();
+	private List<Function> pendingRemovedFunctions;
+	
+	/**
+	 * Serializes all writers.
+	 */
+	private final Object writeLock = new Object();
+	
+	/**
+	 * If true then ARQ functions are only compiled when they are first used.
+	 */
+	private volatile boolean lazyFunctions;
 
 	
 	private static SPINModuleRegistry singleton = new SPINModuleRegistry();
@@ -81,6 +116,54 @@ public class SPINModuleRegistry {
 	}
 	
 	
+	// Runs a batch of changes (on the current thread) and publishes them at once
+	private void batch(Runnable runnable) {
+		synchronized(writeLock) {
+			if(pending != null) {
+				runnable.run(); // Nested batch
+				return;
+			}
+			pending = modules.copy();
+			pendingARQFunctions = new ArrayList<Function>();
+			pendingLazyARQFunctions = new ArrayList<Function>();
+			pendingLazyARQPFunctions = new ArrayList<Function>();
+			pendingRemovedFunctions = new ArrayList<Function>();
+			try {
+				runnable.run();
+				pending.version++;
+				
+				// Publish first, so that ARQ never uses a function that the registry does not know yet
+				modules = pending;
+				for(Function function : pendingARQFunctions) {
+					installARQFunction(function);
+				}
+				for(Function function : pendingLazyARQFunctions) {
+					registerLazyARQFunction(function);
+				}
+				for(Function function : pendingLazyARQPFunctions) {
+					registerLazyARQPFunction(function);
+				}
+				for(Function function : pendingRemovedFunctions) {
+					if(FunctionRegistry.get().get(function.getURI()) instanceof SPINFunctionFactory) {
+						FunctionRegistry.get().remove(function.getURI());
+					}
+					PropertyFunctionFactory old = PropertyFunctionRegistry.get().get(function.getURI());
+					if(old instanceof SPINARQPFunction || old instanceof LazySPINARQPFunction) {
+						PropertyFunctionRegistry.get().remove(function.getURI());
+					}
+				}
+			}
+			finally {
+				pending = null;
+				pendingARQFunctions = null;
+				pendingLazyARQFunctions = null;
+				pendingLazyARQPFunctions = null;
+				pendingRemovedFunctions = null;
+			}
+		}
+	}
+	
+	
 	/**
 	 * Gets a registered Function with a given URI.
 	 * @param uri  the URI of the Function to get
@@ -101,7 +184,8 @@ public class SPINModuleRegistry {
      * @return the Function or null if none was found
      */
     public Function getFunction(String uri, Model model, Set<Object> validSources) {
-	    Function function = functions.get(uri);
+	    Modules current = modules;
+	    Function function = current.functions.get(uri);
 		if(function != null) 
 		{
 		    // include all functions if validSources was null or an empty Set
@@ -109,7 +193,7 @@ public class SPINModuleRegistry {
 		        return function;
 		    else
 		    {
-		        Set<Object> validSet = sources.get(function);
+		        Set<Object> validSet = current.getSources(function);
 		        for(Object nextSource : validSources)
 		        {
 		            if(validSet.contains(nextSource))
@@ -134,7 +218,7 @@ public class SPINModuleRegistry {
 	 * @return the Templates
 	 */
 	public Collection<Function> getFunctions() {
-		return functions.values();
+		return Collections.unmodifiableCollection(modules.functions.values());
 	}
 
 
@@ -155,22 +239,14 @@ public class SPINModuleRegistry {
 
 	
 	public Set<Object> getSources(Function function) {
-		return sources.get(function);
+		Set<Object> set = modules.sources.get(function);
+		return set != null ? Collections.unmodifiableSet(set) : null;
 	}
 	
     
     public Collection<Function> getFunctionsBySource(Object nextSource) {
-        Collection<Function> results = new ArrayList<Function>();
-        
-        for(Function nextFunction : sources.keySet())
-        {
-            if(sources.get(nextFunction).contains(nextSource))
-            {
-                results.add(nextFunction);
-            }
-        }
-        
-        return results;
+        PersistentMap<Function,Function> set = modules.sourceFunctions.get(nextSource);
+        return set != null ? new ArrayList<Function>(set.values()) : new ArrayList<Function>();
     }
     
 	
@@ -187,7 +263,7 @@ public class SPINModuleRegistry {
 				return r.as(Template.class);
 			}
 		}
-		return templates.get(uri);
+		return modules.templates.get(uri);
 	}
 	
 	
@@ -196,23 +272,98 @@ public class SPINModuleRegistry {
 	 * @return the Templates
 	 */
 	public Collection<Template> getTemplates() {
-		return templates.values();
+		return Collections.unmodifiableCollection(modules.templates.values());
+	}
+	
+	
+	/**
+	 * Gets the version of the registered modules, which is incremented
+	 * each time a change is published.  This can be used by callers that
+	 * cache data derived from the registry.
+	 * @return the version
+	 */
+	public long getVersion() {
+		return modules.version;
+	}
+	
+	
+	/**
+	 * Checks whether ARQ functions are registered as stubs that are only
+	 * compiled when they are first used.
+	 * @return true  if lazy compilation is activated
+	 */
+	public boolean isLazyFunctions() {
+		return lazyFunctions;
 	}
 	
 	
 	/**
 	 * Initializes this registry with all system functions and templates
 	 * from the SPL namespace.
+	 * If the pre-built registry index of SystemSnapshots is available then
+	 * the modules are registered from that index and the ARQ functions are
+	 * only compiled when they are first used.
 	 */
-	public void init() {
-	    // TODO: do these two registerAll calls work the same way as the previous one?
-	    // Changed from one call to two to include the source for the functions from each of the two models
+	public void init() {
+		final List<String[]> index = SystemSnapshots.getRegistryIndex();
+		batch(new Runnable() {
+			public void run() {
+				if(index != null) {
+					initFromIndex(index);
+				}
+				else {
+				    // TODO: do these two registerAll calls work the same way as the previous one?
+				    // Changed from one call to two to include the source for the functions from each of the two models
+					Model splModel = SPL.getModel();
+			        registerAll(splModel, SPL.BASE_URI);
+					Model spinModel = SPIN.getModel();
+			        registerAll(spinModel, SPIN.BASE_URI);
+				}
+			}
+		});
+
+		FunctionRegistry.get().put(SPIN.eval.getURI(), new EvalFunction());
+	}
+	
+	
+	// Installs the ARQ function (and magic property) of a registered Function
+	private void installARQFunction(Function function) {
+		if(lazyFunctions) {
+			registerLazyARQFunction(function);
+			if(function.hasProperty(RDF.type, SPIN.MagicProperty)) {
+				registerLazyARQPFunction(function);
+			}
+		}
+		else {
+			registerARQFunction(function);
+			if(function.hasProperty(RDF.type, SPIN.MagicProperty)) {
+				registerARQPFunction(function);
+			}
+		}
+	}
+	
+	
+	private void initFromIndex(List<String[]> index) {
 		Model splModel = SPL.getModel();
-        registerAll(splModel, SPL.BASE_URI);
 		Model spinModel = SPIN.getModel();
-        registerAll(spinModel, SPIN.BASE_URI);
-
-		FunctionRegistry.get().put(SPIN.eval.getURI(), new EvalFunction());
+		for(String[] entry : index) {
+			String source = entry[0];
+			Model model = SPL.BASE_URI.equals(source) ? splModel : spinModel;
+			Resource resource = model.getResource(entry[2]);
+			if(SystemSnapshots.TEMPLATE.equals(entry[1])) {
+				Template template = resource.as(Template.class);
+				register(template);
+				ExtraPrefixes.add(template);
+			}
+			else {
+				Function function = SPINFactory.asFunction(resource);
+				register(function, source, false);
+				pendingLazyARQFunctions.add(function);
+				if(SystemSnapshots.MAGIC_PROPERTY.equals(entry[1])) {
+					pendingLazyARQPFunctions.add(function);
+				}
+			}
+		}
 	}
 	
 	
@@ -229,27 +380,16 @@ public class SPINModuleRegistry {
 	 * @param source  an optional source for the function (e.g. a File)
 	 * @param addARQFunction  true to also add an entry to the ARQ function registry
 	 */
-	public void register(Function function, Object source, boolean addARQFunction) {
-		functions.put(function.getURI(), function);
-		if(source != null) {
-		    if(sources.containsKey(function))
-		    {
-		        sources.get(function).add(source);
-		    }
-		    else
-		    {
-		        Set<Object> newSet = new HashSet<Object>();
-		        newSet.add(source);
-		        sources.put(function, newSet);
-		    }
-		}
-		ExtraPrefixes.add(function);
-		if(addARQFunction) {
-			registerARQFunction(function);
-			if(function.hasProperty(RDF.type, SPIN.MagicProperty)) {
-				registerARQPFunction(function);
+	public void register(final Function function, final Object source, final boolean addARQFunction) {
+		batch(new Runnable() {
+			public void run() {
+				pending.addFunction(function, source);
+				ExtraPrefixes.add(function);
+				if(addARQFunction) {
+					pendingARQFunctions.add(function);
+				}
 			}
-		}
+		});
 	}
 	
 	
@@ -261,8 +401,12 @@ public class SPINModuleRegistry {
 	 * SPARQL string.</b>
 	 * @param template  the Template (must be a URI resource)
 	 */
-	public void register(Template template) {
-		templates.put(template.getURI(), template);
+	public void register(final Template template) {
+		batch(new Runnable() {
+			public void run() {
+				pending.templates = pending.templates.put(template.getURI(), template);
+			}
+		});
 	}
 	
 
@@ -273,11 +417,17 @@ public class SPINModuleRegistry {
 	 * may not be able to transform the SPIN RDF into the correct
 	 * SPARQL string.  In a typical use case, the Model would be
 	 * an OntModel that also imports the SPIN system namespaces.</b>
+	 * All functions and templates of the Model become visible at the same time.
 	 * @param model  the Model to iterate over
+	 * @param source  an optional source of the Model
 	 */
-	public void registerAll(Model model, Object source) {
-		registerFunctions(model, source);
-		registerTemplates(model);
+	public void registerAll(final Model model, final Object source) {
+		batch(new Runnable() {
+			public void run() {
+				registerFunctions(model, source);
+				registerTemplates(model);
+			}
+		});
 	}
 
 
@@ -299,6 +449,21 @@ public class SPINModuleRegistry {
 	}
 
 
+	/**
+	 * Same as registerARQFunction, but only registers a LazySPINFunctionFactory
+	 * that will compile the function when it is first used.
+	 * @param spinFunction  the function to register
+	 */
+	protected void registerLazyARQFunction(Function spinFunction) {
+		FunctionFactory oldFF = FunctionRegistry.get().get(spinFunction.getURI());
+		if(oldFF == null || oldFF instanceof SPINFunctionFactory) { // Never overwrite native Java functions
+			if(SPINFunctionDrivers.get().hasDriver(spinFunction)) {
+				FunctionRegistry.get().put(spinFunction.getURI(), new LazySPINFunctionFactory(spinFunction));
+			}
+		}
+	}
+
+
 	/**
 	 * If the provided Function has an executable body (spin:body), then
 	 * register an ARQ function for it with the current FunctionRegistry. 
@@ -309,12 +474,27 @@ public class SPINModuleRegistry {
 	public void registerARQPFunction(Function function) {
 		if(function.hasProperty(SPIN.body)) {
 			PropertyFunctionFactory old = PropertyFunctionRegistry.get().get(function.getURI());
-			if(old == null || old instanceof SPINARQPFunction) {
+			if(old == null || old instanceof SPINARQPFunction || old instanceof LazySPINARQPFunction) {
 				SPINARQPFunction arqFunction = new SPINARQPFunction(function);
 				PropertyFunctionRegistry.get().put(function.getURI(), arqFunction);
 			}
 		}
 	}
+
+
+	/**
+	 * Same as registerARQPFunction, but only registers a LazySPINARQPFunction
+	 * that will compile the magic property when it is first used.
+	 * @param function  the function to register
+	 */
+	public void registerLazyARQPFunction(Function function) {
+		if(function.hasProperty(SPIN.body)) {
+			PropertyFunctionFactory old = PropertyFunctionRegistry.get().get(function.getURI());
+			if(old == null || old instanceof SPINARQPFunction || old instanceof LazySPINARQPFunction) {
+				PropertyFunctionRegistry.get().put(function.getURI(), new LazySPINARQPFunction(function));
+			}
+		}
+	}
 	
 	
 	/**
@@ -324,11 +504,15 @@ public class SPINModuleRegistry {
 	 * @param model  the Model to add the functions of
 	 * @param source  an optional source of the Model
 	 */
-	public void registerFunctions(Model model, Object source) {
-		for(Resource resource : JenaUtil.getAllInstances((Resource)SPIN.Function.inModel(model))) {
-			Function function = SPINFactory.asFunction(resource);
-			register(function, source, true);
-		}
+	public void registerFunctions(final Model model, final Object source) {
+		batch(new Runnable() {
+			public void run() {
+				for(Resource resource : JenaUtil.getAllInstances((Resource)SPIN.Function.inModel(model))) {
+					Function function = SPINFactory.asFunction(resource);
+					register(function, source, true);
+				}
+			}
+		});
 	}
 
 
@@ -338,14 +522,47 @@ public class SPINModuleRegistry {
 	 * <code>register(template)</code> for each of them.
 	 * @param model  the Model to add the templates of
 	 */
-	public void registerTemplates(Model model) {
-		for(Resource resource : JenaUtil.getAllInstances((Resource)SPIN.Template.inModel(model))) {
-			if(resource.isURIResource()) {
-				Template template = resource.as(Template.class);
-				register(template);
-				ExtraPrefixes.add(template);
+	public void registerTemplates(final Model model) {
+		batch(new Runnable() {
+			public void run() {
+				for(Resource resource : JenaUtil.getAllInstances((Resource)SPIN.Template.inModel(model))) {
+					if(resource.isURIResource()) {
+						Template template = resource.as(Template.class);
+						register(template);
+						ExtraPrefixes.add(template);
+					}
+				}
 			}
-		}
+		});
+	}
+	
+	
+	/**
+	 * Replaces all functions that have been registered from a given source
+	 * with the functions and templates of a new version of the Model, e.g.
+	 * after a library file has changed.  Functions that have only been
+	 * registered from the given source and are no longer defined are removed
+	 * (including their SPIN functions in the ARQ FunctionRegistry and their
+	 * magic properties in the PropertyFunctionRegistry, which are only
+	 * removed after the change has been published).  The change is
+	 * published atomically.  Apart from reading the Model, each function of
+	 * the old and new version costs O(log n) in the size of the registry.
+	 * @param model  the new version of the Model
+	 * @param source  the source of the Model (not null)
+	 */
+	public void reloadAll(final Model model, final Object source) {
+		batch(new Runnable() {
+			public void run() {
+				Collection<Function> old = pending.removeSource(source);
+				registerAll(model, source);
+				for(Function function : old) {
+					if(!pending.sources.containsKey(function) && pending.functions.get(function.getURI()) == function) {
+						pending.functions = pending.functions.remove(function.getURI());
+						pendingRemovedFunctions.add(function);
+					}
+				}
+			}
+		});
 	}
 	
 	
@@ -353,8 +570,103 @@ public class SPINModuleRegistry {
 	 * Resets this registry, supporting things like server restarts.
 	 */
 	public void reset() {
-		functions.clear();
-		sources.clear();
-		templates.clear();
+		synchronized(writeLock) {
+			Modules empty = new Modules();
+			empty.version = modules.version + 1;
+			modules = empty;
+		}
 	}
+	
+	
+	/**
+	 * Specifies whether functions registered from now on shall be compiled
+	 * lazily.  If true, register(Function, Object, true) only installs
+	 * lightweight stubs (LazySPINFunctionFactory and LazySPINARQPFunction)
+	 * that parse the function body the first time ARQ uses the function.
+	 * @param value  true to activate lazy compilation
+	 */
+	public void setLazyFunctions(boolean value) {
+		this.lazyFunctions = value;
+	}
+	
+	
+	/**
+	 * An immutable (once published) state of the registry.  Writers work on a
+	 * copy, which initially shares the persistent maps with the published
+	 * Modules, so that copying and publishing do not depend on the size of
+	 * the registry.
+	 */
+	private static class Modules {
+		
+		PersistentMap<String, Function> functions = PersistentMap.empty();
+		
+		// The functions of each source, as a map from each function to itself
+		PersistentMap<Object, PersistentMap<Function, Function>> sourceFunctions = PersistentMap.empty();
+		
+		// The Sets are small and replaced with a copy when they change
+		PersistentMap<Function, Set<Object>> sources = PersistentMap.empty();
+		
+		PersistentMap<String, Template> templates = PersistentMap.empty();
+		
+		long version;
+		
+		
+		void addFunction(Function function, Object source) {
+			functions = functions.put(function.getURI(), function);
+			if(source != null) {
+				Set<Object> set = sources.get(function);
+				if(set == null || !set.contains(source)) {
+					Set<Object> newSet = set != null ? new HashSet<Object>(set) : new HashSet<Object>();
+					newSet.add(source);
+					sources = sources.put(function, newSet);
+					PersistentMap<Function, Function> functionsOfSource = sourceFunctions.get(source);
+					if(functionsOfSource == null) {
+						functionsOfSource = PersistentMap.empty();
+					}
+					sourceFunctions = sourceFunctions.put(source, functionsOfSource.put(function, function));
+				}
+			}
+		}
+		
+		
+		Modules copy() {
+			Modules copy = new Modules();
+			copy.functions = functions;
+			copy.sourceFunctions = sourceFunctions;
+			copy.sources = sources;
+			copy.templates = templates;
+			copy.version = version;
+			return copy;
+		}
+		
+		
+		Set<Object> getSources(Function function) {
+			Set<Object> set = sources.get(function);
+			return set != null ? set : Collections.emptySet();
+		}
+		
+		
+		// Removes a source and returns the functions that it had
+		Collection<Function> removeSource(Object source) {
+			PersistentMap<Function, Function> old = sourceFunctions.get(source);
+			if(old == null) {
+				return Collections.emptySet();
+			}
+			sourceFunctions = sourceFunctions.remove(source);
+			for(Function function : old.values()) {
+				Set<Object> set = sources.get(function);
+				if(set != null) {
+					if(set.size() == 1) {
+						sources = sources.remove(function);
+					}
+					else {
+						Set<Object> copy = new HashSet<Object>(set);
+						copy.remove(source);
+						sources = sources.put(function, copy);
+					}
+				}
+			}
+			return old.values();
+		}
+	}
 }
@@ -0,0 +1,192 @@
+package org.topbraid.spin.system;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.topbraid.spin.util.GraphSnapshots;
+import org.topbraid.spin.util.JenaUtil;
+import org.topbraid.spin.util.SystemTriples;
+import org.topbraid.spin.vocabulary.SP;
+import org.topbraid.spin.vocabulary.SPIN;
+import org.topbraid.spin.vocabulary.SPL;
+
+import com.hp.hpl.jena.rdf.model.Model;
+import com.hp.hpl.jena.rdf.model.Resource;
+import com.hp.hpl.jena.vocabulary.RDF;
+
+
+/**
+ * Manages the pre-parsed binary snapshots of the system vocabularies
+ * (SP, SPIN, SPL and the RDF/RDFS/OWL system triples) and the pre-built
+ * index of the functions and templates that SPINModuleRegistry.init()
+ * registers from them.
+ *
+ * The snapshots are produced at build time by running the main method
+ * of this class (bound to the process-classes phase in the spin-api pom)
+ * and are then loaded from the class path folder /etc/, so that no
+ * RDF/XML needs to be parsed at startup.  If the snapshots are missing
+ * then the system falls back to parsing the bundled RDF files.
+ * Setting the system property spin.snapshots.disabled to true will
+ * also ignore the snapshots.
+ */
+public class SystemSnapshots {
+
+	public final static String FUNCTION = "F";
+
+	public final static String MAGIC_PROPERTY = "M";
+
+	public final static String TEMPLATE = "T";
+
+	private final static String FOLDER = "/etc/";
+
+	private final static String INDEX = "registry.index";
+
+	private final static String SUFFIX = ".snapshot";
+
+	private static boolean enabled = !Boolean.getBoolean("spin.snapshots.disabled");
+
+
+	/**
+	 * Gets the entries of the registry index, each consisting of the source
+	 * (SPL.BASE_URI or SPIN.BASE_URI), the kind of entry (FUNCTION,
+	 * MAGIC_PROPERTY or TEMPLATE) and the URI of the module.
+	 * @return the index entries or null if no valid index is available
+	 */
+	public static List<String[]> getRegistryIndex() {
+		if(!enabled) {
+			return null;
+		}
+		InputStream is = SystemSnapshots.class.getResourceAsStream(FOLDER + INDEX);
+		if(is == null) {
+			return null;
+		}
+		try {
+			List<String[]> results = new ArrayList<String[]>();
+			BufferedReader reader = new BufferedReader(new InputStreamReader(is, "UTF-8"));
+			try {
+				String line;
+				while((line = reader.readLine()) != null) {
+					if(line.length() > 0) {
+						String[] entry = line.split("\t");
+						if(entry.length != 3) {
+							throw new IOException("Malformed registry index entry: " + line);
+						}
+						results.add(entry);
+					}
+				}
+			}
+			finally {
+				reader.close();
+			}
+			return results;
+		}
+		catch(IOException ex) {
+			// Deliberately silent: callers fall back to scanning the parsed models,
+			// which produces the same registry, only slower
+			return null;
+		}
+	}
+
+
+	public static boolean isEnabled() {
+		return enabled;
+	}
+
+
+	/**
+	 * Attempts to load the snapshot with a given name into a Model.
+	 * If the snapshot is invalid then the Model will remain empty and false
+	 * is returned, just like for a missing snapshot.
+	 * @param name  the name of the snapshot, e.g. "spin"
+	 * @param model  the Model to load into
+	 * @return true  if the snapshot has been loaded
+	 */
+	public static boolean load(String name, Model model) {
+		if(enabled) {
+			try {
+				return GraphSnapshots.readResource(FOLDER + name + SUFFIX, model.getGraph());
+			}
+			catch(IOException ex) {
+				// Deliberately silent: a damaged snapshot is treated like a missing
+				// one, so that the caller parses the RDF file instead
+				model.removeAll();
+			}
+			catch(RuntimeException ex) {
+				// The same for a snapshot that Jena rejects, e.g. because of an illegal prefix
+				model.removeAll();
+			}
+		}
+		return false;
+	}
+
+
+	/**
+	 * Enables or disables the use of snapshots (for example, while
+	 * new snapshots are being generated).
+	 * @param value  false to always parse the RDF files
+	 */
+	public static void setEnabled(boolean value) {
+		enabled = value;
+	}
+
+
+	/**
+	 * Writes the snapshots and the registry index into a given folder.
+	 * @param folder  the folder to write to
+	 * @throws IOException  if writing failed
+	 */
+	public static void write(File folder) throws IOException {
+		folder.mkdirs();
+		GraphSnapshots.write(SP.getModel().getGraph(), null, new File(folder, "sp" + SUFFIX));
+		GraphSnapshots.write(SPIN.getModel().getGraph(), null, new File(folder, "spin" + SUFFIX));
+		GraphSnapshots.write(SPL.getModel().getGraph(), null, new File(folder, "spl" + SUFFIX));
+		GraphSnapshots.write(SystemTriples.getVocabularyModel().getGraph(), null, new File(folder, "system" + SUFFIX));
+
+		PrintWriter pw = new PrintWriter(new OutputStreamWriter(new FileOutputStream(new File(folder, INDEX)), "UTF-8"));
+		try {
+			writeIndex(pw, SPL.getModel(), SPL.BASE_URI);
+			writeIndex(pw, SPIN.getModel(), SPIN.BASE_URI);
+		}
+		finally {
+			pw.close();
+		}
+	}
+
+
+	// Same order as SPINModuleRegistry.registerAll
+	private static void writeIndex(PrintWriter pw, Model model, String source) {
+		for(Resource function : JenaUtil.getAllInstances((Resource)SPIN.Function.inModel(model))) {
+			if(function.isURIResource()) {
+				String kind = function.hasProperty(RDF.type, SPIN.MagicProperty) ? MAGIC_PROPERTY : FUNCTION;
+				pw.println(source + "\t" + kind + "\t" + function.getURI());
+			}
+		}
+		for(Resource template : JenaUtil.getAllInstances((Resource)SPIN.Template.inModel(model))) {
+			if(template.isURIResource()) {
+				pw.println(source + "\t" + TEMPLATE + "\t" + template.getURI());
+			}
+		}
+	}
+
+
+	/**
+	 * Generates the snapshots at build time.
+	 * @param args  the target folder (e.g. target/classes/etc)
+	 */
+	public static void main(String[] args) throws IOException {
+		if(args.length != 1) {
+			System.out.println("Usage: SystemSnapshots <targetFolder>");
+			System.exit(1);
+		}
+		setEnabled(false);
+		write(new File(args[0]));
+	}
+}
@@ -0,0 +1,137 @@
+package org.topbraid.spin.util;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.hp.hpl.jena.graph.Factory;
+import com.hp.hpl.jena.graph.Graph;
+import com.hp.hpl.jena.graph.Node;
+import com.hp.hpl.jena.graph.Triple;
+import com.hp.hpl.jena.graph.TripleMatch;
+import com.hp.hpl.jena.graph.compose.MultiUnion;
+import com.hp.hpl.jena.util.iterator.ExtendedIterator;
+import com.hp.hpl.jena.util.iterator.Filter;
+
+
+/**
+ * A MultiUnion that is optimized for read access if all sub-graphs except
+ * the base graph are known to be read-only (such as spin:imports).
+ *
+ * Instead of asking each sub-graph and then removing duplicates, all non-base
+ * sub-graphs are merged into a single de-duplicated index graph, so that each
+ * find or contains operation only needs to consult the base graph and the index.
+ * The base graph remains separate and all modifications go into it.
+ *
+ * The index is built on first access and rebuilt whenever the set of sub-graphs
+ * changes.  Changes to the content of the non-base sub-graphs are not detected.
+ */
+public class FlatUnionGraph extends MultiUnion {
+
+	private Graph index;
+
+
+	/**
+	 * Creates a new FlatUnionGraph.
+	 * @param baseGraph  the (mutable) base graph
+	 * @param imports  the read-only graphs to merge into the index
+	 */
+	public FlatUnionGraph(Graph baseGraph, List<Graph> imports) {
+		this(baseGraph, imports, null);
+	}
+
+
+	/**
+	 * Creates a new FlatUnionGraph that shares an existing index with other
+	 * FlatUnionGraphs over the same imports.
+	 * @param baseGraph  the (mutable) base graph
+	 * @param imports  the read-only graphs that have been merged into index
+	 * @param index  the index created by createIndex(imports) or null
+	 */
+	public FlatUnionGraph(Graph baseGraph, List<Graph> imports, Graph index) {
+		super.addGraph(baseGraph);
+		setBaseGraph(baseGraph);
+		for(Graph graph : imports) {
+			super.addGraph(graph);
+		}
+		this.index = index;
+	}
+
+
+	@Override
+	public synchronized void addGraph(Graph graph) {
+		super.addGraph(graph);
+		index = null;
+	}
+
+
+	/**
+	 * Creates a merged, de-duplicated copy of a given list of graphs.
+	 * @param graphs  the graphs to merge
+	 * @return a new index graph
+	 */
+	public static Graph createIndex(List<Graph> graphs) {
+		Graph index = Factory.createGraphMem();
+		for(Graph graph : graphs) {
+			ExtendedIterator<Triple> it = graph.find(Node.ANY, Node.ANY, Node.ANY);
+			while(it.hasNext()) {
+				index.add(it.next());
+			}
+		}
+		return index;
+	}
+
+
+	/**
+	 * Gets the merged index of all non-base sub-graphs, creating it if needed.
+	 * @return the index graph
+	 */
+	public synchronized Graph getIndex() {
+		if(index == null) {
+			List<Graph> graphs = new ArrayList<Graph>(m_subGraphs);
+			graphs.remove(m_baseGraph);
+			index = createIndex(graphs);
+		}
+		return index;
+	}
+
+
+	@Override
+	public boolean graphBaseContains(Triple t) {
+		if(m_baseGraph != null && m_baseGraph.contains(t)) {
+			return true;
+		}
+		return getIndex().contains(t);
+	}
+
+
+	@Override
+	public ExtendedIterator<Triple> graphBaseFind(TripleMatch m) {
+		final Graph base = m_baseGraph;
+		ExtendedIterator<Triple> indexed = getIndex().find(m);
+		if(base == null) {
+			return indexed;
+		}
+		else {
+			return base.find(m).andThen(indexed.filterDrop(new Filter<Triple>() {
+				@Override
+				public boolean accept(Triple t) {
+					return base.contains(t);
+				}
+			}));
+		}
+	}
+
+
+	@Override
+	public synchronized void removeGraph(Graph graph) {
+		super.removeGraph(graph);
+		index = null;
+	}
+
+
+	@Override
+	public synchronized void setBaseGraph(Graph graph) {
+		super.setBaseGraph(graph);
+		index = null;
+	}
+}
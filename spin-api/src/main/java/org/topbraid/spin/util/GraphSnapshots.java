@@ -0,0 +1,408 @@
+package org.topbraid.spin.util;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.hp.hpl.jena.datatypes.RDFDatatype;
+import com.hp.hpl.jena.datatypes.TypeMapper;
+import com.hp.hpl.jena.graph.Graph;
+import com.hp.hpl.jena.graph.Node;
+import com.hp.hpl.jena.graph.Triple;
+import com.hp.hpl.jena.rdf.model.AnonId;
+import com.hp.hpl.jena.util.iterator.ExtendedIterator;
+
+
+/**
+ * Reads and writes Graphs in a compact binary snapshot format that can be
+ * loaded without any RDF parsing.
+ *
+ * A snapshot consists of a header (including an optional content hash of
+ * the document that the Graph was parsed from), the prefix declarations,
+ * a table of all distinct Nodes and finally the triples as index triples
+ * into that table.  Snapshots are read through a memory-mapped buffer.
+ * Truncated or otherwise corrupt snapshots are reported as IOExceptions, so
+ * that callers can fall back to the source document.
+ */
+public class GraphSnapshots {
+
+	private final static int MAGIC = 0x5350534E; // "SPSN"
+
+	private final static int VERSION = 1;
+
+	private final static byte URI = 1;
+
+	private final static byte BLANK = 2;
+
+	private final static byte PLAIN_LITERAL = 3;
+
+	private final static byte TYPED_LITERAL = 4;
+
+	private final static String UTF8 = "UTF-8";
+
+
+	/**
+	 * Gets the content hash stored in the header of a given snapshot file,
+	 * without loading its triples.
+	 * @param file  the snapshot file
+	 * @return the content hash or null if none was stored
+	 * @throws IOException  if the file is not a valid snapshot
+	 */
+	public static String getContentHash(File file) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			ByteBuffer buffer = map(raf);
+			return readHeader(buffer, file);
+		}
+		finally {
+			raf.close();
+		}
+	}
+
+
+	/**
+	 * Creates a hex String of the SHA-1 digest of a given byte array.
+	 * This can be used to compute the content hash of a source document.
+	 * @param bytes  the bytes to digest
+	 * @return the hex digest
+	 */
+	public static String hash(byte[] bytes) {
+		try {
+			MessageDigest digest = MessageDigest.getInstance("SHA-1");
+			byte[] d = digest.digest(bytes);
+			StringBuilder sb = new StringBuilder(d.length * 2);
+			for(byte b : d) {
+				sb.append(Character.forDigit((b >> 4) & 0xF, 16));
+				sb.append(Character.forDigit(b & 0xF, 16));
+			}
+			return sb.toString();
+		}
+		catch(NoSuchAlgorithmException ex) {
+			throw new IllegalStateException(ex);
+		}
+	}
+
+
+	private static ByteBuffer map(RandomAccessFile raf) throws IOException {
+		FileChannel channel = raf.getChannel();
+		MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+		return buffer;
+	}
+
+
+	/**
+	 * Loads a snapshot file into a new memory Graph.
+	 * @param file  the snapshot file
+	 * @return a new Graph
+	 * @throws IOException  if the file could not be read
+	 */
+	public static Graph read(File file) throws IOException {
+		Graph graph = JenaUtil.createDefaultModel().getGraph();
+		read(file, graph);
+		return graph;
+	}
+
+
+	/**
+	 * Loads the prefixes and triples of a snapshot file into a given Graph.
+	 * @param file  the snapshot file
+	 * @param graph  the Graph to add the triples to
+	 * @throws IOException  if the file could not be read
+	 */
+	public static void read(File file, Graph graph) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			read(map(raf), file, graph);
+		}
+		finally {
+			raf.close();
+		}
+	}
+
+
+	/**
+	 * Loads the prefixes and triples from a buffer holding a snapshot,
+	 * for example a class path resource that has been loaded into memory.
+	 * @param buffer  the buffer, positioned at the start of the snapshot
+	 * @param source  a description of the source for error messages
+	 * @param graph  the Graph to add the triples to
+	 * @throws IOException  if the buffer does not contain a valid snapshot
+	 */
+	public static void read(ByteBuffer buffer, Object source, Graph graph) throws IOException {
+		readHeader(buffer, source);
+		try {
+			int prefixCount = buffer.getInt();
+			for(int i = 0; i < prefixCount; i++) {
+				String prefix = readString(buffer, source);
+				String namespace = readString(buffer, source);
+				graph.getPrefixMapping().setNsPrefix(prefix, namespace);
+			}
+
+			// Each Node takes at least five bytes
+			int nodeCount = buffer.getInt();
+			if(nodeCount < 0 || nodeCount > buffer.remaining() / 5) {
+				throw new IOException("Malformed node table in snapshot " + source);
+			}
+			Node[] nodes = new Node[nodeCount];
+			for(int i = 0; i < nodeCount; i++) {
+				nodes[i] = readNode(buffer, source);
+			}
+
+			int tripleCount = buffer.getInt();
+			for(int i = 0; i < tripleCount; i++) {
+				Node subject = readNodeIndex(buffer, nodes, source);
+				Node predicate = readNodeIndex(buffer, nodes, source);
+				Node object = readNodeIndex(buffer, nodes, source);
+				graph.add(Triple.create(subject, predicate, object));
+			}
+		}
+		catch(BufferUnderflowException ex) {
+			throw new IOException("Truncated snapshot " + source, ex);
+		}
+	}
+
+
+	/**
+	 * Loads a snapshot that is bundled as a class path resource into a given Graph.
+	 * @param path  the absolute resource path, e.g. "/etc/spin.snapshot"
+	 * @param graph  the Graph to add the triples to
+	 * @return true  if the resource exists and has been loaded, false if it doesn't exist
+	 * @throws IOException  if the resource is not a valid snapshot
+	 */
+	public static boolean readResource(String path, Graph graph) throws IOException {
+		InputStream is = GraphSnapshots.class.getResourceAsStream(path);
+		if(is == null) {
+			return false;
+		}
+		try {
+			ByteArrayOutputStream bos = new ByteArrayOutputStream();
+			byte[] bytes = new byte[8192];
+			int count;
+			while((count = is.read(bytes)) > 0) {
+				bos.write(bytes, 0, count);
+			}
+			read(ByteBuffer.wrap(bos.toByteArray()), path, graph);
+			return true;
+		}
+		finally {
+			is.close();
+		}
+	}
+
+
+	private static String readHeader(ByteBuffer buffer, Object source) throws IOException {
+		if(buffer.remaining() < 8 || buffer.getInt() != MAGIC) {
+			throw new IOException("Not a graph snapshot: " + source);
+		}
+		int version = buffer.getInt();
+		if(version != VERSION) {
+			throw new IOException("Unsupported snapshot version " + version + " in " + source);
+		}
+		try {
+			String hash = readString(buffer, source);
+			return hash.length() > 0 ? hash : null;
+		}
+		catch(BufferUnderflowException ex) {
+			throw new IOException("Truncated snapshot " + source, ex);
+		}
+	}
+
+
+	/**
+	 * Reads a single Node in the binary encoding of the node table.
+	 * This can be used by other binary formats that are based on snapshots.
+	 * @param buffer  the buffer, positioned at the start of the Node
+	 * @param source  a description of the source for error messages
+	 * @return the Node
+	 * @throws IOException  if the buffer does not contain a valid Node
+	 */
+	public static Node readNode(ByteBuffer buffer, Object source) throws IOException {
+		try {
+			byte type = buffer.get();
+			if(type == URI) {
+				return Node.createURI(readString(buffer, source));
+			}
+			else if(type == BLANK) {
+				return Node.createAnon(AnonId.create(readString(buffer, source)));
+			}
+			else if(type == PLAIN_LITERAL) {
+				String lex = readString(buffer, source);
+				String lang = readString(buffer, source);
+				return Node.createLiteral(lex, lang, false);
+			}
+			else if(type == TYPED_LITERAL) {
+				String lex = readString(buffer, source);
+				RDFDatatype datatype = TypeMapper.getInstance().getSafeTypeByName(readString(buffer, source));
+				return Node.createLiteral(lex, null, datatype);
+			}
+			else {
+				throw new IOException("Malformed node table in snapshot " + source);
+			}
+		}
+		catch(BufferUnderflowException ex) {
+			throw new IOException("Truncated snapshot " + source, ex);
+		}
+	}
+
+
+	private static Node readNodeIndex(ByteBuffer buffer, Node[] nodes, Object source) throws IOException {
+		int index = buffer.getInt();
+		if(index < 0 || index >= nodes.length) {
+			throw new IOException("Malformed triple table in snapshot " + source);
+		}
+		return nodes[index];
+	}
+
+
+	private static String readString(ByteBuffer buffer, Object source) throws IOException {
+		int length = buffer.getInt();
+		if(length < 0 || length > buffer.remaining()) {
+			throw new IOException("Malformed string in snapshot " + source);
+		}
+		byte[] bytes = new byte[length];
+		buffer.get(bytes);
+		return new String(bytes, UTF8);
+	}
+
+
+	/**
+	 * Writes a Graph into a snapshot file.  The file is first written
+	 * to a new temporary file in the same directory which then atomically
+	 * replaces the target file, so that concurrent writers do not interfere
+	 * and concurrent readers always see either the old or the new snapshot.
+	 * On platforms that cannot rename onto an existing file, the old snapshot
+	 * is kept and an IOException is thrown.
+	 * @param graph  the Graph to write
+	 * @param contentHash  the (optional) hash of the source document
+	 * @param file  the file to write to
+	 * @throws IOException  if writing failed
+	 */
+	public static void write(Graph graph, String contentHash, File file) throws IOException {
+		File tmp = File.createTempFile(file.getName(), ".tmp", file.getAbsoluteFile().getParentFile());
+		boolean renamed = false;
+		try {
+			OutputStream os = new BufferedOutputStream(new FileOutputStream(tmp));
+			try {
+				write(graph, contentHash, os);
+			}
+			finally {
+				os.close();
+			}
+			renamed = tmp.renameTo(file);
+			if(!renamed) {
+				throw new IOException("Could not replace snapshot " + file);
+			}
+		}
+		finally {
+			if(!renamed) {
+				tmp.delete();
+			}
+		}
+	}
+
+
+	/**
+	 * Writes a Graph in snapshot format into a given OutputStream.
+	 * @param graph  the Graph to write
+	 * @param contentHash  the (optional) hash of the source document
+	 * @param out  the OutputStream to write to
+	 * @throws IOException  if writing failed
+	 */
+	public static void write(Graph graph, String contentHash, OutputStream out) throws IOException {
+		DataOutputStream dos = new DataOutputStream(out);
+		dos.writeInt(MAGIC);
+		dos.writeInt(VERSION);
+		writeString(dos, contentHash != null ? contentHash : "");
+
+		Map<String,String> prefixes = graph.getPrefixMapping().getNsPrefixMap();
+		dos.writeInt(prefixes.size());
+		for(String prefix : prefixes.keySet()) {
+			writeString(dos, prefix);
+			writeString(dos, prefixes.get(prefix));
+		}
+
+		Map<Node,Integer> indices = new HashMap<Node,Integer>();
+		List<Node> nodes = new ArrayList<Node>();
+		List<Triple> triples = new ArrayList<Triple>();
+		ExtendedIterator<Triple> it = graph.find(Node.ANY, Node.ANY, Node.ANY);
+		while(it.hasNext()) {
+			Triple triple = it.next();
+			index(triple.getSubject(), indices, nodes);
+			index(triple.getPredicate(), indices, nodes);
+			index(triple.getObject(), indices, nodes);
+			triples.add(triple);
+		}
+
+		dos.writeInt(nodes.size());
+		for(Node node : nodes) {
+			writeNode(dos, node);
+		}
+
+		dos.writeInt(triples.size());
+		for(Triple triple : triples) {
+			dos.writeInt(indices.get(triple.getSubject()));
+			dos.writeInt(indices.get(triple.getPredicate()));
+			dos.writeInt(indices.get(triple.getObject()));
+		}
+		dos.flush();
+	}
+
+
+	private static void index(Node node, Map<Node,Integer> indices, List<Node> nodes) {
+		if(!indices.containsKey(node)) {
+			indices.put(node, nodes.size());
+			nodes.add(node);
+		}
+	}
+
+
+	/**
+	 * Writes a single Node in the binary encoding of the node table.
+	 * @param dos  the stream to write to
+	 * @param node  the Node to write (must be concrete)
+	 * @throws IOException  if writing failed
+	 */
+	public static void writeNode(DataOutputStream dos, Node node) throws IOException {
+		if(node.isURI()) {
+			dos.writeByte(URI);
+			writeString(dos, node.getURI());
+		}
+		else if(node.isBlank()) {
+			dos.writeByte(BLANK);
+			writeString(dos, node.getBlankNodeLabel());
+		}
+		else if(node.getLiteralDatatypeURI() != null) {
+			dos.writeByte(TYPED_LITERAL);
+			writeString(dos, node.getLiteralLexicalForm());
+			writeString(dos, node.getLiteralDatatypeURI());
+		}
+		else {
+			dos.writeByte(PLAIN_LITERAL);
+			writeString(dos, node.getLiteralLexicalForm());
+			writeString(dos, node.getLiteralLanguage());
+		}
+	}
+
+
+	private static void writeString(DataOutputStream dos, String str) throws IOException {
+		byte[] bytes = str.getBytes(UTF8);
+		dos.writeInt(bytes.length);
+		dos.write(bytes);
+	}
+}
@@ -0,0 +1,200 @@
+package org.topbraid.spin.util;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import com.hp.hpl.jena.graph.Graph;
+import com.hp.hpl.jena.graph.GraphStatisticsHandler;
+import com.hp.hpl.jena.graph.Node;
+import com.hp.hpl.jena.graph.Triple;
+import com.hp.hpl.jena.util.iterator.ExtendedIterator;
+import com.hp.hpl.jena.vocabulary.RDF;
+
+
+/**
+ * Maintains fingerprints of the triples of each predicate of a Graph, and of
+ * the rdf:type triples of each class, so that callers can cheaply find out
+ * whether the triples of a given predicate or class have changed.  Each
+ * fingerprint consists of the number of triples and the sum of their hash
+ * codes, which is updated incrementally by a GraphListener.
+ *
+ * Since Jena also notifies listeners about triples that were already present
+ * (or absent), the counts are verified against the GraphStatisticsHandler of
+ * the Graph (if it has one) whenever a fingerprint is requested, and the
+ * triples of a predicate are counted again if they do not match.
+ */
+public class PredicateFingerprints extends AbstractGraphListener {
+
+	private final static Node TYPE = RDF.type.asNode();
+
+	private Map<Node,long[]> classes = new HashMap<Node,long[]>();
+
+	private Graph graph;
+
+	private Map<Node,long[]> predicates = new HashMap<Node,long[]>();
+
+	private long[] total = new long[2];
+
+
+	/**
+	 * Creates a new PredicateFingerprints for a given Graph and starts
+	 * listening to its changes.
+	 * @param graph  the Graph to observe
+	 */
+	public PredicateFingerprints(Graph graph) {
+		this.graph = graph;
+		refresh();
+		graph.getEventManager().register(this);
+	}
+
+
+	private static void add(Map<Node,long[]> map, Node key, long hash, int delta) {
+		long[] values = map.get(key);
+		if(values == null) {
+			values = new long[2];
+			map.put(key, values);
+		}
+		update(values, hash, delta);
+	}
+
+
+	/**
+	 * Stops listening to the Graph.
+	 */
+	public void close() {
+		graph.getEventManager().unregister(this);
+	}
+
+
+	/**
+	 * Gets the fingerprint of the rdf:type triples with a given class as object.
+	 * @param cls  the class
+	 * @return the fingerprint
+	 */
+	public synchronized String getClassFingerprint(Node cls) {
+		verify(TYPE);
+		return toString(classes.get(cls));
+	}
+
+
+	/**
+	 * Gets the fingerprint of all triples of the Graph.
+	 * @return the fingerprint
+	 */
+	public synchronized String getFingerprint() {
+		if(graph.size() != total[0]) {
+			refresh();
+		}
+		return toString(total);
+	}
+
+
+	/**
+	 * Gets the fingerprint of the triples with a given predicate.
+	 * @param predicate  the predicate
+	 * @return the fingerprint
+	 */
+	public synchronized String getFingerprint(Node predicate) {
+		verify(predicate);
+		return toString(predicates.get(predicate));
+	}
+
+
+	/**
+	 * Gets the Graph that is observed.
+	 * @return the Graph
+	 */
+	public Graph getGraph() {
+		return graph;
+	}
+
+
+	@Override
+	public synchronized void notifyAddTriple(Graph g, Triple t) {
+		update(t, 1);
+	}
+
+
+	@Override
+	public synchronized void notifyDeleteTriple(Graph g, Triple t) {
+		update(t, -1);
+	}
+
+
+	@Override
+	protected synchronized void notifyRemoveAll(Graph source, Triple pattern) {
+		refresh();
+	}
+
+
+	/**
+	 * Recomputes all fingerprints from the triples of the Graph.
+	 */
+	public synchronized void refresh() {
+		classes.clear();
+		predicates.clear();
+		total = new long[2];
+		ExtendedIterator<Triple> it = graph.find(Node.ANY, Node.ANY, Node.ANY);
+		while(it.hasNext()) {
+			update(it.next(), 1);
+		}
+	}
+
+
+	// Recounts the triples of a predicate
+	private void refresh(Node predicate) {
+		long[] old = predicates.remove(predicate);
+		if(old != null) {
+			total[0] -= old[0];
+			total[1] -= old[1];
+		}
+		if(TYPE.equals(predicate)) {
+			classes.clear();
+		}
+		ExtendedIterator<Triple> it = graph.find(Node.ANY, predicate, Node.ANY);
+		while(it.hasNext()) {
+			update(it.next(), 1);
+		}
+	}
+
+
+	private static String toString(long[] values) {
+		if(values == null || values[0] == 0) {
+			return "0";
+		}
+		else {
+			return values[0] + ":" + Long.toHexString(values[1]);
+		}
+	}
+
+
+	private void update(Triple t, int delta) {
+		long hash = t.hashCode();
+		add(predicates, t.getPredicate(), hash, delta);
+		if(TYPE.equals(t.getPredicate())) {
+			add(classes, t.getObject(), hash, delta);
+		}
+		update(total, hash, delta);
+	}
+
+
+	private static void update(long[] values, long hash, int delta) {
+		values[0] += delta;
+		values[1] += delta * hash;
+	}
+
+
+	// Makes sure that the count of a predicate is correct
+	private void verify(Node predicate) {
+		GraphStatisticsHandler handler = graph.getStatisticsHandler();
+		if(handler != null) {
+			long count = handler.getStatistic(Node.ANY, predicate, Node.ANY);
+			if(count >= 0) {
+				long[] values = predicates.get(predicate);
+				if(count != (values != null ? values[0] : 0)) {
+					refresh(predicate);
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,452 @@
+package org.topbraid.spin.util;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+import org.topbraid.spin.system.SPINModuleRegistry;
+import org.topbraid.spin.vocabulary.SPIN;
+
+import com.hp.hpl.jena.graph.Graph;
+import com.hp.hpl.jena.graph.Node;
+import com.hp.hpl.jena.graph.Triple;
+import com.hp.hpl.jena.query.Query;
+import com.hp.hpl.jena.query.QuerySolution;
+import com.hp.hpl.jena.rdf.model.RDFNode;
+import com.hp.hpl.jena.sparql.core.TriplePath;
+import com.hp.hpl.jena.sparql.expr.E_Function;
+import com.hp.hpl.jena.sparql.expr.Expr;
+import com.hp.hpl.jena.sparql.expr.ExprFunctionN;
+import com.hp.hpl.jena.sparql.expr.ExprFunctionOp;
+import com.hp.hpl.jena.sparql.expr.ExprVisitorBase;
+import com.hp.hpl.jena.sparql.expr.ExprWalker;
+import com.hp.hpl.jena.sparql.pfunction.PropertyFunctionRegistry;
+import com.hp.hpl.jena.sparql.syntax.Element;
+import com.hp.hpl.jena.sparql.syntax.ElementAssign;
+import com.hp.hpl.jena.sparql.syntax.ElementBind;
+import com.hp.hpl.jena.sparql.syntax.ElementDataset;
+import com.hp.hpl.jena.sparql.syntax.ElementFetch;
+import com.hp.hpl.jena.sparql.syntax.ElementFilter;
+import com.hp.hpl.jena.sparql.syntax.ElementNamedGraph;
+import com.hp.hpl.jena.sparql.syntax.ElementPathBlock;
+import com.hp.hpl.jena.sparql.syntax.ElementService;
+import com.hp.hpl.jena.sparql.syntax.ElementSubQuery;
+import com.hp.hpl.jena.sparql.syntax.ElementTriplesBlock;
+import com.hp.hpl.jena.sparql.syntax.ElementVisitorBase;
+import com.hp.hpl.jena.sparql.syntax.ElementWalker;
+import com.hp.hpl.jena.vocabulary.RDF;
+
+
+/**
+ * A cache of the results of CONSTRUCT queries (such as SPIN rules and
+ * constraints) that can be reused across runs as long as the data that
+ * the queries read has not changed.
+ *
+ * The WHERE clause of each query is analyzed to find the predicates and
+ * classes (objects of rdf:type) that it reads.  The results are stored
+ * together with the current PredicateFingerprints of those predicates and
+ * classes in all observed Graphs, and a later execution with the same
+ * query, bindings and fingerprints can replay the cached triples instead of
+ * executing the query.  Triple patterns with a variable predicate (and
+ * complex property paths) depend on all triples.  Queries that may read
+ * data in other ways, for example via SPIN functions, magic properties,
+ * named graphs or SERVICE calls, are not cached.
+ *
+ * The observed Graphs must include all Graphs that may change between the
+ * runs, e.g. the base Graph with the instance data and the Graph of the
+ * inferred triples.
+ *
+ * The analysis of a query and its serialization are computed only once per
+ * Query object and kept (by identity) next to the results, so that each
+ * execution only needs to look up the bindings and fingerprints.  Triple
+ * patterns whose predicate (or rdf:type object) is a variable are resolved
+ * against the bindings of each execution.
+ */
+public class QueryResultCache {
+
+	public final static int DEFAULT_MAX_ENTRIES = 10000;
+
+	private final static Node TYPE = RDF.type.asNode();
+
+	private Map<QueryKey,Dependencies> dependencies;
+
+	private Map<String,List<Triple>> entries;
+
+	private List<PredicateFingerprints> fingerprints = new ArrayList<PredicateFingerprints>();
+
+	private int hits;
+
+	private int misses;
+
+
+	/**
+	 * Creates a new QueryResultCache observing the given Graphs.
+	 * @param graphs  the Graphs that the queries may read from
+	 */
+	public QueryResultCache(Graph... graphs) {
+		this(DEFAULT_MAX_ENTRIES, graphs);
+	}
+
+
+	/**
+	 * Creates a new QueryResultCache observing the given Graphs.
+	 * @param maxEntries  the maximum number of results to keep
+	 * @param graphs  the Graphs that the queries may read from
+	 */
+	@SuppressWarnings("serial")
+	public QueryResultCache(final int maxEntries, Graph... graphs) {
+		for(Graph graph : graphs) {
+			fingerprints.add(new PredicateFingerprints(graph));
+		}
+		entries = new LinkedHashMap<String,List<Triple>>(16, 0.75f, true) {
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String,List<Triple>> eldest) {
+				return size() > maxEntries;
+			}
+		};
+		dependencies = new LinkedHashMap<QueryKey,Dependencies>(16, 0.75f, true) {
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<QueryKey,Dependencies> eldest) {
+				return size() > maxEntries;
+			}
+		};
+	}
+
+
+	/**
+	 * Removes all cached results and query analyses.
+	 */
+	public synchronized void clear() {
+		dependencies.clear();
+		entries.clear();
+	}
+
+
+	/**
+	 * Stops observing the Graphs.
+	 */
+	public void close() {
+		for(PredicateFingerprints fp : fingerprints) {
+			fp.close();
+		}
+	}
+
+
+	// Collects the predicates and classes that a query reads, independent of any bindings
+	private static Dependencies analyze(Query query) {
+		final Dependencies deps = new Dependencies(query.toString());
+		if(!query.getGraphURIs().isEmpty() || !query.getNamedGraphURIs().isEmpty()) {
+			deps.cacheable = false;
+			return deps;
+		}
+		final ExprVisitorBase exprVisitor = new ExprVisitorBase() {
+
+			@Override
+			public void visit(ExprFunctionN func) {
+				if(func instanceof E_Function) {
+					String iri = ((E_Function)func).getFunctionIRI();
+					if(SPIN.eval.getURI().equals(iri) || SPINModuleRegistry.get().getFunction(iri, null) != null) {
+						deps.cacheable = false;
+					}
+				}
+			}
+
+			@Override
+			public void visit(ExprFunctionOp funcOp) {
+				if(funcOp.getElement() != null) {
+					collect(funcOp.getElement(), this, deps);
+				}
+			}
+		};
+		collect(query.getQueryPattern(), exprVisitor, deps);
+		return deps;
+	}
+
+
+	private static void collect(Element element, final ExprVisitorBase exprVisitor, final Dependencies deps) {
+		ElementWalker.walk(element, new ElementVisitorBase() {
+
+			@Override
+			public void visit(ElementAssign el) {
+				walk(el.getExpr());
+			}
+
+			@Override
+			public void visit(ElementBind el) {
+				walk(el.getExpr());
+			}
+
+			@Override
+			public void visit(ElementDataset el) {
+				deps.cacheable = false;
+			}
+
+			@Override
+			public void visit(ElementFetch el) {
+				deps.cacheable = false;
+			}
+
+			@Override
+			public void visit(ElementFilter el) {
+				walk(el.getExpr());
+			}
+
+			@Override
+			public void visit(ElementNamedGraph el) {
+				deps.cacheable = false;
+			}
+
+			@Override
+			public void visit(ElementPathBlock el) {
+				for(TriplePath path : el.getPattern().getList()) {
+					if(path.isTriple()) {
+						visitTriple(path.asTriple());
+					}
+					else {
+						deps.all = true;
+					}
+				}
+			}
+
+			@Override
+			public void visit(ElementService el) {
+				deps.cacheable = false;
+			}
+
+			@Override
+			public void visit(ElementSubQuery el) {
+				collect(el.getQuery().getQueryPattern(), exprVisitor, deps);
+			}
+
+			@Override
+			public void visit(ElementTriplesBlock el) {
+				for(Triple triple : el.getPattern().getList()) {
+					visitTriple(triple);
+				}
+			}
+
+			private void visitTriple(Triple triple) {
+				if(triple.getPredicate().isVariable() || (TYPE.equals(triple.getPredicate()) && triple.getObject().isVariable())) {
+					deps.unresolved.add(triple);
+				}
+				else {
+					deps.add(triple.getPredicate(), triple.getObject());
+				}
+			}
+
+			private void walk(Expr expr) {
+				ExprWalker.walk(exprVisitor, expr);
+			}
+		});
+	}
+
+
+	/**
+	 * Gets the cached results for a given key.
+	 * @param key  the key (see getKey)
+	 * @return the cached triples or null
+	 */
+	public synchronized List<Triple> get(String key) {
+		List<Triple> triples = entries.get(key);
+		if(triples != null) {
+			hits++;
+		}
+		else {
+			misses++;
+		}
+		return triples;
+	}
+
+
+	public synchronized int getHits() {
+		return hits;
+	}
+
+
+	// Gets the analysis of a query, from the cache or by analyzing it
+	private Dependencies getDependencies(Query query) {
+		QueryKey queryKey = new QueryKey(query);
+		Dependencies deps;
+		synchronized(this) {
+			deps = dependencies.get(queryKey);
+		}
+		if(deps == null) {
+			deps = analyze(query);
+			synchronized(this) {
+				dependencies.put(queryKey, deps);
+			}
+		}
+		return deps;
+	}
+
+
+	/**
+	 * Computes the cache key of a query execution, consisting of the query,
+	 * its initial bindings and the current fingerprints of the predicates and
+	 * classes that it depends on.  The key must be computed before the query
+	 * is executed.
+	 * @param query  the Query
+	 * @param bindings  the initial bindings (may be null)
+	 * @return the key or null if the query cannot be cached
+	 */
+	public String getKey(Query query, QuerySolution bindings) {
+		Dependencies deps = getDependencies(query);
+		if(!deps.cacheable) {
+			return null;
+		}
+		if(!deps.unresolved.isEmpty()) {
+			deps = deps.resolve(bindings);
+			if(!deps.cacheable) {
+				return null;
+			}
+		}
+		StringBuilder sb = new StringBuilder(deps.queryString);
+		if(bindings != null) {
+			List<String> varNames = new ArrayList<String>();
+			for(Iterator<String> it = bindings.varNames(); it.hasNext(); ) {
+				varNames.add(it.next());
+			}
+			Collections.sort(varNames);
+			for(String varName : varNames) {
+				RDFNode value = bindings.get(varName);
+				sb.append("\n?" + varName + "=" + (value != null ? value.asNode() : null));
+			}
+		}
+		for(PredicateFingerprints fp : fingerprints) {
+			sb.append("\n#");
+			if(deps.all) {
+				sb.append(fp.getFingerprint());
+			}
+			else {
+				for(Node predicate : deps.predicates) {
+					sb.append(" " + fp.getFingerprint(predicate));
+				}
+				for(Node cls : deps.classes) {
+					sb.append(" a:" + fp.getClassFingerprint(cls));
+				}
+			}
+		}
+		return sb.toString();
+	}
+
+
+	public synchronized int getMisses() {
+		return misses;
+	}
+
+
+	/**
+	 * Stores the results of a query execution.
+	 * @param key  the key that was computed before the execution (see getKey)
+	 * @param results  the constructed triples
+	 */
+	public synchronized void put(String key, Graph results) {
+		entries.put(key, results.find(Node.ANY, Node.ANY, Node.ANY).toList());
+	}
+
+
+	private static Node resolve(Node node, QuerySolution bindings) {
+		if(node.isVariable() && bindings != null) {
+			RDFNode value = bindings.get(node.getName());
+			if(value != null) {
+				return value.asNode();
+			}
+		}
+		return node;
+	}
+
+
+	/**
+	 * The predicates and classes that a query reads.  The instances in the
+	 * cache are shared and not modified after the analysis.
+	 */
+	private static class Dependencies implements Comparator<Node> {
+
+		boolean all;
+
+		boolean cacheable = true;
+
+		Set<Node> classes = new TreeSet<Node>(this);
+
+		Set<Node> predicates = new TreeSet<Node>(this);
+
+		final String queryString;
+
+		// Triple patterns that depend on the bindings
+		List<Triple> unresolved = new ArrayList<Triple>();
+
+
+		Dependencies(String queryString) {
+			this.queryString = queryString;
+		}
+
+
+		void add(Node predicate, Node object) {
+			if(!predicate.isURI()) {
+				all = true;
+			}
+			else if(PropertyFunctionRegistry.get().isRegistered(predicate.getURI())) {
+				cacheable = false;
+			}
+			else if(TYPE.equals(predicate)) {
+				if(object.isURI()) {
+					classes.add(object);
+				}
+				else {
+					predicates.add(TYPE);
+				}
+			}
+			else {
+				predicates.add(predicate);
+			}
+		}
+
+
+		public int compare(Node a, Node b) {
+			return a.toString().compareTo(b.toString());
+		}
+
+
+		// Creates a copy with the unresolved triple patterns resolved against the bindings
+		Dependencies resolve(QuerySolution bindings) {
+			Dependencies result = new Dependencies(queryString);
+			result.all = all;
+			result.classes.addAll(classes);
+			result.predicates.addAll(predicates);
+			for(Triple triple : unresolved) {
+				result.add(QueryResultCache.resolve(triple.getPredicate(), bindings), QueryResultCache.resolve(triple.getObject(), bindings));
+			}
+			return result;
+		}
+	}
+
+
+	// Compares the queries by identity, so that no structural hash code is needed
+	private static class QueryKey {
+
+		private Query query;
+
+
+		QueryKey(Query query) {
+			this.query = query;
+		}
+
+
+		@Override
+		public boolean equals(Object obj) {
+			return obj instanceof QueryKey && ((QueryKey)obj).query == query;
+		}
+
+
+		@Override
+		public int hashCode() {
+			return System.identityHashCode(query);
+		}
+	}
+}
@@ -15,11 +15,11 @@ import java.util.Set;
 import org.topbraid.spin.arq.ARQFactory;
 import org.topbraid.spin.model.Ask;
 import org.topbraid.spin.model.Command;
-import org.topbraid.spin.model.CommandWithWhere;
 import org.topbraid.spin.model.Construct;
 import org.topbraid.spin.model.SPINFactory;
 import org.topbraid.spin.model.Template;
 import org.topbraid.spin.model.TemplateCall;
+import org.topbraid.spin.model.compiled.CompiledAnalyses;
 import org.topbraid.spin.model.update.Update;
 import org.topbraid.spin.system.SPINLabels;
 import org.topbraid.spin.vocabulary.SPIN;
@@ -90,7 +90,7 @@ public class SPINQueryFinder {
 				}
 				if(!thisUnbound && withClass &&
 						(spinCommand instanceof Construct || spinCommand instanceof Update) 
-						&& SPINUtil.containsThis((CommandWithWhere)spinCommand, validFunctionSources)) {
+						&& CompiledAnalyses.containsThis(spinCommand)) {
 					queryString = SPINUtil.addThisTypeClause(queryString);
 				}
 				CommandWrapper wrapper = null;
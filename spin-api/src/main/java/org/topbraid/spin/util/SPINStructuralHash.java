@@ -0,0 +1,106 @@
+package org.topbraid.spin.util;
+
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+
+import com.hp.hpl.jena.graph.Graph;
+import com.hp.hpl.jena.graph.Node;
+import com.hp.hpl.jena.graph.Triple;
+import com.hp.hpl.jena.rdf.model.RDFNode;
+import com.hp.hpl.jena.util.iterator.ExtendedIterator;
+
+
+/**
+ * Computes canonical structural hashes of SPIN RDF trees, such as
+ * queries, element lists and expressions.
+ *
+ * Two SPIN trees get the same hash if they have the same shape, regardless
+ * of the blank node ids and the Graph that they are in.  URIs and literals are
+ * compared by value.  Variables (resources with sp:varName) are compared by
+ * all their properties, i.e. by name and, for the variables of projected
+ * expressions, by sp:expression.
+ * The hash can therefore be used as a stable key for caches that are shared
+ * across Models, assuming that the Models agree on the definitions of the
+ * functions and templates used in the trees.
+ */
+public class SPINStructuralHash {
+
+	private Map<Node,String> node2Hash = new HashMap<Node,String>();
+
+	private Graph graph;
+
+	private Set<Node> stack = new HashSet<Node>();
+
+
+	private SPINStructuralHash(Graph graph) {
+		this.graph = graph;
+	}
+
+
+	/**
+	 * Gets the structural hash of the SPIN tree starting at a given node.
+	 * If the root is a URI resource then its properties are hashed just
+	 * like those of blank nodes, so that named commands can be compared too.
+	 * @param node  the root node
+	 * @return the hash
+	 */
+	public static String get(RDFNode node) {
+		SPINStructuralHash h = new SPINStructuralHash(node.getModel().getGraph());
+		Node n = node.asNode();
+		return n.isLiteral() ? h.getHash(n) : h.getTreeHash(n);
+	}
+
+
+	private String getHash(Node node) {
+		if(node.isURI()) {
+			return "<" + node.getURI() + ">";
+		}
+		else if(node.isLiteral()) {
+			return "\"" + node.getLiteralLexicalForm() + "\"@" + node.getLiteralLanguage() + "^^" + node.getLiteralDatatypeURI();
+		}
+		else {
+			return getTreeHash(node);
+		}
+	}
+
+
+	private String getTreeHash(Node node) {
+		String result = node2Hash.get(node);
+		if(result == null) {
+			if(!stack.add(node)) {
+				return "(cycle)";
+			}
+			// Variables are hashed with all their properties, because the
+			// variables of projected expressions also have an sp:expression
+			List<String> entries = new ArrayList<String>();
+			ExtendedIterator<Triple> it = graph.find(node, Node.ANY, Node.ANY);
+			while(it.hasNext()) {
+				Triple triple = it.next();
+				entries.add(triple.getPredicate().getURI() + " " + getHash(triple.getObject()));
+			}
+			Collections.sort(entries);
+			StringBuilder sb = new StringBuilder("[");
+			for(String entry : entries) {
+				sb.append(entry);
+				sb.append(';');
+			}
+			sb.append(']');
+			try {
+				result = GraphSnapshots.hash(sb.toString().getBytes("UTF-8"));
+			}
+			catch(UnsupportedEncodingException ex) {
+				throw new IllegalStateException(ex);
+			}
+			stack.remove(node);
+			node2Hash.put(node, result);
+		}
+		return result;
+	}
+}
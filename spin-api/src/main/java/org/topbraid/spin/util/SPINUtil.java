@@ -17,6 +17,7 @@ import java.util.Set;
 import org.topbraid.spin.arq.ARQFactory;
 import org.topbraid.spin.internal.ContainsVarChecker;
 import org.topbraid.spin.model.CommandWithWhere;
+import org.topbraid.spin.model.Function;
 import org.topbraid.spin.model.Query;
 import org.topbraid.spin.model.QueryOrTemplateCall;
 import org.topbraid.spin.model.SPINFactory;
@@ -40,6 +41,7 @@ import com.hp.hpl.jena.rdf.model.RDFNode;
 import com.hp.hpl.jena.rdf.model.Resource;
 import com.hp.hpl.jena.rdf.model.Statement;
 import com.hp.hpl.jena.rdf.model.StmtIterator;
+import com.hp.hpl.jena.sparql.pfunction.PropertyFunctionRegistry;
 import com.hp.hpl.jena.vocabulary.RDF;
 
 
@@ -293,6 +295,26 @@ public class SPINUtil {
 			return false;
 		}
 	}
+	
+	
+	/**
+	 * Checks whether a given predicate of a triple pattern is evaluated by a
+	 * property function (such as list:member or a spin:MagicProperty) instead
+	 * of being matched against the Graph.
+	 * @param predicate  the predicate to test
+	 * @return true  if predicate is a property function
+	 */
+	public static boolean isPropertyFunction(Node predicate) {
+		if(!predicate.isURI()) {
+			return false;
+		}
+		String uri = predicate.getURI();
+		if(PropertyFunctionRegistry.get().isRegistered(uri)) {
+			return true;
+		}
+		Function function = SPINModuleRegistry.get().getFunction(uri, null);
+		return function != null && function.hasProperty(RDF.type, SPIN.MagicProperty);
+	}
 	
 	
 	/**
@@ -6,6 +6,7 @@ package org.topbraid.spin.util;
 
 import java.io.InputStream;
 
+import org.topbraid.spin.system.SystemSnapshots;
 import org.topbraid.spin.vocabulary.SP;
 
 import com.hp.hpl.jena.Jena;
@@ -53,6 +54,9 @@ public class SystemTriples {
 	public synchronized static Model getVocabularyModel() {
 		if (vocabulary == null) {
 			vocabulary = JenaUtil.createDefaultModel();
+			if(SystemSnapshots.load("system", vocabulary)) {
+				return vocabulary;
+			}
 			org.topbraid.spin.util.JenaUtil.initNamespaces(vocabulary.getGraph());
 			vocabulary.setNsPrefix("xsd", XSD.getURI());
 			InputStream rdfs = Jena.class.getResourceAsStream("/vocabularies/rdf-schema.rdf");
@@ -0,0 +1,264 @@
+package org.topbraid.spin.util;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+import com.hp.hpl.jena.graph.Graph;
+import com.hp.hpl.jena.graph.Node;
+import com.hp.hpl.jena.graph.Triple;
+import com.hp.hpl.jena.rdf.model.Resource;
+import com.hp.hpl.jena.util.iterator.ExtendedIterator;
+import com.hp.hpl.jena.vocabulary.RDF;
+import com.hp.hpl.jena.vocabulary.RDFS;
+
+
+/**
+ * An index of the number of direct instances (rdf:type triples) of each
+ * class in a set of Graphs, maintained by GraphListeners.  This allows
+ * rule and constraint engines to skip classes without instances in O(1)
+ * instead of probing a (possibly deep) union graph, and to skip whole
+ * subclass trees via hasInstances.
+ *
+ * Since Jena also notifies listeners about triples that were already
+ * present (or absent), the counts are upper bounds: a class is counted
+ * again from the Graphs whenever its count drops to zero, so that a count
+ * of zero is always exact.  The results of hasInstances are cached per
+ * Graph of the Model that the class comes from, because the subclasses
+ * are taken from that Model, until a class gets its first or loses its last
+ * instance, or an rdfs:subClassOf triple is added or removed in one of the
+ * Graphs or through such a Model.
+ *
+ * The observed Graphs must include all Graphs that contain rdf:type
+ * triples of the Models that the index is used for.
+ */
+public class TypeIndex extends AbstractGraphListener {
+
+	private final static Node SUB_CLASS_OF = RDFS.subClassOf.asNode();
+
+	private final static Node TYPE = RDF.type.asNode();
+
+	private Map<Node,int[]> counts = new HashMap<Node,int[]>();
+
+	private Graph[] graphs;
+
+	// The cached results of hasInstances, by the Graph of the class's Model
+	private Map<Graph,Map<Node,Boolean>> hasInstances = new WeakHashMap<Graph,Map<Node,Boolean>>();
+
+	private SchemaListener schemaListener = new SchemaListener();
+
+
+	/**
+	 * Creates a new TypeIndex for the given Graphs and starts listening to
+	 * their changes.
+	 * @param graphs  the Graphs to observe
+	 */
+	public TypeIndex(Graph... graphs) {
+		this.graphs = graphs;
+		refresh();
+		for(Graph graph : graphs) {
+			graph.getEventManager().register(this);
+		}
+	}
+
+
+	// Drops the cached results but keeps listening to the schema Graphs
+	private void clearHasInstances() {
+		for(Map<Node,Boolean> cache : hasInstances.values()) {
+			cache.clear();
+		}
+	}
+
+
+	/**
+	 * Stops listening to the Graphs.
+	 */
+	public synchronized void close() {
+		for(Graph graph : graphs) {
+			graph.getEventManager().unregister(this);
+		}
+		for(Graph schema : hasInstances.keySet()) {
+			schema.getEventManager().unregister(schemaListener);
+		}
+		hasInstances.clear();
+	}
+
+
+	private int count(Node cls) {
+		int count = 0;
+		for(Graph graph : graphs) {
+			ExtendedIterator<Triple> it = graph.find(Node.ANY, TYPE, cls);
+			while(it.hasNext()) {
+				it.next();
+				count++;
+			}
+		}
+		return count;
+	}
+
+
+	/**
+	 * Gets the number of direct instances of a given class.
+	 * @param cls  the class
+	 * @return the number of instances (an upper bound, but 0 is exact)
+	 */
+	public synchronized int getInstanceCount(Node cls) {
+		int[] count = counts.get(cls);
+		return count != null ? count[0] : 0;
+	}
+
+
+	/**
+	 * Gets the number of instances of a given class and (optionally) its
+	 * subclasses.  Instances that have several of those types are counted
+	 * multiple times.
+	 * @param cls  the class
+	 * @param includeSubClasses  true to also count the subclass instances
+	 * @return the number of instances (an upper bound, but 0 is exact)
+	 */
+	public synchronized int getInstanceCount(Resource cls, boolean includeSubClasses) {
+		int count = getInstanceCount(cls.asNode());
+		if(includeSubClasses) {
+			for(Resource subClass : JenaUtil.getAllSubClasses(cls)) {
+				count += getInstanceCount(subClass.asNode());
+			}
+		}
+		return count;
+	}
+
+
+	/**
+	 * Checks whether a given class or one of its subclasses has instances.
+	 * @param cls  the class
+	 * @return true  if the class or one of its subclasses has instances
+	 */
+	public synchronized boolean hasInstances(Resource cls) {
+		Node node = cls.asNode();
+		Graph schema = cls.getModel() != null ? cls.getModel().getGraph() : null;
+		Map<Node,Boolean> cache = schema != null ? hasInstances.get(schema) : null;
+		if(cache == null && schema != null) {
+			// Also listen to subClassOf changes that are made through the Model
+			cache = new HashMap<Node,Boolean>();
+			hasInstances.put(schema, cache);
+			schema.getEventManager().register(schemaListener);
+		}
+		Boolean result = cache != null ? cache.get(node) : null;
+		if(result == null) {
+			result = getInstanceCount(node) > 0;
+			if(!result) {
+				for(Resource subClass : JenaUtil.getAllSubClasses(cls)) {
+					if(getInstanceCount(subClass.asNode()) > 0) {
+						result = true;
+						break;
+					}
+				}
+			}
+			if(cache != null) {
+				cache.put(node, result);
+			}
+		}
+		return result;
+	}
+
+
+	@Override
+	public synchronized void notifyAddTriple(Graph g, Triple t) {
+		if(TYPE.equals(t.getPredicate())) {
+			int[] count = counts.get(t.getObject());
+			if(count == null) {
+				count = new int[1];
+				counts.put(t.getObject(), count);
+			}
+			if(count[0]++ == 0) {
+				clearHasInstances();
+			}
+		}
+		else if(SUB_CLASS_OF.equals(t.getPredicate())) {
+			clearHasInstances();
+		}
+	}
+
+
+	@Override
+	public synchronized void notifyDeleteTriple(Graph g, Triple t) {
+		if(TYPE.equals(t.getPredicate())) {
+			Node cls = t.getObject();
+			int[] count = counts.get(cls);
+			if(count == null || --count[0] <= 0) {
+				// Make sure that the class really has no instances left
+				int actual = count(cls);
+				if(actual == 0) {
+					counts.remove(cls);
+					clearHasInstances();
+				}
+				else if(count != null) {
+					count[0] = actual;
+				}
+				else {
+					counts.put(cls, new int[] { actual });
+				}
+			}
+		}
+		else if(SUB_CLASS_OF.equals(t.getPredicate())) {
+			clearHasInstances();
+		}
+	}
+
+
+	@Override
+	protected synchronized void notifyRemoveAll(Graph source, Triple pattern) {
+		refresh();
+	}
+
+
+	/**
+	 * Recomputes all counts from the rdf:type triples of the Graphs.
+	 */
+	public synchronized void refresh() {
+		counts.clear();
+		clearHasInstances();
+		for(Graph graph : graphs) {
+			ExtendedIterator<Triple> it = graph.find(Node.ANY, TYPE, Node.ANY);
+			while(it.hasNext()) {
+				Node cls = it.next().getObject();
+				int[] count = counts.get(cls);
+				if(count == null) {
+					count = new int[1];
+					counts.put(cls, count);
+				}
+				count[0]++;
+			}
+		}
+	}
+
+
+	/**
+	 * Clears the results of hasInstances if the subclass relationships
+	 * change in the Graph of a Model that hasInstances has been called with.
+	 */
+	private class SchemaListener extends AbstractGraphListener {
+
+		@Override
+		public void notifyAddTriple(Graph g, Triple t) {
+			if(SUB_CLASS_OF.equals(t.getPredicate())) {
+				synchronized(TypeIndex.this) {
+					clearHasInstances();
+				}
+			}
+		}
+
+
+		@Override
+		public void notifyDeleteTriple(Graph g, Triple t) {
+			notifyAddTriple(g, t);
+		}
+
+
+		@Override
+		protected void notifyRemoveAll(Graph source, Triple pattern) {
+			synchronized(TypeIndex.this) {
+				clearHasInstances();
+			}
+		}
+	}
+}
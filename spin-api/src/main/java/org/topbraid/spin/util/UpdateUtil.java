@@ -29,48 +29,83 @@ public class UpdateUtil {
 	 * @return the Graphs
 	 */
 	public static Collection<Graph> getUpdatedGraphs(Update update, Dataset dataset, Map<String,RDFNode> templateBindings) {
-		Set<Graph> results = new HashSet<Graph>();
+		return getUpdatedGraphs(getUpdatedGraphNodes(update), dataset, templateBindings);
+	}
+	
+	
+	/**
+	 * Gets all Graphs that are potentially updated by the Update of a given
+	 * UpdateWrapper, reusing the graph nodes that the wrapper has already
+	 * collected from its Update.
+	 * @param updateWrapper  the UpdateWrapper
+	 * @param dataset  the Dataset to get the Graphs from
+	 * @param templateBindings  the bindings of graph variables (may be null)
+	 * @return the Graphs
+	 */
+	public static Collection<Graph> getUpdatedGraphs(UpdateWrapper updateWrapper, Dataset dataset, Map<String,RDFNode> templateBindings) {
+		return getUpdatedGraphs(updateWrapper.getUpdatedGraphNodes(), dataset, templateBindings);
+	}
+	
+	
+	/**
+	 * Gets the nodes of all graphs that are potentially updated in a given
+	 * Update request.  The default graph is represented by
+	 * Quad.defaultGraphNodeGenerated, and variables are included as well.
+	 * The result does not depend on any Dataset and can therefore be reused.
+	 * @param update  the Update (UpdateModify and UpdateDeleteWhere are supported)
+	 * @return the graph nodes
+	 */
+	public static Set<Node> getUpdatedGraphNodes(Update update) {
+		Set<Node> results = new HashSet<Node>();
 		if(update instanceof UpdateModify) {
-			addUpdatedGraphs(results, (UpdateModify)update, dataset, templateBindings);
+			addUpdatedGraphNodes(results, (UpdateModify)update);
 		}
 		else if(update instanceof UpdateDeleteWhere) {
-			addUpdatedGraphs(results, (UpdateDeleteWhere)update, dataset, templateBindings);
+			addUpdatedGraphNodes(results, ((UpdateDeleteWhere)update).getQuads());
 		}
 		return results;
 	}
-
 	
-	private static void addUpdatedGraphs(Set<Graph> results, UpdateDeleteWhere update, Dataset dataset, Map<String,RDFNode> templateBindings) {
-		addUpdatedGraphs(results, update.getQuads(), dataset, templateBindings);
+	
+	private static Collection<Graph> getUpdatedGraphs(Set<Node> graphNodes, Dataset dataset, Map<String,RDFNode> templateBindings) {
+		Set<Graph> results = new HashSet<Graph>();
+		for(Node graphNode : graphNodes) {
+			if(Quad.isDefaultGraph(graphNode)) {
+				results.add(dataset.getDefaultModel().getGraph());
+			}
+			else if(graphNode.isVariable()) {
+				if(templateBindings != null) {
+					RDFNode binding = templateBindings.get(graphNode.getName());
+					if(binding != null && binding.isURIResource()) {
+						results.add(dataset.getNamedModel(binding.asNode().getURI()).getGraph());
+					}
+				}
+			}
+			else {
+				results.add(dataset.getNamedModel(graphNode.getURI()).getGraph());
+			}
+		}
+		return results;
 	}
 	
 	
-	private static void addUpdatedGraphs(Set<Graph> results, UpdateModify update, Dataset dataset, Map<String,RDFNode> templateBindings) {
+	private static void addUpdatedGraphNodes(Set<Node> results, UpdateModify update) {
 		Node withIRI = update.getWithIRI();
 		if(withIRI != null) {
-			results.add(dataset.getNamedModel(withIRI.getURI()).getGraph());
+			results.add(withIRI);
 		}
-		addUpdatedGraphs(results, update.getDeleteQuads(), dataset, templateBindings);
-		addUpdatedGraphs(results, update.getInsertQuads(), dataset, templateBindings);
+		addUpdatedGraphNodes(results, update.getDeleteQuads());
+		addUpdatedGraphNodes(results, update.getInsertQuads());
 	}
 
 	
-	private static void addUpdatedGraphs(Set<Graph> results, Iterable<Quad> quads, Dataset graphStore, Map<String,RDFNode> templateBindings) {
+	private static void addUpdatedGraphNodes(Set<Node> results, Iterable<Quad> quads) {
 		for(Quad quad : quads) {
 			if(quad.isDefaultGraph()) {
-				results.add(graphStore.getDefaultModel().getGraph());
-			}
-			else if(quad.getGraph().isVariable()) {
-				if(templateBindings != null) {
-					String varName = quad.getGraph().getName();
-					RDFNode binding = templateBindings.get(varName);
-					if(binding != null && binding.isURIResource()) {
-						results.add(graphStore.getNamedModel(binding.asNode().getURI()).getGraph());
-					}
-				}
+				results.add(Quad.defaultGraphNodeGenerated);
 			}
 			else {
-				results.add(graphStore.getNamedModel(quad.getGraph().getURI()).getGraph());
+				results.add(quad.getGraph());
 			}
 		}
 	}
@@ -1,7 +1,10 @@
 package org.topbraid.spin.util;
 
+import java.util.Set;
+
 import org.topbraid.spin.model.Command;
 
+import com.hp.hpl.jena.graph.Node;
 import com.hp.hpl.jena.rdf.model.Resource;
 import com.hp.hpl.jena.rdf.model.Statement;
 import com.hp.hpl.jena.update.Update;
@@ -19,6 +22,8 @@ public class UpdateWrapper extends CommandWrapper {
 	
 	private org.topbraid.spin.model.update.Update spinUpdate;
 	
+	private Set<Node> updatedGraphNodes;
+	
 	
 	public UpdateWrapper(Update update, Resource source, String text, org.topbraid.spin.model.update.Update spinUpdate, String label, Statement statement, boolean thisUnbound) {
 		super(source, text, label, statement, thisUnbound);
@@ -41,4 +46,18 @@ public class UpdateWrapper extends CommandWrapper {
 	public org.topbraid.spin.model.update.Update getSPINUpdate() {
 		return spinUpdate;
 	}
+	
+	
+	/**
+	 * Gets the nodes of the graphs that are potentially updated by the
+	 * Update, see UpdateUtil.getUpdatedGraphNodes.  They are only computed
+	 * once per wrapper.
+	 * @return the graph nodes
+	 */
+	public Set<Node> getUpdatedGraphNodes() {
+		if(updatedGraphNodes == null) {
+			updatedGraphNodes = UpdateUtil.getUpdatedGraphNodes(update);
+		}
+		return updatedGraphNodes;
+	}
 }
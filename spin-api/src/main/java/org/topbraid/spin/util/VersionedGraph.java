@@ -0,0 +1,425 @@
+package org.topbraid.spin.util;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import com.hp.hpl.jena.graph.Factory;
+import com.hp.hpl.jena.graph.Graph;
+import com.hp.hpl.jena.graph.Node;
+import com.hp.hpl.jena.graph.Triple;
+import com.hp.hpl.jena.graph.TripleMatch;
+import com.hp.hpl.jena.graph.impl.GraphBase;
+import com.hp.hpl.jena.shared.AddDeniedException;
+import com.hp.hpl.jena.shared.DeleteDeniedException;
+import com.hp.hpl.jena.shared.ReificationStyle;
+import com.hp.hpl.jena.util.iterator.ExtendedIterator;
+import com.hp.hpl.jena.util.iterator.Filter;
+
+
+/**
+ * A Graph that can provide cheap, read-only snapshots of its current state,
+ * so that long-running operations such as inferencing or constraint checking
+ * can read a stable version while other threads continue to write.
+ *
+ * The Graph wraps a base Graph.  As long as no snapshot is open, all changes
+ * go directly into the base Graph.  While snapshots are open, the base Graph
+ * is frozen and changes are recorded in a stack of delta layers of added and
+ * deleted triples on top of it.  Only the topmost layer is modified by
+ * writers.  Creating a snapshot freezes that layer and shares the (immutable)
+ * layers below with the snapshot, so nothing needs to be copied and readers
+ * of a snapshot do not need any locks because nothing they read is modified.
+ *
+ * To keep the number of layers small even if snapshots overlap and the base
+ * Graph can therefore not be updated for a long time, adjacent layers of a
+ * similar size are compacted into a new layer when a layer is frozen.  The
+ * old layers remain in use by the snapshots that were taken before, so at
+ * most a logarithmic number of layers has to be checked for each triple.
+ * All layers are merged into the base Graph by the first change after the
+ * last snapshot has been closed.
+ *
+ * The head (this Graph) follows the usual Jena threading rules, i.e. readers
+ * of the head must not run concurrently with writers, including reconcile.
+ * The version number is incremented with each change and can be used to check
+ * whether the head has been modified since a snapshot was taken.
+ */
+public class VersionedGraph extends GraphBase {
+
+	private Graph base;
+
+	// The frozen layers, oldest first
+	private List<Layer> layers = new ArrayList<Layer>();
+
+	private int openSnapshots;
+
+	// The only layer that is modified, on top of the frozen layers
+	private Layer top = new Layer();
+
+	private long version;
+
+
+	/**
+	 * Creates a new VersionedGraph.
+	 * @param base  the base Graph holding the data (should not be modified directly)
+	 */
+	public VersionedGraph(Graph base) {
+		super(ReificationStyle.Minimal);
+		this.base = base;
+	}
+
+
+	// Replaces the two topmost frozen layers with a single layer
+	private void compact() {
+		int index = layers.size() - 2;
+		Layer lower = layers.get(index);
+		Layer upper = layers.get(index + 1);
+		List<Layer> below = layers.subList(0, index);
+		Set<Triple> candidates = new HashSet<Triple>();
+		candidates.addAll(lower.added.find(Node.ANY, Node.ANY, Node.ANY).toList());
+		candidates.addAll(lower.deleted.find(Node.ANY, Node.ANY, Node.ANY).toList());
+		candidates.addAll(upper.added.find(Node.ANY, Node.ANY, Node.ANY).toList());
+		candidates.addAll(upper.deleted.find(Node.ANY, Node.ANY, Node.ANY).toList());
+		Layer merged = new Layer();
+		for(Triple t : candidates) {
+			boolean before = contains(base, below, t);
+			boolean after = upper.added.contains(t) || (!upper.deleted.contains(t) && (lower.added.contains(t) || (!lower.deleted.contains(t) && before)));
+			if(after && !before) {
+				merged.added.add(t);
+			}
+			else if(before && !after) {
+				merged.deleted.add(t);
+			}
+		}
+		layers.remove(index + 1);
+		layers.set(index, merged);
+	}
+
+
+	// Checks whether t is in the state of base with the given layers applied
+	private static boolean contains(Graph base, List<Layer> layers, Triple t) {
+		for(int i = layers.size() - 1; i >= 0; i--) {
+			Layer layer = layers.get(i);
+			if(layer.added.contains(t)) {
+				return true;
+			}
+			else if(layer.deleted.contains(t)) {
+				return false;
+			}
+		}
+		return base.contains(t);
+	}
+
+
+	// Each layer only adds triples that are not in the state below it, and
+	// only deletes triples that are, so each triple comes from exactly one
+	// source that is not overridden by a delete in a later layer
+	private static ExtendedIterator<Triple> find(Graph base, final List<Layer> layers, TripleMatch m) {
+		ExtendedIterator<Triple> it = base.find(m);
+		for(int i = 0; i < layers.size(); i++) {
+			if(!layers.get(i).deleted.isEmpty()) {
+				it = it.filterDrop(new DeletedFilter(layers.get(i)));
+			}
+			if(!layers.get(i).added.isEmpty()) {
+				it = it.andThen(layers.get(i).added.find(m));
+			}
+		}
+		return it;
+	}
+
+
+	// Freezes the top layer (unless it is empty) and compacts the frozen layers
+	private void freeze() {
+		if(!top.isEmpty()) {
+			layers.add(top);
+			top = new Layer();
+			while(layers.size() > 1 && layers.get(layers.size() - 2).size() <= 2 * layers.get(layers.size() - 1).size()) {
+				compact();
+			}
+		}
+	}
+
+
+	/**
+	 * Gets the base Graph.  Note that the base Graph may not include the latest
+	 * changes while snapshots are open.
+	 * @return the base Graph
+	 */
+	public Graph getBase() {
+		return base;
+	}
+
+
+	/**
+	 * Gets the number of frozen delta layers, which are kept while snapshots
+	 * are open.  Mainly for testing.
+	 * @return the number of layers
+	 */
+	synchronized int getLayerCount() {
+		return layers.size();
+	}
+
+
+	/**
+	 * Gets the current version of this Graph.
+	 * @return the version
+	 */
+	public synchronized long getVersion() {
+		return version;
+	}
+
+
+	private List<Layer> getHeadLayers() {
+		if(top.isEmpty()) {
+			return layers;
+		}
+		List<Layer> result = new ArrayList<Layer>(layers);
+		result.add(top);
+		return result;
+	}
+
+
+	@Override
+	protected boolean graphBaseContains(Triple t) {
+		return contains(base, getHeadLayers(), t);
+	}
+
+
+	@Override
+	protected ExtendedIterator<Triple> graphBaseFind(TripleMatch m) {
+		return find(base, getHeadLayers(), m);
+	}
+
+
+	@Override
+	protected int graphBaseSize() {
+		return size(base, getHeadLayers());
+	}
+
+
+	/**
+	 * Checks whether this Graph has been changed since a given snapshot
+	 * has been taken.
+	 * @param snapshot  the Snapshot
+	 * @return true if no changes have been made since the snapshot
+	 */
+	public synchronized boolean isCurrent(Snapshot snapshot) {
+		return snapshot.version == version;
+	}
+
+
+	// Applies the pending layers to the base Graph if no snapshot is open
+	private void merge() {
+		if(openSnapshots == 0 && (!layers.isEmpty() || !top.isEmpty())) {
+			for(Layer layer : getHeadLayers()) {
+				ExtendedIterator<Triple> dit = layer.deleted.find(Node.ANY, Node.ANY, Node.ANY);
+				while(dit.hasNext()) {
+					base.delete(dit.next());
+				}
+				ExtendedIterator<Triple> ait = layer.added.find(Node.ANY, Node.ANY, Node.ANY);
+				while(ait.hasNext()) {
+					base.add(ait.next());
+				}
+			}
+			layers = new ArrayList<Layer>();
+			top = new Layer();
+		}
+	}
+
+
+	@Override
+	public synchronized void performAdd(Triple t) {
+		version++;
+		merge();
+		if(openSnapshots == 0) {
+			base.add(t);
+		}
+		else if(top.deleted.contains(t)) {
+			top.deleted.delete(t);
+		}
+		else if(!top.added.contains(t) && !contains(base, layers, t)) {
+			top.added.add(t);
+		}
+	}
+
+
+	@Override
+	public synchronized void performDelete(Triple t) {
+		version++;
+		merge();
+		if(openSnapshots == 0) {
+			base.delete(t);
+		}
+		else if(top.added.contains(t)) {
+			top.added.delete(t);
+		}
+		else if(!top.deleted.contains(t) && contains(base, layers, t)) {
+			top.deleted.add(t);
+		}
+	}
+
+
+	/**
+	 * Adds the triples that have been inferred from a snapshot to this
+	 * Graph.  Since all triples are added through the normal Graph
+	 * operations, this also notifies the listeners of this Graph.
+	 * Callers can use isCurrent to find out whether the head has been
+	 * changed during the run, e.g. to decide whether to run again.
+	 * @param snapshot  the Snapshot that the triples were inferred from
+	 * @param inferred  the inferred triples
+	 * @return the number of triples that were actually new in the head
+	 */
+	public synchronized int reconcile(Snapshot snapshot, Graph inferred) {
+		if(snapshot.getVersionedGraph() != this) {
+			throw new IllegalArgumentException("Snapshot does not belong to this graph");
+		}
+		int count = 0;
+		for(Triple triple : inferred.find(Node.ANY, Node.ANY, Node.ANY).toList()) {
+			if(!contains(triple)) {
+				add(triple);
+				count++;
+			}
+		}
+		return count;
+	}
+
+
+	private static int size(Graph base, List<Layer> layers) {
+		int size = base.size();
+		for(Layer layer : layers) {
+			size += layer.added.size() - layer.deleted.size();
+		}
+		return size;
+	}
+
+
+	/**
+	 * Creates a new read-only Snapshot of the current state of this Graph.
+	 * The Snapshot must be closed after use, so that the changes that were
+	 * made in the meantime can be merged into the base Graph.
+	 * @return a new Snapshot
+	 */
+	public synchronized Snapshot snapshot() {
+		openSnapshots++;
+		freeze();
+		return new Snapshot(new ArrayList<Layer>(layers), version);
+	}
+
+
+	/**
+	 * Drops the triples of a given frozen layer that it deletes.
+	 */
+	private static class DeletedFilter extends Filter<Triple> {
+
+		private Layer layer;
+
+
+		DeletedFilter(Layer layer) {
+			this.layer = layer;
+		}
+
+
+		@Override
+		public boolean accept(Triple t) {
+			return layer.deleted.contains(t);
+		}
+	}
+
+
+	/**
+	 * The triples that have been added and deleted relative to the state
+	 * below.  A layer is never modified after it has been frozen.
+	 */
+	private static class Layer {
+
+		Graph added = Factory.createGraphMem();
+
+		Graph deleted = Factory.createGraphMem();
+
+
+		boolean isEmpty() {
+			return added.isEmpty() && deleted.isEmpty();
+		}
+
+
+		int size() {
+			return added.size() + deleted.size();
+		}
+	}
+
+
+	/**
+	 * A read-only view of a VersionedGraph at the time it was created.
+	 */
+	public class Snapshot extends GraphBase {
+
+		private List<Layer> snapshotLayers;
+
+		private long version;
+
+
+		Snapshot(List<Layer> layers, long version) {
+			super(ReificationStyle.Minimal);
+			this.snapshotLayers = layers;
+			this.version = version;
+		}
+
+
+		/**
+		 * Releases this Snapshot.  Calling this multiple times has no effect.
+		 */
+		@Override
+		public void close() {
+			synchronized(VersionedGraph.this) {
+				if(!closed) {
+					openSnapshots--;
+				}
+				super.close();
+			}
+		}
+
+
+		/**
+		 * Gets the version of the VersionedGraph that this is a Snapshot of.
+		 * @return the version
+		 */
+		public long getVersion() {
+			return version;
+		}
+
+
+		public VersionedGraph getVersionedGraph() {
+			return VersionedGraph.this;
+		}
+
+
+		@Override
+		protected boolean graphBaseContains(Triple t) {
+			return VersionedGraph.contains(base, snapshotLayers, t);
+		}
+
+
+		@Override
+		protected ExtendedIterator<Triple> graphBaseFind(TripleMatch m) {
+			return VersionedGraph.find(base, snapshotLayers, m);
+		}
+
+
+		@Override
+		protected int graphBaseSize() {
+			return VersionedGraph.size(base, snapshotLayers);
+		}
+
+
+		@Override
+		public void performAdd(Triple t) {
+			throw new AddDeniedException("Snapshots are read-only");
+		}
+
+
+		@Override
+		public void performDelete(Triple t) {
+			throw new DeleteDeniedException("Snapshots are read-only");
+		}
+	}
+}
@@ -78,6 +78,7 @@ import org.topbraid.spin.model.update.impl.DropImpl;
 import org.topbraid.spin.model.update.impl.InsertDataImpl;
 import org.topbraid.spin.model.update.impl.LoadImpl;
 import org.topbraid.spin.model.update.impl.ModifyImpl;
+import org.topbraid.spin.system.SystemSnapshots;
 import org.topbraid.spin.util.SimpleImplementation;
 import org.topbraid.spin.util.SimpleImplementation2;
 
@@ -340,6 +341,9 @@ public class SP {
 	public static Model getModel() {
 		if(model == null) {
 			model = ModelFactory.createDefaultModel(ReificationStyle.Minimal);
+			if(SystemSnapshots.load("sp", model)) {
+				return model;
+			}
 			InputStream is = SP.class.getResourceAsStream("/etc/sp.rdf");
 			if(is == null) {
 				model.read(SP.BASE_URI);
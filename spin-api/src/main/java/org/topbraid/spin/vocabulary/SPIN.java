@@ -6,6 +6,8 @@ package org.topbraid.spin.vocabulary;
 
 import java.io.InputStream;
 
+import org.topbraid.spin.system.SystemSnapshots;
+
 import com.hp.hpl.jena.rdf.model.Model;
 import com.hp.hpl.jena.rdf.model.ModelFactory;
 import com.hp.hpl.jena.rdf.model.Property;
@@ -135,6 +137,9 @@ public class SPIN {
 	public static Model getModel() {
 		if(model == null) {
 			model = ModelFactory.createDefaultModel(ReificationStyle.Minimal);
+			if(SystemSnapshots.load("spin", model)) {
+				return model;
+			}
 			InputStream is = SPIN.class.getResourceAsStream("/etc/spin.rdf");
 			if(is == null) {
 				model.read(SPIN.BASE_URI);
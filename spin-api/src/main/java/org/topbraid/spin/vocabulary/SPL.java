@@ -6,6 +6,8 @@ package org.topbraid.spin.vocabulary;
 
 import java.io.InputStream;
 
+import org.topbraid.spin.system.SystemSnapshots;
+
 import com.hp.hpl.jena.rdf.model.Model;
 import com.hp.hpl.jena.rdf.model.ModelFactory;
 import com.hp.hpl.jena.rdf.model.Property;
@@ -72,6 +74,9 @@ public class SPL {
 	public static Model getModel() {
 		if(model == null) {
 			model = ModelFactory.createDefaultModel(ReificationStyle.Minimal);
+			if(SystemSnapshots.load("spl", model)) {
+				return model;
+			}
 			InputStream is = SPL.class.getResourceAsStream("/etc/spl.spin.rdf");
 			if(is == null) {
 				model.read(SPL.BASE_URI);
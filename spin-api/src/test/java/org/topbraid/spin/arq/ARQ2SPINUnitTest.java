@@ -0,0 +1,87 @@
+/**
+ *
+ */
+package org.topbraid.spin.arq;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.topbraid.spin.model.Query;
+import org.topbraid.spin.system.SPINModuleRegistry;
+import org.topbraid.spin.vocabulary.SP;
+
+import com.hp.hpl.jena.rdf.model.Model;
+import com.hp.hpl.jena.rdf.model.ModelFactory;
+import com.hp.hpl.jena.shared.ReificationStyle;
+
+/**
+ * Tests the hash-consing of {@link ARQ2SPIN}, also together with the
+ * structural keys of {@link ARQFactory}.
+ */
+public class ARQ2SPINUnitTest
+{
+
+    @Before
+    public void setUp() throws Exception
+    {
+        SPINModuleRegistry.get().init();
+        ARQFactory.get().clearCaches();
+    }
+
+    @After
+    public void tearDown() throws Exception
+    {
+        ARQFactory.get().setUseStructuralKeys(false);
+        ARQFactory.get().clearCaches();
+    }
+
+    // Converts the queries with one hash-consing engine and checks that each still prints as itself
+    private void assertRoundTrip(String... texts)
+    {
+        Model model = ModelFactory.createDefaultModel(ReificationStyle.Minimal);
+        ARQ2SPIN arq2spin = new ARQ2SPIN(model);
+        arq2spin.setHashConsing(true);
+        Query[] queries = new Query[texts.length];
+        for(int i = 0; i < texts.length; i++)
+        {
+            queries[i] = arq2spin.createQuery(ARQFactory.get().createQuery(model, texts[i]), null);
+        }
+        for(int i = 0; i < texts.length; i++)
+        {
+            String expected = ARQFactory.get().createQuery(model, texts[i]).toString();
+            String actual = ARQFactory.get().createQuery(model, ARQFactory.get().createCommandString(queries[i])).toString();
+            Assert.assertEquals(expected, actual);
+        }
+    }
+
+    @Test
+    public void testHashConsingSharesEqualPatterns()
+    {
+        String text = "SELECT ?s WHERE { ?s ?p ?x . FILTER (?x > 1) }";
+        Model model = ModelFactory.createDefaultModel(ReificationStyle.Minimal);
+        ARQ2SPIN arq2spin = new ARQ2SPIN(model);
+        arq2spin.setHashConsing(true);
+        Query first = arq2spin.createQuery(ARQFactory.get().createQuery(model, text), null);
+        Query second = arq2spin.createQuery(ARQFactory.get().createQuery(model, text), null);
+        Assert.assertFalse(first.equals(second));
+        Assert.assertEquals(first.getPropertyResourceValue(SP.where),
+                second.getPropertyResourceValue(SP.where));
+    }
+
+    @Test
+    public void testHashConsingKeepsProjectedExpressionsApart()
+    {
+        assertRoundTrip("SELECT (COUNT(?x) AS ?c) WHERE { ?s ?p ?x }", "SELECT (SUM(?x) AS ?c) WHERE { ?s ?p ?x }");
+        assertRoundTrip("SELECT ((COUNT(?x) + 1) AS ?c) WHERE { ?s ?p ?x }", "SELECT ((SUM(?x) + 1) AS ?c) WHERE { ?s ?p ?x }");
+        assertRoundTrip("SELECT ?s WHERE { ?s ?p ?x } GROUP BY ?s HAVING (COUNT(?x) > 1)", "SELECT ?s WHERE { ?s ?p ?x } GROUP BY ?s HAVING (SUM(?x) > 1)");
+    }
+
+    @Test
+    public void testHashConsingWithStructuralKeys()
+    {
+        ARQFactory.get().setUseStructuralKeys(true);
+        assertRoundTrip("SELECT (COUNT(?x) AS ?c) WHERE { ?s ?p ?x }", "SELECT (SUM(?x) AS ?c) WHERE { ?s ?p ?x }");
+        assertRoundTrip("SELECT ((?x + 1) AS ?c) WHERE { ?s ?p ?x }", "SELECT ((?x + 2) AS ?c) WHERE { ?s ?p ?x }");
+    }
+}
@@ -0,0 +1,160 @@
+/**
+ *
+ */
+package org.topbraid.spin.arq;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.topbraid.spin.model.Command;
+import org.topbraid.spin.model.SPINFactory;
+import org.topbraid.spin.system.SPINModuleRegistry;
+
+import com.hp.hpl.jena.query.QueryException;
+import com.hp.hpl.jena.query.QueryParseException;
+import com.hp.hpl.jena.rdf.model.Model;
+import com.hp.hpl.jena.rdf.model.ModelFactory;
+import com.hp.hpl.jena.rdf.model.Resource;
+import com.hp.hpl.jena.shared.ReificationStyle;
+
+/**
+ * Tests the conversion and the failure reporting of {@link BulkARQ2SPIN}.
+ */
+public class BulkARQ2SPINUnitTest
+{
+
+    private static final String NS = "http://example.org/test#";
+
+    private static final String QUERY = "SELECT ?s WHERE { ?s ex:p ?o }";
+
+    private static final String UPDATE = "INSERT DATA { ex:s ex:p ex:o }";
+
+    private Model model;
+
+    @Before
+    public void setUp() throws Exception
+    {
+        SPINModuleRegistry.get().init();
+        this.model = ModelFactory.createDefaultModel(ReificationStyle.Minimal);
+        this.model.setNsPrefix("ex", NS);
+    }
+
+    private List<Resource> convert(String... commands)
+    {
+        BulkARQ2SPIN converter = new BulkARQ2SPIN(this.model, 2);
+        converter.setMaxPending(2);
+        List<Resource> results = converter.convert(Arrays.asList(commands).iterator());
+        Assert.assertEquals(commands.length, results.size());
+        return results;
+    }
+
+    private String toString(Resource root)
+    {
+        Command command = SPINFactory.asCommand(root);
+        Assert.assertNotNull(command);
+        return ARQFactory.get().createCommandString(command);
+    }
+
+    @Test
+    public void testQueriesAndUpdatesInInputOrder()
+    {
+        List<String> commands = new ArrayList<String>();
+        for(int i = 0; i < 10; i++)
+        {
+            commands.add(i % 2 == 0 ? "SELECT ?s WHERE { ?s ex:p" + i + " ?o }" : UPDATE);
+        }
+        List<Resource> results = convert(commands.toArray(new String[commands.size()]));
+        for(int i = 0; i < 10; i++)
+        {
+            String str = toString(results.get(i));
+            if(i % 2 == 0)
+            {
+                Assert.assertTrue(str, str.contains("p" + i + ">") || str.contains("ex:p" + i + " "));
+            }
+            else
+            {
+                Assert.assertTrue(str, str.startsWith("INSERT DATA"));
+            }
+        }
+    }
+
+    @Test
+    public void testMultipleUpdateOperations()
+    {
+        BulkARQ2SPIN converter = new BulkARQ2SPIN(this.model, 2);
+        List<Resource> results = converter.convert(Arrays.asList(QUERY, UPDATE + " ; DELETE DATA { ex:s ex:p ex:o }", UPDATE).iterator());
+
+        // The command is not converted partially
+        Assert.assertNotNull(results.get(0));
+        Assert.assertNull(results.get(1));
+        Assert.assertNotNull(results.get(2));
+        Assert.assertEquals(1, converter.getFailures().size());
+        Assert.assertTrue(converter.getFailures().get(1) instanceof QueryException);
+        Assert.assertTrue(converter.getFailures().get(1).getMessage().contains("2"));
+    }
+
+    @Test
+    public void testParseErrors()
+    {
+        // The commands are parsed after the prefix declarations of the Model
+        int prefixLines = ARQFactory.get().createPrefixDeclarations(this.model).split("\n").length;
+        BulkARQ2SPIN converter = new BulkARQ2SPIN(this.model, 2);
+        List<Resource> results = converter.convert(Arrays.asList(
+                "SELECT ?s\nWHERE {\n ?s ex:p \n}",
+                "INSERT DATA {\n ex:s ex:p \n}").iterator());
+        Assert.assertNull(results.get(0));
+        Assert.assertNull(results.get(1));
+
+        // Each command reports the error of its own kind, not the one of the other parser
+        Exception queryError = converter.getFailures().get(0);
+        Assert.assertTrue(queryError instanceof QueryParseException);
+        Assert.assertTrue(queryError.getMessage(), queryError.getMessage().contains("at line " + (prefixLines + 4) + ","));
+        Exception updateError = converter.getFailures().get(1);
+        Assert.assertTrue(updateError instanceof QueryParseException);
+        Assert.assertTrue(updateError.getMessage(), updateError.getMessage().contains("at line " + (prefixLines + 3) + ","));
+    }
+
+    @Test
+    public void testReadFailure()
+    {
+        final List<String> commands = Arrays.asList(QUERY, null, UPDATE);
+        BulkARQ2SPIN converter = new BulkARQ2SPIN(this.model, 2);
+        List<Resource> results = converter.convert(new Iterator<String>()
+        {
+            private int index;
+
+            @Override
+            public boolean hasNext()
+            {
+                return this.index < commands.size();
+            }
+
+            @Override
+            public String next()
+            {
+                String command = commands.get(this.index++);
+                if(command == null)
+                {
+                    throw new IllegalStateException("Cannot read");
+                }
+                return command;
+            }
+
+            @Override
+            public void remove()
+            {
+                throw new UnsupportedOperationException();
+            }
+        });
+        Assert.assertEquals(3, results.size());
+        Assert.assertNull(results.get(1));
+        Assert.assertTrue(converter.getFailures().get(1) instanceof IllegalStateException);
+        Assert.assertEquals(1, converter.getFailures().size());
+        Assert.assertNotNull(results.get(2));
+    }
+}
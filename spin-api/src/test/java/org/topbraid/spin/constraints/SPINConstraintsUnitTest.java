@@ -0,0 +1,186 @@
+/**
+ *
+ */
+package org.topbraid.spin.constraints;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.topbraid.spin.arq.ARQ2SPIN;
+import org.topbraid.spin.arq.ARQFactory;
+import org.topbraid.spin.model.compiled.CompiledCommands;
+import org.topbraid.spin.system.SPINModuleRegistry;
+import org.topbraid.spin.vocabulary.SP;
+import org.topbraid.spin.vocabulary.SPIN;
+
+import com.hp.hpl.jena.ontology.OntModelSpec;
+import com.hp.hpl.jena.rdf.model.Model;
+import com.hp.hpl.jena.rdf.model.ModelFactory;
+import com.hp.hpl.jena.rdf.model.Property;
+import com.hp.hpl.jena.rdf.model.Resource;
+import com.hp.hpl.jena.shared.ReificationStyle;
+import com.hp.hpl.jena.vocabulary.RDF;
+import com.hp.hpl.jena.vocabulary.RDFS;
+
+/**
+ * Tests the unlimited, fail-fast, top-N and distinct instance modes of
+ * {@link SPINConstraints}.
+ */
+public class SPINConstraintsUnitTest
+{
+
+    private static final String NS = "http://example.org/test#";
+
+    private Model model;
+
+    private Resource person;
+
+    @Before
+    public void setUp() throws Exception
+    {
+        SPINModuleRegistry.get().init();
+        this.model = ModelFactory.createDefaultModel(ReificationStyle.Minimal);
+        this.model.setNsPrefix("ex", NS);
+        this.model.setNsPrefix("spin", SPIN.NS);
+
+        // Let ARQ2SPIN use the system variables, like in Models that import the SPIN namespace
+        this.model.add(SPIN._this, RDF.type, SP.Variable);
+        this.model.add(SPIN._this, SP.varName, this.model.createTypedLiteral("this"));
+
+        this.person = this.model.createResource(NS + "Person");
+        addConstraint(this.person, "ASK WHERE { ?this ex:age ?age . FILTER (?age < 0) }");
+        addConstraint(this.person, "CONSTRUCT { _:cv a spin:ConstraintViolation ; spin:violationRoot ?this ; spin:violationPath ex:name } WHERE { ?this ex:name \"\" }");
+
+        // Three violations of the ASK and one of the CONSTRUCT
+        Property age = this.model.createProperty(NS + "age");
+        for(int i = 1; i <= 3; i++)
+        {
+            Resource instance = this.model.createResource(NS + "p" + i, this.person);
+            instance.addLiteral(age, -i);
+        }
+        this.model.getResource(NS + "p3").addProperty(this.model.createProperty(NS + "name"), "");
+    }
+
+    @After
+    public void tearDown() throws Exception
+    {
+        SPINConstraints.setDistinctInstances(false);
+        CompiledCommands.clear();
+    }
+
+    private void addConstraint(Resource cls, String text)
+    {
+        ARQ2SPIN arq2spin = new ARQ2SPIN(this.model);
+        String str = ARQFactory.get().createPrefixDeclarations(this.model) + text;
+        cls.addProperty(SPIN.constraint, arq2spin.createQuery(ARQFactory.get().createQuery(str), null));
+    }
+
+    private List<ConstraintViolation> check(int maxViolations)
+    {
+        return SPINConstraints.check(this.model, maxViolations, null, null, OntModelSpec.OWL_MEM, null, Collections.emptySet());
+    }
+
+    // The roots and paths of the violations, e.g. "p1 age"
+    private static Set<String> describe(List<ConstraintViolation> violations)
+    {
+        return new HashSet<String>(describeAll(violations));
+    }
+
+    private static List<String> describeAll(List<ConstraintViolation> violations)
+    {
+        List<String> results = new ArrayList<String>();
+        for(ConstraintViolation violation : violations)
+        {
+            StringBuffer sb = new StringBuffer(violation.getRoot().getLocalName());
+            for(SimplePropertyPath path : violation.getPaths())
+            {
+                Assert.assertTrue(path instanceof ObjectPropertyPath);
+                sb.append(" " + path.getPredicate().getLocalName());
+            }
+            results.add(sb.toString());
+        }
+        return results;
+    }
+
+    @Test
+    public void testAskViolationPaths()
+    {
+        // The unlimited mode reports the paths of the ASK's WHERE clause, like check(Resource)
+        List<ConstraintViolation> all = check(0);
+        Assert.assertEquals(4, all.size());
+        Set<String> expected = new HashSet<String>();
+        Collections.addAll(expected, "p1 age", "p2 age", "p3 age", "p3 name");
+        Assert.assertEquals(expected, describe(all));
+        Assert.assertEquals(Collections.singleton("p1 age"), describe(SPINConstraints.check(this.model.getResource(NS + "p1"), null)));
+
+        // ... and so do the limited modes
+        Assert.assertEquals(expected, describe(check(4)));
+        Assert.assertEquals(expected, describe(check(10)));
+    }
+
+    @Test
+    public void testFailFast()
+    {
+        List<ConstraintViolation> violations = check(1);
+        Assert.assertEquals(1, violations.size());
+        Assert.assertTrue(describe(check(0)).containsAll(describe(violations)));
+    }
+
+    @Test
+    public void testTopN()
+    {
+        for(int n = 1; n <= 4; n++)
+        {
+            List<ConstraintViolation> violations = check(n);
+            Assert.assertEquals(n, violations.size());
+            Assert.assertEquals(n, describe(violations).size());
+        }
+    }
+
+    @Test
+    public void testHandlerStops()
+    {
+        final List<ConstraintViolation> violations = new ArrayList<ConstraintViolation>();
+        int count = SPINConstraints.check(this.model, new ConstraintViolationHandler()
+        {
+            public boolean handleConstraintViolation(ConstraintViolation violation)
+            {
+                violations.add(violation);
+                return violations.size() < 2;
+            }
+        }, 0, null, null, OntModelSpec.OWL_MEM, null, Collections.emptySet());
+        Assert.assertEquals(2, count);
+        Assert.assertEquals(2, violations.size());
+    }
+
+    @Test
+    public void testDistinctInstances()
+    {
+        // p1 is also an instance of the subclass, and p4 only of the subclass
+        Resource employee = this.model.createResource(NS + "Employee");
+        employee.addProperty(RDFS.subClassOf, this.person);
+        this.model.add(this.model.getResource(NS + "p1"), RDF.type, employee);
+        this.model.createResource(NS + "p4", employee).addLiteral(this.model.createProperty(NS + "age"), -4);
+
+        // Without the distinct mode, p1 is checked once for each of its types
+        List<String> all = describeAll(check(0));
+        Assert.assertEquals(6, all.size());
+        Assert.assertEquals(2, Collections.frequency(all, "p1 age"));
+
+        SPINConstraints.setDistinctInstances(true);
+        List<String> distinct = describeAll(check(0));
+        Assert.assertEquals(5, distinct.size());
+        Assert.assertEquals(new HashSet<String>(all), new HashSet<String>(distinct));
+        for(String violation : distinct)
+        {
+            Assert.assertEquals(violation, 1, Collections.frequency(distinct, violation));
+        }
+    }
+}
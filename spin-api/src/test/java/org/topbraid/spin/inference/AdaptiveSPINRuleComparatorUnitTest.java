@@ -0,0 +1,182 @@
+/**
+ *
+ */
+package org.topbraid.spin.inference;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.topbraid.spin.arq.ARQ2SPIN;
+import org.topbraid.spin.arq.ARQFactory;
+import org.topbraid.spin.system.SPINModuleRegistry;
+import org.topbraid.spin.util.CommandWrapper;
+import org.topbraid.spin.util.SPINQueryFinder;
+import org.topbraid.spin.vocabulary.SPIN;
+
+import com.hp.hpl.jena.rdf.model.Model;
+import com.hp.hpl.jena.rdf.model.ModelFactory;
+import com.hp.hpl.jena.rdf.model.RDFNode;
+import com.hp.hpl.jena.rdf.model.Resource;
+import com.hp.hpl.jena.shared.ReificationStyle;
+import com.hp.hpl.jena.vocabulary.RDFS;
+
+/**
+ * Tests the scheduling of {@link AdaptiveSPINRuleComparator} and the
+ * round trip of its profiles through a file.
+ */
+public class AdaptiveSPINRuleComparatorUnitTest
+{
+
+    private static final String NS = "http://example.org/test#";
+
+    // Reads the triples of the producer, but comes first in the text order
+    private static final String CONSUMER = "CONSTRUCT { ?s ex:a ?o } WHERE { ?s ex:m ?o }";
+
+    private static final String INDEPENDENT = "CONSTRUCT { ?s ex:x ?o } WHERE { ?s ex:y ?o }";
+
+    private static final String PRODUCER = "CONSTRUCT { ?s ex:m ?o } WHERE { ?s ex:z ?o }";
+
+    private File file;
+
+    private Model model;
+
+    private Map<String,CommandWrapper> rules;
+
+    @Before
+    public void setUp() throws Exception
+    {
+        SPINModuleRegistry.get().init();
+        this.file = File.createTempFile("spin-profiles", ".bin");
+
+        this.model = ModelFactory.createDefaultModel(ReificationStyle.Minimal);
+        this.model.setNsPrefix("ex", NS);
+        ARQ2SPIN arq2spin = new ARQ2SPIN(this.model);
+        Map<Resource,String> queries = new HashMap<Resource,String>();
+        for(String text : Arrays.asList(CONSUMER, INDEPENDENT, PRODUCER))
+        {
+            Resource query = arq2spin.createQuery(ARQFactory.get().createQuery(this.model, text), null);
+            this.model.add(RDFS.Resource, SPIN.rule, query);
+            queries.put(query, text);
+        }
+
+        this.rules = new HashMap<String,CommandWrapper>();
+        Map<Resource,List<CommandWrapper>> cls2Query = SPINQueryFinder.getClass2QueryMap(this.model, this.model, SPIN.rule, true, new HashMap<CommandWrapper,Map<String,RDFNode>>(), false, null);
+        for(CommandWrapper wrapper : cls2Query.get(RDFS.Resource))
+        {
+            this.rules.put(queries.get(wrapper.getSPINCommand()), wrapper);
+        }
+        Assert.assertEquals(3, this.rules.size());
+    }
+
+    @After
+    public void tearDown() throws Exception
+    {
+        this.file.delete();
+    }
+
+    private List<String> order(AdaptiveSPINRuleComparator comparator)
+    {
+        List<CommandWrapper> list = new ArrayList<CommandWrapper>(this.rules.values());
+        comparator.prepare(list);
+        Collections.sort(list, comparator);
+        List<String> result = new ArrayList<String>();
+        for(CommandWrapper wrapper : list)
+        {
+            for(String text : this.rules.keySet())
+            {
+                if(this.rules.get(text) == wrapper)
+                {
+                    result.add(text);
+                }
+            }
+        }
+        return result;
+    }
+
+    @Test
+    public void testProducerBeforeConsumer()
+    {
+        AdaptiveSPINRuleComparator comparator = new AdaptiveSPINRuleComparator(this.model);
+        Assert.assertEquals(Arrays.asList(PRODUCER, CONSUMER, INDEPENDENT), order(comparator));
+
+        // Even if the producer is much more expensive than the others
+        comparator.record(this.rules.get(PRODUCER), 1000000, 0);
+        comparator.record(this.rules.get(CONSUMER), 10, 1);
+        comparator.record(this.rules.get(INDEPENDENT), 100, 1);
+        Assert.assertEquals(Arrays.asList(INDEPENDENT, PRODUCER, CONSUMER), order(comparator));
+    }
+
+    @Test
+    public void testCheapestFirst()
+    {
+        AdaptiveSPINRuleComparator comparator = new AdaptiveSPINRuleComparator(this.model);
+        comparator.record(this.rules.get(PRODUCER), 10, 1);
+        comparator.record(this.rules.get(INDEPENDENT), 1000, 1);
+        Assert.assertEquals(Arrays.asList(PRODUCER, CONSUMER, INDEPENDENT), order(comparator));
+
+        // The moving average follows the new measurements
+        comparator.record(this.rules.get(PRODUCER), 100000, 1);
+        comparator.record(this.rules.get(PRODUCER), 100000, 1);
+        Assert.assertEquals(Arrays.asList(INDEPENDENT, PRODUCER, CONSUMER), order(comparator));
+    }
+
+    @Test
+    public void testSaveAndLoad() throws Exception
+    {
+        AdaptiveSPINRuleComparator comparator = new AdaptiveSPINRuleComparator(this.model);
+        comparator.record(this.rules.get(PRODUCER), 100000, 1);
+        comparator.record(this.rules.get(INDEPENDENT), 10, 1);
+        comparator.record(this.rules.get(INDEPENDENT), 20, 3);
+        comparator.save(this.file);
+
+        AdaptiveSPINRuleComparator loaded = new AdaptiveSPINRuleComparator(this.model);
+        loaded.load(this.file);
+        Assert.assertEquals(2, loaded.getProfileCount());
+        Assert.assertEquals(order(comparator), order(loaded));
+        Assert.assertEquals(Arrays.asList(INDEPENDENT, PRODUCER, CONSUMER), order(loaded));
+
+        // The loaded profiles can be saved again
+        File copy = File.createTempFile("spin-profiles", ".bin");
+        try
+        {
+            loaded.save(copy);
+            Assert.assertEquals(this.file.length(), copy.length());
+            AdaptiveSPINRuleComparator reloaded = new AdaptiveSPINRuleComparator(this.model);
+            reloaded.load(copy);
+            Assert.assertEquals(order(comparator), order(reloaded));
+        }
+        finally
+        {
+            copy.delete();
+        }
+    }
+
+    @Test
+    public void testLoadUnknownFormat() throws Exception
+    {
+        DataOutputStream dos = new DataOutputStream(new FileOutputStream(this.file));
+        try
+        {
+            dos.writeInt(42);
+            dos.writeInt(1);
+        }
+        finally
+        {
+            dos.close();
+        }
+        AdaptiveSPINRuleComparator comparator = new AdaptiveSPINRuleComparator(this.model);
+        comparator.load(this.file);
+        Assert.assertEquals(0, comparator.getProfileCount());
+    }
+}
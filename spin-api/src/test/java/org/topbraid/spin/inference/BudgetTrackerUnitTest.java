@@ -0,0 +1,174 @@
+/**
+ *
+ */
+package org.topbraid.spin.inference;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.topbraid.spin.arq.ARQ2SPIN;
+import org.topbraid.spin.arq.ARQFactory;
+import org.topbraid.spin.statistics.SPINStatistics;
+import org.topbraid.spin.system.SPINModuleRegistry;
+import org.topbraid.spin.vocabulary.SPIN;
+
+import com.hp.hpl.jena.graph.BulkUpdateHandler;
+import com.hp.hpl.jena.graph.Graph;
+import com.hp.hpl.jena.graph.Node;
+import com.hp.hpl.jena.graph.Triple;
+import com.hp.hpl.jena.graph.impl.SimpleBulkUpdateHandler;
+import com.hp.hpl.jena.mem.GraphMem;
+import com.hp.hpl.jena.rdf.model.Model;
+import com.hp.hpl.jena.rdf.model.ModelFactory;
+import com.hp.hpl.jena.rdf.model.Property;
+import com.hp.hpl.jena.rdf.model.Resource;
+import com.hp.hpl.jena.shared.ReificationStyle;
+import com.hp.hpl.jena.vocabulary.RDFS;
+
+/**
+ * Tests the counting of {@link BudgetTracker} and the rule and run budgets
+ * of {@link SPINInferences}.
+ */
+public class BudgetTrackerUnitTest
+{
+
+    private static final String NS = "http://example.org/test#";
+
+    private static final Triple T1 = Triple.create(Node.createURI(NS + "s"), Node.createURI(NS + "p"), Node.createURI(NS + "o1"));
+
+    private static final Triple T2 = Triple.create(Node.createURI(NS + "s"), Node.createURI(NS + "p"), Node.createURI(NS + "o2"));
+
+    private Model model;
+
+    @Before
+    public void setUp() throws Exception
+    {
+        SPINModuleRegistry.get().init();
+
+        // An expensive rule with three results and a cheap rule with one
+        this.model = ModelFactory.createDefaultModel(ReificationStyle.Minimal);
+        this.model.setNsPrefix("ex", NS);
+        Property p = this.model.createProperty(NS + "p");
+        for(int i = 0; i < 3; i++)
+        {
+            this.model.add(this.model.createResource(NS + "s" + i), p, "value " + i);
+        }
+        ARQ2SPIN arq2spin = new ARQ2SPIN(this.model);
+        Resource copy = arq2spin.createQuery(ARQFactory.get().createQuery(this.model, "CONSTRUCT { ?s ex:q ?o } WHERE { ?s ex:p ?o }"), null);
+        Resource constant = arq2spin.createQuery(ARQFactory.get().createQuery(this.model, "CONSTRUCT { ex:a ex:r ex:b } WHERE { }"), null);
+        this.model.add(RDFS.Resource, SPIN.rule, copy);
+        this.model.add(RDFS.Resource, SPIN.rule, constant);
+    }
+
+    @After
+    public void tearDown() throws Exception
+    {
+        SPINInferences.setBudgets(null, null);
+    }
+
+    @Test
+    public void testBulkAddDelegatesToWrappedHandler()
+    {
+        final List<List<Triple>> bulkAdds = new ArrayList<List<Triple>>();
+        Graph base = new GraphMem()
+        {
+            @Override
+            public BulkUpdateHandler getBulkUpdateHandler()
+            {
+                return new SimpleBulkUpdateHandler(this)
+                {
+                    @Override
+                    public void add(List<Triple> triples)
+                    {
+                        bulkAdds.add(triples);
+                        super.add(triples);
+                    }
+                };
+            }
+        };
+        BudgetTracker tracker = new BudgetTracker(null, null);
+        Graph guarded = tracker.guard(base);
+
+        guarded.getBulkUpdateHandler().add(new Triple[] { T1, T2 });
+
+        Assert.assertEquals(1, bulkAdds.size());
+        Assert.assertEquals(Arrays.asList(T1, T2), bulkAdds.get(0));
+        Assert.assertTrue(base.contains(T1));
+        Assert.assertTrue(base.contains(T2));
+    }
+
+    @Test
+    public void testBulkAddCountsTriples()
+    {
+        BudgetTracker run = new BudgetTracker(null, null);
+        BudgetTracker rule = new BudgetTracker(new InferenceBudget(0, 0, 1, 0), run);
+        Graph base = new GraphMem();
+        try
+        {
+            rule.guard(base).getBulkUpdateHandler().add(Arrays.asList(T1, T2));
+            Assert.fail("Expected BudgetExceededException");
+        }
+        catch(BudgetExceededException ex)
+        {
+            Assert.assertFalse(ex.isRunBudget());
+        }
+
+        // The budget is checked before anything is added
+        Assert.assertTrue(base.isEmpty());
+    }
+
+    @Test
+    public void testRuleBudget()
+    {
+        SPINInferences.setBudgets(new InferenceBudget(0, 0, 1, 0), null);
+        Model newTriples = ModelFactory.createDefaultModel();
+        List<SPINStatistics> statistics = new ArrayList<SPINStatistics>();
+
+        SPINInferences.run(this.model, newTriples, null, statistics, true, null);
+
+        // Only the expensive rule is aborted, the run continues with the other
+        int exceeded = 0;
+        for(SPINStatistics s : statistics)
+        {
+            if(s.getLabel().startsWith("Exceeded"))
+            {
+                exceeded++;
+            }
+        }
+        Assert.assertEquals(1, exceeded);
+        Assert.assertFalse(newTriples.contains(null, this.model.createProperty(NS + "q")));
+        Assert.assertTrue(newTriples.contains(this.model.createResource(NS + "a"), this.model.createProperty(NS + "r"), this.model.createResource(NS + "b")));
+    }
+
+    @Test
+    public void testRunBudget()
+    {
+        SPINInferences.setBudgets(null, new InferenceBudget(0, 0, 2, 0));
+        Model newTriples = ModelFactory.createDefaultModel();
+        try
+        {
+            SPINInferences.run(this.model, newTriples, null, null, false, null);
+            Assert.fail("Expected BudgetExceededException");
+        }
+        catch(BudgetExceededException ex)
+        {
+            Assert.assertTrue(ex.isRunBudget());
+        }
+    }
+
+    @Test
+    public void testWithinBudgets()
+    {
+        SPINInferences.setBudgets(new InferenceBudget(0, 0, 3, 0), new InferenceBudget(0, 0, 4, 0));
+        Model newTriples = ModelFactory.createDefaultModel();
+
+        SPINInferences.run(this.model, newTriples, null, null, true, null);
+
+        Assert.assertEquals(4, newTriples.size());
+    }
+}
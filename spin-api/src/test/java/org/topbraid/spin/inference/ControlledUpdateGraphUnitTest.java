@@ -0,0 +1,132 @@
+/**
+ *
+ */
+package org.topbraid.spin.inference;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.hp.hpl.jena.graph.Factory;
+import com.hp.hpl.jena.graph.Graph;
+import com.hp.hpl.jena.graph.Node;
+import com.hp.hpl.jena.graph.Triple;
+import com.hp.hpl.jena.graph.compose.MultiUnion;
+import com.hp.hpl.jena.query.Dataset;
+import com.hp.hpl.jena.query.DatasetFactory;
+import com.hp.hpl.jena.rdf.model.ModelFactory;
+import com.hp.hpl.jena.update.UpdateAction;
+import com.hp.hpl.jena.update.UpdateFactory;
+import com.hp.hpl.jena.vocabulary.RDF;
+
+/**
+ * Tests the change detection of {@link ControlledUpdateGraph}, both for
+ * in-memory delegates (which use the size stamp) and for union graphs.
+ */
+public class ControlledUpdateGraphUnitTest
+{
+
+    private static final String NS = "http://example.org/test#";
+
+    private static final Triple OLD = Triple.create(Node.createURI(NS + "s"), Node.createURI(NS + "p"), Node.createURI(NS + "o"));
+
+    private static final Triple NEW = Triple.create(Node.createURI(NS + "s"), Node.createURI(NS + "p"), Node.createURI(NS + "n"));
+
+    private static final Triple TYPE = Triple.create(Node.createURI(NS + "s"), RDF.type.asNode(), Node.createURI(NS + "C"));
+
+    private Graph createMemGraph()
+    {
+        Graph graph = Factory.createGraphMem();
+        graph.add(OLD);
+        return graph;
+    }
+
+    // A union whose base graph is empty, so that OLD is only in the other sub-graph
+    private Graph createUnionGraph()
+    {
+        MultiUnion union = new MultiUnion(new Graph[] { Factory.createGraphMem(), createMemGraph() });
+        union.setBaseGraph(union.getSubGraphs().get(0));
+        return union;
+    }
+
+    private void testExistingTriple(Graph delegate)
+    {
+        ControlledUpdateGraph cug = new ControlledUpdateGraph(delegate, true);
+        cug.getBulkUpdateHandler().add(Arrays.asList(OLD, OLD));
+        cug.add(OLD);
+        Assert.assertFalse(cug.isChanged());
+        Assert.assertFalse(cug.getAddedTypeTriples().iterator().hasNext());
+    }
+
+    private void testDuplicateAdds(Graph delegate)
+    {
+        ControlledUpdateGraph cug = new ControlledUpdateGraph(delegate, true);
+        cug.getBulkUpdateHandler().add(Arrays.asList(NEW, TYPE, NEW, TYPE));
+        Assert.assertTrue(cug.isChanged());
+        Assert.assertTrue(delegate.contains(NEW));
+        HashSet<Triple> types = new HashSet<Triple>();
+        for(Triple triple : cug.getAddedTypeTriples())
+        {
+            types.add(triple);
+        }
+        Assert.assertEquals(Collections.singleton(TYPE), types);
+    }
+
+    private void testDeleteMissing(Graph delegate)
+    {
+        ControlledUpdateGraph cug = new ControlledUpdateGraph(delegate, false);
+        cug.getBulkUpdateHandler().delete(Arrays.asList(NEW));
+        cug.delete(NEW);
+        Assert.assertFalse(cug.isChanged());
+    }
+
+    // Like the original change tracking, a triple that has been deleted and
+    // added again counts as a change
+    private void testDeleteThenAdd(Graph delegate)
+    {
+        ControlledUpdateGraph cug = new ControlledUpdateGraph(delegate, false);
+        cug.getBulkUpdateHandler().delete(Arrays.asList(OLD));
+        cug.getBulkUpdateHandler().add(Arrays.asList(OLD));
+        Assert.assertTrue(cug.isChanged());
+        Assert.assertTrue(delegate.contains(OLD));
+    }
+
+    @Test
+    public void testMemGraph()
+    {
+        testExistingTriple(createMemGraph());
+        testDuplicateAdds(createMemGraph());
+        testDeleteMissing(createMemGraph());
+        testDeleteThenAdd(createMemGraph());
+    }
+
+    @Test
+    public void testUnionGraph()
+    {
+        // Adding OLD changes the size of the base graph but not the union
+        testExistingTriple(createUnionGraph());
+        testDuplicateAdds(createUnionGraph());
+        testDeleteMissing(createUnionGraph());
+    }
+
+    @Test
+    public void testDeleteInsertUpdate()
+    {
+        Graph graph = createMemGraph();
+        Dataset dataset = DatasetFactory.create(ModelFactory.createModelForGraph(graph));
+        ControlledUpdateGraphStore store = new ControlledUpdateGraphStore(dataset, Collections.singleton(graph), false);
+        UpdateAction.execute(UpdateFactory.create(
+                "DELETE { ?s <" + NS + "p> ?o } INSERT { ?s <" + NS + "p> ?o } WHERE { ?s <" + NS + "p> ?o }"), store);
+        Assert.assertTrue(graph.contains(OLD));
+        Assert.assertEquals(1, graph.size());
+        Assert.assertTrue(store.getControlledUpdateGraphs().iterator().next().isChanged());
+
+        store = new ControlledUpdateGraphStore(dataset, Collections.singleton(graph), false);
+        UpdateAction.execute(UpdateFactory.create(
+                "INSERT { ?s <" + NS + "p> ?o . ?s <" + NS + "p> ?o } WHERE { ?s <" + NS + "p> ?o }"), store);
+        Assert.assertFalse(store.getControlledUpdateGraphs().iterator().next().isChanged());
+    }
+}
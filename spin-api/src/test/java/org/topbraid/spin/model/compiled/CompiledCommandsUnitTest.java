@@ -0,0 +1,234 @@
+/**
+ *
+ */
+package org.topbraid.spin.model.compiled;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.topbraid.spin.arq.ARQ2SPIN;
+import org.topbraid.spin.arq.ARQFactory;
+import org.topbraid.spin.constraints.ConstraintViolation;
+import org.topbraid.spin.constraints.ObjectPropertyPath;
+import org.topbraid.spin.constraints.SPINConstraints;
+import org.topbraid.spin.constraints.SimplePropertyPath;
+import org.topbraid.spin.model.Command;
+import org.topbraid.spin.model.CommandWithWhere;
+import org.topbraid.spin.model.SPINFactory;
+import org.topbraid.spin.system.SPINModuleRegistry;
+import org.topbraid.spin.util.PropertyPathsGetter;
+import org.topbraid.spin.util.SPINUtil;
+import org.topbraid.spin.vocabulary.SP;
+import org.topbraid.spin.vocabulary.SPIN;
+
+import com.hp.hpl.jena.graph.Node;
+import com.hp.hpl.jena.rdf.model.Model;
+import com.hp.hpl.jena.rdf.model.ModelFactory;
+import com.hp.hpl.jena.rdf.model.Resource;
+import com.hp.hpl.jena.shared.ReificationStyle;
+import com.hp.hpl.jena.vocabulary.RDF;
+
+/**
+ * Tests the compilation and caching of {@link CompiledCommands} and the
+ * analyses that walk the compiled commands.
+ */
+public class CompiledCommandsUnitTest
+{
+
+    private static final String NS = "http://example.org/test#";
+
+    private Model model;
+
+    @Before
+    public void setUp() throws Exception
+    {
+        SPINModuleRegistry.get().init();
+        this.model = ModelFactory.createDefaultModel(ReificationStyle.Minimal);
+        this.model.setNsPrefix("ex", NS);
+
+        // Let ARQ2SPIN use the system variables, like in Models that import the SPIN namespace
+        for(Resource var : new Resource[] { SPIN._this, SPIN._arg1 })
+        {
+            this.model.add(var, RDF.type, SP.Variable);
+            this.model.add(var, SP.varName, this.model.createTypedLiteral(var.getLocalName().substring(1)));
+        }
+    }
+
+    @After
+    public void tearDown() throws Exception
+    {
+        CompiledCommands.clear();
+    }
+
+    private Command createCommand(String text)
+    {
+        ARQ2SPIN arq2spin = new ARQ2SPIN(this.model);
+        String str = ARQFactory.get().createPrefixDeclarations(this.model) + text;
+        try
+        {
+            return SPINFactory.asCommand(arq2spin.createQuery(ARQFactory.get().createQuery(str), null));
+        }
+        catch(RuntimeException ex)
+        {
+            return SPINFactory.asCommand(arq2spin.createUpdate(ARQFactory.get().createUpdateRequest(str).getOperations().get(0), null));
+        }
+    }
+
+    @Test
+    public void testCompile()
+    {
+        Command command = createCommand("CONSTRUCT { ?this ex:q ?o } WHERE { ?this ex:p ?o . OPTIONAL { ?o ex:r ?x } FILTER (?o != ex:a) BIND (ex:f(?o, 1) AS ?y) }");
+        CompiledCommand compiled = CompiledCommands.get(command);
+        Assert.assertEquals(SP.Construct.asNode(), compiled.getType());
+        Assert.assertEquals(1, compiled.getTemplateCount());
+        Assert.assertEquals(0, compiled.getDeleteTemplateCount());
+        Assert.assertEquals(Node.createVariable("this"), compiled.getTemplate(0).getTerm(0));
+        Assert.assertEquals(Node.createURI(NS + "q"), compiled.getTemplate(0).getTerm(1));
+
+        CompiledElement where = compiled.getWhere();
+        Assert.assertEquals(CompiledElement.Kind.ELEMENT_LIST, where.getKind());
+        Assert.assertEquals(4, where.getChildCount());
+        Assert.assertEquals(CompiledElement.Kind.TRIPLE_PATTERN, where.getChild(0).getKind());
+        Assert.assertEquals(CompiledElement.Kind.OPTIONAL, where.getChild(1).getKind());
+        Assert.assertEquals(Node.createURI(NS + "r"), where.getChild(1).getChild(0).getTerm(1));
+        Assert.assertEquals(CompiledElement.Kind.FILTER, where.getChild(2).getKind());
+
+        CompiledElement bind = where.getChild(3);
+        Assert.assertEquals(CompiledElement.Kind.BIND, bind.getKind());
+        Assert.assertEquals(Node.createVariable("y"), bind.getTerm(0));
+        CompiledExpression call = bind.getExpression();
+        Assert.assertEquals(CompiledExpression.Kind.FUNCTION_CALL, call.getKind());
+        Assert.assertEquals(Node.createURI(NS + "f"), call.getNode());
+        Assert.assertEquals(2, call.getArgCount());
+        Assert.assertTrue(call.getArg(0).isVariable());
+        Assert.assertEquals(SP.getArgProperty(1).asNode(), call.getArgProperty(0));
+        Assert.assertEquals(SP.getArgProperty(2).asNode(), call.getArgProperty(1));
+    }
+
+    @Test
+    public void testCache()
+    {
+        Command command = createCommand("SELECT ?o WHERE { ?s ex:p ?o }");
+        CompiledCommand compiled = CompiledCommands.get(command);
+        Assert.assertSame(compiled, CompiledCommands.get(command));
+
+        // Unrelated triples keep the cache, changes of the SPIN tree drop it
+        this.model.add(this.model.createResource(NS + "s"), this.model.createProperty(NS + "p"), "x");
+        Assert.assertSame(compiled, CompiledCommands.get(command));
+        command.addProperty(SP.limit, this.model.createTypedLiteral(1));
+        CompiledCommand recompiled = CompiledCommands.get(command);
+        Assert.assertNotSame(compiled, recompiled);
+
+        CompiledCommands.invalidate(this.model.getGraph());
+        Assert.assertNotSame(recompiled, CompiledCommands.get(command));
+    }
+
+    @Test
+    public void testWalkDoesNotEnterExists()
+    {
+        Command command = createCommand("SELECT ?o WHERE { ?s ex:p ?o . FILTER NOT EXISTS { ?o ex:q ?x } }");
+        final List<Node> predicates = new ArrayList<Node>();
+        CompiledCommands.get(command).walk(new CompiledVisitor()
+        {
+            @Override
+            public void visit(CompiledElement element)
+            {
+                if(element.getKind() == CompiledElement.Kind.TRIPLE_PATTERN)
+                {
+                    predicates.add(element.getTerm(1));
+                }
+            }
+
+            @Override
+            public void visit(CompiledExpression expression)
+            {
+                if(expression.getElements() != null)
+                {
+                    Assert.assertEquals(1, expression.getElements().getChildCount());
+                }
+            }
+        });
+        Assert.assertEquals(Collections.singletonList(Node.createURI(NS + "p")), predicates);
+    }
+
+    @Test
+    public void testContainsThis()
+    {
+        String[] texts = {
+            "SELECT ?o WHERE { ?this ex:p ?o }",
+            "SELECT ?o WHERE { ?s ex:p ?this }",
+            "SELECT ?o WHERE { ?s ex:p/ex:q ?this }",
+            "SELECT ?o WHERE { ?s ex:p ?o . FILTER (?o = ?this) }",
+            "SELECT ?o WHERE { ?s ex:p ?o . FILTER NOT EXISTS { ?this ex:q ?o } }",
+            "SELECT ?o WHERE { { SELECT ?o WHERE { ?this ex:p ?o } } }",
+            "SELECT ?o WHERE { ?s ex:p ?o }",
+            "CONSTRUCT { ?this ex:q ?o } WHERE { ?s ex:p ?o }",
+            "INSERT { ?s ex:q ?this } WHERE { ?s ex:p ?o }",
+            "DELETE { ?this ex:q ?o } WHERE { ?s ex:p ?o }",
+            "DELETE WHERE { ?this ex:q ?o }"
+        };
+        int found = 0;
+        for(String text : texts)
+        {
+            Command command = createCommand(text);
+            boolean expected = SPINUtil.containsThis((CommandWithWhere) command);
+            Assert.assertEquals(text, expected, CompiledAnalyses.containsThis(command));
+            Assert.assertEquals(text, expected, CompiledAnalyses.containsThis(command));
+            if(expected)
+            {
+                found++;
+            }
+        }
+        Assert.assertEquals(8, found);
+
+        // Only the extended check looks into EXISTS
+        Command exists = createCommand(texts[4]);
+        Assert.assertFalse(CompiledAnalyses.containsThis(exists));
+        Assert.assertTrue(CompiledAnalyses.containsThisWithExists(exists));
+        Assert.assertFalse(CompiledAnalyses.containsThisWithExists(createCommand(texts[5])));
+    }
+
+    @Test
+    public void testPropertyPaths()
+    {
+        // A SPIN function whose body walks from ?this along its argument
+        Resource function = this.model.createResource(NS + "hasValue", SPIN.Function);
+        function.addProperty(SPIN.body, createCommand("ASK WHERE { ?this ?arg1 ?value }"));
+        SPINModuleRegistry.get().registerAll(this.model, null);
+
+        Resource cls = this.model.createResource(NS + "C");
+        Command constraint = createCommand("ASK WHERE { ?this ex:p ?o . ?s ex:q ?this . FILTER ex:hasValue(ex:r) . ?this ?x ?y }");
+        cls.addProperty(SPIN.constraint, constraint);
+        Resource instance = this.model.createResource(NS + "i", cls);
+        instance.addProperty(this.model.createProperty(NS + "p"), "x");
+        instance.addProperty(this.model.createProperty(NS + "r"), "y");
+        this.model.createResource(NS + "s").addProperty(this.model.createProperty(NS + "q"), instance);
+
+        PropertyPathsGetter getter = new PropertyPathsGetter(((CommandWithWhere) constraint).getWhere(), null);
+        getter.run();
+        List<String> expected = toStrings(getter.getResults());
+        Assert.assertEquals(3, expected.size());
+        Assert.assertTrue(expected.contains("Object " + NS + "r"));
+
+        List<ConstraintViolation> violations = SPINConstraints.check(instance, null);
+        Assert.assertEquals(1, violations.size());
+        Assert.assertEquals(expected, toStrings(violations.get(0).getPaths()));
+    }
+
+    private static List<String> toStrings(Collection<SimplePropertyPath> paths)
+    {
+        List<String> results = new ArrayList<String>();
+        for(SimplePropertyPath path : paths)
+        {
+            results.add((path instanceof ObjectPropertyPath ? "Object " : "Subject ") + path.getPredicate().getURI());
+        }
+        Collections.sort(results);
+        return results;
+    }
+}
@@ -0,0 +1,166 @@
+/**
+ *
+ */
+package org.topbraid.spin.model.print;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.topbraid.spin.arq.ARQ2SPIN;
+import org.topbraid.spin.arq.ARQFactory;
+import org.topbraid.spin.model.Command;
+import org.topbraid.spin.model.SPINFactory;
+import org.topbraid.spin.system.SPINModuleRegistry;
+
+import com.hp.hpl.jena.rdf.model.Model;
+import com.hp.hpl.jena.rdf.model.ModelFactory;
+import com.hp.hpl.jena.rdf.model.RDFNode;
+import com.hp.hpl.jena.shared.ReificationStyle;
+import com.hp.hpl.jena.shared.WrappedIOException;
+
+/**
+ * Tests the streaming output of {@link AppendablePrintContext} and the bulk
+ * export of {@link CommandExporter}.
+ */
+public class CommandExporterUnitTest
+{
+
+    private static final String NS = "http://example.org/test#";
+
+    private static final String SUB_QUERY = "SELECT ?s WHERE { ?s ex:p ?o . { SELECT ?o WHERE { ?o ex:q ?x } } }";
+
+    private Model model;
+
+    private List<Command> commands;
+
+    @Before
+    public void setUp() throws Exception
+    {
+        SPINModuleRegistry.get().init();
+        this.model = ModelFactory.createDefaultModel(ReificationStyle.Minimal);
+        this.model.setNsPrefix("ex", NS);
+        ARQ2SPIN arq2spin = new ARQ2SPIN(this.model);
+        String prefixes = ARQFactory.get().createPrefixDeclarations(this.model);
+        this.commands = new ArrayList<Command>();
+        this.commands.add(SPINFactory.asCommand(arq2spin.createQuery(ARQFactory.get().createQuery(prefixes + "ASK WHERE { ?s ex:p \"text\" }"), NS + "ask")));
+        this.commands.add(SPINFactory.asCommand(arq2spin.createQuery(ARQFactory.get().createQuery(prefixes + SUB_QUERY), null)));
+        this.commands.add(SPINFactory.asCommand(arq2spin.createUpdate(ARQFactory.get().createUpdateRequest(prefixes + "DELETE { ?s ex:p ?o } WHERE { ?s ex:p ?o }").getOperations().get(0), null)));
+    }
+
+    // The text that StringPrintContext produces for the commands
+    private String expected(boolean usePrefixes)
+    {
+        StringBuilder sb = new StringBuilder();
+        for(Command command : this.commands)
+        {
+            if(command.isURIResource())
+            {
+                sb.append("# <" + command.getURI() + ">\n");
+            }
+            StringPrintContext p = new StringPrintContext();
+            p.setUsePrefixes(usePrefixes);
+            command.print(p);
+            sb.append(p.getString());
+            sb.append("\n\n");
+        }
+        return sb.toString();
+    }
+
+    @Test
+    public void testExport()
+    {
+        CommandExporter exporter = new CommandExporter();
+        StringWriter writer = new StringWriter();
+        Assert.assertEquals(3, exporter.export(this.commands, writer));
+        Assert.assertEquals(expected(true), writer.toString());
+        Assert.assertTrue(writer.toString().contains("ex:p"));
+
+        exporter.setUsePrefixes(false);
+        writer = new StringWriter();
+        exporter.export(this.commands, writer);
+        Assert.assertEquals(expected(false), writer.toString());
+        Assert.assertTrue(writer.toString().contains("<" + NS + "p>"));
+    }
+
+    @Test
+    public void testExportAll()
+    {
+        // The sub-query is only printed as part of its enclosing query
+        List<Command> all = CommandExporter.getCommands(this.model);
+        Assert.assertEquals(3, all.size());
+        Assert.assertTrue(all.containsAll(this.commands));
+
+        StringWriter writer = new StringWriter();
+        Assert.assertEquals(3, new CommandExporter().exportAll(this.model, writer));
+        String text = writer.toString();
+        Assert.assertTrue(text.contains("# <" + NS + "ask>\n"));
+        Assert.assertEquals(text.indexOf("ex:q"), text.lastIndexOf("ex:q"));
+    }
+
+    @Test
+    public void testFlushSize()
+    {
+        // With a tiny flush size the output is written while printing, with the same result
+        final List<String> chunks = new ArrayList<String>();
+        Appendable out = new Appendable()
+        {
+            public Appendable append(CharSequence csq)
+            {
+                chunks.add(csq.toString());
+                return this;
+            }
+
+            public Appendable append(CharSequence csq, int start, int end)
+            {
+                return append(csq.subSequence(start, end));
+            }
+
+            public Appendable append(char c)
+            {
+                return append(String.valueOf(c));
+            }
+        };
+        Command command = this.commands.get(1);
+        AppendablePrintContext p = new AppendablePrintContext(out, new StringBuilder(), new HashMap<String,RDFNode>(), 16);
+        command.print(p);
+        Assert.assertTrue(chunks.size() > 1);
+        p.flush();
+        Assert.assertEquals(0, p.getStringBuilder().length());
+
+        StringBuilder sb = new StringBuilder();
+        for(String chunk : chunks)
+        {
+            sb.append(chunk);
+        }
+        Assert.assertEquals(command.toString(), sb.toString());
+    }
+
+    @Test(expected = WrappedIOException.class)
+    public void testIOException()
+    {
+        Appendable out = new Appendable()
+        {
+            public Appendable append(CharSequence csq) throws IOException
+            {
+                throw new IOException("Disk full");
+            }
+
+            public Appendable append(CharSequence csq, int start, int end) throws IOException
+            {
+                throw new IOException("Disk full");
+            }
+
+            public Appendable append(char c) throws IOException
+            {
+                throw new IOException("Disk full");
+            }
+        };
+        new CommandExporter().export(this.commands, out);
+    }
+}
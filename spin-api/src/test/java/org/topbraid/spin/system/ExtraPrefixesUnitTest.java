@@ -0,0 +1,106 @@
+/**
+ *
+ */
+package org.topbraid.spin.system;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.topbraid.spin.model.print.StringPrintContext;
+
+import com.hp.hpl.jena.rdf.model.Model;
+import com.hp.hpl.jena.rdf.model.ModelFactory;
+import com.hp.hpl.jena.rdf.model.Resource;
+
+/**
+ * Tests the reverse index of {@link ExtraPrefixes}.
+ * As the extra prefixes are global, each test uses its own namespaces.
+ */
+public class ExtraPrefixesUnitTest
+{
+
+    private static final String NS = "http://example.org/extra/";
+
+    private static int countDeclarations(String prefix)
+    {
+        int count = 0;
+        for(String[] declaration : ExtraPrefixes.getDeclarations())
+        {
+            if(declaration[0].equals(prefix))
+            {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private static String print(String uri)
+    {
+        Resource resource = ModelFactory.createDefaultModel().createResource(uri);
+        StringPrintContext p = new StringPrintContext();
+        p.setUseExtraPrefixes(true);
+        p.printURIResource(resource);
+        return p.getString();
+    }
+
+    @Test
+    public void testLongestMatch()
+    {
+        ExtraPrefixes.add("extraOuter", NS + "outer/");
+        ExtraPrefixes.add("extraInner", NS + "outer/inner/");
+        ExtraPrefixes.add("extraHash", NS + "outer/inner#");
+        Assert.assertEquals(NS + "outer/", ExtraPrefixes.getNamespace(NS + "outer/x"));
+        Assert.assertEquals(NS + "outer/inner/", ExtraPrefixes.getNamespace(NS + "outer/inner/x"));
+        Assert.assertEquals(NS + "outer/inner#", ExtraPrefixes.getNamespace(NS + "outer/inner#x"));
+        Assert.assertEquals(NS + "outer/", ExtraPrefixes.getNamespace(NS + "outer/other/x"));
+        Assert.assertNull(ExtraPrefixes.getNamespace(NS + "other/x"));
+        Assert.assertEquals("extraInner:x", print(NS + "outer/inner/x"));
+        Assert.assertEquals("extraOuter:other/x", print(NS + "outer/other/x"));
+        Assert.assertEquals("<" + NS + "other/x>", print(NS + "other/x"));
+    }
+
+    @Test
+    public void testIrregularNamespaces()
+    {
+        // Namespaces that do not end with a separator, overlapping each other and a regular one
+        ExtraPrefixes.add("extraRegular", NS + "irregular/");
+        ExtraPrefixes.add("extraShort", NS + "irregular/item");
+        ExtraPrefixes.add("extraLong", NS + "irregular/item_");
+        Assert.assertEquals(NS + "irregular/item_", ExtraPrefixes.getNamespace(NS + "irregular/item_1"));
+        Assert.assertEquals(NS + "irregular/item", ExtraPrefixes.getNamespace(NS + "irregular/items"));
+        Assert.assertEquals(NS + "irregular/", ExtraPrefixes.getNamespace(NS + "irregular/other"));
+        Assert.assertEquals("extraLong:1", print(NS + "irregular/item_1"));
+    }
+
+    @Test
+    public void testOverride()
+    {
+        // Adding an existing prefix again has no effect, also not on the reverse index
+        ExtraPrefixes.add("extraFirst", NS + "first#");
+        ExtraPrefixes.add("extraFirst", NS + "second#");
+        Assert.assertEquals(NS + "first#", ExtraPrefixes.getExtraPrefixes().get("extraFirst"));
+        Assert.assertEquals("extraFirst", ExtraPrefixes.getPrefix(NS + "first#"));
+        Assert.assertNull(ExtraPrefixes.getPrefix(NS + "second#"));
+        Assert.assertNull(ExtraPrefixes.getNamespace(NS + "second#x"));
+        Assert.assertEquals(1, countDeclarations("extraFirst"));
+
+        // A second prefix for the same namespace is declared, but the first one is used for printing
+        ExtraPrefixes.add("extraAlias", NS + "first#");
+        Assert.assertEquals(NS + "first#", ExtraPrefixes.getExtraPrefixes().get("extraAlias"));
+        Assert.assertEquals("extraFirst", ExtraPrefixes.getPrefix(NS + "first#"));
+        Assert.assertEquals(1, countDeclarations("extraAlias"));
+        Assert.assertEquals("extraFirst:x", print(NS + "first#x"));
+    }
+
+    @Test
+    public void testResource()
+    {
+        Model model = ModelFactory.createDefaultModel();
+        model.setNsPrefix("extraModel", NS + "model#");
+        ExtraPrefixes.add(model.createResource(NS + "model#x"));
+        Assert.assertEquals("extraModel", ExtraPrefixes.getPrefix(NS + "model#"));
+
+        // Resources without a declared prefix are ignored
+        ExtraPrefixes.add(model.createResource(NS + "undeclared#x"));
+        Assert.assertNull(ExtraPrefixes.getPrefix(NS + "undeclared#"));
+    }
+}
@@ -0,0 +1,287 @@
+/**
+ *
+ */
+package org.topbraid.spin.system;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.topbraid.spin.util.GraphSnapshots;
+
+import com.hp.hpl.jena.datatypes.xsd.XSDDatatype;
+import com.hp.hpl.jena.graph.Graph;
+import com.hp.hpl.jena.graph.Node;
+import com.hp.hpl.jena.ontology.OntModelSpec;
+import com.hp.hpl.jena.rdf.model.Model;
+import com.hp.hpl.jena.rdf.model.ModelFactory;
+import com.hp.hpl.jena.rdf.model.Property;
+import com.hp.hpl.jena.rdf.model.Resource;
+import com.hp.hpl.jena.vocabulary.OWL;
+
+/**
+ * Tests for {@link GraphSnapshots} and {@link ImportsCache}.
+ */
+public class GraphSnapshotsUnitTest
+{
+
+    private static final String NS = "http://example.org/test#";
+
+    private File directory;
+
+    @Before
+    public void setUp() throws Exception
+    {
+        this.directory = File.createTempFile("snapshots", "");
+        this.directory.delete();
+        this.directory.mkdirs();
+    }
+
+    @After
+    public void tearDown() throws Exception
+    {
+        File[] files = this.directory.listFiles();
+        if(files != null)
+        {
+            for(File file : files)
+            {
+                file.delete();
+            }
+        }
+        this.directory.delete();
+    }
+
+    private Model createModel()
+    {
+        Model model = ModelFactory.createDefaultModel();
+        model.setNsPrefix("ex", NS);
+        Property p = model.createProperty(NS + "p");
+        Resource s = model.createResource(NS + "s");
+        Resource blank = model.createResource();
+        s.addProperty(p, blank);
+        s.addProperty(p, "plain");
+        s.addProperty(p, "Text", "en");
+        s.addProperty(p, "äöü €");
+        s.addLiteral(p, model.createTypedLiteral("42", XSDDatatype.XSDinteger));
+        blank.addProperty(p, s);
+        return model;
+    }
+
+    private void writeTurtle(Model model, File file) throws IOException
+    {
+        OutputStream os = new FileOutputStream(file);
+        try
+        {
+            model.write(os, "TURTLE");
+        }
+        finally
+        {
+            os.close();
+        }
+    }
+
+    @Test
+    public void testRoundTrip() throws Exception
+    {
+        Model model = createModel();
+        File file = new File(this.directory, "test.snapshot");
+        GraphSnapshots.write(model.getGraph(), "abc", file);
+
+        Assert.assertEquals("abc", GraphSnapshots.getContentHash(file));
+
+        Graph graph = GraphSnapshots.read(file);
+        Assert.assertTrue(graph.isIsomorphicWith(model.getGraph()));
+        Assert.assertEquals(NS, graph.getPrefixMapping().getNsPrefixURI("ex"));
+    }
+
+    @Test
+    public void testOverwrite() throws Exception
+    {
+        File file = new File(this.directory, "test.snapshot");
+        GraphSnapshots.write(ModelFactory.createDefaultModel().getGraph(), null, file);
+        Assert.assertNull(GraphSnapshots.getContentHash(file));
+
+        Model model = createModel();
+        GraphSnapshots.write(model.getGraph(), "def", file);
+        Assert.assertEquals("def", GraphSnapshots.getContentHash(file));
+        Assert.assertTrue(GraphSnapshots.read(file).isIsomorphicWith(model.getGraph()));
+        Assert.assertEquals(1, this.directory.listFiles().length);
+    }
+
+    @Test(expected = IOException.class)
+    public void testInvalidSnapshot() throws Exception
+    {
+        File file = new File(this.directory, "invalid.snapshot");
+        OutputStream os = new FileOutputStream(file);
+        try
+        {
+            os.write("not a snapshot".getBytes("UTF-8"));
+        }
+        finally
+        {
+            os.close();
+        }
+        GraphSnapshots.read(file);
+    }
+
+    // Overwrites the last four bytes of a file, i.e. the last Node index of a snapshot
+    private void writeLastInt(File file, int value) throws IOException
+    {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try
+        {
+            raf.seek(raf.length() - 4);
+            raf.writeInt(value);
+        }
+        finally
+        {
+            raf.close();
+        }
+    }
+
+    @Test
+    public void testTruncatedSnapshot() throws Exception
+    {
+        File file = new File(this.directory, "test.snapshot");
+        GraphSnapshots.write(createModel().getGraph(), "abc", file);
+        long length = file.length();
+        for(long i = length - 1; i >= 0; i--)
+        {
+            RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            try
+            {
+                raf.setLength(i);
+            }
+            finally
+            {
+                raf.close();
+            }
+            try
+            {
+                GraphSnapshots.read(file);
+                Assert.fail("Expected IOException for a snapshot truncated to " + i + " bytes");
+            }
+            catch(IOException ex)
+            {
+                // Expected
+            }
+        }
+    }
+
+    @Test
+    public void testInvalidNodeIndex() throws Exception
+    {
+        File file = new File(this.directory, "test.snapshot");
+        for(int index : new int[] { -1, 1000 })
+        {
+            GraphSnapshots.write(createModel().getGraph(), "abc", file);
+            writeLastInt(file, index);
+            try
+            {
+                GraphSnapshots.read(file);
+                Assert.fail("Expected IOException for Node index " + index);
+            }
+            catch(IOException ex)
+            {
+                Assert.assertTrue(ex.getMessage().startsWith("Malformed triple table"));
+            }
+        }
+    }
+
+    @Test
+    public void testImportsCacheCorruptSnapshot() throws Exception
+    {
+        File source = new File(this.directory, "source.ttl");
+        Model model = createModel();
+        writeTurtle(model, source);
+        String uri = source.toURI().toString();
+
+        File cacheDirectory = new File(this.directory, "cache");
+        ImportsCache cache = new ImportsCache(cacheDirectory, ImportsCachePolicy.ALWAYS);
+        try
+        {
+            Assert.assertTrue(cache.getGraph(uri, OntModelSpec.OWL_MEM).isIsomorphicWith(model.getGraph()));
+            File snapshot = cacheDirectory.listFiles()[0];
+            long length = snapshot.length();
+
+            // The header and content hash are intact, but a triple points outside of the Node table
+            writeLastInt(snapshot, Integer.MAX_VALUE);
+            Assert.assertTrue(cache.getGraph(uri, OntModelSpec.OWL_MEM).isIsomorphicWith(model.getGraph()));
+            Assert.assertTrue(GraphSnapshots.read(snapshot).isIsomorphicWith(model.getGraph()));
+
+            // The same in the import walk, for a truncated snapshot
+            RandomAccessFile raf = new RandomAccessFile(snapshot, "rw");
+            try
+            {
+                raf.setLength(length / 2);
+            }
+            finally
+            {
+                raf.close();
+            }
+            Model importing = ModelFactory.createDefaultModel();
+            importing.createResource(NS + "ontology").addProperty(OWL.imports, importing.createResource(uri));
+            Graph union = cache.expandImports(NS + "ontology", importing.getGraph());
+            Assert.assertTrue(union.contains(Node.createURI(NS + "s"), Node.createURI(NS + "p"), Node.createLiteral("plain")));
+            Assert.assertTrue(GraphSnapshots.read(snapshot).isIsomorphicWith(model.getGraph()));
+
+            // Without the source, a corrupt snapshot is reported as an IOException
+            source.delete();
+            writeLastInt(snapshot, -1);
+            try
+            {
+                cache.getGraph(uri, OntModelSpec.OWL_MEM);
+                Assert.fail("Expected IOException");
+            }
+            catch(IOException ex)
+            {
+                // Expected
+            }
+        }
+        finally
+        {
+            cache.clear();
+            cacheDirectory.delete();
+        }
+    }
+
+    @Test
+    public void testImportsCacheRevalidation() throws Exception
+    {
+        File source = new File(this.directory, "source.ttl");
+        Model model = createModel();
+        writeTurtle(model, source);
+        String uri = source.toURI().toString();
+
+        File cacheDirectory = new File(this.directory, "cache");
+        ImportsCache cache = new ImportsCache(cacheDirectory, ImportsCachePolicy.ALWAYS);
+        try
+        {
+            Assert.assertTrue(cache.getGraph(uri, OntModelSpec.OWL_MEM).isIsomorphicWith(model.getGraph()));
+            Assert.assertEquals(1, cacheDirectory.listFiles().length);
+
+            // A changed source has a different hash, so the snapshot must be replaced
+            model.createResource(NS + "t").addProperty(model.createProperty(NS + "p"), "changed");
+            writeTurtle(model, source);
+            Assert.assertTrue(cache.getGraph(uri, OntModelSpec.OWL_MEM).isIsomorphicWith(model.getGraph()));
+
+            // Once the source is gone the cache works offline from the last snapshot
+            source.delete();
+            Assert.assertTrue(cache.getGraph(uri, OntModelSpec.OWL_MEM).isIsomorphicWith(model.getGraph()));
+
+            cache.setPolicy(ImportsCachePolicy.NEVER);
+            Assert.assertTrue(cache.getGraph(uri, OntModelSpec.OWL_MEM).isIsomorphicWith(model.getGraph()));
+        }
+        finally
+        {
+            cache.clear();
+            cacheDirectory.delete();
+        }
+    }
+}
@@ -0,0 +1,264 @@
+/**
+ *
+ */
+package org.topbraid.spin.system;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.topbraid.spin.inference.InferenceCheckpoint;
+import org.topbraid.spin.inference.SPINInferences;
+import org.topbraid.spin.util.CommandWrapper;
+import org.topbraid.spin.vocabulary.SPIN;
+
+import com.hp.hpl.jena.graph.Factory;
+import com.hp.hpl.jena.graph.Graph;
+import com.hp.hpl.jena.graph.Node;
+import com.hp.hpl.jena.graph.Triple;
+import com.hp.hpl.jena.rdf.model.Model;
+import com.hp.hpl.jena.rdf.model.ModelFactory;
+import com.hp.hpl.jena.rdf.model.RDFNode;
+import com.hp.hpl.jena.rdf.model.Resource;
+import com.hp.hpl.jena.shared.WrappedIOException;
+
+/**
+ * Tests for {@link InferenceCheckpoint}.
+ */
+public class InferenceCheckpointUnitTest
+{
+
+    private static final String NS = "http://example.org/test#";
+
+    private File file;
+
+    @Before
+    public void setUp() throws Exception
+    {
+        this.file = File.createTempFile("spin-checkpoint", ".bin");
+    }
+
+    @After
+    public void tearDown() throws Exception
+    {
+        this.file.delete();
+    }
+
+    private static Triple triple(int i)
+    {
+        Node object = i % 3 == 0 ? Node.createLiteral("value " + i, "en", false) : Node.createURI(NS + "o" + i);
+        return Triple.create(i % 2 == 0 ? Node.createAnon() : Node.createURI(NS + "s" + i), Node.createURI(NS + "p"), object);
+    }
+
+    // Writes two checkpoints with two triples each and returns all triples
+    private Set<Triple> writeTwoCheckpoints() throws Exception
+    {
+        Set<Triple> triples = new HashSet<Triple>();
+        InferenceCheckpoint checkpoint = new InferenceCheckpoint(this.file, "fp");
+        try
+        {
+            checkpoint.setInterval(0);
+            Graph graph = Factory.createGraphMem();
+            Assert.assertTrue(checkpoint.attach(graph).isEmpty());
+            for(int i = 0; i < 4; i++)
+            {
+                Triple t = triple(i);
+                graph.add(t);
+                triples.add(t);
+                if(i % 2 == 1)
+                {
+                    checkpoint.checkpoint(i / 2 + 1);
+                }
+            }
+        }
+        finally
+        {
+            checkpoint.close();
+        }
+        return triples;
+    }
+
+    private Set<Triple> recover(InferenceCheckpoint checkpoint)
+    {
+        Graph graph = Factory.createGraphMem();
+        List<Triple> recovered = checkpoint.attach(graph);
+        Assert.assertEquals(recovered.size(), graph.size());
+        return new HashSet<Triple>(recovered);
+    }
+
+    @Test
+    public void testWriteAndResume() throws Exception
+    {
+        Set<Triple> triples = writeTwoCheckpoints();
+
+        InferenceCheckpoint checkpoint = new InferenceCheckpoint(this.file, "fp");
+        try
+        {
+            Assert.assertEquals(2, checkpoint.getIteration());
+            Assert.assertFalse(checkpoint.isComplete());
+            Assert.assertEquals(triples, recover(checkpoint));
+            checkpoint.complete(3);
+        }
+        finally
+        {
+            checkpoint.close();
+        }
+
+        checkpoint = new InferenceCheckpoint(this.file, "fp");
+        try
+        {
+            Assert.assertEquals(3, checkpoint.getIteration());
+            Assert.assertTrue(checkpoint.isComplete());
+            Assert.assertEquals(triples, recover(checkpoint));
+        }
+        finally
+        {
+            checkpoint.close();
+        }
+    }
+
+    @Test
+    public void testTruncatedRecord() throws Exception
+    {
+        writeTwoCheckpoints();
+        long length = this.file.length();
+        RandomAccessFile raf = new RandomAccessFile(this.file, "rw");
+        try
+        {
+            raf.setLength(length - 5);
+        }
+        finally
+        {
+            raf.close();
+        }
+
+        // Only the first record survives, and the partial record is cut off
+        InferenceCheckpoint checkpoint = new InferenceCheckpoint(this.file, "fp");
+        Set<Triple> expected = new HashSet<Triple>();
+        try
+        {
+            Assert.assertEquals(1, checkpoint.getIteration());
+            Set<Triple> recovered = recover(checkpoint);
+            Assert.assertEquals(2, recovered.size());
+            expected.addAll(recovered);
+            Assert.assertTrue(this.file.length() < length - 5);
+
+            // New checkpoints are appended after the last valid record
+            checkpoint.setInterval(0);
+            checkpoint.checkpoint(2);
+        }
+        finally
+        {
+            checkpoint.close();
+        }
+
+        checkpoint = new InferenceCheckpoint(this.file, "fp");
+        try
+        {
+            Assert.assertEquals(2, checkpoint.getIteration());
+            Assert.assertEquals(expected, recover(checkpoint));
+        }
+        finally
+        {
+            checkpoint.close();
+        }
+    }
+
+    @Test
+    public void testCorruptRecord() throws Exception
+    {
+        writeTwoCheckpoints();
+        RandomAccessFile raf = new RandomAccessFile(this.file, "rw");
+        try
+        {
+            // Flip a byte in the payload of the last record, before its checksum
+            long position = raf.length() - 10;
+            raf.seek(position);
+            int b = raf.read();
+            raf.seek(position);
+            raf.write(b ^ 0xFF);
+        }
+        finally
+        {
+            raf.close();
+        }
+
+        InferenceCheckpoint checkpoint = new InferenceCheckpoint(this.file, "fp");
+        try
+        {
+            Assert.assertEquals(1, checkpoint.getIteration());
+            Assert.assertEquals(2, recover(checkpoint).size());
+        }
+        finally
+        {
+            checkpoint.close();
+        }
+    }
+
+    @Test
+    public void testFingerprintMismatch() throws Exception
+    {
+        writeTwoCheckpoints();
+
+        InferenceCheckpoint checkpoint = new InferenceCheckpoint(this.file, "other");
+        try
+        {
+            Assert.assertEquals(0, checkpoint.getIteration());
+            Assert.assertFalse(checkpoint.isComplete());
+            Assert.assertTrue(recover(checkpoint).isEmpty());
+        }
+        finally
+        {
+            checkpoint.close();
+        }
+
+        // The old records have been discarded for good
+        checkpoint = new InferenceCheckpoint(this.file, "fp");
+        try
+        {
+            Assert.assertEquals(0, checkpoint.getIteration());
+            Assert.assertTrue(recover(checkpoint).isEmpty());
+        }
+        finally
+        {
+            checkpoint.close();
+        }
+    }
+
+    @Test
+    public void testFingerprint()
+    {
+        Graph graph = Factory.createGraphMem();
+        graph.add(triple(1));
+        graph.add(triple(3));
+        Graph other = Factory.createGraphMem();
+        other.add(triple(3));
+        other.add(triple(1));
+        Assert.assertEquals(InferenceCheckpoint.getFingerprint(graph), InferenceCheckpoint.getFingerprint(other));
+        other.add(triple(5));
+        Assert.assertFalse(InferenceCheckpoint.getFingerprint(graph).equals(InferenceCheckpoint.getFingerprint(other)));
+    }
+
+    @Test(expected = WrappedIOException.class)
+    public void testWriteFailureIsReported() throws Exception
+    {
+        InferenceCheckpoint checkpoint = new InferenceCheckpoint(this.file, "fp");
+        checkpoint.close();
+
+        // Writing the final checkpoint into the closed file fails
+        Model model = ModelFactory.createDefaultModel();
+        SPINInferences.run(model, ModelFactory.createDefaultModel(),
+                new HashMap<Resource,List<CommandWrapper>>(), null,
+                Collections.<CommandWrapper,Map<String,RDFNode>>emptyMap(),
+                null, null, false, SPIN.rule, null, null, null, checkpoint);
+    }
+}
@@ -0,0 +1,122 @@
+/**
+ *
+ */
+package org.topbraid.spin.system;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Tests for {@link PersistentMap}.
+ */
+public class PersistentMapUnitTest
+{
+
+    // A key with a configurable hash code, to produce collisions
+    private static class Key
+    {
+        private final int hash;
+
+        private final int id;
+
+        Key(int id, int hash)
+        {
+            this.id = id;
+            this.hash = hash;
+        }
+
+        @Override
+        public boolean equals(Object obj)
+        {
+            return obj instanceof Key && ((Key)obj).id == this.id;
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return this.hash;
+        }
+    }
+
+    private static <V> void assertEquals(Map<Key,V> expected, PersistentMap<Key,V> actual, List<Key> keys)
+    {
+        Assert.assertEquals(expected.size(), actual.size());
+        Assert.assertEquals(expected.isEmpty(), actual.isEmpty());
+        for(Key key : keys)
+        {
+            Assert.assertEquals(expected.get(key), actual.get(key));
+        }
+        List<V> values = new ArrayList<V>(actual.values());
+        Assert.assertEquals(expected.size(), values.size());
+        Assert.assertEquals(new HashSet<V>(expected.values()), new HashSet<V>(values));
+    }
+
+    @Test
+    public void testRandomUpdates()
+    {
+        Random random = new Random(7);
+        List<Key> keys = new ArrayList<Key>();
+        for(int i = 0; i < 2000; i++)
+        {
+            // Few distinct hash codes for some keys, so that there are collisions
+            int hash = i % 3 == 0 ? random.nextInt(20) : random.nextInt();
+            keys.add(new Key(i, hash));
+        }
+
+        PersistentMap<Key,Integer> map = PersistentMap.empty();
+        Map<Key,Integer> expected = new HashMap<Key,Integer>();
+        PersistentMap<Key,Integer> old = null;
+        Map<Key,Integer> oldExpected = null;
+        for(int round = 0; round < 20000; round++)
+        {
+            Key key = keys.get(random.nextInt(keys.size()));
+            if(random.nextInt(3) == 0)
+            {
+                map = map.remove(key);
+                expected.remove(key);
+            }
+            else
+            {
+                map = map.put(key, round);
+                expected.put(key, round);
+            }
+            if(round == 10000)
+            {
+                old = map;
+                oldExpected = new HashMap<Key,Integer>(expected);
+            }
+        }
+        assertEquals(expected, map, keys);
+
+        // Older versions are not affected by later updates
+        assertEquals(oldExpected, old, keys);
+
+        for(Key key : keys)
+        {
+            map = map.remove(key);
+        }
+        Assert.assertTrue(map.isEmpty());
+        Assert.assertFalse(map.values().iterator().hasNext());
+    }
+
+    @Test
+    public void testUnchangedMapIsShared()
+    {
+        Key key = new Key(1, 1);
+        Integer value = Integer.valueOf(1000);
+        PersistentMap<Key,Integer> map = PersistentMap.<Key,Integer>empty().put(key, value);
+        Assert.assertSame(map, map.put(key, value));
+        Assert.assertSame(map, map.remove(new Key(2, 1)));
+        Assert.assertSame(map, map.remove(new Key(3, 33)));
+        Assert.assertTrue(map.containsKey(key));
+        Assert.assertTrue(map.remove(key).isEmpty());
+        Assert.assertEquals(1, map.size());
+    }
+}
@@ -0,0 +1,159 @@
+/**
+ *
+ */
+package org.topbraid.spin.system;
+
+import java.io.StringReader;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.topbraid.spin.inference.DatasetInferencesException;
+import org.topbraid.spin.inference.SPINDatasetInferences;
+import org.topbraid.spin.vocabulary.SPIN;
+
+import com.hp.hpl.jena.graph.Factory;
+import com.hp.hpl.jena.graph.Node;
+import com.hp.hpl.jena.graph.Triple;
+import com.hp.hpl.jena.graph.TripleMatch;
+import com.hp.hpl.jena.graph.impl.WrappedGraph;
+import com.hp.hpl.jena.ontology.OntModel;
+import com.hp.hpl.jena.query.DataSource;
+import com.hp.hpl.jena.query.DatasetFactory;
+import com.hp.hpl.jena.rdf.model.Model;
+import com.hp.hpl.jena.rdf.model.ModelFactory;
+import com.hp.hpl.jena.shared.JenaException;
+import com.hp.hpl.jena.util.iterator.ExtendedIterator;
+import com.hp.hpl.jena.vocabulary.RDF;
+
+/**
+ * Tests for {@link SPINDatasetInferences}.
+ */
+public class SPINDatasetInferencesUnitTest
+{
+
+    private static final String NS = "http://example.org/test#";
+
+    private static final String OWLRL = "http://topbraid.org/spin/owlrl-all";
+
+    private static final String SUFFIX = "-inferences";
+
+    private OntModel owlrlModel;
+
+    private Set<Object> validFunctionSources;
+
+    /**
+     * @throws java.lang.Exception
+     */
+    @Before
+    public void setUp() throws Exception
+    {
+        SPINModuleRegistry.get().reset();
+        SPINModuleRegistry.get().init();
+        owlrlModel = SpinTestUtils.loadModelFromTestFiles(Arrays.asList("/test/owlrl", "/test/owlrl-all"));
+        SPINModuleRegistry.get().registerAll(owlrlModel, OWLRL);
+        validFunctionSources = Collections.<Object>singleton(OWLRL);
+    }
+
+    /**
+     * @throws java.lang.Exception
+     */
+    @After
+    public void tearDown() throws Exception
+    {
+        SPINModuleRegistry.get().reset();
+        SPINModuleRegistry.get().init();
+    }
+
+    // A small class hierarchy whose names are unique per partition
+    private Model createData(int i)
+    {
+        String data =
+                "@prefix ex: <" + NS + "> .\n" +
+                "@prefix owl: <http://www.w3.org/2002/07/owl#> .\n" +
+                "@prefix rdfs: <http://www.w3.org/2000/01/rdf-schema#> .\n" +
+                "ex:A" + i + " a owl:Class .\n" +
+                "ex:B" + i + " a owl:Class ; rdfs:subClassOf ex:A" + i + " .\n" +
+                "ex:C" + i + " a owl:Class ; rdfs:subClassOf ex:B" + i + " .\n" +
+                "ex:p" + i + " a owl:ObjectProperty ; rdfs:domain ex:B" + i + " .\n" +
+                "ex:x" + i + " a ex:C" + i + " ; ex:p" + i + " ex:y" + i + " .\n" +
+                "ex:z" + i + " ex:p" + i + " ex:x" + i + " .\n";
+        Model model = ModelFactory.createDefaultModel();
+        model.read(new StringReader(data), NS, "TURTLE");
+        return model;
+    }
+
+    @Test
+    public void testRunMatchesSingleThread()
+    {
+        SPINDatasetInferences inferences = new SPINDatasetInferences(owlrlModel, SPIN.rule, validFunctionSources);
+        DataSource dataset = DatasetFactory.create();
+        for(int i = 0; i < 8; i++)
+        {
+            dataset.addNamedModel(NS + "graph" + i, createData(i));
+        }
+
+        Map<String,Model> results = inferences.run(dataset, 4, SUFFIX, null, null);
+
+        Assert.assertEquals(8, results.size());
+        for(int i = 0; i < 8; i++)
+        {
+            String name = NS + "graph" + i;
+            Model expected = inferences.run(createData(i), null, null);
+            Model actual = results.get(name);
+            Assert.assertNotNull(actual);
+            Assert.assertTrue(expected.size() > 0);
+            Assert.assertTrue(expected.isIsomorphicWith(actual));
+            Assert.assertTrue(actual.contains(actual.getResource(NS + "x" + i), RDF.type, actual.getResource(NS + "A" + i)));
+            Assert.assertTrue(actual.contains(actual.getResource(NS + "z" + i), RDF.type, actual.getResource(NS + "B" + i)));
+            Assert.assertTrue(dataset.getNamedModel(name + SUFFIX).isIsomorphicWith(actual));
+        }
+
+        // The inference graphs are not partitions of a second run
+        Assert.assertEquals(8, inferences.run(dataset, 2, SUFFIX, null, null).size());
+    }
+
+    @Test
+    public void testFailedPartition()
+    {
+        SPINDatasetInferences inferences = new SPINDatasetInferences(owlrlModel, SPIN.rule, validFunctionSources);
+        DataSource dataset = DatasetFactory.create();
+        dataset.addNamedModel(NS + "good", createData(1));
+        dataset.addNamedModel(NS + "bad", ModelFactory.createModelForGraph(new WrappedGraph(Factory.createDefaultGraph())
+        {
+            @Override
+            public ExtendedIterator<Triple> find(TripleMatch m)
+            {
+                throw new JenaException("Broken graph");
+            }
+
+            @Override
+            public ExtendedIterator<Triple> find(Node s, Node p, Node o)
+            {
+                throw new JenaException("Broken graph");
+            }
+        }));
+
+        try
+        {
+            inferences.run(dataset, 2, SUFFIX, null, null);
+            Assert.fail("Expected a DatasetInferencesException");
+        }
+        catch(DatasetInferencesException ex)
+        {
+            Assert.assertEquals(Collections.singleton(NS + "bad"), ex.getFailures().keySet());
+            Assert.assertEquals("Broken graph", ex.getFailures().get(NS + "bad").getMessage());
+            Assert.assertEquals(Collections.singleton(NS + "good"), ex.getResults().keySet());
+
+            // The successful partition has still been written back
+            Assert.assertTrue(dataset.containsNamedModel(NS + "good" + SUFFIX));
+            Assert.assertFalse(dataset.containsNamedModel(NS + "bad" + SUFFIX));
+            Assert.assertTrue(dataset.getNamedModel(NS + "good" + SUFFIX).isIsomorphicWith(ex.getResults().get(NS + "good")));
+        }
+    }
+}
@@ -0,0 +1,130 @@
+/**
+ *
+ */
+package org.topbraid.spin.system;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.topbraid.spin.util.FlatUnionGraph;
+import org.topbraid.spin.vocabulary.SPIN;
+
+import com.hp.hpl.jena.graph.Factory;
+import com.hp.hpl.jena.graph.Graph;
+import com.hp.hpl.jena.graph.Node;
+import com.hp.hpl.jena.graph.Triple;
+import com.hp.hpl.jena.graph.compose.MultiUnion;
+import com.hp.hpl.jena.ontology.OntModelSpec;
+import com.hp.hpl.jena.rdf.model.Model;
+import com.hp.hpl.jena.rdf.model.ModelFactory;
+
+/**
+ * Tests the read-only imports of {@link SPINImports}, which are merged
+ * into shared indices of {@link FlatUnionGraph}s.
+ */
+public class SPINImportsUnitTest
+{
+
+    private static final String NS = "http://example.org/test#";
+
+    private static final String IMPORT_URI = "http://example.org/import";
+
+    private Map<String,Graph> graphs;
+
+    private SPINImports imports;
+
+    @Before
+    public void setUp() throws Exception
+    {
+        SPINModuleRegistry.get().init();
+        this.graphs = new HashMap<String,Graph>();
+        Graph graph = Factory.createGraphMem();
+        graph.add(triple("a", "p", "b"));
+        this.graphs.put(IMPORT_URI, graph);
+
+        // Loads the imports from memory
+        this.imports = new SPINImports()
+        {
+            @Override
+            protected Graph getImportedGraph(String uri, OntModelSpec nextOntModelSpec)
+            {
+                return graphs.get(uri);
+            }
+        };
+        this.imports.setReadOnlyImports(true);
+    }
+
+    @After
+    public void tearDown() throws Exception
+    {
+        this.imports.setReadOnlyImports(false);
+    }
+
+    private static Triple triple(String s, String p, String o)
+    {
+        return Triple.create(Node.createURI(NS + s), Node.createURI(NS + p), Node.createURI(NS + o));
+    }
+
+    private Model createModel()
+    {
+        Model model = ModelFactory.createDefaultModel();
+        model.createResource(NS + "ontology").addProperty(SPIN.imports, model.createResource(IMPORT_URI));
+        model.getGraph().add(triple("a", "p", "c"));
+        return model;
+    }
+
+    private FlatUnionGraph getImportsGraph(Model model) throws Exception
+    {
+        Graph graph = this.imports.getImportsModel(model, null, OntModelSpec.OWL_MEM).getGraph();
+        Assert.assertTrue(graph instanceof FlatUnionGraph);
+        return (FlatUnionGraph) graph;
+    }
+
+    @Test
+    public void testSharedIndex() throws Exception
+    {
+        FlatUnionGraph first = getImportsGraph(createModel());
+        FlatUnionGraph second = getImportsGraph(createModel());
+        Assert.assertSame(first.getIndex(), second.getIndex());
+        Assert.assertTrue(second.contains(triple("a", "p", "b")));
+        Assert.assertTrue(second.contains(triple("a", "p", "c")));
+
+        // Changes of a base graph only go into that base graph
+        second.add(triple("d", "p", "d"));
+        Assert.assertFalse(first.contains(triple("d", "p", "d")));
+        Assert.assertSame(first.getIndex(), getImportsGraph(createModel()).getIndex());
+    }
+
+    @Test
+    public void testChangedImport() throws Exception
+    {
+        FlatUnionGraph first = getImportsGraph(createModel());
+
+        // Adding a triple to an import drops the cached index
+        this.graphs.get(IMPORT_URI).add(triple("b", "p", "c"));
+        FlatUnionGraph second = getImportsGraph(createModel());
+        Assert.assertNotSame(first.getIndex(), second.getIndex());
+        Assert.assertTrue(second.contains(triple("b", "p", "c")));
+
+        // ... and so does deleting one
+        this.graphs.get(IMPORT_URI).delete(triple("a", "p", "b"));
+        FlatUnionGraph third = getImportsGraph(createModel());
+        Assert.assertNotSame(second.getIndex(), third.getIndex());
+        Assert.assertFalse(third.contains(triple("a", "p", "b")));
+        Assert.assertSame(third.getIndex(), getImportsGraph(createModel()).getIndex());
+    }
+
+    @Test
+    public void testNotReadOnly() throws Exception
+    {
+        this.imports.setReadOnlyImports(false);
+        Graph graph = this.imports.getImportsModel(createModel(), null, OntModelSpec.OWL_MEM).getGraph();
+        Assert.assertTrue(graph instanceof MultiUnion);
+        Assert.assertFalse(graph instanceof FlatUnionGraph);
+        Assert.assertTrue(graph.contains(triple("a", "p", "b")));
+    }
+}
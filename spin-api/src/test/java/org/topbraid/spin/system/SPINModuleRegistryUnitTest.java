@@ -7,6 +7,7 @@ import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
 
 import org.junit.After;
@@ -14,7 +15,16 @@ import org.junit.Assert;
 import org.junit.Before;
 import org.junit.Ignore;
 import org.junit.Test;
+import org.topbraid.spin.arq.LazySPINFunctionFactory;
+import org.topbraid.spin.arq.SPINARQPFunction;
+import org.topbraid.spin.arq.SPINFunctionFactory;
 import org.topbraid.spin.model.Function;
+import org.topbraid.spin.vocabulary.SPL;
+
+import com.hp.hpl.jena.rdf.model.ModelFactory;
+import com.hp.hpl.jena.sparql.function.FunctionFactory;
+import com.hp.hpl.jena.sparql.function.FunctionRegistry;
+import com.hp.hpl.jena.sparql.pfunction.PropertyFunctionRegistry;
 
 
 /**
@@ -24,6 +34,8 @@ import org.topbraid.spin.model.Function;
  */
 public class SPINModuleRegistryUnitTest
 {
+    private static final String MAGIC_PROPERTY = SPL.NS + "relevantPropertyAtClass";
+
     private SPINModuleRegistry testRegistry = SPINModuleRegistry.get();
     
     private Collection<String> testFiles1;
@@ -478,6 +490,10 @@ public class SPINModuleRegistryUnitTest
         this.testRegistry.init();
         
         Assert.assertTrue(this.testRegistry.getFunctions().size() > 0);
+        
+        // the ARQ stubs are installed once the functions have been published
+        Assert.assertNotNull(this.testRegistry.getFunction(SPL.objectCount.getURI(), null));
+        Assert.assertNotNull(FunctionRegistry.get().get(SPL.objectCount.getURI()));
     }
     
     /**
@@ -613,4 +629,92 @@ public class SPINModuleRegistryUnitTest
         
         Assert.assertNotSame(tempRegistry, SPINModuleRegistry.get());
     }
+    
+    /**
+     * Test method for {@link org.topbraid.spin.system.SPINModuleRegistry#setLazyFunctions(boolean)}.
+     */
+    @Test
+    public void testLazyFunctions()
+    {
+        this.testRegistry.reset();
+        this.testRegistry.setLazyFunctions(true);
+        try
+        {
+            this.testRegistry.registerAll(SpinTestUtils.loadModelFromTestFiles(this.testFiles2), this.testFiles2);
+            
+            String uri = SPL.objectCount.getURI();
+            FunctionFactory stub = FunctionRegistry.get().get(uri);
+            Assert.assertTrue(stub instanceof LazySPINFunctionFactory);
+            Assert.assertFalse(((LazySPINFunctionFactory)stub).isCompiled());
+            
+            Assert.assertNotNull(stub.create(uri));
+            
+            // The compiled function must have replaced the stub
+            FunctionFactory compiled = FunctionRegistry.get().get(uri);
+            Assert.assertTrue(compiled instanceof SPINFunctionFactory);
+            Assert.assertFalse(compiled instanceof LazySPINFunctionFactory);
+        }
+        finally
+        {
+            this.testRegistry.setLazyFunctions(false);
+        }
+    }
+
+    /**
+     * Test method for {@link org.topbraid.spin.system.SPINModuleRegistry#reloadAll(com.hp.hpl.jena.rdf.model.Model, java.lang.Object)}.
+     */
+    @Test
+    public void testReloadAll()
+    {
+        this.testRegistry.reset();
+        this.testRegistry.registerAll(SpinTestUtils.loadModelFromTestFiles(this.testFiles2), this.testFiles2);
+        Collection<Function> functions = this.testRegistry.getFunctionsBySource(this.testFiles2);
+        Assert.assertFalse(functions.isEmpty());
+        Assert.assertTrue(FunctionRegistry.get().get(SPL.objectCount.getURI()) instanceof SPINFunctionFactory);
+        Assert.assertTrue(PropertyFunctionRegistry.get().get(MAGIC_PROPERTY) instanceof SPINARQPFunction);
+        long version = this.testRegistry.getVersion();
+
+        this.testRegistry.reloadAll(ModelFactory.createDefaultModel(), this.testFiles2);
+
+        Assert.assertTrue(this.testRegistry.getVersion() > version);
+        Assert.assertTrue(this.testRegistry.getFunctions().isEmpty());
+        Assert.assertTrue(this.testRegistry.getFunctionsBySource(this.testFiles2).isEmpty());
+        for(Function function : functions)
+        {
+            Assert.assertNull(this.testRegistry.getFunction(function.getURI(), null));
+            Assert.assertNull(this.testRegistry.getSources(function));
+            Assert.assertFalse(FunctionRegistry.get().get(function.getURI()) instanceof SPINFunctionFactory);
+        }
+
+        // ... and so are the stale magic properties
+        Assert.assertFalse(PropertyFunctionRegistry.get().isRegistered(MAGIC_PROPERTY));
+
+        // Reloading the original version restores the functions
+        this.testRegistry.reloadAll(SpinTestUtils.loadModelFromTestFiles(this.testFiles2), this.testFiles2);
+        Assert.assertEquals(functions.size(), this.testRegistry.getFunctionsBySource(this.testFiles2).size());
+        Assert.assertTrue(FunctionRegistry.get().get(SPL.objectCount.getURI()) instanceof SPINFunctionFactory);
+        Assert.assertTrue(PropertyFunctionRegistry.get().get(MAGIC_PROPERTY) instanceof SPINARQPFunction);
+    }
+
+    /**
+     * Registering functions one by one, outside of a batch, publishes each
+     * of them and keeps the earlier ones.
+     */
+    @Test
+    public void testRegisterFunctionsOneByOne()
+    {
+        this.testRegistry.reset();
+        this.testRegistry.registerAll(SpinTestUtils.loadModelFromTestFiles(this.testFiles2), "all");
+        List<Function> functions = new ArrayList<Function>(this.testRegistry.getFunctions());
+        this.testRegistry.reset();
+        for(int i = 0; i < functions.size(); i++)
+        {
+            long version = this.testRegistry.getVersion();
+            this.testRegistry.register(functions.get(i), i % 2 == 0 ? "even" : "odd", false);
+            Assert.assertEquals(version + 1, this.testRegistry.getVersion());
+            Assert.assertEquals(i + 1, this.testRegistry.getFunctions().size());
+        }
+        Assert.assertEquals((functions.size() + 1) / 2, this.testRegistry.getFunctionsBySource("even").size());
+        Assert.assertEquals(functions.size() / 2, this.testRegistry.getFunctionsBySource("odd").size());
+    }
 }
@@ -18,8 +18,12 @@ import org.junit.Ignore;
 import org.junit.Test;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.topbraid.spin.arq.ARQ2SPIN;
+import org.topbraid.spin.arq.ARQFactory;
 import org.topbraid.spin.util.CommandWrapper;
+import org.topbraid.spin.util.QueryWrapper;
 import org.topbraid.spin.util.SPINQueryFinder;
+import org.topbraid.spin.util.SPINUtil;
 import org.topbraid.spin.vocabulary.SPIN;
 
 import com.hp.hpl.jena.graph.Graph;
@@ -217,5 +221,57 @@ public class SPINQueryFinderUnitTest
         
         Assert.assertEquals(0, cls2Constructor.size());
     }
+
+    /**
+     * Checks that the ?TYPE_CLASS clause is only added to rules that mention ?this,
+     * also when the cached ?this check is reused by a second call.
+     */
+    @Test
+    public void testGetClass2QueryMapAddsThisTypeClause()
+    {
+        Model model = ModelFactory.createDefaultModel(ReificationStyle.Minimal);
+        model.setNsPrefix("ex", "http://my.example.org/test/");
+        Resource cls = model.createResource("http://my.example.org/test/Class");
+        Resource withThis;
+        Resource withoutThis;
+        
+        // ?this needs to be spin:_this, as in the SPIN libraries
+        SPINPreferences preferences = SPINPreferences.get();
+        SPINPreferences.set(new SPINPreferences()
+        {
+            @Override
+            public boolean isCreateURIVariables()
+            {
+                return true;
+            }
+        });
+        try
+        {
+            ARQ2SPIN arq2spin = new ARQ2SPIN(model);
+            arq2spin.setVarNamespace(SPIN.NS);
+            withThis = arq2spin.createQuery(ARQFactory.get().createQuery(model, "CONSTRUCT { ?this ex:p ?x } WHERE { ?this ex:q ?x }"), null);
+            withoutThis = arq2spin.createQuery(ARQFactory.get().createQuery(model, "CONSTRUCT { ?y ex:p ?x } WHERE { ?y ex:q ?x }"), null);
+        }
+        finally
+        {
+            SPINPreferences.set(preferences);
+        }
+        model.add(cls, SPIN.rule, withThis);
+        model.add(cls, SPIN.rule, withoutThis);
+        
+        for(int i = 0; i < 2; i++)
+        {
+            Map<Resource,List<CommandWrapper>> cls2Query = SPINQueryFinder.getClass2QueryMap(model, model, SPIN.rule, true, new HashMap<CommandWrapper,Map<String,RDFNode>>(), false, null);
+            
+            Assert.assertEquals(2, cls2Query.get(cls).size());
+            
+            for(CommandWrapper wrapper : cls2Query.get(cls))
+            {
+                String text = ((QueryWrapper)wrapper).getQuery().toString();
+                boolean mentionsThis = wrapper.getSPINCommand().equals(withThis);
+                Assert.assertEquals(mentionsThis, text.contains(SPINUtil.TYPE_CLASS_VAR_NAME));
+            }
+        }
+    }
     
 }
@@ -0,0 +1,138 @@
+/**
+ *
+ */
+package org.topbraid.spin.system;
+
+import java.io.StringReader;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.topbraid.spin.inference.DefaultSPINRuleComparator;
+import org.topbraid.spin.inference.SPINInferences;
+import org.topbraid.spin.inference.SPINRuleNetwork;
+import org.topbraid.spin.util.CommandWrapper;
+import org.topbraid.spin.util.SPINQueryFinder;
+import org.topbraid.spin.vocabulary.SPIN;
+
+import com.hp.hpl.jena.graph.Graph;
+import com.hp.hpl.jena.graph.compose.MultiUnion;
+import com.hp.hpl.jena.ontology.OntModel;
+import com.hp.hpl.jena.ontology.OntModelSpec;
+import com.hp.hpl.jena.rdf.model.Model;
+import com.hp.hpl.jena.rdf.model.ModelFactory;
+import com.hp.hpl.jena.rdf.model.RDFNode;
+import com.hp.hpl.jena.rdf.model.Resource;
+import com.hp.hpl.jena.vocabulary.RDF;
+import com.hp.hpl.jena.vocabulary.RDFS;
+
+/**
+ * Compares the inferences of {@link SPINRuleNetwork} with those of
+ * {@link SPINInferences} on the OWL RL rules.
+ */
+public class SPINRuleNetworkUnitTest
+{
+
+    private static final String NS = "http://example.org/test#";
+
+    private static final String OWLRL = "http://topbraid.org/spin/owlrl-all";
+
+    private static final String DATA =
+            "@prefix ex: <" + NS + "> .\n" +
+            "@prefix owl: <http://www.w3.org/2002/07/owl#> .\n" +
+            "@prefix rdfs: <http://www.w3.org/2000/01/rdf-schema#> .\n" +
+            "ex:A a owl:Class .\n" +
+            "ex:B a owl:Class .\n" +
+            "ex:C a owl:Class ; owl:intersectionOf ( ex:A ex:B ) .\n" +
+            "ex:D a owl:Class ; rdfs:subClassOf ex:A .\n" +
+            "ex:p a owl:ObjectProperty ; rdfs:domain ex:B .\n" +
+            "ex:x a ex:D ; ex:p ex:y .\n" +
+            "ex:w a ex:C .\n";
+
+    private OntModel owlrlModel;
+
+    private Set<Object> validFunctionSources;
+
+    /**
+     * @throws java.lang.Exception
+     */
+    @Before
+    public void setUp() throws Exception
+    {
+        SPINModuleRegistry.get().reset();
+        SPINModuleRegistry.get().init();
+        owlrlModel = SpinTestUtils.loadModelFromTestFiles(Arrays.asList("/test/owlrl", "/test/owlrl-all"));
+        SPINModuleRegistry.get().registerAll(owlrlModel, OWLRL);
+        validFunctionSources = Collections.<Object>singleton(OWLRL);
+    }
+
+    /**
+     * @throws java.lang.Exception
+     */
+    @After
+    public void tearDown() throws Exception
+    {
+        SPINModuleRegistry.get().reset();
+        SPINModuleRegistry.get().init();
+    }
+
+    private Model infer(boolean network)
+    {
+        Model data = ModelFactory.createDefaultModel();
+        data.read(new StringReader(DATA), NS, "TURTLE");
+        OntModel queryModel = ModelFactory.createOntologyModel(OntModelSpec.OWL_MEM, data);
+        Model newTriples = ModelFactory.createDefaultModel();
+        queryModel.addSubModel(newTriples);
+        Model unionModel = ModelFactory.createModelForGraph(new MultiUnion(new Graph[] {
+            queryModel.getGraph(),
+            owlrlModel.getGraph()
+        }));
+
+        Map<CommandWrapper, Map<String,RDFNode>> bindings = new HashMap<CommandWrapper, Map<String,RDFNode>>();
+        Map<Resource,List<CommandWrapper>> cls2Query = SPINQueryFinder.getClass2QueryMap(unionModel, queryModel, SPIN.rule, true, bindings, false, validFunctionSources);
+        Map<Resource,List<CommandWrapper>> cls2Constructor = SPINQueryFinder.getClass2QueryMap(queryModel, queryModel, SPIN.constructor, true, bindings, false, validFunctionSources);
+        Assert.assertFalse(cls2Query.isEmpty());
+        if(network)
+        {
+            SPINRuleNetwork.run(queryModel, newTriples, cls2Query, cls2Constructor, bindings, null, null, SPIN.rule, new DefaultSPINRuleComparator(queryModel), null, validFunctionSources);
+        }
+        else
+        {
+            SPINInferences.run(queryModel, newTriples, cls2Query, cls2Constructor, bindings, null, null, false, SPIN.rule, new DefaultSPINRuleComparator(queryModel), null, validFunctionSources);
+        }
+        return newTriples;
+    }
+
+    /**
+     * Test method for {@link org.topbraid.spin.inference.SPINRuleNetwork#run(com.hp.hpl.jena.rdf.model.Model, com.hp.hpl.jena.rdf.model.Model, java.util.Map, java.util.Map, java.util.Map, org.topbraid.spin.inference.SPINExplanations, java.util.List, com.hp.hpl.jena.rdf.model.Property, org.topbraid.spin.inference.SPINRuleComparator, org.topbraid.base.progress.ProgressMonitor, java.util.Set)}.
+     *
+     * The intersection rules (such as scm-int and cls-int2) use list:member
+     * and must fall back to query execution instead of being dropped.
+     */
+    @Test
+    public void testRunMatchesSPINInferences()
+    {
+        Model expected = infer(false);
+        Model actual = infer(true);
+
+        Resource a = expected.getResource(NS + "A");
+        Resource b = expected.getResource(NS + "B");
+        Resource c = expected.getResource(NS + "C");
+        Resource w = expected.getResource(NS + "w");
+        Assert.assertTrue(expected.contains(c, RDFS.subClassOf, a));
+        Assert.assertTrue(expected.contains(c, RDFS.subClassOf, b));
+        Assert.assertTrue(expected.contains(w, RDF.type, a));
+        Assert.assertTrue(expected.contains(w, RDF.type, b));
+        Assert.assertTrue(expected.contains(expected.getResource(NS + "x"), RDF.type, b));
+
+        Assert.assertEquals(expected.size(), actual.size());
+        Assert.assertTrue(expected.isIsomorphicWith(actual));
+    }
+}
@@ -0,0 +1,113 @@
+/**
+ *
+ */
+package org.topbraid.spin.system;
+
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.topbraid.spin.inference.SPINRuleOptimizer;
+
+import com.hp.hpl.jena.query.Query;
+import com.hp.hpl.jena.query.QueryExecution;
+import com.hp.hpl.jena.query.QueryExecutionFactory;
+import com.hp.hpl.jena.query.QueryFactory;
+import com.hp.hpl.jena.rdf.model.Model;
+import com.hp.hpl.jena.rdf.model.ModelFactory;
+import com.hp.hpl.jena.rdf.model.Property;
+import com.hp.hpl.jena.rdf.model.RDFList;
+import com.hp.hpl.jena.rdf.model.RDFNode;
+import com.hp.hpl.jena.rdf.model.Resource;
+import com.hp.hpl.jena.sparql.core.TriplePath;
+import com.hp.hpl.jena.sparql.syntax.ElementGroup;
+import com.hp.hpl.jena.sparql.syntax.ElementPathBlock;
+
+/**
+ * Tests for {@link SPINRuleOptimizer}.
+ */
+public class SPINRuleOptimizerUnitTest
+{
+
+    private static final String NS = "http://example.org/test#";
+
+    private static final String LIST_MEMBER = "http://jena.hpl.hp.com/ARQ/list#member";
+
+    private Model createModel()
+    {
+        Model model = ModelFactory.createDefaultModel();
+        Property members = model.createProperty(NS + "members");
+        Property label = model.createProperty(NS + "label");
+        for(int i = 0; i < 50; i++)
+        {
+            Resource c = model.createResource(NS + "c" + i);
+            RDFList list = model.createList(new RDFNode[] { model.createResource(NS + "a" + i), model.createResource(NS + "b" + i) });
+            c.addProperty(members, list);
+            for(int j = 0; j < 20; j++)
+            {
+                c.addProperty(label, "label " + j);
+            }
+        }
+        return model;
+    }
+
+    private Model construct(Query query, Model model)
+    {
+        QueryExecution qexec = QueryExecutionFactory.create(query, model);
+        try
+        {
+            return qexec.execConstruct();
+        }
+        finally
+        {
+            qexec.close();
+        }
+    }
+
+    /**
+     * Test method for {@link org.topbraid.spin.inference.SPINRuleOptimizer#optimize(com.hp.hpl.jena.query.Query, com.hp.hpl.jena.graph.Graph, java.util.Set)}.
+     *
+     * A list:member pattern has no statistics and must not be moved ahead of
+     * the patterns before it, such as the one that binds its subject.
+     */
+    @Test
+    public void testOptimizeKeepsPropertyFunctionsAfterTheirArguments()
+    {
+        Model model = createModel();
+        Query query = QueryFactory.create(
+                "CONSTRUCT { ?c <" + NS + "member> ?m } " +
+                "WHERE { ?c <" + NS + "label> ?label . ?c <" + NS + "members> ?l . ?l <" + LIST_MEMBER + "> ?m . }");
+
+        Query optimized = new SPINRuleOptimizer().optimize(query, model.getGraph(), Collections.<String>emptySet());
+
+        ElementPathBlock block = (ElementPathBlock)((ElementGroup)optimized.getQueryPattern()).getElements().get(0);
+        List<TriplePath> paths = block.getPattern().getList();
+        Assert.assertEquals(3, paths.size());
+        Assert.assertEquals(NS + "members", paths.get(0).getPredicate().getURI());
+        Assert.assertEquals(NS + "label", paths.get(1).getPredicate().getURI());
+        Assert.assertEquals(LIST_MEMBER, paths.get(2).getPredicate().getURI());
+
+        Model expected = construct(query, model);
+        Assert.assertEquals(100, expected.size());
+        Assert.assertTrue(expected.isIsomorphicWith(construct(optimized, model)));
+    }
+
+    /**
+     * Test method for {@link org.topbraid.spin.inference.SPINRuleOptimizer#optimize(com.hp.hpl.jena.query.Query, com.hp.hpl.jena.graph.Graph, java.util.Set)}.
+     */
+    @Test
+    public void testOptimizeOrdersBySelectivity()
+    {
+        Model model = createModel();
+        Query query = QueryFactory.create(
+                "CONSTRUCT { ?c <" + NS + "hasLabel> ?label } " +
+                "WHERE { ?c <" + NS + "label> ?label . ?c <" + NS + "members> ?l . }");
+
+        Query optimized = new SPINRuleOptimizer().optimize(query, model.getGraph(), Collections.<String>emptySet());
+
+        ElementPathBlock block = (ElementPathBlock)((ElementGroup)optimized.getQueryPattern()).getElements().get(0);
+        Assert.assertEquals(NS + "members", block.getPattern().get(0).getPredicate().getURI());
+        Assert.assertTrue(construct(query, model).isIsomorphicWith(construct(optimized, model)));
+    }
+}
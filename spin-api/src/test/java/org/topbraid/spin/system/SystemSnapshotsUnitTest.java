@@ -0,0 +1,34 @@
+/**
+ *
+ */
+package org.topbraid.spin.system;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.hp.hpl.jena.rdf.model.Model;
+import com.hp.hpl.jena.rdf.model.ModelFactory;
+
+/**
+ * Tests the fallback of {@link SystemSnapshots} for missing and invalid snapshots.
+ */
+public class SystemSnapshotsUnitTest
+{
+
+    @Test
+    public void testMissingSnapshot()
+    {
+        Model model = ModelFactory.createDefaultModel();
+        Assert.assertFalse(SystemSnapshots.load("missing", model));
+        Assert.assertTrue(model.isEmpty());
+    }
+
+    @Test
+    public void testInvalidPrefix()
+    {
+        // A well-formed snapshot whose prefix is rejected by Jena with a RuntimeException
+        Model model = ModelFactory.createDefaultModel();
+        Assert.assertFalse(SystemSnapshots.load("invalid-prefix", model));
+        Assert.assertTrue(model.isEmpty());
+    }
+}
@@ -0,0 +1,232 @@
+/**
+ *
+ */
+package org.topbraid.spin.system;
+
+import java.io.StringReader;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.topbraid.spin.arq.TemplateSpecializer;
+
+import com.hp.hpl.jena.query.DataSource;
+import com.hp.hpl.jena.query.DatasetFactory;
+import com.hp.hpl.jena.query.Query;
+import com.hp.hpl.jena.query.QueryExecution;
+import com.hp.hpl.jena.query.QueryExecutionFactory;
+import com.hp.hpl.jena.query.QueryFactory;
+import com.hp.hpl.jena.query.QuerySolutionMap;
+import com.hp.hpl.jena.query.Syntax;
+import com.hp.hpl.jena.rdf.model.Model;
+import com.hp.hpl.jena.rdf.model.ModelFactory;
+import com.hp.hpl.jena.rdf.model.RDFNode;
+import com.hp.hpl.jena.sparql.syntax.ElementFilter;
+import com.hp.hpl.jena.sparql.syntax.ElementGroup;
+
+/**
+ * Checks that the queries created by {@link TemplateSpecializer} return the
+ * same results as the original queries with initial bindings.
+ */
+public class TemplateSpecializerUnitTest
+{
+
+    private static final String NS = "http://example.org/test#";
+
+    private static final String PREFIXES = "PREFIX ex: <" + NS + ">\n";
+
+    private static final String DATA =
+            "@prefix ex: <" + NS + "> .\n" +
+            "ex:a ex:p ex:b ; ex:q 1 ; ex:label \"a\" .\n" +
+            "ex:b ex:p ex:c ; ex:q 7 .\n" +
+            "ex:c ex:r ex:a ; ex:q 3 ; ex:label \"c\" .\n";
+
+    private static final String NAMED_DATA =
+            "@prefix ex: <" + NS + "> .\n" +
+            "ex:a ex:p ex:named .\n";
+
+    private DataSource dataset;
+
+    private TemplateSpecializer specializer;
+
+    /**
+     * @throws java.lang.Exception
+     */
+    @Before
+    public void setUp() throws Exception
+    {
+        Model model = ModelFactory.createDefaultModel();
+        model.read(new StringReader(DATA), NS, "TURTLE");
+        Model named = ModelFactory.createDefaultModel();
+        named.read(new StringReader(NAMED_DATA), NS, "TURTLE");
+        dataset = DatasetFactory.create(model);
+        dataset.addNamedModel(NS + "graph", named);
+        specializer = new TemplateSpecializer();
+        specializer.setEnabled(true);
+    }
+
+    /**
+     * @throws java.lang.Exception
+     */
+    @After
+    public void tearDown() throws Exception
+    {
+        dataset.close();
+    }
+
+    private Map<String,RDFNode> arguments(String... pairs)
+    {
+        Map<String,RDFNode> arguments = new HashMap<String,RDFNode>();
+        for(int i = 0; i < pairs.length; i += 2)
+        {
+            String value = pairs[i + 1];
+            if(value.startsWith("ex:"))
+            {
+                arguments.put(pairs[i], dataset.getDefaultModel().createResource(NS + value.substring(3)));
+            }
+            else
+            {
+                arguments.put(pairs[i], dataset.getDefaultModel().createTypedLiteral(Integer.valueOf(value)));
+            }
+        }
+        return arguments;
+    }
+
+    private QueryExecution createExecution(Query query, Map<String,RDFNode> arguments)
+    {
+        QuerySolutionMap bindings = new QuerySolutionMap();
+        for(String varName : arguments.keySet())
+        {
+            bindings.add(varName, arguments.get(varName));
+        }
+        return QueryExecutionFactory.create(query, dataset, bindings);
+    }
+
+    private Query assertEquivalent(String queryString, Map<String,RDFNode> arguments)
+    {
+        Query query = QueryFactory.create(PREFIXES + queryString, Syntax.syntaxARQ);
+        Query specialized = specializer.specialize(this, query, arguments);
+        Assert.assertNotSame("Query was not specialized", query, specialized);
+
+        QueryExecution expected = createExecution(query, arguments);
+        QueryExecution actual = createExecution(specialized, arguments);
+        try
+        {
+            if(query.isAskType())
+            {
+                Assert.assertEquals(expected.execAsk(), actual.execAsk());
+            }
+            else
+            {
+                Model expectedModel = expected.execConstruct();
+                Assert.assertFalse(expectedModel.isEmpty());
+                Assert.assertTrue(expectedModel.isIsomorphicWith(actual.execConstruct()));
+            }
+        }
+        finally
+        {
+            expected.close();
+            actual.close();
+        }
+        return specialized;
+    }
+
+    /**
+     * Test method for {@link org.topbraid.spin.arq.TemplateSpecializer#specialize(java.lang.Object, com.hp.hpl.jena.query.Query, java.util.Map)}.
+     */
+    @Test
+    public void testSpecializeOptional()
+    {
+        assertEquivalent(
+                "CONSTRUCT { ?s ex:result ?o . ?s ex:hasLabel ?label } " +
+                "WHERE { ?s ?predicate ?o . OPTIONAL { ?s ex:label ?label } }",
+                arguments("predicate", "ex:p"));
+    }
+
+    /**
+     * Test method for {@link org.topbraid.spin.arq.TemplateSpecializer#specialize(java.lang.Object, com.hp.hpl.jena.query.Query, java.util.Map)}.
+     */
+    @Test
+    public void testSpecializeUnion()
+    {
+        assertEquivalent(
+                "CONSTRUCT { ?s ex:result ?o } " +
+                "WHERE { { ?s ?predicate ?o } UNION { ?o ?predicate ?s } }",
+                arguments("predicate", "ex:r"));
+    }
+
+    /**
+     * Test method for {@link org.topbraid.spin.arq.TemplateSpecializer#specialize(java.lang.Object, com.hp.hpl.jena.query.Query, java.util.Map)}.
+     */
+    @Test
+    public void testSpecializeGraph()
+    {
+        assertEquivalent(
+                "CONSTRUCT { ?s ex:result ?o } " +
+                "WHERE { GRAPH ?graph { ?s ?predicate ?o } }",
+                arguments("graph", "ex:graph", "predicate", "ex:p"));
+    }
+
+    /**
+     * Test method for {@link org.topbraid.spin.arq.TemplateSpecializer#specialize(java.lang.Object, com.hp.hpl.jena.query.Query, java.util.Map)}.
+     */
+    @Test
+    public void testSpecializeBind()
+    {
+        assertEquivalent(
+                "CONSTRUCT { ?s ex:result ?sum } " +
+                "WHERE { ?s ex:q ?value . BIND (?value + ?offset AS ?sum) }",
+                arguments("offset", "10"));
+    }
+
+    /**
+     * Test method for {@link org.topbraid.spin.arq.TemplateSpecializer#specialize(java.lang.Object, com.hp.hpl.jena.query.Query, java.util.Map)}.
+     *
+     * FILTERs that only depend on the arguments are folded away if they are
+     * always true, and kept as constants otherwise.
+     */
+    @Test
+    public void testSpecializeFilterFolding()
+    {
+        Query query = assertEquivalent(
+                "CONSTRUCT { ?s ex:result ?value } " +
+                "WHERE { ?s ex:q ?value . FILTER (?min < 5) . FILTER (?value > ?min || ?min > 100) }",
+                arguments("min", "2"));
+        int filters = 0;
+        for(Object element : ((ElementGroup)query.getQueryPattern()).getElements())
+        {
+            if(element instanceof ElementFilter)
+            {
+                filters++;
+            }
+        }
+        Assert.assertEquals(1, filters);
+
+        assertEquivalent(
+                "ASK WHERE { ?s ex:q ?value . FILTER (?min > 5 && ?value > 0) }",
+                arguments("min", "2"));
+        assertEquivalent(
+                "ASK WHERE { ?s ex:q ?value . FILTER (!(?min > 5) && ?value > ?min) }",
+                arguments("min", "2"));
+    }
+
+    /**
+     * Test method for {@link org.topbraid.spin.arq.TemplateSpecializer#specialize(java.lang.Object, com.hp.hpl.jena.query.Query, java.util.Map)}.
+     */
+    @Test
+    public void testSpecializeCache()
+    {
+        Query query = QueryFactory.create(PREFIXES + "ASK WHERE { ?s ?predicate ?o }");
+        Query first = specializer.specialize(this, query, arguments("predicate", "ex:p"));
+        Assert.assertSame(first, specializer.specialize(this, query, arguments("predicate", "ex:p")));
+        Assert.assertNotSame(first, specializer.specialize(this, query, arguments("predicate", "ex:q")));
+        Assert.assertNotSame(first, specializer.specialize(this, QueryFactory.create(PREFIXES + "ASK WHERE { ?s ?predicate ?o }"), arguments("predicate", "ex:p")));
+
+        specializer.setEnabled(false);
+        Assert.assertSame(query, specializer.specialize(this, query, arguments("predicate", "ex:p")));
+        Assert.assertFalse(TemplateSpecializer.get().isEnabled());
+    }
+}
@@ -0,0 +1,154 @@
+/**
+ *
+ */
+package org.topbraid.spin.util;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.hp.hpl.jena.graph.Factory;
+import com.hp.hpl.jena.graph.Graph;
+import com.hp.hpl.jena.graph.Node;
+import com.hp.hpl.jena.graph.Triple;
+import com.hp.hpl.jena.graph.compose.MultiUnion;
+
+/**
+ * Tests that {@link FlatUnionGraph} answers like a {@link MultiUnion} over
+ * the same graphs.
+ */
+public class FlatUnionGraphUnitTest
+{
+
+    private static final String NS = "http://example.org/test#";
+
+    private Graph base;
+
+    private FlatUnionGraph flat;
+
+    private Graph import1;
+
+    private Graph import2;
+
+    private MultiUnion union;
+
+    private static Node node(String name)
+    {
+        return Node.createURI(NS + name);
+    }
+
+    private static Triple triple(String s, String p, String o)
+    {
+        return Triple.create(node(s), node(p), node(o));
+    }
+
+    @Before
+    public void setUp() throws Exception
+    {
+        // Overlaps between the imports and between the base graph and an import
+        this.base = Factory.createGraphMem();
+        this.base.add(triple("a", "p", "b"));
+        this.base.add(triple("a", "q", "c"));
+        this.import1 = Factory.createGraphMem();
+        this.import1.add(triple("a", "p", "b"));
+        this.import1.add(triple("b", "p", "c"));
+        this.import1.add(triple("c", "r", "a"));
+        this.import2 = Factory.createGraphMem();
+        this.import2.add(triple("b", "p", "c"));
+        this.import2.add(triple("c", "q", "b"));
+
+        List<Graph> imports = Arrays.asList(this.import1, this.import2);
+        this.flat = new FlatUnionGraph(this.base, imports);
+        this.union = new MultiUnion();
+        this.union.addGraph(this.base);
+        this.union.setBaseGraph(this.base);
+        for(Graph graph : imports)
+        {
+            this.union.addGraph(graph);
+        }
+    }
+
+    private void assertSameFind(Node s, Node p, Node o)
+    {
+        List<Triple> flatTriples = this.flat.find(s, p, o).toList();
+        Set<Triple> expected = new HashSet<Triple>(this.union.find(s, p, o).toList());
+        Assert.assertEquals(expected, new HashSet<Triple>(flatTriples));
+        Assert.assertEquals("Duplicate triples", expected.size(), flatTriples.size());
+    }
+
+    private void assertSameAnswers()
+    {
+        Node[] nodes = { Node.ANY, node("a"), node("b"), node("c"), node("p"), node("q"), node("r") };
+        for(Node s : nodes)
+        {
+            for(Node p : nodes)
+            {
+                for(Node o : nodes)
+                {
+                    assertSameFind(s, p, o);
+                    if(s.isConcrete() && p.isConcrete() && o.isConcrete())
+                    {
+                        Triple t = Triple.create(s, p, o);
+                        Assert.assertEquals(t.toString(), this.union.contains(t), this.flat.contains(t));
+                    }
+                }
+            }
+        }
+        Assert.assertEquals(this.union.size(), this.flat.size());
+    }
+
+    @Test
+    public void testFindAndContains()
+    {
+        assertSameAnswers();
+        Assert.assertEquals(5, this.flat.size());
+    }
+
+    @Test
+    public void testAddToBase()
+    {
+        Graph index = this.flat.getIndex();
+        this.flat.add(triple("d", "p", "a"));
+        this.flat.add(triple("c", "q", "b"));
+        Assert.assertTrue(this.base.contains(triple("d", "p", "a")));
+        Assert.assertFalse(this.import1.contains(triple("d", "p", "a")));
+        Assert.assertSame(index, this.flat.getIndex());
+        assertSameAnswers();
+
+        this.flat.delete(triple("a", "q", "c"));
+        Assert.assertFalse(this.base.contains(triple("a", "q", "c")));
+        assertSameAnswers();
+    }
+
+    @Test
+    public void testChangeSubGraphs()
+    {
+        Graph index = this.flat.getIndex();
+        this.flat.removeGraph(this.import2);
+        this.union.removeGraph(this.import2);
+        Assert.assertNotSame(index, this.flat.getIndex());
+        assertSameAnswers();
+
+        Graph import3 = Factory.createGraphMem();
+        import3.add(triple("d", "r", "d"));
+        this.flat.addGraph(import3);
+        this.union.addGraph(import3);
+        assertSameAnswers();
+        Assert.assertTrue(this.flat.contains(triple("d", "r", "d")));
+    }
+
+    @Test
+    public void testSharedIndex()
+    {
+        Graph index = FlatUnionGraph.createIndex(Arrays.asList(this.import1, this.import2));
+        FlatUnionGraph other = new FlatUnionGraph(Factory.createGraphMem(), Arrays.asList(this.import1, this.import2), index);
+        Assert.assertSame(index, other.getIndex());
+        Assert.assertEquals(4, other.size());
+        Assert.assertTrue(other.contains(triple("c", "q", "b")));
+    }
+}
@@ -0,0 +1,135 @@
+/**
+ *
+ */
+package org.topbraid.spin.util;
+
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.hp.hpl.jena.graph.Factory;
+import com.hp.hpl.jena.graph.Graph;
+import com.hp.hpl.jena.graph.Node;
+import com.hp.hpl.jena.graph.Triple;
+import com.hp.hpl.jena.query.Query;
+import com.hp.hpl.jena.query.QueryFactory;
+import com.hp.hpl.jena.query.QuerySolutionMap;
+import com.hp.hpl.jena.rdf.model.ResourceFactory;
+import com.hp.hpl.jena.vocabulary.RDF;
+
+/**
+ * Tests the keys, hits and invalidation of {@link QueryResultCache}.
+ */
+public class QueryResultCacheUnitTest
+{
+
+    private static final String NS = "http://example.org/test#";
+
+    private static final String PREFIX = "PREFIX ex: <" + NS + ">\n";
+
+    private QueryResultCache cache;
+
+    private Graph graph;
+
+    private static Triple triple(String s, String p, String o)
+    {
+        return Triple.create(Node.createURI(NS + s), Node.createURI(NS + p), Node.createURI(NS + o));
+    }
+
+    @Before
+    public void setUp() throws Exception
+    {
+        this.graph = Factory.createGraphMem();
+        this.graph.add(triple("s", "p", "o"));
+        this.graph.add(triple("s", "x", "o"));
+        this.cache = new QueryResultCache(this.graph);
+    }
+
+    @After
+    public void tearDown() throws Exception
+    {
+        this.cache.close();
+    }
+
+    // Stores a dummy result for the current key of a query and returns the key
+    private String put(Query query, QuerySolutionMap bindings)
+    {
+        String key = this.cache.getKey(query, bindings);
+        Assert.assertNotNull(key);
+        Assert.assertNull(this.cache.get(key));
+        Graph results = Factory.createGraphMem();
+        results.add(triple("s", "q", "o"));
+        this.cache.put(key, results);
+        return key;
+    }
+
+    @Test
+    public void testHit()
+    {
+        Query query = QueryFactory.create(PREFIX + "CONSTRUCT { ?s ex:q ?o } WHERE { ?s ex:p ?o }");
+        String key = put(query, null);
+
+        // Also structurally equal queries share the results
+        Query copy = QueryFactory.create(PREFIX + "CONSTRUCT { ?s ex:q ?o } WHERE { ?s ex:p ?o }");
+        Assert.assertEquals(key, this.cache.getKey(query, null));
+        Assert.assertEquals(key, this.cache.getKey(copy, null));
+        List<Triple> cached = this.cache.get(this.cache.getKey(query, null));
+        Assert.assertNotNull(cached);
+        Assert.assertEquals(1, cached.size());
+        Assert.assertEquals(1, this.cache.getHits());
+        Assert.assertEquals(1, this.cache.getMisses());
+    }
+
+    @Test
+    public void testInvalidation()
+    {
+        Query query = QueryFactory.create(PREFIX + "CONSTRUCT { ?s ex:q ?o } WHERE { ?s ex:p ?o . ?s a ex:C }");
+        String key = put(query, null);
+
+        // Changes of other predicates and classes do not matter
+        this.graph.add(triple("s", "x", "o2"));
+        this.graph.add(Triple.create(Node.createURI(NS + "s"), RDF.type.asNode(), Node.createURI(NS + "D")));
+        Assert.assertEquals(key, this.cache.getKey(query, null));
+
+        // Changes of the predicate invalidate the results
+        this.graph.add(triple("s", "p", "o2"));
+        String newKey = put(query, null);
+        Assert.assertFalse(key.equals(newKey));
+
+        // ... and so do deletions and changes of the class
+        this.graph.delete(triple("s", "p", "o2"));
+        Assert.assertFalse(newKey.equals(this.cache.getKey(query, null)));
+        this.graph.delete(triple("s", "p", "o"));
+        String otherKey = put(query, null);
+        this.graph.add(Triple.create(Node.createURI(NS + "s"), RDF.type.asNode(), Node.createURI(NS + "C")));
+        Assert.assertFalse(otherKey.equals(this.cache.getKey(query, null)));
+    }
+
+    @Test
+    public void testVariablePredicate()
+    {
+        Query query = QueryFactory.create(PREFIX + "CONSTRUCT { ?s ex:q ?o } WHERE { ?s ?predicate ?o }");
+        QuerySolutionMap bindings = new QuerySolutionMap();
+        bindings.add("predicate", ResourceFactory.createProperty(NS + "p"));
+        String boundKey = put(query, bindings);
+        String unboundKey = put(query, null);
+
+        // With a binding, only the bound predicate matters
+        this.graph.add(triple("s", "x", "o2"));
+        Assert.assertEquals(boundKey, this.cache.getKey(query, bindings));
+        Assert.assertFalse(unboundKey.equals(this.cache.getKey(query, null)));
+        this.graph.add(triple("s", "p", "o2"));
+        Assert.assertFalse(boundKey.equals(this.cache.getKey(query, bindings)));
+    }
+
+    @Test
+    public void testNotCacheable()
+    {
+        Query query = QueryFactory.create(PREFIX + "CONSTRUCT { ?s ex:q ?o } WHERE { GRAPH ?g { ?s ex:p ?o } }");
+        Assert.assertNull(this.cache.getKey(query, null));
+        Assert.assertNull(this.cache.getKey(query, null));
+    }
+}
@@ -0,0 +1,77 @@
+/**
+ *
+ */
+package org.topbraid.spin.util;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.topbraid.spin.arq.ARQ2SPIN;
+import org.topbraid.spin.arq.ARQFactory;
+import org.topbraid.spin.model.Query;
+import org.topbraid.spin.system.SPINModuleRegistry;
+
+import com.hp.hpl.jena.rdf.model.Model;
+import com.hp.hpl.jena.rdf.model.ModelFactory;
+import com.hp.hpl.jena.shared.ReificationStyle;
+
+/**
+ * Tests {@link SPINStructuralHash} and its use as a structural cache key
+ * in {@link ARQFactory}.
+ */
+public class SPINStructuralHashUnitTest
+{
+
+    private static final String COUNT = "SELECT (COUNT(?x) AS ?c) WHERE { ?s ?p ?x }";
+
+    private static final String SUM = "SELECT (SUM(?x) AS ?c) WHERE { ?s ?p ?x }";
+
+    @Before
+    public void setUp() throws Exception
+    {
+        SPINModuleRegistry.get().init();
+        ARQFactory.get().clearCaches();
+    }
+
+    @After
+    public void tearDown() throws Exception
+    {
+        ARQFactory.get().setUseStructuralKeys(false);
+        ARQFactory.get().clearCaches();
+    }
+
+    private static Query parse(String text)
+    {
+        Model model = ModelFactory.createDefaultModel(ReificationStyle.Minimal);
+        return new ARQ2SPIN(model).createQuery(ARQFactory.get().createQuery(model, text), null);
+    }
+
+    @Test
+    public void testEqualStructures()
+    {
+        String query = "SELECT ?s WHERE { ?s ?p ?x . FILTER (?x > 1) }";
+        Assert.assertEquals(SPINStructuralHash.get(parse(query)), SPINStructuralHash.get(parse(query)));
+        Assert.assertFalse(SPINStructuralHash.get(parse(query)).equals(SPINStructuralHash.get(parse("SELECT ?s WHERE { ?s ?p ?x . FILTER (?x > 2) }"))));
+        Assert.assertFalse(SPINStructuralHash.get(parse(query)).equals(SPINStructuralHash.get(parse("SELECT ?s WHERE { ?s ?p ?y . FILTER (?y > 1) }"))));
+    }
+
+    @Test
+    public void testProjectedExpressions()
+    {
+        Assert.assertFalse(SPINStructuralHash.get(parse(COUNT)).equals(SPINStructuralHash.get(parse(SUM))));
+        Assert.assertFalse(SPINStructuralHash.get(parse("SELECT ((?x + 1) AS ?c) WHERE { ?s ?p ?x }")).equals(
+                SPINStructuralHash.get(parse("SELECT ((?x + 2) AS ?c) WHERE { ?s ?p ?x }"))));
+    }
+
+    @Test
+    public void testStructuralKeys()
+    {
+        ARQFactory.get().setUseStructuralKeys(true);
+        String count = ARQFactory.get().createCommandString(parse(COUNT));
+        String sum = ARQFactory.get().createCommandString(parse(SUM));
+        Assert.assertTrue(count, count.toUpperCase().contains("COUNT"));
+        Assert.assertTrue(sum, sum.toUpperCase().contains("SUM"));
+        Assert.assertEquals(count, ARQFactory.get().createCommandString(parse(COUNT)));
+    }
+}
@@ -0,0 +1,132 @@
+/**
+ *
+ */
+package org.topbraid.spin.util;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.hp.hpl.jena.graph.Factory;
+import com.hp.hpl.jena.graph.Graph;
+import com.hp.hpl.jena.graph.Node;
+import com.hp.hpl.jena.graph.Triple;
+import com.hp.hpl.jena.graph.compose.MultiUnion;
+import com.hp.hpl.jena.rdf.model.Model;
+import com.hp.hpl.jena.rdf.model.ModelFactory;
+import com.hp.hpl.jena.rdf.model.Resource;
+import com.hp.hpl.jena.vocabulary.RDF;
+import com.hp.hpl.jena.vocabulary.RDFS;
+
+/**
+ * Tests the instance counts of {@link TypeIndex} and the caching of
+ * hasInstances across Models with different class hierarchies.
+ */
+public class TypeIndexUnitTest
+{
+
+    private static final String NS = "http://example.org/test#";
+
+    private static final Node INSTANCE = Node.createURI(NS + "i");
+
+    private static final Node SUB = Node.createURI(NS + "Sub");
+
+    private static final Node SUPER = Node.createURI(NS + "Super");
+
+    private Graph data;
+
+    private TypeIndex index;
+
+    @Before
+    public void setUp() throws Exception
+    {
+        this.data = Factory.createGraphMem();
+        this.data.add(Triple.create(INSTANCE, RDF.type.asNode(), SUB));
+        this.index = new TypeIndex(this.data);
+    }
+
+    @After
+    public void tearDown() throws Exception
+    {
+        this.index.close();
+    }
+
+    // A Model on the data whose changes go into a separate schema Graph
+    private Model createModel(Graph schema)
+    {
+        MultiUnion union = new MultiUnion(new Graph[] { schema, this.data });
+        union.setBaseGraph(schema);
+        return ModelFactory.createModelForGraph(union);
+    }
+
+    private static Graph createSchema()
+    {
+        Graph schema = Factory.createGraphMem();
+        schema.add(Triple.create(SUB, RDFS.subClassOf.asNode(), SUPER));
+        return schema;
+    }
+
+    @Test
+    public void testInstanceCount()
+    {
+        Assert.assertEquals(1, this.index.getInstanceCount(SUB));
+        Assert.assertEquals(0, this.index.getInstanceCount(SUPER));
+
+        // Adding an existing triple is counted again, so the count is an upper bound
+        this.data.add(Triple.create(INSTANCE, RDF.type.asNode(), SUB));
+        this.data.delete(Triple.create(INSTANCE, RDF.type.asNode(), SUB));
+        Assert.assertEquals(1, this.index.getInstanceCount(SUB));
+
+        // ... but the class is counted again when it drops to zero
+        this.data.delete(Triple.create(INSTANCE, RDF.type.asNode(), SUB));
+        Assert.assertEquals(0, this.index.getInstanceCount(SUB));
+        this.data.add(Triple.create(INSTANCE, RDF.type.asNode(), SUB));
+        this.data.delete(Triple.create(INSTANCE, RDF.type.asNode(), SUB));
+        Assert.assertEquals(0, this.index.getInstanceCount(SUB));
+    }
+
+    @Test
+    public void testHasInstancesPerModel()
+    {
+        Model withSchema = createModel(createSchema());
+        Model withoutSchema = createModel(Factory.createGraphMem());
+
+        Resource superInSchema = withSchema.getResource(SUPER.getURI());
+        Resource superWithoutSchema = withoutSchema.getResource(SUPER.getURI());
+        for(int i = 0; i < 2; i++)
+        {
+            Assert.assertTrue(this.index.hasInstances(superInSchema));
+            Assert.assertFalse(this.index.hasInstances(superWithoutSchema));
+        }
+    }
+
+    @Test
+    public void testHasInstancesAfterSchemaChange()
+    {
+        Model model = createModel(Factory.createGraphMem());
+        Resource superClass = model.getResource(SUPER.getURI());
+        Assert.assertFalse(this.index.hasInstances(superClass));
+
+        // The new subclass triple only goes into the (unobserved) schema Graph
+        model.add(model.getResource(SUB.getURI()), RDFS.subClassOf, superClass);
+        Assert.assertTrue(this.index.hasInstances(superClass));
+
+        model.remove(model.getResource(SUB.getURI()), RDFS.subClassOf, superClass);
+        Assert.assertFalse(this.index.hasInstances(superClass));
+    }
+
+    @Test
+    public void testHasInstancesAfterInstanceChange()
+    {
+        Model model = createModel(createSchema());
+        Resource superClass = model.getResource(SUPER.getURI());
+        Assert.assertTrue(this.index.hasInstances(superClass));
+
+        this.data.delete(Triple.create(INSTANCE, RDF.type.asNode(), SUB));
+        Assert.assertFalse(this.index.hasInstances(superClass));
+
+        this.data.add(Triple.create(INSTANCE, RDF.type.asNode(), SUPER));
+        Assert.assertTrue(this.index.hasInstances(superClass));
+    }
+}
@@ -0,0 +1,202 @@
+/**
+ *
+ */
+package org.topbraid.spin.util;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.hp.hpl.jena.graph.Factory;
+import com.hp.hpl.jena.graph.Graph;
+import com.hp.hpl.jena.graph.Node;
+import com.hp.hpl.jena.graph.Triple;
+import com.hp.hpl.jena.shared.AddDeniedException;
+
+/**
+ * Tests for {@link VersionedGraph}.
+ */
+public class VersionedGraphUnitTest
+{
+
+    private static final String NS = "http://example.org/test#";
+
+    private static Triple triple(int i)
+    {
+        return Triple.create(Node.createURI(NS + "s" + (i % 7)), Node.createURI(NS + "p"), Node.createURI(NS + "o" + i));
+    }
+
+    private static Set<Triple> toSet(Graph graph)
+    {
+        return new HashSet<Triple>(graph.find(Node.ANY, Node.ANY, Node.ANY).toList());
+    }
+
+    private static void assertState(Set<Triple> expected, Graph graph)
+    {
+        Assert.assertEquals(expected, toSet(graph));
+        Assert.assertEquals(expected.size(), graph.size());
+        for(int i = 0; i < 50; i++)
+        {
+            Assert.assertEquals(expected.contains(triple(i)), graph.contains(triple(i)));
+        }
+        Node subject = Node.createURI(NS + "s3");
+        Set<Triple> bySubject = new HashSet<Triple>();
+        for(Triple t : expected)
+        {
+            if(subject.equals(t.getSubject()))
+            {
+                bySubject.add(t);
+            }
+        }
+        Assert.assertEquals(bySubject, new HashSet<Triple>(graph.find(subject, Node.ANY, Node.ANY).toList()));
+    }
+
+    @Test
+    public void testIsolation()
+    {
+        Graph base = Factory.createGraphMem();
+        base.add(triple(1));
+        base.add(triple(2));
+        VersionedGraph graph = new VersionedGraph(base);
+
+        VersionedGraph.Snapshot snapshot = graph.snapshot();
+        Set<Triple> expected = toSet(graph);
+        graph.add(triple(3));
+        graph.delete(triple(1));
+        graph.delete(triple(3));
+        graph.add(triple(4));
+        graph.add(triple(1));
+        graph.delete(triple(2));
+
+        assertState(expected, snapshot);
+        Assert.assertEquals(2, base.size());
+        Assert.assertTrue(graph.contains(triple(1)));
+        Assert.assertFalse(graph.contains(triple(2)));
+        Assert.assertFalse(graph.contains(triple(3)));
+        Assert.assertTrue(graph.contains(triple(4)));
+        Assert.assertEquals(2, graph.size());
+
+        try
+        {
+            snapshot.add(triple(5));
+            Assert.fail("Snapshots must be read-only");
+        }
+        catch(AddDeniedException ex)
+        {
+        }
+        snapshot.close();
+    }
+
+    @Test
+    public void testMergeAfterLastSnapshot()
+    {
+        Graph base = Factory.createGraphMem();
+        VersionedGraph graph = new VersionedGraph(base);
+        VersionedGraph.Snapshot first = graph.snapshot();
+        graph.add(triple(1));
+        VersionedGraph.Snapshot second = graph.snapshot();
+        graph.add(triple(2));
+        first.close();
+        first.close();
+        graph.add(triple(3));
+        Assert.assertTrue(base.isEmpty());
+        second.close();
+
+        // The first change after the last snapshot merges all layers
+        graph.delete(triple(1));
+        Assert.assertEquals(0, graph.getLayerCount());
+        Set<Triple> expected = new HashSet<Triple>();
+        expected.add(triple(2));
+        expected.add(triple(3));
+        Assert.assertEquals(expected, toSet(base));
+        assertState(expected, graph);
+    }
+
+    @Test
+    public void testOverlappingSnapshots()
+    {
+        Random random = new Random(42);
+        VersionedGraph graph = new VersionedGraph(Factory.createGraphMem());
+        Set<Triple> expected = new HashSet<Triple>();
+        List<VersionedGraph.Snapshot> snapshots = new ArrayList<VersionedGraph.Snapshot>();
+        List<Set<Triple>> snapshotStates = new ArrayList<Set<Triple>>();
+
+        // There is always at least one snapshot open, so the base is never updated
+        snapshots.add(graph.snapshot());
+        snapshotStates.add(new HashSet<Triple>());
+        for(int round = 0; round < 200; round++)
+        {
+            for(int i = 0; i < 10; i++)
+            {
+                Triple t = triple(random.nextInt(50));
+                if(random.nextBoolean())
+                {
+                    graph.add(t);
+                    expected.add(t);
+                }
+                else
+                {
+                    graph.delete(t);
+                    expected.remove(t);
+                }
+            }
+            snapshots.add(graph.snapshot());
+            snapshotStates.add(new HashSet<Triple>(expected));
+            if(snapshots.size() > 3)
+            {
+                snapshots.remove(0).close();
+                snapshotStates.remove(0);
+            }
+            Assert.assertTrue("Too many layers: " + graph.getLayerCount(), graph.getLayerCount() <= 12);
+            assertState(expected, graph);
+            for(int i = 0; i < snapshots.size(); i++)
+            {
+                assertState(snapshotStates.get(i), snapshots.get(i));
+            }
+        }
+        Assert.assertTrue(graph.getBase().isEmpty());
+
+        for(VersionedGraph.Snapshot snapshot : snapshots)
+        {
+            snapshot.close();
+        }
+        graph.add(triple(0));
+        expected.add(triple(0));
+        Assert.assertEquals(expected, toSet(graph.getBase()));
+    }
+
+    @Test
+    public void testReconcile()
+    {
+        VersionedGraph graph = new VersionedGraph(Factory.createGraphMem());
+        graph.add(triple(1));
+        VersionedGraph.Snapshot snapshot = graph.snapshot();
+        Assert.assertTrue(graph.isCurrent(snapshot));
+
+        Graph inferred = Factory.createGraphMem();
+        inferred.add(triple(1));
+        inferred.add(triple(2));
+        inferred.add(triple(3));
+        graph.add(triple(3));
+        Assert.assertFalse(graph.isCurrent(snapshot));
+
+        Assert.assertEquals(1, graph.reconcile(snapshot, inferred));
+        Assert.assertEquals(3, graph.size());
+        Assert.assertEquals(1, snapshot.size());
+        snapshot.close();
+
+        try
+        {
+            new VersionedGraph(Factory.createGraphMem()).reconcile(snapshot, inferred);
+            Assert.fail("Snapshots of other graphs must be rejected");
+        }
+        catch(IllegalArgumentException ex)
+        {
+        }
+    }
+}
@@ -4,22 +4,26 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
 import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Set;
 
-import org.topbraid.spin.constraints.ConstraintViolation;
 import org.topbraid.spin.constraints.SPINConstraints;
 import org.topbraid.spin.statistics.SPINStatistics;
 import org.topbraid.spin.system.SPINModuleRegistry;
+import org.topbraid.spin.util.CommandWrapper;
 import org.topbraid.spin.vocabulary.SPIN;
 
 import com.hp.hpl.jena.ontology.OntModel;
 import com.hp.hpl.jena.ontology.OntModelSpec;
 import com.hp.hpl.jena.rdf.model.Model;
 import com.hp.hpl.jena.rdf.model.ModelFactory;
+import com.hp.hpl.jena.shared.PrefixMapping;
 import com.hp.hpl.jena.shared.ReificationStyle;
+import com.hp.hpl.jena.shared.impl.PrefixMappingImpl;
 import com.hp.hpl.jena.util.FileUtils;
 import com.hp.hpl.jena.vocabulary.RDFS;
 
@@ -35,15 +39,75 @@ public class CheckConstraints {
 	 * @param args 
 	 * 		[0]: the base URI/physical URL of the file
 	 * 		[1]: the (optional) name of a local RDF file contains the base URI
+	 * 		The arguments may be preceded by the options
+	 * 		--fail-fast (stop at the first violation, exit code 1 if there is one) or
+	 * 		--max-violations N (stop after N violations; cannot be combined with --fail-fast) and
+	 * 		--ntriples (write N-Triples instead of Turtle) and
+	 * 		--out-of-core dataFile [--chunk-size N] (check the instances of a large
+	 * 		N-Triples or N-Quads file in subject chunks, with the file above holding
+	 * 		the classes and constraints, see ChunkedConstraintChecker; constraints
+	 * 		that do not mention ?this are reported as warnings on System.err).
+	 * 		The violations are written to System.out as soon as they are found.
 	 */
 	public static void main(String[] args) throws IOException {
+		int exitCode = run(args, System.out);
+		if(exitCode != 0) {
+			System.exit(exitCode);
+		}
+	}
+	
+	
+	/**
+	 * Runs the constraint checker with the arguments of main.
+	 * @param args  the command line arguments, see main
+	 * @param out  the PrintStream to write the violations and messages to
+	 * @return the exit code: 1 if --fail-fast has found a violation,
+	 * 		2 for invalid options and 0 otherwise
+	 */
+	static int run(String[] args, PrintStream out) throws IOException {
 		
 		// Initialize system functions and templates
 		SPINModuleRegistry.get().init();
 		
+		int maxViolations = 0;
+		boolean failFast = false;
+		boolean maxViolationsSet = false;
+		boolean ntriples = false;
+		String dataFileName = null;
+		int chunkSize = ChunkedConstraintChecker.DEFAULT_CHUNK_SIZE;
+		List<String> arguments = new ArrayList<String>();
+		for(int i = 0; i < args.length; i++) {
+			if("--fail-fast".equals(args[i])) {
+				failFast = true;
+				maxViolations = 1;
+			}
+			else if("--max-violations".equals(args[i]) && i + 1 < args.length) {
+				maxViolations = Integer.parseInt(args[++i]);
+				maxViolationsSet = true;
+			}
+			else if("--ntriples".equals(args[i])) {
+				ntriples = true;
+			}
+			else if("--out-of-core".equals(args[i]) && i + 1 < args.length) {
+				dataFileName = args[++i];
+			}
+			else if("--chunk-size".equals(args[i]) && i + 1 < args.length) {
+				chunkSize = Integer.parseInt(args[++i]);
+			}
+			else {
+				arguments.add(args[i]);
+			}
+		}
+		args = arguments.toArray(new String[arguments.size()]);
+		
+		if(failFast && maxViolationsSet) {
+			out.println("ERROR: --fail-fast and --max-violations cannot be combined");
+			return 2;
+		}
+		
 		if(args.length == 0) {
-			System.out.println("Arguments: baseURI [fileName]");
-			System.exit(0);
+			out.println("Arguments: [--fail-fast | --max-violations N] [--ntriples] [--out-of-core dataFile [--chunk-size N]] baseURI [fileName]");
+			return 0;
 		}
 
 		// Load main file
@@ -71,16 +135,37 @@ public class CheckConstraints {
 		
 		validFunctionSources.add(baseURI);
 		
+		// Output results in Turtle or N-Triples while constraint checking is running
+		PrefixMapping prefixes = null;
+		if(!ntriples) {
+			prefixes = new PrefixMappingImpl();
+			prefixes.setNsPrefix(SPIN.PREFIX, SPIN.NS);
+			prefixes.setNsPrefix("rdfs", RDFS.getURI());
+		}
+		ConstraintViolationWriter writer = new ConstraintViolationWriter(out, prefixes, false);
+
 		// Perform constraint checking
-		List<ConstraintViolation> cvs = SPINConstraints.check(ontModel, new LinkedList<SPINStatistics>(), null, OntModelSpec.OWL_MEM, baseURI, validFunctionSources);
+		if(dataFileName != null) {
+			ChunkedConstraintChecker checker = new ChunkedConstraintChecker(ontModel, chunkSize, validFunctionSources);
+			for(CommandWrapper wrapper : checker.getConstraintsWithoutThis()) {
+				String label = wrapper.getLabel() != null ? wrapper.getLabel() : wrapper.getText();
+				System.err.println("WARNING: Constraint without ?this is only checked against the data of each chunk: " + label);
+			}
+			SubjectSortedFile data = new SubjectSortedFile(new File(dataFileName), SubjectSortedFile.DEFAULT_RUN_SIZE);
+			try {
+				checker.check(data, writer, maxViolations);
+			}
+			finally {
+				data.close();
+			}
+		}
+		else {
+			SPINConstraints.check(ontModel, writer, maxViolations, new LinkedList<SPINStatistics>(), null, OntModelSpec.OWL_MEM, baseURI, validFunctionSources);
+		}
 		
-		// Create results model
-		Model results = ModelFactory.createDefaultModel();
-		results.setNsPrefix(SPIN.PREFIX, SPIN.NS);
-		results.setNsPrefix("rdfs", RDFS.getURI());
-		SPINConstraints.addConstraintViolationsRDF(cvs, results, false);
-
-		// Output results in Turtle
-		results.write(System.out, FileUtils.langTurtle);
+		if(failFast && writer.getCount() > 0) {
+			return 1;
+		}
+		return 0;
 	}
 }
@@ -0,0 +1,249 @@
+package org.topbraid.spin.tools;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.topbraid.spin.constraints.ConstraintViolation;
+import org.topbraid.spin.constraints.ConstraintViolationHandler;
+import org.topbraid.spin.constraints.SPINConstraints;
+import org.topbraid.spin.model.compiled.CompiledAnalyses;
+import org.topbraid.spin.util.CommandWrapper;
+import org.topbraid.spin.util.SPINQueryFinder;
+import org.topbraid.spin.vocabulary.SPIN;
+
+import com.hp.hpl.jena.graph.Graph;
+import com.hp.hpl.jena.graph.Node;
+import com.hp.hpl.jena.graph.Triple;
+import com.hp.hpl.jena.graph.TripleMatch;
+import com.hp.hpl.jena.graph.compose.MultiUnion;
+import com.hp.hpl.jena.graph.impl.GraphBase;
+import com.hp.hpl.jena.ontology.OntModelSpec;
+import com.hp.hpl.jena.rdf.model.Model;
+import com.hp.hpl.jena.rdf.model.ModelFactory;
+import com.hp.hpl.jena.rdf.model.RDFNode;
+import com.hp.hpl.jena.rdf.model.Resource;
+import com.hp.hpl.jena.shared.JenaException;
+import com.hp.hpl.jena.shared.ReificationStyle;
+import com.hp.hpl.jena.util.iterator.ExtendedIterator;
+import com.hp.hpl.jena.util.iterator.WrappedIterator;
+
+/**
+ * Checks the spin:constraints of a data file that is too large to be loaded
+ * into memory.  The data is sorted by subject on disk (see SubjectSortedFile)
+ * and then loaded in chunks of complete subjects, so that each chunk contains
+ * all triples (including the rdf:types) of its subjects.  Each subject of a
+ * chunk is checked as a focus node using SPINConstraints.check(Resource, ...),
+ * against the union of the chunk and the resident schema Model that holds the
+ * classes and constraints.
+ *
+ * Constraints that access the triples of other subjects (e.g. by following
+ * an object property) look up those subjects in the sorted file, so that
+ * the memory is bounded by the chunk size and the looked up subjects.  Note
+ * that only patterns with a bound subject can reach beyond the chunk: queries
+ * over all subjects (or over objects) only see the current chunk.  Blank nodes
+ * can only be followed within a chunk.
+ *
+ * Constraints that do not mention ?this (or that are marked spin:thisUnbound)
+ * do not depend on the focus node and would need to see all data at once.
+ * They are still executed for each subject, but only against the data of its
+ * chunk, so their results are incomplete and may be repeated for each subject.
+ * Use getConstraintsWithoutThis to find (and warn about) them, and check such
+ * constraints in memory instead.
+ */
+public class ChunkedConstraintChecker {
+
+	public final static int DEFAULT_CHUNK_SIZE = 100000;
+
+	private int chunkSize;
+
+	private int count;
+
+	private Model schema;
+
+	private Set<Object> validFunctionSources;
+
+
+	/**
+	 * Creates a new ChunkedConstraintChecker.
+	 * @param schema  the Model with the classes and constraints (should include imports)
+	 * @param chunkSize  the (minimum) number of triples per chunk
+	 * @param validFunctionSources  the valid function sources (see SPINModuleRegistry)
+	 */
+	public ChunkedConstraintChecker(Model schema, int chunkSize, Set<Object> validFunctionSources) {
+		if(chunkSize <= 0) {
+			throw new IllegalArgumentException("Chunk size must be positive");
+		}
+		this.schema = schema;
+		this.chunkSize = chunkSize;
+		this.validFunctionSources = validFunctionSources;
+	}
+
+
+	/**
+	 * Gets the constraints of the schema that do not mention ?this or that are
+	 * marked spin:thisUnbound, and that therefore cannot be checked correctly
+	 * in chunks (see class comment).
+	 * @return the constraints (may be empty)
+	 */
+	public List<CommandWrapper> getConstraintsWithoutThis() {
+		List<CommandWrapper> results = new ArrayList<CommandWrapper>();
+		Map<Resource,List<CommandWrapper>> class2Query = SPINQueryFinder.getClass2QueryMap(schema, schema, SPIN.constraint, false, new HashMap<CommandWrapper,Map<String,RDFNode>>(), true, validFunctionSources);
+		for(List<CommandWrapper> wrappers : class2Query.values()) {
+			for(CommandWrapper wrapper : wrappers) {
+				if(wrapper.isThisUnbound() || !CompiledAnalyses.containsThisWithExists(wrapper.getSPINCommand())) {
+					results.add(wrapper);
+				}
+			}
+		}
+		return results;
+	}
+
+
+	/**
+	 * Checks all subjects of a sorted data file and reports the violations to
+	 * a given handler.
+	 * @param data  the sorted data
+	 * @param handler  the ConstraintViolationHandler to report violations to
+	 * @param maxViolations  the maximum number of violations, or 0 for all
+	 * @return the number of reported violations
+	 * @throws IOException
+	 */
+	public int check(SubjectSortedFile data, ConstraintViolationHandler handler, int maxViolations) throws IOException {
+		count = 0;
+		BufferedReader reader = data.openReader();
+		try {
+			StringBuffer chunk = new StringBuffer();
+			int lines = 0;
+			String lastSubject = null;
+			String line = reader.readLine();
+			while(line != null) {
+				String subject = SubjectSortedFile.getSubject(line);
+				if(lines >= chunkSize && !subject.equals(lastSubject)) {
+					if(!checkChunk(chunk.toString(), data, handler, maxViolations)) {
+						return count;
+					}
+					chunk.setLength(0);
+					lines = 0;
+				}
+				chunk.append(line);
+				chunk.append('\n');
+				lines++;
+				lastSubject = subject;
+				line = reader.readLine();
+			}
+			if(lines > 0) {
+				checkChunk(chunk.toString(), data, handler, maxViolations);
+			}
+		}
+		finally {
+			reader.close();
+		}
+		return count;
+	}
+
+
+	// Returns false if checking shall stop
+	private boolean checkChunk(String text, SubjectSortedFile data, ConstraintViolationHandler handler, int maxViolations) {
+		Model chunkModel = ModelFactory.createDefaultModel(ReificationStyle.Minimal);
+		chunkModel.read(new StringReader(text), null, "N-TRIPLE");
+		Set<Node> subjects = new HashSet<Node>();
+		ExtendedIterator<Triple> it = chunkModel.getGraph().find(Node.ANY, Node.ANY, Node.ANY);
+		while(it.hasNext()) {
+			subjects.add(it.next().getSubject());
+		}
+		Graph dataGraph = new ChunkGraph(chunkModel.getGraph(), subjects, data);
+		Model model = ModelFactory.createModelForGraph(new MultiUnion(new Graph[] { dataGraph, schema.getGraph() }));
+		for(Node subject : subjects) {
+			Resource resource = (Resource) model.asRDFNode(subject);
+			List<ConstraintViolation> cvs = SPINConstraints.check(resource, null, null, OntModelSpec.OWL_MEM, null, validFunctionSources);
+			for(ConstraintViolation cv : cvs) {
+				count++;
+				if(!handler.handleConstraintViolation(cv) || (maxViolations > 0 && count >= maxViolations)) {
+					return false;
+				}
+			}
+		}
+		return true;
+	}
+
+
+	/**
+	 * The data Graph of a chunk: patterns with a subject from the chunk (or
+	 * without bound subject) are answered by the chunk, other subjects are
+	 * looked up in the sorted file.
+	 */
+	private static class ChunkGraph extends GraphBase {
+
+		private Graph chunk;
+
+		private SubjectSortedFile data;
+
+		private Map<Node,List<Triple>> lookups = new HashMap<Node,List<Triple>>();
+
+		private Set<Node> subjects;
+
+
+		ChunkGraph(Graph chunk, Set<Node> subjects, SubjectSortedFile data) {
+			this.chunk = chunk;
+			this.data = data;
+			this.subjects = subjects;
+		}
+
+
+		@Override
+		protected ExtendedIterator<Triple> graphBaseFind(TripleMatch m) {
+			Triple pattern = m.asTriple();
+			Node subject = pattern.getSubject();
+			if(subject.isConcrete() && !subjects.contains(subject)) {
+				List<Triple> results = new ArrayList<Triple>();
+				for(Triple triple : lookup(subject)) {
+					if(pattern.matches(triple)) {
+						results.add(triple);
+					}
+				}
+				return WrappedIterator.create(results.iterator());
+			}
+			else {
+				return chunk.find(m);
+			}
+		}
+
+
+		@Override
+		protected int graphBaseSize() {
+			return chunk.size();
+		}
+
+
+		private List<Triple> lookup(Node subject) {
+			List<Triple> triples = lookups.get(subject);
+			if(triples == null) {
+				triples = new ArrayList<Triple>();
+				try {
+					StringBuffer text = new StringBuffer();
+					for(String line : data.getLines(subject)) {
+						text.append(line);
+						text.append('\n');
+					}
+					if(text.length() > 0) {
+						Model model = ModelFactory.createDefaultModel(ReificationStyle.Minimal);
+						model.read(new StringReader(text.toString()), null, "N-TRIPLE");
+						triples.addAll(model.getGraph().find(Node.ANY, Node.ANY, Node.ANY).toList());
+					}
+				}
+				catch(IOException ex) {
+					throw new JenaException(ex);
+				}
+				lookups.put(subject, triples);
+			}
+			return triples;
+		}
+	}
+}
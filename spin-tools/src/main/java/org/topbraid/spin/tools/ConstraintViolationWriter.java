@@ -0,0 +1,142 @@
+package org.topbraid.spin.tools;
+
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.UnsupportedEncodingException;
+import java.util.Map;
+
+import org.topbraid.spin.constraints.ConstraintViolation;
+import org.topbraid.spin.constraints.ConstraintViolationHandler;
+import org.topbraid.spin.constraints.SPINConstraints;
+
+import com.hp.hpl.jena.graph.Node;
+import com.hp.hpl.jena.graph.Triple;
+import com.hp.hpl.jena.rdf.model.Model;
+import com.hp.hpl.jena.rdf.model.ModelFactory;
+import com.hp.hpl.jena.shared.PrefixMapping;
+import com.hp.hpl.jena.sparql.util.FmtUtils;
+import com.hp.hpl.jena.util.iterator.ExtendedIterator;
+
+/**
+ * A ConstraintViolationHandler that writes each violation as RDF (instances
+ * of spin:ConstraintViolation) as soon as it is reported, either as N-Triples
+ * or as Turtle.  Unlike building a results Model and writing it at the end,
+ * this only needs to keep a single violation in memory.
+ *
+ * Blank nodes are written with labels derived from their ids, so that the
+ * same blank node (e.g. a violation root) gets the same label in all
+ * violations.
+ */
+public class ConstraintViolationWriter implements ConstraintViolationHandler {
+
+	private int count;
+
+	private boolean createSource;
+
+	private PrefixMapping prefixes;
+
+	private PrintWriter writer;
+
+
+	/**
+	 * Creates a new ConstraintViolationWriter.
+	 * @param out  the OutputStream to write to (using UTF-8)
+	 * @param prefixes  the prefixes to use for Turtle, or null for N-Triples
+	 * @param createSource  true to also write the spin:violationSource
+	 */
+	public ConstraintViolationWriter(OutputStream out, PrefixMapping prefixes, boolean createSource) {
+		try {
+			this.writer = new PrintWriter(new OutputStreamWriter(out, "UTF-8"));
+		}
+		catch(UnsupportedEncodingException ex) {
+			throw new IllegalStateException(ex);
+		}
+		this.prefixes = prefixes;
+		this.createSource = createSource;
+		if(prefixes != null) {
+			Map<String,String> map = prefixes.getNsPrefixMap();
+			for(String prefix : map.keySet()) {
+				writer.println("@prefix " + prefix + ": <" + map.get(prefix) + "> .");
+			}
+			writer.println();
+			writer.flush();
+		}
+	}
+
+
+	/**
+	 * Gets the number of violations written so far.
+	 * @return the number of violations
+	 */
+	public int getCount() {
+		return count;
+	}
+
+
+	public boolean handleConstraintViolation(ConstraintViolation violation) {
+		Model model = ModelFactory.createDefaultModel();
+		SPINConstraints.addConstraintViolationRDF(violation, model, createSource);
+		ExtendedIterator<Triple> it = model.getGraph().find(Node.ANY, Node.ANY, Node.ANY);
+		try {
+			while(it.hasNext()) {
+				Triple triple = it.next();
+				writer.print(toString(triple.getSubject()));
+				writer.print(' ');
+				writer.print(toString(triple.getPredicate()));
+				writer.print(' ');
+				writer.print(toString(triple.getObject()));
+				writer.println(" .");
+			}
+		}
+		finally {
+			it.close();
+		}
+		if(prefixes != null) {
+			writer.println();
+		}
+		writer.flush();
+		count++;
+		return true;
+	}
+
+
+	private String toString(Node node) {
+		if(node.isBlank()) {
+			StringBuffer sb = new StringBuffer("_:b");
+			String id = node.getBlankNodeLabel();
+			for(int i = 0; i < id.length(); i++) {
+				char c = id.charAt(i);
+				if((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9')) {
+					sb.append(c);
+				}
+				else {
+					sb.append('x');
+					sb.append(Integer.toHexString(c));
+				}
+			}
+			return sb.toString();
+		}
+		else if(node.isURI()) {
+			if(prefixes != null) {
+				return FmtUtils.stringForURI(node.getURI(), prefixes);
+			}
+			else {
+				return "<" + node.getURI() + ">";
+			}
+		}
+		else {
+			String str = "\"" + FmtUtils.stringEsc(node.getLiteralLexicalForm(), true) + "\"";
+			String lang = node.getLiteralLanguage();
+			if(lang != null && lang.length() > 0) {
+				return str + "@" + lang;
+			}
+			else if(node.getLiteralDatatypeURI() != null) {
+				return str + "^^" + toString(Node.createURI(node.getLiteralDatatypeURI()));
+			}
+			else {
+				return str;
+			}
+		}
+	}
+}
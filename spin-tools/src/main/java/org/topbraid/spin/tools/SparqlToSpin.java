@@ -6,12 +6,19 @@ package org.topbraid.spin.tools;
 
 import java.io.File;
 import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
 
 import org.apache.commons.io.IOUtils;
 import org.topbraid.spin.arq.ARQ2SPIN;
 import org.topbraid.spin.arq.ARQFactory;
+import org.topbraid.spin.arq.BulkARQ2SPIN;
 import org.topbraid.spin.model.Select;
 import org.topbraid.spin.system.SPINModuleRegistry;
 
@@ -19,28 +26,38 @@ import com.hp.hpl.jena.query.Query;
 import com.hp.hpl.jena.rdf.model.Model;
 import com.hp.hpl.jena.rdf.model.ModelFactory;
 import com.hp.hpl.jena.shared.ReificationStyle;
+import com.hp.hpl.jena.util.FileUtils;
 import com.hp.hpl.jena.vocabulary.RDF;
 
 
 /**
  * Converts between textual SPARQL representation and SPIN RDF model.
  * 
+ * If the argument is a directory, then all SPARQL files (.rq, .ru and .sparql)
+ * in it are converted in batch mode into a single SPIN model, which is written
+ * in Turtle to the (optional) output file or to standard out.
+ * 
  * @author Peter Ansell p_ansell@yahoo.com
  */
 public class SparqlToSpin {
 
 	public static void main(String[] args) throws IOException {
 		
-        if(args.length != 1) {
-            System.out.println("ERROR: No file name specified");
-            System.out.println("Arguments: fileName");
-            System.exit(0);
+        if(args.length < 1 || args.length > 2) {
+            System.out.println("ERROR: No file name specified");
+            System.out.println("Arguments: fileName | directory [outputFile]");
+            System.exit(0);
+        }
+
+        // Load main file
+        String query = "";
+        String fileName = args[0];
+        File file = new File(fileName);
+        
+        if(file.isDirectory()) {
+        	convertDirectory(file, args.length > 1 ? new File(args[1]) : null);
+        	return;
         }
-
-        // Load main file
-        String query = "";
-        String fileName = args[1];
-        File file = new File(fileName);
         
         InputStream is = new FileInputStream(file);
         //String lang = FileUtils.guessLang(fileName);
@@ -86,4 +103,40 @@ public class SparqlToSpin {
 		// Output the Jena version as it is self contained, the SPIN version may lack prefix declarations
 		System.out.println(parsedBack);
 	}
+	
+	
+	private static void convertDirectory(File dir, File outputFile) throws IOException {
+		List<File> files = new ArrayList<File>();
+		File[] children = dir.listFiles();
+		Arrays.sort(children);
+		for(File child : children) {
+			String name = child.getName();
+			if(child.isFile() && (name.endsWith(".rq") || name.endsWith(".ru") || name.endsWith(".sparql"))) {
+				files.add(child);
+			}
+		}
+		
+		Model model = ModelFactory.createDefaultModel(ReificationStyle.Minimal);
+		model.setNsPrefix("rdf", RDF.getURI());
+		
+		SPINModuleRegistry.get().init();
+		
+		BulkARQ2SPIN converter = new BulkARQ2SPIN(model);
+		converter.convertFiles(files);
+		Map<Integer,Exception> failures = converter.getFailures();
+		for(Integer index : failures.keySet()) {
+			System.err.println("Could not convert " + files.get(index) + ": " + failures.get(index));
+		}
+		System.err.println("Converted " + (files.size() - failures.size()) + " of " + files.size() + " files");
+		
+		OutputStream os = outputFile != null ? new FileOutputStream(outputFile) : System.out;
+		try {
+			model.write(os, FileUtils.langTurtle);
+		}
+		finally {
+			if(outputFile != null) {
+				os.close();
+			}
+		}
+	}
 }
@@ -0,0 +1,341 @@
+package org.topbraid.spin.tools;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.nio.channels.Channels;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.PriorityQueue;
+
+import com.hp.hpl.jena.graph.Node;
+
+/**
+ * An N-Triples file sorted by subject, created by an external merge sort
+ * from an N-Triples or N-Quads file (the graph names of quads are dropped).
+ * The lines are normalized so that all triples of a subject are adjacent,
+ * which allows the file to be read in subject groups with constant memory
+ * (see openReader).  A sparse index with the first subject of every
+ * INDEX_INTERVAL subjects makes it possible to look up the triples of
+ * any subject on disk.
+ */
+public class SubjectSortedFile {
+
+	public final static int DEFAULT_RUN_SIZE = 500000;
+
+	private final static int INDEX_INTERVAL = 256;
+
+	private final static String UTF8 = "UTF-8";
+
+	private File file;
+
+	private List<Long> indexOffsets = new ArrayList<Long>();
+
+	private List<String> indexSubjects = new ArrayList<String>();
+
+	private RandomAccessFile randomAccess;
+
+
+	/**
+	 * Sorts a given N-Triples or N-Quads file into a new temporary file.
+	 * @param input  the input file
+	 * @param runSize  the number of lines to sort in memory at a time
+	 * @throws IOException
+	 */
+	public SubjectSortedFile(File input, int runSize) throws IOException {
+		if(runSize <= 0) {
+			throw new IllegalArgumentException("Run size must be positive");
+		}
+		List<File> runs = createRuns(input, runSize);
+		file = File.createTempFile("spin-sorted", ".nt");
+		file.deleteOnExit();
+		merge(runs);
+		for(File run : runs) {
+			run.delete();
+		}
+	}
+
+
+	/**
+	 * Closes the file and deletes it.  The file is deleted even if closing fails.
+	 * @throws IOException  if the file could not be closed
+	 */
+	public synchronized void close() throws IOException {
+		try {
+			if(randomAccess != null) {
+				randomAccess.close();
+			}
+		}
+		finally {
+			randomAccess = null;
+			file.delete();
+		}
+	}
+
+
+	private List<File> createRuns(File input, int runSize) throws IOException {
+		List<File> runs = new ArrayList<File>();
+		List<String> lines = new ArrayList<String>();
+		BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(input), UTF8));
+		try {
+			String line = reader.readLine();
+			while(line != null) {
+				String normalized = normalize(line);
+				if(normalized != null) {
+					lines.add(normalized);
+					if(lines.size() >= runSize) {
+						runs.add(writeRun(lines));
+					}
+				}
+				line = reader.readLine();
+			}
+			if(!lines.isEmpty()) {
+				runs.add(writeRun(lines));
+			}
+		}
+		finally {
+			reader.close();
+		}
+		return runs;
+	}
+
+
+	/**
+	 * Gets the N-Triples lines of a given subject, reading them from disk.
+	 * Blank nodes cannot be looked up because their labels are not stable.
+	 * @param subject  the subject to get the triples of
+	 * @return the (possibly empty) lines in N-Triples syntax
+	 * @throws IOException
+	 */
+	public synchronized List<String> getLines(Node subject) throws IOException {
+		if(!subject.isURI() || indexSubjects.isEmpty()) {
+			return Collections.emptyList();
+		}
+		String prefix = "<" + subject.getURI() + "> ";
+
+		// Find the last indexed subject before the subject
+		int low = 0;
+		int high = indexSubjects.size() - 1;
+		int start = 0;
+		while(low <= high) {
+			int mid = (low + high) >>> 1;
+			if((indexSubjects.get(mid) + " ").compareTo(prefix) <= 0) {
+				start = mid;
+				low = mid + 1;
+			}
+			else {
+				high = mid - 1;
+			}
+		}
+
+		if(randomAccess == null) {
+			randomAccess = new RandomAccessFile(file, "r");
+		}
+		randomAccess.seek(indexOffsets.get(start));
+		BufferedReader reader = new BufferedReader(new InputStreamReader(Channels.newInputStream(randomAccess.getChannel()), UTF8));
+		List<String> results = new ArrayList<String>();
+		String line = reader.readLine();
+		while(line != null) {
+			if(line.startsWith(prefix)) {
+				results.add(line);
+			}
+			else if(line.compareTo(prefix) > 0) {
+				break;
+			}
+			line = reader.readLine();
+		}
+		return results;
+	}
+
+
+	/**
+	 * Gets the subject of a normalized N-Triples line.
+	 * @param line  the line
+	 * @return the subject in N-Triples syntax
+	 */
+	public static String getSubject(String line) {
+		return line.substring(0, line.indexOf(' '));
+	}
+
+
+	private static boolean isLanguageTagChar(char c) {
+		return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9') || c == '-';
+	}
+
+
+	private void merge(List<File> runs) throws IOException {
+		PriorityQueue<RunReader> queue = new PriorityQueue<RunReader>();
+		for(File run : runs) {
+			RunReader reader = new RunReader(run);
+			if(reader.line != null) {
+				queue.add(reader);
+			}
+			else {
+				reader.close();
+			}
+		}
+		BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), UTF8));
+		try {
+			long offset = 0;
+			String lastSubject = null;
+			int subjectCount = 0;
+			while(!queue.isEmpty()) {
+				RunReader reader = queue.poll();
+				String line = reader.line;
+				String subject = getSubject(line);
+				if(!subject.equals(lastSubject)) {
+					if(subjectCount++ % INDEX_INTERVAL == 0) {
+						indexSubjects.add(subject);
+						indexOffsets.add(offset);
+					}
+					lastSubject = subject;
+				}
+				writer.write(line);
+				writer.write('\n');
+				offset += line.getBytes(UTF8).length + 1;
+				if(reader.next()) {
+					queue.add(reader);
+				}
+				else {
+					reader.close();
+				}
+			}
+		}
+		finally {
+			writer.close();
+		}
+	}
+
+
+	/**
+	 * Converts a line of an N-Triples or N-Quads file into a normalized
+	 * N-Triples line, with single spaces between the terms.
+	 * @param line  the input line
+	 * @return the normalized line or null for empty lines and comments
+	 */
+	public static String normalize(String line) {
+		List<String> terms = new ArrayList<String>(4);
+		int i = 0;
+		int length = line.length();
+		while(i < length) {
+			char c = line.charAt(i);
+			if(c == ' ' || c == '\t') {
+				i++;
+				continue;
+			}
+			else if(c == '.' || c == '#') {
+				break;
+			}
+			int start = i;
+			if(c == '<') {
+				i = line.indexOf('>', i) + 1;
+			}
+			else if(c == '"') {
+				i++;
+				while(i < length && line.charAt(i) != '"') {
+					i += line.charAt(i) == '\\' ? 2 : 1;
+				}
+				i++;
+				if(i < length && line.charAt(i) == '@') {
+					i++;
+					while(i < length && isLanguageTagChar(line.charAt(i))) {
+						i++;
+					}
+				}
+				else if(line.startsWith("^^<", i)) {
+					i = line.indexOf('>', i) + 1;
+				}
+			}
+			else if(c == '_') {
+				while(i < length && line.charAt(i) != ' ' && line.charAt(i) != '\t') {
+					i++;
+				}
+				if(line.charAt(i - 1) == '.') {
+					i--; // Terminating dot without white space
+				}
+			}
+			else {
+				i = 0;
+			}
+			if(i <= start || i > length) {
+				throw new IllegalArgumentException("Invalid N-Triples line: " + line);
+			}
+			terms.add(line.substring(start, i));
+		}
+		if(terms.isEmpty()) {
+			return null;
+		}
+		else if(terms.size() < 3 || terms.size() > 4) {
+			throw new IllegalArgumentException("Invalid N-Triples line: " + line);
+		}
+		return terms.get(0) + " " + terms.get(1) + " " + terms.get(2) + " .";
+	}
+
+
+	/**
+	 * Opens a reader on the sorted lines.
+	 * @return a new reader that must be closed by the caller
+	 * @throws IOException
+	 */
+	public BufferedReader openReader() throws IOException {
+		InputStream is = new FileInputStream(file);
+		return new BufferedReader(new InputStreamReader(is, UTF8));
+	}
+
+
+	private File writeRun(List<String> lines) throws IOException {
+		Collections.sort(lines);
+		File run = File.createTempFile("spin-run", ".nt");
+		run.deleteOnExit();
+		BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(run), UTF8));
+		try {
+			for(String line : lines) {
+				writer.write(line);
+				writer.write('\n');
+			}
+		}
+		finally {
+			writer.close();
+		}
+		lines.clear();
+		return run;
+	}
+
+
+	private static class RunReader implements Comparable<RunReader> {
+
+		String line;
+
+		private BufferedReader reader;
+
+
+		RunReader(File run) throws IOException {
+			reader = new BufferedReader(new InputStreamReader(new FileInputStream(run), UTF8));
+			line = reader.readLine();
+		}
+
+
+		void close() throws IOException {
+			reader.close();
+		}
+
+
+		public int compareTo(RunReader other) {
+			return line.compareTo(other.line);
+		}
+
+
+		boolean next() throws IOException {
+			line = reader.readLine();
+			return line != null;
+		}
+	}
+}
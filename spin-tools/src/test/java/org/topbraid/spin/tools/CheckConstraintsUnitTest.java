@@ -0,0 +1,164 @@
+/**
+ *
+ */
+package org.topbraid.spin.tools;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.topbraid.spin.arq.ARQ2SPIN;
+import org.topbraid.spin.arq.ARQFactory;
+import org.topbraid.spin.constraints.ConstraintViolation;
+import org.topbraid.spin.constraints.SPINConstraints;
+import org.topbraid.spin.statistics.SPINStatistics;
+import org.topbraid.spin.vocabulary.SP;
+import org.topbraid.spin.vocabulary.SPIN;
+
+import com.hp.hpl.jena.ontology.OntModel;
+import com.hp.hpl.jena.ontology.OntModelSpec;
+import com.hp.hpl.jena.rdf.model.Model;
+import com.hp.hpl.jena.rdf.model.ModelFactory;
+import com.hp.hpl.jena.rdf.model.Property;
+import com.hp.hpl.jena.rdf.model.Resource;
+import com.hp.hpl.jena.shared.ReificationStyle;
+import com.hp.hpl.jena.vocabulary.RDF;
+
+/**
+ * Tests the options and exit codes of {@link CheckConstraints}.
+ */
+public class CheckConstraintsUnitTest
+{
+
+    private static final String BASE_URI = "http://example.org/test";
+
+    private static final String NS = BASE_URI + "#";
+
+    private File file;
+
+    private Model model;
+
+    private ByteArrayOutputStream output;
+
+    @Before
+    public void setUp() throws Exception
+    {
+        this.file = File.createTempFile("spin-test", ".ttl");
+        this.output = new ByteArrayOutputStream();
+
+        this.model = ModelFactory.createDefaultModel(ReificationStyle.Minimal);
+        this.model.setNsPrefix("ex", NS);
+        this.model.add(SPIN._this, RDF.type, SP.Variable);
+        this.model.add(SPIN._this, SP.varName, this.model.createTypedLiteral("this"));
+        Resource cls = this.model.createResource(NS + "Person");
+        ARQ2SPIN arq2spin = new ARQ2SPIN(this.model);
+        String str = ARQFactory.get().createPrefixDeclarations(this.model) + "ASK WHERE { ?this ex:age ?age . FILTER (?age < 0) }";
+        cls.addProperty(SPIN.constraint, arq2spin.createQuery(ARQFactory.get().createQuery(str), null));
+    }
+
+    @After
+    public void tearDown() throws Exception
+    {
+        this.file.delete();
+    }
+
+    // Writes the Model with the given number of invalid instances and runs the checker on it
+    private int run(int violations, String... options) throws Exception
+    {
+        Property age = this.model.createProperty(NS + "age");
+        for(int i = 0; i < violations; i++)
+        {
+            this.model.createResource(NS + "p" + i, this.model.getResource(NS + "Person")).addLiteral(age, -1);
+        }
+        OutputStream os = new FileOutputStream(this.file);
+        try
+        {
+            this.model.write(os, "TURTLE");
+        }
+        finally
+        {
+            os.close();
+        }
+        String[] args = new String[options.length + 2];
+        System.arraycopy(options, 0, args, 0, options.length);
+        args[options.length] = BASE_URI;
+        args[options.length + 1] = this.file.getPath();
+        return CheckConstraints.run(args, new PrintStream(this.output, true, "UTF-8"));
+    }
+
+    private Model readOutput(String lang) throws Exception
+    {
+        Model results = ModelFactory.createDefaultModel();
+        results.read(new ByteArrayInputStream(this.output.toByteArray()), BASE_URI, lang);
+        return results;
+    }
+
+    private int countViolations() throws Exception
+    {
+        return readOutput("N-TRIPLE").listSubjectsWithProperty(RDF.type, SPIN.ConstraintViolation).toList().size();
+    }
+
+    @Test
+    public void testStreamedOutput() throws Exception
+    {
+        // Both formats contain the same RDF as the collected violations of the same OntModel
+        // (with statistics, because they also provide the default labels)
+        Assert.assertEquals(0, run(3, "--ntriples"));
+        OntModel ontModel = ModelFactory.createOntologyModel(OntModelSpec.OWL_MEM, this.model);
+        List<ConstraintViolation> violations = SPINConstraints.check(ontModel, new ArrayList<SPINStatistics>(), null, OntModelSpec.OWL_MEM, BASE_URI, Collections.<Object>singleton(BASE_URI));
+        Model expected = ModelFactory.createDefaultModel();
+        SPINConstraints.addConstraintViolationsRDF(violations, expected, false);
+        Assert.assertEquals(3, expected.listSubjectsWithProperty(RDF.type, SPIN.ConstraintViolation).toList().size());
+        Assert.assertTrue(readOutput("N-TRIPLE").isIsomorphicWith(expected));
+
+        this.output.reset();
+        Assert.assertEquals(0, run(0));
+        Assert.assertTrue(readOutput("TURTLE").isIsomorphicWith(expected));
+    }
+
+    @Test
+    public void testFailFastWithViolation() throws Exception
+    {
+        Assert.assertEquals(1, run(3, "--fail-fast", "--ntriples"));
+        Assert.assertEquals(1, countViolations());
+    }
+
+    @Test
+    public void testFailFastWithoutViolation() throws Exception
+    {
+        Assert.assertEquals(0, run(0, "--fail-fast", "--ntriples"));
+        Assert.assertEquals(0, countViolations());
+    }
+
+    @Test
+    public void testMaxViolations() throws Exception
+    {
+        // Only --fail-fast changes the exit code
+        Assert.assertEquals(0, run(3, "--max-violations", "2", "--ntriples"));
+        Assert.assertEquals(2, countViolations());
+    }
+
+    @Test
+    public void testAllViolations() throws Exception
+    {
+        Assert.assertEquals(0, run(3, "--ntriples"));
+        Assert.assertEquals(3, countViolations());
+    }
+
+    @Test
+    public void testCombinedOptions() throws Exception
+    {
+        Assert.assertEquals(2, run(3, "--fail-fast", "--max-violations", "2"));
+        Assert.assertTrue(this.output.toString("UTF-8").startsWith("ERROR:"));
+    }
+}
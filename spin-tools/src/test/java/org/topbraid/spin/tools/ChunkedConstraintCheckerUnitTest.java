@@ -0,0 +1,135 @@
+/**
+ *
+ */
+package org.topbraid.spin.tools;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.topbraid.spin.arq.ARQ2SPIN;
+import org.topbraid.spin.arq.ARQFactory;
+import org.topbraid.spin.constraints.ConstraintViolation;
+import org.topbraid.spin.constraints.ConstraintViolationHandler;
+import org.topbraid.spin.system.SPINModuleRegistry;
+import org.topbraid.spin.util.CommandWrapper;
+import org.topbraid.spin.vocabulary.SPIN;
+
+import com.hp.hpl.jena.rdf.model.Model;
+import com.hp.hpl.jena.rdf.model.ModelFactory;
+import com.hp.hpl.jena.rdf.model.Resource;
+import com.hp.hpl.jena.shared.ReificationStyle;
+import com.hp.hpl.jena.vocabulary.RDF;
+
+/**
+ * Tests for {@link ChunkedConstraintChecker}.
+ */
+public class ChunkedConstraintCheckerUnitTest
+{
+
+    private static final String NS = "http://example.org/test#";
+
+    private File input;
+
+    private Model schema;
+
+    private SubjectSortedFile sorted;
+
+    @Before
+    public void setUp() throws Exception
+    {
+        SPINModuleRegistry.get().init();
+        this.input = File.createTempFile("spin-test", ".nt");
+
+        this.schema = ModelFactory.createDefaultModel(ReificationStyle.Minimal);
+        this.schema.setNsPrefix("ex", NS);
+        Resource cls = this.schema.createResource(NS + "C");
+        cls.addProperty(SPIN.constraint, createQuery("# Missing value\nASK WHERE { FILTER NOT EXISTS { ?this ex:p ?value } }"));
+        cls.addProperty(SPIN.constraint, createQuery("# Global\nASK WHERE { ?s ex:bad ?o }"));
+    }
+
+    @After
+    public void tearDown() throws Exception
+    {
+        if(this.sorted != null)
+        {
+            this.sorted.close();
+        }
+        this.input.delete();
+    }
+
+    private Resource createQuery(String text)
+    {
+        ARQ2SPIN arq2spin = new ARQ2SPIN(this.schema);
+        String str = ARQFactory.get().createPrefixDeclarations(this.schema) + text;
+        return arq2spin.createQuery(ARQFactory.get().createQuery(str), null);
+    }
+
+    @Test
+    public void testConstraintsWithoutThis()
+    {
+        ChunkedConstraintChecker checker = new ChunkedConstraintChecker(this.schema, 10, Collections.emptySet());
+        List<CommandWrapper> wrappers = checker.getConstraintsWithoutThis();
+        Assert.assertEquals(1, wrappers.size());
+        Assert.assertTrue(wrappers.get(0).getText().contains("bad"));
+    }
+
+    @Test
+    public void testCheckInChunks() throws Exception
+    {
+        // Every third instance has no ex:p, with chunks of (at least) 4 triples
+        Writer writer = new OutputStreamWriter(new FileOutputStream(this.input), "UTF-8");
+        try
+        {
+            for(int i = 0; i < 9; i++)
+            {
+                writer.write("<" + NS + "i" + i + "> <" + RDF.type.getURI() + "> <" + NS + "C> .\n");
+                if(i % 3 != 0)
+                {
+                    writer.write("<" + NS + "i" + i + "> <" + NS + "p> \"" + i + "\" .\n");
+                }
+            }
+        }
+        finally
+        {
+            writer.close();
+        }
+        this.sorted = new SubjectSortedFile(this.input, 5);
+
+        final List<String> roots = new ArrayList<String>();
+        ChunkedConstraintChecker checker = new ChunkedConstraintChecker(this.schema, 4, Collections.emptySet());
+        int count = checker.check(this.sorted, new ConstraintViolationHandler()
+        {
+            @Override
+            public boolean handleConstraintViolation(ConstraintViolation violation)
+            {
+                roots.add(violation.getRoot().getURI());
+                return true;
+            }
+        }, 0);
+        Collections.sort(roots);
+        Assert.assertEquals(3, count);
+        Assert.assertEquals(3, roots.size());
+        Assert.assertEquals(NS + "i0", roots.get(0));
+        Assert.assertEquals(NS + "i3", roots.get(1));
+        Assert.assertEquals(NS + "i6", roots.get(2));
+
+        // The limit stops the check
+        Assert.assertEquals(2, checker.check(this.sorted, new ConstraintViolationHandler()
+        {
+            @Override
+            public boolean handleConstraintViolation(ConstraintViolation violation)
+            {
+                return true;
+            }
+        }, 2));
+    }
+}
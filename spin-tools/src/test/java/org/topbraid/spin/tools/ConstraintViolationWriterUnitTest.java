@@ -0,0 +1,140 @@
+/**
+ *
+ */
+package org.topbraid.spin.tools;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.topbraid.spin.arq.ARQ2SPIN;
+import org.topbraid.spin.arq.ARQFactory;
+import org.topbraid.spin.constraints.ConstraintViolation;
+import org.topbraid.spin.constraints.ObjectPropertyPath;
+import org.topbraid.spin.constraints.SPINConstraints;
+import org.topbraid.spin.constraints.SimplePropertyPath;
+import org.topbraid.spin.constraints.SubjectPropertyPath;
+import org.topbraid.spin.model.TemplateCall;
+import org.topbraid.spin.system.SPINModuleRegistry;
+import org.topbraid.spin.vocabulary.SPIN;
+
+import com.hp.hpl.jena.ontology.OntModelSpec;
+import com.hp.hpl.jena.rdf.model.Model;
+import com.hp.hpl.jena.rdf.model.ModelFactory;
+import com.hp.hpl.jena.rdf.model.Property;
+import com.hp.hpl.jena.rdf.model.Resource;
+import com.hp.hpl.jena.shared.PrefixMapping;
+import com.hp.hpl.jena.shared.ReificationStyle;
+import com.hp.hpl.jena.shared.impl.PrefixMappingImpl;
+import com.hp.hpl.jena.vocabulary.RDFS;
+
+/**
+ * Tests that {@link ConstraintViolationWriter} streams the same RDF as
+ * {@link SPINConstraints#addConstraintViolationsRDF(List, Model, boolean)}.
+ */
+public class ConstraintViolationWriterUnitTest
+{
+
+    private static final String NS = "http://example.org/test#";
+
+    private Model model;
+
+    private List<ConstraintViolation> violations;
+
+    @Before
+    public void setUp() throws Exception
+    {
+        this.model = ModelFactory.createDefaultModel();
+        Property p = this.model.createProperty(NS + "p");
+        Resource blank = this.model.createResource();
+        Resource source = this.model.createResource(NS + "constraint");
+        List<TemplateCall> fixes = Collections.emptyList();
+
+        // A blank node root that is shared by two violations, paths in both directions and escaped text
+        this.violations = new ArrayList<ConstraintViolation>();
+        this.violations.add(new ConstraintViolation(blank,
+                Arrays.<SimplePropertyPath>asList(new ObjectPropertyPath(blank, p), new SubjectPropertyPath(blank, p)),
+                fixes, "A \"quoted\"\nmessage with äöü", source));
+        this.violations.add(new ConstraintViolation(blank, new ArrayList<SimplePropertyPath>(), fixes, null, source));
+        this.violations.add(new ConstraintViolation(this.model.createResource(NS + "i"),
+                Collections.<SimplePropertyPath>singletonList(new ObjectPropertyPath(null, RDFS.label)),
+                fixes, "Other", null));
+    }
+
+    private Model write(PrefixMapping prefixes, boolean createSource) throws Exception
+    {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        ConstraintViolationWriter writer = new ConstraintViolationWriter(bos, prefixes, createSource);
+        for(ConstraintViolation violation : this.violations)
+        {
+            Assert.assertTrue(writer.handleConstraintViolation(violation));
+        }
+        Assert.assertEquals(this.violations.size(), writer.getCount());
+
+        Model results = ModelFactory.createDefaultModel();
+        results.read(new ByteArrayInputStream(bos.toByteArray()), NS, prefixes == null ? "N-TRIPLE" : "TURTLE");
+        return results;
+    }
+
+    private Model expected(boolean createSource)
+    {
+        Model results = ModelFactory.createDefaultModel();
+        SPINConstraints.addConstraintViolationsRDF(this.violations, results, createSource);
+        return results;
+    }
+
+    @Test
+    public void testNTriples() throws Exception
+    {
+        Assert.assertTrue(write(null, false).isIsomorphicWith(expected(false)));
+        Assert.assertTrue(write(null, true).isIsomorphicWith(expected(true)));
+    }
+
+    @Test
+    public void testTurtle() throws Exception
+    {
+        PrefixMapping prefixes = new PrefixMappingImpl();
+        prefixes.setNsPrefix(SPIN.PREFIX, SPIN.NS);
+        prefixes.setNsPrefix("rdfs", RDFS.getURI());
+        prefixes.setNsPrefix("ex", NS);
+        Assert.assertTrue(write(prefixes, false).isIsomorphicWith(expected(false)));
+        Assert.assertTrue(write(prefixes, true).isIsomorphicWith(expected(true)));
+    }
+
+    @Test
+    public void testStreamingCheck() throws Exception
+    {
+        SPINModuleRegistry.get().init();
+        Model data = ModelFactory.createDefaultModel(ReificationStyle.Minimal);
+        data.setNsPrefix("ex", NS);
+        data.setNsPrefix("rdfs", RDFS.getURI());
+        Resource cls = data.createResource(NS + "C");
+        Property p = data.createProperty(NS + "p");
+        ARQ2SPIN arq2spin = new ARQ2SPIN(data);
+        String str = ARQFactory.get().createPrefixDeclarations(data) + "CONSTRUCT { _:cv a spin:ConstraintViolation ; spin:violationRoot ?this ; spin:violationPath ex:p ; rdfs:label \"Negative\" } WHERE { ?this ex:p ?value . FILTER (?value < 0) }";
+        cls.addProperty(SPIN.constraint, arq2spin.createQuery(ARQFactory.get().createQuery(str), null));
+        for(int i = 0; i < 3; i++)
+        {
+            data.createResource(NS + "i" + i, cls).addLiteral(p, i - 2);
+        }
+
+        // The streamed violations are the same as the collected ones
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        ConstraintViolationWriter writer = new ConstraintViolationWriter(bos, null, true);
+        int count = SPINConstraints.check(data, writer, 0, null, null, OntModelSpec.OWL_MEM, null, Collections.emptySet());
+        Assert.assertEquals(2, count);
+        Assert.assertEquals(2, writer.getCount());
+        Model streamed = ModelFactory.createDefaultModel();
+        streamed.read(new ByteArrayInputStream(bos.toByteArray()), NS, "N-TRIPLE");
+
+        this.violations = SPINConstraints.check(data, null);
+        Assert.assertEquals(2, this.violations.size());
+        Assert.assertTrue(streamed.isIsomorphicWith(expected(true)));
+    }
+}
@@ -0,0 +1,95 @@
+/**
+ *
+ */
+package org.topbraid.spin.tools;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.topbraid.spin.vocabulary.SP;
+
+import com.hp.hpl.jena.rdf.model.Model;
+import com.hp.hpl.jena.rdf.model.ModelFactory;
+import com.hp.hpl.jena.util.FileUtils;
+import com.hp.hpl.jena.vocabulary.RDF;
+
+/**
+ * Tests the directory mode of {@link SparqlToSpin}.
+ */
+public class SparqlToSpinUnitTest
+{
+
+    private File dir;
+
+    private File output;
+
+    @Before
+    public void setUp() throws Exception
+    {
+        this.dir = File.createTempFile("spin-test", "");
+        this.dir.delete();
+        this.dir.mkdir();
+        this.output = File.createTempFile("spin-test", ".ttl");
+    }
+
+    @After
+    public void tearDown() throws Exception
+    {
+        for(File file : this.dir.listFiles())
+        {
+            file.delete();
+        }
+        this.dir.delete();
+        this.output.delete();
+    }
+
+    private void write(String name, String text) throws IOException
+    {
+        Writer writer = new OutputStreamWriter(new FileOutputStream(new File(this.dir, name)), "UTF-8");
+        try
+        {
+            writer.write(text);
+        }
+        finally
+        {
+            writer.close();
+        }
+    }
+
+    @Test
+    public void testConvertDirectory() throws Exception
+    {
+        write("a.rq", "SELECT ?s WHERE { ?s <http://example.org/test#p> ?o }");
+        write("b.ru", "INSERT DATA { <http://example.org/test#s> <http://example.org/test#p> 1 }");
+        write("c.sparql", "ASK { ?s ?p ?o }");
+        write("d.sparql", "SELECT WHERE");
+        write("e.txt", "SELECT ?x WHERE { ?x ?y ?z }");
+
+        SparqlToSpin.main(new String[] { this.dir.getPath(), this.output.getPath() });
+
+        Model model = ModelFactory.createDefaultModel();
+        InputStream is = new FileInputStream(this.output);
+        try
+        {
+            model.read(is, null, FileUtils.langTurtle);
+        }
+        finally
+        {
+            is.close();
+        }
+
+        // The broken file and the file with another extension are left out
+        Assert.assertEquals(1, model.listSubjectsWithProperty(RDF.type, SP.Select).toList().size());
+        Assert.assertEquals(1, model.listSubjectsWithProperty(RDF.type, SP.InsertData).toList().size());
+        Assert.assertEquals(1, model.listSubjectsWithProperty(RDF.type, SP.Ask).toList().size());
+    }
+}
@@ -0,0 +1,200 @@
+/**
+ *
+ */
+package org.topbraid.spin.tools;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.hp.hpl.jena.graph.Node;
+
+/**
+ * Tests for {@link SubjectSortedFile}.
+ */
+public class SubjectSortedFileUnitTest
+{
+
+    private static final String NS = "http://example.org/test#";
+
+    private File input;
+
+    private SubjectSortedFile sorted;
+
+    @Before
+    public void setUp() throws Exception
+    {
+        this.input = File.createTempFile("spin-test", ".nt");
+    }
+
+    @After
+    public void tearDown() throws Exception
+    {
+        if(this.sorted != null)
+        {
+            this.sorted.close();
+        }
+        this.input.delete();
+    }
+
+    private void write(List<String> lines) throws IOException
+    {
+        Writer writer = new OutputStreamWriter(new FileOutputStream(this.input), "UTF-8");
+        try
+        {
+            for(String line : lines)
+            {
+                writer.write(line);
+                writer.write('\n');
+            }
+        }
+        finally
+        {
+            writer.close();
+        }
+    }
+
+    // Writes the triples of the subjects in reverse and interleaved order
+    private void writeSubjects(int subjectCount, int triplesPerSubject) throws IOException
+    {
+        List<String> lines = new ArrayList<String>();
+        for(int j = 0; j < triplesPerSubject; j++)
+        {
+            for(int i = subjectCount - 1; i >= 0; i--)
+            {
+                lines.add("<" + NS + "s" + i + ">  <" + NS + "p>\t\"value " + j + "\" .");
+            }
+        }
+        write(lines);
+    }
+
+    @Test
+    public void testNormalize()
+    {
+        Assert.assertEquals("<" + NS + "s> <" + NS + "p> <" + NS + "o> .",
+                SubjectSortedFile.normalize("  <" + NS + "s>\t<" + NS + "p>   <" + NS + "o>."));
+        Assert.assertEquals("<" + NS + "s> <" + NS + "p> \"a \\\" b\"@en .",
+                SubjectSortedFile.normalize("<" + NS + "s> <" + NS + "p> \"a \\\" b\"@en ."));
+        Assert.assertEquals("<" + NS + "s> <" + NS + "p> \"1\"^^<http://www.w3.org/2001/XMLSchema#integer> .",
+                SubjectSortedFile.normalize("<" + NS + "s> <" + NS + "p> \"1\"^^<http://www.w3.org/2001/XMLSchema#integer>."));
+        Assert.assertEquals("<" + NS + "s> <" + NS + "p> \"x\"@en .",
+                SubjectSortedFile.normalize("<" + NS + "s> <" + NS + "p> \"x\"@en."));
+        Assert.assertEquals("<" + NS + "s> <" + NS + "p> \"x\"@en-GB .",
+                SubjectSortedFile.normalize("<" + NS + "s>\t<" + NS + "p>\t\"x\"@en-GB\t."));
+        Assert.assertNull(SubjectSortedFile.normalize("   "));
+        Assert.assertNull(SubjectSortedFile.normalize("# a comment"));
+    }
+
+    @Test
+    public void testNormalizeBlankNodes()
+    {
+        Assert.assertEquals("_:b1 <" + NS + "p> _:b2 .",
+                SubjectSortedFile.normalize("_:b1\t<" + NS + "p> _:b2."));
+        Assert.assertEquals("_:b1 <" + NS + "p> _:b2 .",
+                SubjectSortedFile.normalize("_:b1 <" + NS + "p> _:b2 ."));
+    }
+
+    @Test
+    public void testNormalizeQuads()
+    {
+        Assert.assertEquals("<" + NS + "s> <" + NS + "p> \"o\" .",
+                SubjectSortedFile.normalize("<" + NS + "s> <" + NS + "p> \"o\" <" + NS + "graph> ."));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testNormalizeInvalid()
+    {
+        SubjectSortedFile.normalize("<" + NS + "s> <" + NS + "p> .");
+    }
+
+    @Test
+    public void testSortAcrossRuns() throws Exception
+    {
+        // 7 lines per run splits the triples of most subjects over several runs
+        writeSubjects(50, 3);
+        this.sorted = new SubjectSortedFile(this.input, 7);
+
+        BufferedReader reader = this.sorted.openReader();
+        try
+        {
+            Set<String> finished = new HashSet<String>();
+            String last = null;
+            int count = 0;
+            for(String line = reader.readLine(); line != null; line = reader.readLine())
+            {
+                if(last != null)
+                {
+                    Assert.assertTrue(last.compareTo(line) <= 0);
+                    String lastSubject = SubjectSortedFile.getSubject(last);
+                    if(!lastSubject.equals(SubjectSortedFile.getSubject(line)))
+                    {
+                        Assert.assertTrue(finished.add(lastSubject));
+                    }
+                }
+                Assert.assertFalse(finished.contains(SubjectSortedFile.getSubject(line)));
+                last = line;
+                count++;
+            }
+            Assert.assertEquals(150, count);
+        }
+        finally
+        {
+            reader.close();
+        }
+    }
+
+    @Test
+    public void testGetLinesAcrossIndexBlocks() throws Exception
+    {
+        // More than two blocks of the sparse index
+        int subjectCount = 700;
+        writeSubjects(subjectCount, 3);
+        this.sorted = new SubjectSortedFile(this.input, 100);
+
+        for(int i = 0; i < subjectCount; i++)
+        {
+            List<String> lines = this.sorted.getLines(Node.createURI(NS + "s" + i));
+            Assert.assertEquals("Triples of s" + i, 3, lines.size());
+            for(String line : lines)
+            {
+                Assert.assertTrue(line.startsWith("<" + NS + "s" + i + "> "));
+            }
+        }
+
+        // Prefixes of existing subjects and unknown subjects have no triples
+        Assert.assertTrue(this.sorted.getLines(Node.createURI(NS + "s")).isEmpty());
+        Assert.assertTrue(this.sorted.getLines(Node.createURI(NS + "a")).isEmpty());
+        Assert.assertTrue(this.sorted.getLines(Node.createURI(NS + "z")).isEmpty());
+        Assert.assertTrue(this.sorted.getLines(Node.createAnon()).isEmpty());
+    }
+
+    @Test
+    public void testGetLinesOfLongSubjectGroup() throws Exception
+    {
+        // A single subject whose triples are longer than an index block
+        List<String> lines = new ArrayList<String>();
+        for(int i = 0; i < 1000; i++)
+        {
+            lines.add("<" + NS + "big> <" + NS + "p> \"" + i + "\" .");
+            lines.add("<" + NS + "small" + i + "> <" + NS + "p> \"" + i + "\" .");
+        }
+        write(lines);
+        this.sorted = new SubjectSortedFile(this.input, 64);
+
+        Assert.assertEquals(1000, this.sorted.getLines(Node.createURI(NS + "big")).size());
+        Assert.assertEquals(1, this.sorted.getLines(Node.createURI(NS + "small999")).size());
+        Assert.assertEquals(1, this.sorted.getLines(Node.createURI(NS + "small0")).size());
+    }
+}